@@ -15,6 +15,7 @@ import com.mapbox.mapboxsdk.geometry.CoordinateRegion;
 import com.mapbox.mapboxsdk.util.AppUtils;
 import com.mapbox.mapboxsdk.util.DataLoadingUtils;
 import com.mapbox.mapboxsdk.util.MapboxUtils;
+import com.mapbox.mapboxsdk.util.NetworkStack;
 import com.mapbox.mapboxsdk.util.NetworkUtils;
 
 import org.json.JSONArray;
@@ -423,7 +424,11 @@ public class OfflineMapDownloader implements MapboxConstants {
         @Override
         public void run() {
             HttpURLConnection conn = null;
+            final NetworkStack networkStack = NetworkStack.getInstance();
+            boolean acquired = false;
             try {
+                networkStack.acquireHost(mURL);
+                acquired = true;
 //                URL thisURL = new URL(currentURL);
                 conn = NetworkUtils.getHttpURLConnection(mURL);
 //                Log.d(TAG, "URL to download = " + conn.getURL().toString());
@@ -465,6 +470,9 @@ public class OfflineMapDownloader implements MapboxConstants {
                 if (conn != null) {
                     conn.disconnect();
                 }
+                if (acquired) {
+                    networkStack.releaseHost(mURL);
+                }
             }
             try {
                 mFinishedQueue.put(mFinishedToken);
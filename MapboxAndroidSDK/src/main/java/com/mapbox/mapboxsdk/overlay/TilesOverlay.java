@@ -8,7 +8,6 @@ import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.Shader;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.Log;
@@ -21,8 +20,8 @@ import com.mapbox.mapboxsdk.views.MapView;
 import com.mapbox.mapboxsdk.views.safecanvas.ISafeCanvas;
 import com.mapbox.mapboxsdk.views.safecanvas.SafePaint;
 import com.mapbox.mapboxsdk.views.util.Projection;
-import java.util.HashMap;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+import uk.co.senab.bitmapcache.DrawableLeases;
 
 /**
  * These objects are the principle consumer of map tiles.
@@ -51,12 +50,19 @@ public class TilesOverlay extends SafeDrawOverlay {
     private final Rect mViewPort = new Rect();
     private final Rect mClipRect = new Rect();
     float mCurrentZoomFactor = 1;
-    private float mRescaleZoomDiffMax = 4;
+    private int mFallbackZoomLevels = 4;
     private boolean isAnimating = false;
     private boolean mOptionsMenuEnabled = true;
 
     private int mWorldSize_2;
 
+    // drawFallback() state, to avoid allocations during draw
+    private final MapTile mFallbackTile = new MapTile(0, 0, 0);
+    private final CacheableBitmapDrawable[] mFallbackChildren = new CacheableBitmapDrawable[4];
+    private final Rect mFallbackSrcRect = new Rect();
+    private final Rect mFallbackDestRect = new Rect();
+    private final Paint mFallbackPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
     private int mLoadingBackgroundColor = Color.rgb(216, 208, 208);
     private int mLoadingLineColor = Color.rgb(200, 192, 192);
     private boolean mDrawLoadingTile = true;
@@ -91,6 +97,7 @@ public class TilesOverlay extends SafeDrawOverlay {
 
     @Override
     public void onDetach(final MapView pMapView) {
+        mTileLooper.releaseLeases();
         this.mTileProvider.detach();
     }
 
@@ -211,6 +218,8 @@ public class TilesOverlay extends SafeDrawOverlay {
             } else {
                 mCurrentZoomFactor = 1.0f;
             }
+            mTileProvider.setViewport(roundedZoom, mUpperLeft.x, mUpperLeft.y, mLowerRight.x,
+                    mLowerRight.y);
         }
 
         @Override
@@ -224,18 +233,15 @@ public class TilesOverlay extends SafeDrawOverlay {
                 return;
             }
             pTile.setTileRect(mTileRect);
-            Drawable drawable = mTileProvider.getMapTile(pTile, !isAnimating);
-            boolean isReusable = drawable instanceof CacheableBitmapDrawable;
+            Drawable drawable = mTileProvider.getMapTile(pTile, !isAnimating, mLeases);
 
             if (drawable != null) {
-                if (isReusable) {
-                    mBeingUsedDrawables.add((CacheableBitmapDrawable) drawable);
-                }
                 drawable.setBounds(mTileRect);
                 drawable.draw(pCanvas);
             } else {
                 mTileProvider.memoryCacheNeedsMoreMemory(mNuberOfTiles);
                 //Log.w(TAG, "tile should have been drawn to canvas, but it was null.  tile = '" + pTile + "'");
+                drawFallback(pCanvas, pTile, mTileRect, mLeases);
             }
 
             if (UtilConstants.DEBUGMODE) {
@@ -246,6 +252,100 @@ public class TilesOverlay extends SafeDrawOverlay {
         }
     };
 
+    /**
+     * Stand in for a tile that isn't loaded yet with the tiles of the neighbouring zoom levels
+     * that are in memory: its children where they are present, over the matching part of its
+     * nearest ancestor unless all four children are. The tiles are scaled while they are drawn,
+     * so nothing is allocated and nothing is added to the cache.
+     *
+     * @param pTile the draw loop's tile descriptor, which is reused for the lookups
+     * @param pTileRect where the missing tile is drawn
+     * @param pLeases the draw loop's leases
+     */
+    private void drawFallback(final Canvas pCanvas, final MapTile pTile, final Rect pTileRect,
+            final DrawableLeases pLeases) {
+        final String cacheKey = pTile.getSourceCacheKey();
+        final int z = pTile.getZ();
+        final int x = pTile.getX();
+        final int y = pTile.getY();
+
+        int children = 0;
+        if (z < getMaximumZoomLevel()) {
+            for (int i = 0; i < 4; i++) {
+                mFallbackChildren[i] = getFallbackTile(mFallbackTile.set(cacheKey, z + 1,
+                        (x << 1) + (i & 1), (y << 1) + (i >> 1)), pLeases);
+                if (mFallbackChildren[i] != null) {
+                    children++;
+                }
+            }
+        }
+
+        if (children < 4) {
+            for (int dz = 1; dz <= mFallbackZoomLevels && z - dz >= 0; dz++) {
+                final CacheableBitmapDrawable ancestor =
+                        getFallbackTile(mFallbackTile.set(cacheKey, z - dz, x >> dz, y >> dz),
+                                pLeases);
+                if (ancestor == null) {
+                    continue;
+                }
+                // the part of the ancestor covering this tile, 1 / 2^dz of it on each side
+                final Bitmap bitmap = ancestor.getBitmap();
+                final int mask = (1 << dz) - 1;
+                final int left = (x & mask) * bitmap.getWidth() >> dz;
+                final int top = (y & mask) * bitmap.getHeight() >> dz;
+                mFallbackSrcRect.set(left, top, left + Math.max(bitmap.getWidth() >> dz, 1),
+                        top + Math.max(bitmap.getHeight() >> dz, 1));
+                pCanvas.drawBitmap(bitmap, mFallbackSrcRect, pTileRect, mFallbackPaint);
+                break;
+            }
+        }
+
+        if (children > 0) {
+            final int centerX = pTileRect.centerX();
+            final int centerY = pTileRect.centerY();
+            for (int i = 0; i < 4; i++) {
+                final CacheableBitmapDrawable child = mFallbackChildren[i];
+                if (child == null) {
+                    continue;
+                }
+                mFallbackDestRect.set((i & 1) == 0 ? pTileRect.left : centerX,
+                        (i >> 1) == 0 ? pTileRect.top : centerY,
+                        (i & 1) == 0 ? centerX : pTileRect.right,
+                        (i >> 1) == 0 ? centerY : pTileRect.bottom);
+                pCanvas.drawBitmap(child.getBitmap(), null, mFallbackDestRect, mFallbackPaint);
+                mFallbackChildren[i] = null;
+            }
+        }
+    }
+
+    /**
+     * @return the tile if it is in memory and can be drawn, leased for the draw loop
+     */
+    private CacheableBitmapDrawable getFallbackTile(final MapTile pTile,
+            final DrawableLeases pLeases) {
+        final CacheableBitmapDrawable drawable = mTileProvider.getMapTileFromMemory(pTile);
+        if (drawable == null || !pLeases.acquire(drawable)) {
+            return null;
+        }
+        return drawable;
+    }
+
+    /**
+     * @return how many zoom levels up a missing tile may be replaced by an ancestor
+     */
+    public int getFallbackZoomLevels() {
+        return mFallbackZoomLevels;
+    }
+
+    /**
+     * Set how many zoom levels up a tile that isn't loaded yet may be replaced by the matching
+     * part of an ancestor in memory, 0 to only use its children. Each level up the ancestor is
+     * twice as blurry.
+     */
+    public void setFallbackZoomLevels(final int zoomLevels) {
+        mFallbackZoomLevels = Math.max(zoomLevels, 0);
+    }
+
     public int getLoadingBackgroundColor() {
         return mLoadingBackgroundColor;
     }
@@ -323,214 +423,4 @@ public class TilesOverlay extends SafeDrawOverlay {
             }
         }
     }
-
-    /**
-     * Recreate the cache using scaled versions of the tiles currently in it
-     *
-     * @param pNewZoomLevel the zoom level that we need now
-     * @param pOldZoomLevel the previous zoom level that we should get the tiles to rescale
-     * @param projection    the projection to compute view port
-     */
-    public void rescaleCache(final float pNewZoomLevel, final float pOldZoomLevel,
-                             final Projection projection) {
-
-        if (mTileProvider.hasNoSource() || Math.floor(pNewZoomLevel) == Math.floor(pOldZoomLevel) || projection == null || Math.abs(pOldZoomLevel - pNewZoomLevel) > mRescaleZoomDiffMax) {
-            return;
-        }
-
-        final long startMs = System.currentTimeMillis();
-
-        if (UtilConstants.DEBUGMODE) {
-            Log.d(TAG, "rescale tile cache from " + pOldZoomLevel + " to " + pNewZoomLevel);
-        }
-
-        final int tileSize = Projection.getTileSize();
-        final Rect viewPort =
-                GeometryMath.viewPortRectForTileDrawing(pNewZoomLevel, projection, null);
-
-        final ScaleTileLooper tileLooper =
-                pNewZoomLevel > pOldZoomLevel ? new ZoomInTileLooper(pOldZoomLevel)
-                        : new ZoomOutTileLooper(pOldZoomLevel);
-        tileLooper.loop(null, mTileProvider.getCacheKey(), pNewZoomLevel, tileSize, viewPort, null);
-
-        final long endMs = System.currentTimeMillis();
-        if (UtilConstants.DEBUGMODE) {
-            Log.d(TAG, "Finished rescale in " + (endMs - startMs) + "ms");
-        }
-    }
-
-    private abstract class ScaleTileLooper extends TileLooper {
-
-        /**
-         * new (scaled) tiles to add to cache
-         * NB first generate all and then put all in cache,
-         * otherwise the ones we need will be pushed out
-         */
-        protected final HashMap<MapTile, Bitmap> mNewTiles;
-
-        protected final float mOldZoomLevel;
-        protected final int mOldZoomRound;
-        protected final int mOldTileUpperBound;
-        protected float mDiff;
-        protected int mTileSize_2;
-        protected Rect mSrcRect;
-        protected Rect mDestRect;
-        protected Paint mDebugPaint;
-
-        public ScaleTileLooper(final float pOldZoomLevel) {
-            mOldZoomLevel = pOldZoomLevel;
-            mOldZoomRound = (int) Math.floor(mOldZoomLevel);
-            mOldTileUpperBound = 1 << mOldZoomRound;
-            mNewTiles = new HashMap<MapTile, Bitmap>();
-            mSrcRect = new Rect();
-            mDestRect = new Rect();
-            mDebugPaint = new Paint();
-        }
-
-        @Override
-        public void initializeLoop(final float pZoomLevel, final int pTileSizePx) {
-            mDiff = (float) Math.abs(Math.floor(pZoomLevel) - Math.floor(mOldZoomLevel));
-            mTileSize_2 = (int) GeometryMath.rightShift(pTileSizePx, mDiff);
-        }
-
-        @Override
-        public void handleTile(final Canvas pCanvas, final String pCacheKey, final int pTileSizePx,
-                               final MapTile pTile, final int pX, final int pY, final Rect pClipRect) {
-
-            // Get tile from cache.
-            // If it's found then no need to created scaled version.
-            // If not found (null) them we've initiated a new request for it,
-            // and now we'll create a scaled version until the request completes.
-            final Drawable requestedTile = mTileProvider.getMapTile(pTile, !isAnimating);
-            if (requestedTile == null) {
-                try {
-                    handleScaleTile(pCacheKey, pTileSizePx, pTile, pX, pY);
-                } catch (final OutOfMemoryError e) {
-                    Log.e(TAG, "OutOfMemoryError rescaling cache");
-                }
-            }
-        }
-
-        @Override
-        public void finalizeLoop() {
-            super.finalizeLoop();
-            // now add the new ones, pushing out the old ones
-            while (!mNewTiles.isEmpty()) {
-
-                final MapTile tile = mNewTiles.keySet().iterator().next();
-                final Bitmap bitmap = mNewTiles.remove(tile);
-                mTileProvider.putExpiredTileIntoCache(tile, bitmap);
-            }
-        }
-
-        protected abstract void handleScaleTile(final String pCacheKey, final int pTileSizePx,
-                                                final MapTile pTile, final int pX, final int pY);
-    }
-
-    private class ZoomInTileLooper extends ScaleTileLooper {
-        public ZoomInTileLooper(final float pOldZoomLevel) {
-            super(pOldZoomLevel);
-        }
-
-        @Override
-        public void handleScaleTile(final String pCacheKey, final int pTileSizePx,
-                                    final MapTile pTile, final int pX, final int pY) {
-            int oldTileX = GeometryMath.mod((int) GeometryMath.rightShift(pX, mDiff), mOldTileUpperBound);
-            int oldTileY = GeometryMath.mod((int) GeometryMath.rightShift(pY, mDiff), mOldTileUpperBound);
-
-            // get the correct fraction of the tile from cache and scale up
-            final MapTile oldTile = new MapTile(pCacheKey,
-                    mOldZoomRound, oldTileX, oldTileY);
-            final Drawable oldDrawable = mTileProvider.getMapTileFromMemory(oldTile);
-
-            if (oldDrawable instanceof BitmapDrawable) {
-                final boolean isReusable = oldDrawable instanceof CacheableBitmapDrawable;
-                if (isReusable) {
-                    ((CacheableBitmapDrawable) oldDrawable).setBeingUsed(true);
-                    mBeingUsedDrawables.add((CacheableBitmapDrawable) oldDrawable);
-                }
-
-                final Bitmap oldBitmap = ((BitmapDrawable) oldDrawable).getBitmap();
-                if (oldBitmap != null) {
-                    final int xx = (pX % (int) GeometryMath.leftShift(1, mDiff)) * mTileSize_2;
-                    final int yy = (pY % (int) GeometryMath.leftShift(1, mDiff)) * mTileSize_2;
-                    mSrcRect.set(xx, yy, xx + mTileSize_2, yy + mTileSize_2);
-                    mDestRect.set(0, 0, pTileSizePx, pTileSizePx);
-
-                    // Try to get a bitmap from the pool, otherwise allocate a new one
-                    Bitmap bitmap = mTileProvider.getBitmapFromRemoved(pTileSizePx, pTileSizePx);
-
-                    if (bitmap == null) {
-                        bitmap = Bitmap.createBitmap(pTileSizePx, pTileSizePx, Bitmap.Config.ARGB_8888);
-                    }
-                    final Canvas canvas = new Canvas(bitmap);
-                    canvas.drawBitmap(oldBitmap, mSrcRect, mDestRect, null);
-                    mNewTiles.put(pTile, bitmap);
-                }
-            }
-        }
-    }
-
-    private class ZoomOutTileLooper extends ScaleTileLooper {
-        private static final int MAX_ZOOM_OUT_DIFF = 8;
-
-        public ZoomOutTileLooper(final float pOldZoomLevel) {
-            super(pOldZoomLevel);
-        }
-
-        @Override
-        protected void handleScaleTile(final String pCacheKey, final int pTileSizePx,
-                                       final MapTile pTile, final int pX, final int pY) {
-
-            if (mDiff >= MAX_ZOOM_OUT_DIFF) {
-                return;
-            }
-
-            // get many tiles from cache and make one tile from them
-            final int xx = (int) GeometryMath.leftShift(pX, mDiff);
-            final int yy = (int) GeometryMath.leftShift(pY, mDiff);
-            final int numTiles = (int) GeometryMath.leftShift(1, mDiff);
-
-            int oldTileX, oldTileY;
-            Bitmap bitmap = null;
-            Canvas canvas = null;
-            for (int x = 0; x < numTiles; x++) {
-                for (int y = 0; y < numTiles; y++) {
-                    oldTileY = GeometryMath.mod(yy + y, mOldTileUpperBound);
-                    oldTileX = GeometryMath.mod(xx + x, mOldTileUpperBound);
-                    final MapTile oldTile = new MapTile(pCacheKey,
-                            mOldZoomRound, oldTileX, oldTileY);
-                    Drawable oldDrawable = mTileProvider.getMapTileFromMemory(oldTile);
-
-                    if (oldDrawable instanceof BitmapDrawable) {
-                        final boolean isReusable = oldDrawable instanceof CacheableBitmapDrawable;
-                        if (isReusable) {
-                            ((CacheableBitmapDrawable) oldDrawable).setBeingUsed(true);
-                            mBeingUsedDrawables.add((CacheableBitmapDrawable) oldDrawable);
-                        }
-                        final Bitmap oldBitmap = ((BitmapDrawable) oldDrawable).getBitmap();
-                        if (oldBitmap != null) {
-                            if (bitmap == null) {
-                                // Try to get a bitmap from the pool, otherwise allocate a new one
-                                bitmap = mTileProvider.getBitmapFromRemoved(pTileSizePx,
-                                        pTileSizePx);
-                                if (bitmap == null) {
-                                    bitmap = Bitmap.createBitmap(pTileSizePx, pTileSizePx,
-                                            Bitmap.Config.ARGB_8888);
-                                }
-                                canvas = new Canvas(bitmap);
-                            }
-                            mDestRect.set(x * mTileSize_2, y * mTileSize_2, (x + 1) * mTileSize_2,
-                                    (y + 1) * mTileSize_2);
-                            canvas.drawBitmap(oldBitmap, null, mDestRect, null);
-                        }
-                    }
-                }
-            }
-
-            if (bitmap != null) {
-                mNewTiles.put(pTile, bitmap);
-            }
-        }
-    }
 }
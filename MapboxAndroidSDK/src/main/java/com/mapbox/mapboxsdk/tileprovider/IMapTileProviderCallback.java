@@ -20,6 +20,14 @@ public interface IMapTileProviderCallback {
      */
     void mapTileRequestFailed(MapTileRequestState aState);
 
+    /**
+     * The map tile request was dropped because the tile is no longer needed. Unlike a failure,
+     * this doesn't fall through to the next provider.
+     *
+     * @param aState a state object
+     */
+    void mapTileRequestCancelled(MapTileRequestState aState);
+
     /**
      * The map tile request has produced an expired tile.
      *
@@ -2,7 +2,6 @@ package com.mapbox.mapboxsdk.tileprovider;
 
 import android.graphics.Rect;
 import com.mapbox.mapboxsdk.constants.GeoConstants;
-import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 
@@ -13,39 +12,78 @@ import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
  * {@link MapTileLayerBase} to a consumer of tiles (e.g. descendant of
  * {@link com.mapbox.mapboxsdk.overlay.TilesOverlay}). Tiles are typically images (e.g. png or
  * jpeg).
+ * <p/>
+ * The draw loop reuses a single instance per looper and re-targets it with
+ * {@link #set(String, int, int, int)}, so anything that keeps a tile beyond the call it was
+ * handed in (request queues, caches of tiles) must keep a {@link #copy()} instead.
  */
-public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstants {
+public class MapTile implements GeoConstants, TileLayerConstants {
 
     public static final int MAPTILE_SUCCESS_ID = 0;
     public static final int MAPTILE_FAIL_ID = MAPTILE_SUCCESS_ID + 1;
 
-    // This class must be immutable because it's used as the key in the cache hash map
-    // (ie all the fields are final).
-    private final int x;
-    private final int y;
-    private final int z;
-    private final String path;
-    private final String cacheKey;
-    private final int code;
+    // Maps and caches are keyed by the packed key rather than by this object, so a tile
+    // descriptor may be re-targeted while it is not held by any of them. The Strings are only
+    // built once a tile reaches the disk or URL boundary, the in-memory pipeline only uses the
+    // packed key.
+    private int x;
+    private int y;
+    private int z;
+    private String mSourceCacheKey;
+    private int mSourceId;
+    private long mKey;
+    private String path;
+    private String cacheKey;
     private Rect mTileRect;
 
     // For lat/lng bounds calculation
-    private double tileSize = DEFAULT_TILE_SIZE;
-    private double originShift = 2 * Math.PI * RADIUS_EARTH_METERS / 2.0;
-    private double initialResolution = 2 * Math.PI * RADIUS_EARTH_METERS / tileSize;
+    private static final double TILE_SIZE = DEFAULT_TILE_SIZE;
+    private static final double ORIGIN_SHIFT = 2 * Math.PI * RADIUS_EARTH_METERS / 2.0;
+    private static final double INITIAL_RESOLUTION = 2 * Math.PI * RADIUS_EARTH_METERS / TILE_SIZE;
 
     public MapTile(final int az, final int ax, final int ay) {
         this("", az, ax, ay);
     }
 
     public MapTile(final String aCacheKey, final int az, final int ax, final int ay) {
+        set(aCacheKey, az, ax, ay);
+    }
+
+    /**
+     * Re-target this descriptor at another tile. Only call this on a tile you own, such as the
+     * one a {@link com.mapbox.mapboxsdk.util.TileLooper} passes around while drawing.
+     *
+     * @return this tile
+     */
+    public MapTile set(final String aCacheKey, final int az, final int ax, final int ay) {
+        // the draw loop passes the same String every time, skip the registry lookup for it
+        if (aCacheKey != mSourceCacheKey) {
+            mSourceCacheKey = aCacheKey;
+            mSourceId = TileKey.getSourceId(aCacheKey);
+        }
         this.z = az;
         this.x = ax;
         this.y = ay;
-//        this.path = String.format(MAPBOX_LOCALE, "%d/%d/%d", z, x, y);
-        this.path = (new StringBuilder()).append(z).append('/').append(x).append('/').append(y).toString();
-        this.cacheKey = aCacheKey + "/" + path;
-        this.code = ((17 * (37 + z)) * (37 * x)) * (37 + y);
+        this.mKey = TileKey.pack(mSourceId, az, ax, ay);
+        this.path = null;
+        this.cacheKey = null;
+        this.mTileRect = null;
+        return this;
+    }
+
+    /**
+     * Get a copy of this tile that is safe to keep after a draw pass re-targets the original.
+     *
+     * @return a new tile with the same source, coordinates and tile rect
+     */
+    public MapTile copy() {
+        final MapTile tile = new MapTile(mSourceCacheKey, z, x, y);
+        tile.path = path;
+        tile.cacheKey = cacheKey;
+        if (mTileRect != null) {
+            tile.mTileRect = new Rect(mTileRect);
+        }
+        return tile;
     }
 
     public int getZ() {
@@ -60,17 +98,45 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
         return y;
     }
 
+    /**
+     * Get the packed key of this tile, see {@link TileKey}.
+     *
+     * @return the packed source and z/x/y key
+     */
+    public long getKey() {
+        return mKey;
+    }
+
+    /**
+     * @return the cache key of the tile source this tile belongs to
+     */
+    public String getSourceCacheKey() {
+        return mSourceCacheKey;
+    }
+
     public String getPath() {
+        if (path == null) {
+            path = (new StringBuilder()).append(z).append('/').append(x).append('/').append(y).toString();
+        }
         return path;
     }
 
+    /**
+     * Get the String key of this tile, which is stable across processes and therefore used by
+     * the disk cache. It is built on first use.
+     *
+     * @return the source cache key followed by the tile path
+     */
     public String getCacheKey() {
+        if (cacheKey == null) {
+            cacheKey = mSourceCacheKey + "/" + getPath();
+        }
         return cacheKey;
     }
 
     @Override
     public String toString() {
-        return path;
+        return getPath();
     }
 
     @Override
@@ -85,12 +151,12 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
             return false;
         }
         final MapTile rhs = (MapTile) obj;
-        return z == rhs.z && x == rhs.x && y == rhs.y;
+        return mKey == rhs.mKey;
     }
 
     @Override
     public int hashCode() {
-        return this.code;
+        return (int) (mKey ^ (mKey >>> 32));
     }
 
     public void setTileRect(final Rect rect) {
@@ -112,24 +178,24 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
 
     private double[] TileBounds(int tx, int ty, int zoom) {
         // Returns bounds of the given tile in EPSG:900913 coordinates
-        double[] wn = PixelsToMeters(tx * tileSize, ty * tileSize, zoom);
-        double[] es = PixelsToMeters((tx + 1) * tileSize, (ty + 1) * tileSize, zoom);
+        double[] wn = PixelsToMeters(tx * TILE_SIZE, ty * TILE_SIZE, zoom);
+        double[] es = PixelsToMeters((tx + 1) * TILE_SIZE, (ty + 1) * TILE_SIZE, zoom);
         return new double[]{wn[0], wn[1], es[0], es[1]};
     }
 
     private double[] PixelsToMeters(double px, double py, double zoom) {
         // Converts pixel coordinates in given zoom level of pyramid to EPSG:900913
         double res = Resolution(zoom);
-        double mx = px * res - originShift;
-        double my = py * res - originShift;
+        double mx = px * res - ORIGIN_SHIFT;
+        double my = py * res - ORIGIN_SHIFT;
 
         return new double[]{mx, my};
     }
 
     private double[] MetersToLatLon(double mx, double my) {
         // Converts XY point from Spherical Mercator EPSG:900913 to lat/lon in WGS84 Datum
-        double lon = (mx / originShift) * 180.0;
-        double lat = (my / originShift) * 180.0;
+        double lon = (mx / ORIGIN_SHIFT) * 180.0;
+        double lat = (my / ORIGIN_SHIFT) * 180.0;
         lat = -180 / Math.PI * (2 * Math.atan(Math.exp(lat * Math.PI / 180.0)) - Math.PI / 2.0);
 
         return new double[]{lat, lon};
@@ -137,6 +203,6 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
 
     private double Resolution(double zoom) {
         // Resolution (meters/pixel) for given zoom level (measured at Equator)
-        return initialResolution / Math.pow(2, zoom);
+        return INITIAL_RESOLUTION / Math.pow(2, zoom);
     }
 }
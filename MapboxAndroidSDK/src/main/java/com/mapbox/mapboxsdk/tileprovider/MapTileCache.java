@@ -9,28 +9,45 @@ import android.graphics.drawable.Drawable;
 import android.os.Environment;
 import android.util.Log;
 
+import com.mapbox.mapboxsdk.tileprovider.cache.EncodedTileArena;
+import com.mapbox.mapboxsdk.tileprovider.cache.TileDiskCache;
+import com.mapbox.mapboxsdk.tileprovider.cache.TileDiskWriter;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.mapbox.mapboxsdk.tileprovider.util.StreamUtils;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import uk.co.senab.bitmapcache.BitmapLruCache;
+import uk.co.senab.bitmapcache.BitmapPool;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
  * A wrapper around a BitmapLruCache that stores tiles on disk in order
  * to improve performance and provide offline content.
+ * <p/>
+ * Between the bitmaps in memory and the disk, an {@link EncodedTileArena} keeps the encoded
+ * images of the tiles loaded most recently, so that a tile whose bitmap was evicted is shown
+ * again with a decode only.
  */
 public class MapTileCache implements TileLayerConstants {
 
     protected static BitmapLruCache sCachedTiles = null;
+    private static EncodedTileArena sEncodedTiles = null;
+    private static int sEncodedTilesSize = CACHE_ENCODED_TILES_SIZE_DEFAULT;
     private Context context;
     static final String TAG = "MapTileCache";
     private static final String DISK_CACHE_SUBDIR = "mapbox_tiles_cache";
     private int mMaximumCacheSize;
 
     private boolean mDiskCacheEnabled = false;
+    // like the cache they configure, shared by every instance
+    private static boolean sMemoryCacheAdmission = true;
+    private static TileDiskCache sDiskTier;
 
     public MapTileCache(final Context aContext) {
         this(aContext, CACHE_MAPTILEDISKSIZE_DEFAULT);
@@ -61,7 +78,9 @@ public class MapTileCache implements TileLayerConstants {
             }
             sCachedTiles = (new BitmapLruCache.Builder(context)).setMemoryCacheEnabled(true)
                     .setMemoryCacheMaxSize(BitmapUtils.calculateMemoryCacheSize(context))
-                    .setDiskCacheEnabled(mDiskCacheEnabled)
+                    .setMemoryCacheAdmissionEnabled(sMemoryCacheAdmission)
+                    .setSolidColorSharingEnabled(true)
+                    .setDiskCacheEnabled(mDiskCacheEnabled && sDiskTier == null)
                     .setDiskCacheMaxSize(mMaximumCacheSize)
                     .setDiskCacheLocation(cacheDir)
                     .build();
@@ -71,7 +90,8 @@ public class MapTileCache implements TileLayerConstants {
     }
 
     /**
-     * Computes a prefixed key for a tile.
+     * Computes a prefixed key for a tile. This key is only used for the disk cache, the memory
+     * cache uses {@link MapTile#getKey()}.
      *
      * @param aTile the tile
      * @return the key
@@ -80,47 +100,307 @@ public class MapTileCache implements TileLayerConstants {
         return aTile.getCacheKey();
     }
 
+    /**
+     * @return the memory tier of encoded tiles, or null if it is disabled
+     */
+    public static synchronized EncodedTileArena getEncodedTileArena() {
+        if (sEncodedTiles == null && sEncodedTilesSize > 0) {
+            sEncodedTiles = new EncodedTileArena(sEncodedTilesSize);
+        }
+        return sEncodedTiles;
+    }
+
+    /**
+     * Set the size of the memory tier of encoded tiles shared by all tile caches, dropping the
+     * tiles it holds.
+     *
+     * @param size the size in bytes, 0 to disable it
+     */
+    public static synchronized void setEncodedTileArenaSize(final int size) {
+        if (sEncodedTilesSize != size) {
+            sEncodedTilesSize = size;
+            sEncodedTiles = null;
+        }
+    }
+
     public CacheableBitmapDrawable getMapTile(final MapTile aTile) {
-        String key = getCacheKey(aTile);
-        CacheableBitmapDrawable result = getCache().getFromMemoryCache(key);
+        CacheableBitmapDrawable result = getCache().getFromMemoryCache(aTile.getKey());
+        if (result == null) {
+            result = getMapTileFromArena(aTile);
+        }
+        if (result == null) {
+            result = getMapTileFromDisk(aTile);
+        }
+        return result;
+    }
+
+    public boolean containsTileInArena(final MapTile aTile) {
+        final EncodedTileArena arena = getEncodedTileArena();
+        return arena != null && arena.contains(aTile.getKey());
+    }
+
+    public CacheableBitmapDrawable getMapTileFromArena(final MapTile aTile) {
+        return getMapTileFromArena(aTile, null);
+    }
+
+    /**
+     * Decode a tile from the memory tier of encoded tiles into the memory cache.
+     *
+     * @param decodeOpts the options of the tile's layer, or null
+     * @return the tile, or null if it isn't in the arena
+     */
+    public CacheableBitmapDrawable getMapTileFromArena(final MapTile aTile,
+                                                       final BitmapFactory.Options decodeOpts) {
+        final EncodedTileArena arena = getEncodedTileArena();
+        final byte[] data = arena != null ? arena.get(aTile.getKey()) : null;
+        if (data == null) {
+            return null;
+        }
+        final CacheableBitmapDrawable result = getCache().putInMemoryCache(aTile.getKey(),
+                new BitmapLruCache.ByteArrayInputStreamProvider(data), decodeOpts);
         if (result == null) {
-            result = getCache().getFromDiskCache(key, null);
+            arena.remove(aTile.getKey());
         }
         return result;
     }
 
+    /**
+     * Keep the encoded image of a tile in the memory tier of encoded tiles.
+     */
+    public void putTileDataInArena(final MapTile aTile, final byte[] data) {
+        final EncodedTileArena arena = getEncodedTileArena();
+        if (arena != null && data != null) {
+            arena.put(aTile.getKey(), data);
+        }
+    }
+
     public CacheableBitmapDrawable getMapTileFromMemory(final MapTile aTile) {
-        return getCache().getFromMemoryCache(getCacheKey(aTile));
+        return getCache().getFromMemoryCache(aTile.getKey());
     }
 
     public CacheableBitmapDrawable getMapTileFromDisk(final MapTile aTile) {
-        return getCache().getFromDiskCache(getCacheKey(aTile), null);
+        return getMapTileFromDisk(aTile, null);
+    }
+
+    /**
+     * Decode a tile from the disk cache into the memory cache.
+     *
+     * @param decodeOpts the options of the tile's layer, or null
+     * @return the tile, or null if it isn't in the disk cache
+     */
+    public CacheableBitmapDrawable getMapTileFromDisk(final MapTile aTile,
+                                                      final BitmapFactory.Options decodeOpts) {
+        // still on its way to the disk
+        final byte[] pending = TileDiskWriter.getInstance().getPending(aTile.getKey());
+        if (pending != null) {
+            final CacheableBitmapDrawable result = getCache().putInMemoryCache(aTile.getKey(),
+                    new BitmapLruCache.ByteArrayInputStreamProvider(pending), decodeOpts);
+            if (result != null) {
+                return result;
+            }
+        }
+        final TileDiskCache diskTier = getDiskTier();
+        if (diskTier != null) {
+            final ByteBuffer data = diskTier.get(aTile);
+            if (data == null) {
+                return null;
+            }
+            final CacheableBitmapDrawable result = getCache().putInMemoryCache(aTile.getKey(),
+                    new BitmapLruCache.ByteBufferInputStreamProvider(data), decodeOpts);
+            if (result == null) {
+                // can't be decoded, don't try again
+                diskTier.remove(aTile);
+            } else if (getEncodedTileArena() != null) {
+                final byte[] encoded = new byte[data.remaining()];
+                data.get(encoded);
+                putTileDataInArena(aTile, encoded);
+            }
+            return result;
+        }
+        return getCache().getFromDiskCache(aTile.getKey(), getCacheKey(aTile), decodeOpts);
+    }
+
+    /**
+     * @return the encoded image of a tile in the memory tier of encoded tiles, or null if it
+     * isn't there
+     */
+    public byte[] getTileDataFromArena(final MapTile aTile) {
+        final EncodedTileArena arena = getEncodedTileArena();
+        return arena != null ? arena.get(aTile.getKey()) : null;
+    }
+
+    /**
+     * Read the encoded image of a tile from the disk cache without decoding it, so that it can be
+     * decoded on another thread with {@link #decodeTileData}. You should not call this method
+     * from main/UI thread.
+     *
+     * @return the image, or null if the tile isn't in the disk cache
+     */
+    public byte[] getTileDataFromDisk(final MapTile aTile) {
+        // still on its way to the disk
+        final byte[] pending = TileDiskWriter.getInstance().getPending(aTile.getKey());
+        if (pending != null) {
+            return pending;
+        }
+        final TileDiskCache diskTier = getDiskTier();
+        if (diskTier != null) {
+            final ByteBuffer data = diskTier.get(aTile);
+            if (data == null) {
+                return null;
+            }
+            final byte[] encoded = new byte[data.remaining()];
+            data.get(encoded);
+            return encoded;
+        }
+        return getCache().getDiskCacheData(diskCacheKey(aTile));
+    }
+
+    /**
+     * Decode the encoded image of a tile, such as one read with {@link #getTileDataFromDisk},
+     * into the memory cache.
+     *
+     * @param decodeOpts the options of the tile's layer, or null
+     * @return the tile, or null if the image can't be decoded
+     */
+    public CacheableBitmapDrawable decodeTileData(final MapTile aTile, final byte[] data,
+                                                  final BitmapFactory.Options decodeOpts) {
+        return getCache().putInMemoryCache(aTile.getKey(),
+                new BitmapLruCache.ByteArrayInputStreamProvider(data), decodeOpts);
     }
 
     public CacheableBitmapDrawable putTileStream(final MapTile aTile, final InputStream inputStream,
                                                  final BitmapFactory.Options decodeOpts) {
-        return getCache().put(getCacheKey(aTile), inputStream, decodeOpts);
+        final TileDiskCache diskTier = getDiskTier();
+        if (diskTier != null) {
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            try {
+                StreamUtils.copy(inputStream, data);
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading tile " + aTile, e);
+                return null;
+            }
+            return putTileData(aTile, data.toByteArray(), decodeOpts);
+        }
+        return getCache().put(aTile.getKey(), diskCacheKey(aTile), inputStream, decodeOpts);
+    }
+
+    /**
+     * Decode an encoded tile into the memory cache, and keep it as is in the disk cache.
+     */
+    public CacheableBitmapDrawable putTileData(final MapTile aTile, final byte[] data,
+                                               final BitmapFactory.Options decodeOpts) {
+        final CacheableBitmapDrawable result =
+                getCache().put(aTile.getKey(), diskCacheKey(aTile), data, decodeOpts);
+        if (result != null) {
+            putTileDataInArena(aTile, data);
+        }
+        final TileDiskCache diskTier = getDiskTier();
+        if (result != null && diskTier != null) {
+            diskTier.put(aTile, data, null);
+        }
+        return result;
     }
 
     public CacheableBitmapDrawable putTileBitmap(final MapTile aTile, final Bitmap bitmap) {
-        return getCache().put(getCacheKey(aTile), bitmap);
+        return putTileBitmap(aTile, bitmap, (TileMetadata) null);
+    }
+
+    /**
+     * Put a downloaded tile in the memory cache, and in the disk cache together with its HTTP
+     * caching metadata.
+     */
+    public CacheableBitmapDrawable putTileBitmap(final MapTile aTile, final Bitmap bitmap,
+                                                 final TileMetadata metadata) {
+        final TileDiskCache diskTier = getDiskTier();
+        if (diskTier != null) {
+            diskTier.put(aTile, compress(bitmap), metadata != null ? metadata.encode() : null);
+        }
+        return getCache().put(aTile.getKey(), diskCacheKey(aTile), bitmap,
+                metadata != null ? metadata.encode() : null);
+    }
+
+    /**
+     * Put a downloaded tile in the memory cache, and the bytes it was decoded from, unchanged, in
+     * the disk cache together with its HTTP caching metadata.
+     */
+    public CacheableBitmapDrawable putTileBitmap(final MapTile aTile, final Bitmap bitmap,
+                                                 final byte[] data, final TileMetadata metadata) {
+        putTileDataInArena(aTile, data);
+        final TileDiskCache diskTier = getDiskTier();
+        if (diskTier != null) {
+            diskTier.put(aTile, data, metadata != null ? metadata.encode() : null);
+        }
+        return getCache().put(aTile.getKey(), diskCacheKey(aTile), bitmap, data,
+                metadata != null ? metadata.encode() : null);
+    }
+
+    /**
+     * Keep the bytes a tile was decoded from in the disk cache, together with its HTTP caching
+     * metadata, leaving the memory cache as is. You should not call this method from main/UI
+     * thread.
+     */
+    public void putTileDataInDiskCache(final MapTile aTile, final byte[] data,
+                                       final TileMetadata metadata) {
+        final String encodedMetadata = metadata != null ? metadata.encode() : null;
+        final TileDiskCache diskTier = getDiskTier();
+        if (diskTier != null) {
+            diskTier.put(aTile, data, encodedMetadata);
+            return;
+        }
+        final String key = diskCacheKey(aTile);
+        if (key != null) {
+            getCache().putInDiskCache(key, data, encodedMetadata);
+        }
+    }
+
+    /**
+     * @return the HTTP caching metadata of a tile in the disk cache, or null if there is none
+     */
+    public TileMetadata getTileMetadata(final MapTile aTile) {
+        // read at once, the write may land between two calls
+        final TileMetadata pending =
+                TileDiskWriter.getInstance().getPendingMetadata(aTile.getKey());
+        if (pending != null) {
+            return pending;
+        }
+        final TileDiskCache diskTier = getDiskTier();
+        if (diskTier != null) {
+            return TileMetadata.decode(diskTier.getMetadata(aTile));
+        }
+        return TileMetadata.decode(getCache().getDiskCacheMetadata(diskCacheKey(aTile)));
+    }
+
+    /**
+     * Replace the HTTP caching metadata of a tile in the disk cache, leaving its image as is.
+     *
+     * @return true if the tile is in the disk cache and was updated
+     */
+    public boolean putTileMetadata(final MapTile aTile, final TileMetadata metadata) {
+        final TileDiskCache diskTier = getDiskTier();
+        if (diskTier != null) {
+            return diskTier.putMetadata(aTile, metadata.encode());
+        }
+        return getCache().putDiskCacheMetadata(diskCacheKey(aTile), metadata.encode());
     }
 
     public CacheableBitmapDrawable putTile(final MapTile aTile, final Drawable aDrawable) {
         if (aDrawable != null && aDrawable instanceof BitmapDrawable) {
-            String key = getCacheKey(aTile);
             CacheableBitmapDrawable drawable = null;
-            if (!getCache().containsInMemoryCache(key)) {
-                drawable = getCache().putInMemoryCache(getCacheKey(aTile),
+            if (!getCache().containsInMemoryCache(aTile.getKey())) {
+                drawable = getCache().putInMemoryCache(aTile.getKey(),
                         ((BitmapDrawable) aDrawable).getBitmap());
             }
-            if (getCache().isDiskCacheEnabled() && !getCache().containsInDiskCache(key)) {
-                if (drawable != null) {
-                    getCache().putInDiskCache(getCacheKey(aTile), drawable);
-                } else {
-                    getCache().putInDiskCache(getCacheKey(aTile),
-                            ((BitmapDrawable) aDrawable).getBitmap());
+            if (getCache().isDiskCacheEnabled()) {
+                String key = getCacheKey(aTile);
+                if (!getCache().containsInDiskCache(key)) {
+                    if (drawable != null) {
+                        getCache().putInDiskCache(key, drawable);
+                    } else {
+                        getCache().putInDiskCache(key, ((BitmapDrawable) aDrawable).getBitmap());
+                    }
                 }
+            } else {
+                putTileInDiskTier(aTile, ((BitmapDrawable) aDrawable).getBitmap());
             }
             return drawable;
         }
@@ -129,7 +409,7 @@ public class MapTileCache implements TileLayerConstants {
 
     public CacheableBitmapDrawable putTileInMemoryCache(final MapTile aTile, final Bitmap aBitmap) {
         if (aBitmap != null) {
-            return getCache().putInMemoryCache(getCacheKey(aTile), aBitmap);
+            return getCache().putInMemoryCache(aTile.getKey(), aBitmap);
         }
         return null;
     }
@@ -137,11 +417,12 @@ public class MapTileCache implements TileLayerConstants {
     public CacheableBitmapDrawable putTileInMemoryCache(final MapTile aTile,
                                                         final Drawable aDrawable) {
         if (aDrawable != null && aDrawable instanceof BitmapDrawable) {
-            String key = getCacheKey(aTile);
-            if (aDrawable instanceof CacheableBitmapDrawable) {
-                return getCache().putInMemoryCache(key, ((CacheableBitmapDrawable) aDrawable));
+            if (aDrawable instanceof CacheableBitmapDrawable
+                    && ((CacheableBitmapDrawable) aDrawable).getKey() == aTile.getKey()) {
+                return getCache().putInMemoryCache((CacheableBitmapDrawable) aDrawable);
             } else {
-                return getCache().putInMemoryCache(key, ((BitmapDrawable) aDrawable).getBitmap());
+                return getCache().putInMemoryCache(aTile.getKey(),
+                        ((BitmapDrawable) aDrawable).getBitmap());
             }
         }
         return null;
@@ -150,42 +431,105 @@ public class MapTileCache implements TileLayerConstants {
     public CacheableBitmapDrawable putTileInDiskCache(final MapTile aTile,
                                                       final Drawable aDrawable) {
         if (aDrawable != null && aDrawable instanceof BitmapDrawable) {
-            String key = getCacheKey(aTile);
-            if (getCache().isDiskCacheEnabled() && !getCache().containsInDiskCache(key)) {
-                return getCache().putInDiskCache(getCacheKey(aTile),
-                        ((BitmapDrawable) aDrawable).getBitmap());
+            if (getCache().isDiskCacheEnabled()) {
+                String key = getCacheKey(aTile);
+                if (!getCache().containsInDiskCache(key)) {
+                    return getCache().putInDiskCache(key, ((BitmapDrawable) aDrawable).getBitmap());
+                }
+            } else {
+                putTileInDiskTier(aTile, ((BitmapDrawable) aDrawable).getBitmap());
             }
         }
         return null;
     }
 
+    /**
+     * Put a tile that isn't there yet in the disk tier set with {@link #setDiskCache}, if any.
+     */
+    private void putTileInDiskTier(final MapTile aTile, final Bitmap bitmap) {
+        final TileDiskCache diskTier = getDiskTier();
+        if (diskTier != null && !diskTier.contains(aTile)) {
+            diskTier.put(aTile, compress(bitmap), null);
+        }
+    }
+
+    /**
+     * Encode a bitmap losslessly, for tiles whose original encoding isn't available.
+     */
+    public static byte[] compress(final Bitmap bitmap) {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, data);
+        return data.toByteArray();
+    }
+
     public boolean containsTile(final MapTile aTile) {
-        return getCache().contains(getCacheKey(aTile));
+        return getCache().containsInMemoryCache(aTile.getKey()) || containsTileInDiskCache(aTile);
     }
 
     public boolean containsTileInDiskCache(final MapTile aTile) {
+        if (TileDiskWriter.getInstance().contains(aTile.getKey())) {
+            return true;
+        }
+        final TileDiskCache diskTier = getDiskTier();
+        if (diskTier != null) {
+            return diskTier.contains(aTile);
+        }
         return getCache().isDiskCacheEnabled() && getCache().containsInDiskCache(getCacheKey(aTile));
     }
 
     public void removeTile(final MapTile aTile) {
-        getCache().remove(getCacheKey(aTile));
+        TileDiskWriter.getInstance().remove(aTile.getKey());
+        getCache().remove(aTile.getKey(), diskCacheKey(aTile));
+        final EncodedTileArena arena = getEncodedTileArena();
+        if (arena != null) {
+            arena.remove(aTile.getKey());
+        }
+        final TileDiskCache diskTier = getDiskTier();
+        if (diskTier != null) {
+            diskTier.remove(aTile);
+        }
     }
 
     public void removeTileFromMemory(final MapTile aTile) {
-        String key = getCacheKey(aTile);
-        getCache().removeFromMemoryCache(key);
+        getCache().removeFromMemoryCache(aTile.getKey());
+    }
+
+    /**
+     * Drop every tile of a source from the memory cache, such as tiles that are out of date.
+     *
+     * @param cacheKey the cache key of the source
+     */
+    public void removeTilesFromMemory(final String cacheKey) {
+        final int sourceId = TileKey.getSourceId(cacheKey);
+        getCache().removeFromMemoryCache(TileKey.pack(sourceId, 0, 0, 0),
+                TileKey.pack(sourceId, -1, -1, -1));
+    }
+
+    /**
+     * @return the disk cache key of a tile, or null if the disk cache is disabled so that no
+     * String has to be built
+     */
+    private String diskCacheKey(final MapTile aTile) {
+        return getCache().isDiskCacheEnabled() ? getCacheKey(aTile) : null;
     }
 
     public void purgeMemoryCache() {
         getCache().purgeMemoryCache();
+        final EncodedTileArena arena = getEncodedTileArena();
+        if (arena != null) {
+            arena.clear();
+        }
     }
 
     public void purgeDiskCache() {
         getCache().purgeDiskCache();
+        if (sDiskTier != null) {
+            sDiskTier.clear();
+        }
     }
 
     public CacheableBitmapDrawable createCacheableBitmapDrawable(Bitmap bitmap, MapTile aTile) {
-        return getCache().createCacheableBitmapDrawable(bitmap, getCacheKey(aTile),
+        return getCache().createCacheableBitmapDrawable(bitmap, aTile.getKey(), null,
                 CacheableBitmapDrawable.SOURCE_UNKNOWN);
     }
 
@@ -193,6 +537,14 @@ public class MapTileCache implements TileLayerConstants {
         return getCache().getBitmapFromRemoved(width, height);
     }
 
+    /**
+     * @return the pool that tile bitmaps are decoded into once they leave the memory cache, for
+     * its statistics, or null if bitmaps aren't reused
+     */
+    public BitmapPool getBitmapPool() {
+        return getCache().getBitmapPool();
+    }
+
     public Bitmap decodeBitmap(final byte[] data, final BitmapFactory.Options opts) {
         return getCache().decodeBitmap(new BitmapLruCache.ByteArrayInputStreamProvider(data), opts);
     }
@@ -222,11 +574,79 @@ public class MapTileCache implements TileLayerConstants {
     public void setDiskCacheEnabled(final boolean enabled) {
         if (mDiskCacheEnabled != enabled) {
             mDiskCacheEnabled = enabled;
-            sCachedTiles = null;
+            resetCache();
         }
     }
 
     public boolean isDiskCacheEnabled() {
         return mDiskCacheEnabled;
     }
+
+    /**
+     * Choose between the W-TinyLFU policy of the memory cache, the default, which keeps the
+     * tiles of places the map comes back to when flings and zooms bring in many new tiles, and
+     * plain LRU. The policy applies to the memory cache every instance shares.
+     */
+    public void setMemoryCacheAdmissionEnabled(final boolean enabled) {
+        synchronized (MapTileCache.class) {
+            if (sMemoryCacheAdmission != enabled) {
+                sMemoryCacheAdmission = enabled;
+                resetCache();
+            }
+        }
+    }
+
+    public boolean isMemoryCacheAdmissionEnabled() {
+        return sMemoryCacheAdmission;
+    }
+
+    /**
+     * Replace the default one-file-per-tile disk cache, for instance with a
+     * {@link com.mapbox.mapboxsdk.tileprovider.cache.TilePackCache}:
+     *
+     * <pre>
+     * cache.setDiskCache(new TilePackCache(
+     *         MapTileCache.getDiskCacheDir(context, "mapbox_tile_packs"), 50 * 1024 * 1024));
+     * </pre>
+     *
+     * It is only used while the disk cache is enabled. Like the memory cache, the disk tier is
+     * shared by every instance. The previous disk tier, if any, is closed.
+     *
+     * @param diskCache the disk tier, or null to go back to the default disk cache
+     */
+    public void setDiskCache(final TileDiskCache diskCache) {
+        synchronized (MapTileCache.class) {
+            if (sDiskTier != diskCache) {
+                if (sDiskTier != null) {
+                    sDiskTier.close();
+                }
+                // the default disk cache is only open without a disk tier, replacing one tier
+                // by another keeps the memory cache
+                final boolean rebuild = (sDiskTier == null) != (diskCache == null);
+                sDiskTier = diskCache;
+                if (rebuild) {
+                    resetCache();
+                }
+            }
+        }
+    }
+
+    public TileDiskCache getDiskCache() {
+        return sDiskTier;
+    }
+
+    private TileDiskCache getDiskTier() {
+        return mDiskCacheEnabled ? sDiskTier : null;
+    }
+
+    /**
+     * Drop the shared cache so that it is built again with the new settings, closing it first
+     * so that its disk cache and flusher thread don't stay open.
+     */
+    private static synchronized void resetCache() {
+        if (sCachedTiles != null) {
+            sCachedTiles.close();
+            sCachedTiles = null;
+        }
+    }
 }
@@ -4,15 +4,23 @@ import android.content.Context;
 import android.graphics.drawable.Drawable;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.tileprovider.cache.NegativeTileCache;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileModuleLayerBase;
 import com.mapbox.mapboxsdk.tileprovider.modules.NetworkAvailabilityCheck;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.WebSourceTileLayer;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
+import com.mapbox.mapboxsdk.util.GeometryMath;
+import com.mapbox.mapboxsdk.util.HostCircuitBreaker;
+import com.mapbox.mapboxsdk.util.LongHashMap;
+import com.mapbox.mapboxsdk.util.NetworkStack;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+import uk.co.senab.bitmapcache.DrawableLeases;
 
 /**
  * This top-level tile provider allows a consumer to provide an array of modular asynchronous tile
@@ -32,14 +40,28 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
  */
 public class MapTileLayerArray extends MapTileLayerBase {
 
-    protected final HashMap<MapTile, MapTileRequestState> mWorking;
+    private static final String NEGATIVE_TILES_SUBDIR = "mapbox_negative_tiles";
+
+    // keyed by MapTile.getKey()
+    protected final LongHashMap<MapTileRequestState> mWorking;
 
     protected final List<MapTileModuleLayerBase> mTileProviderList;
 
-    protected final List<MapTile> mUnaccessibleTiles;
+    // the tiles that failed to load, not requested again until their failure expires
+    protected final NegativeTileCache mNegativeTiles;
+    // the recoveries of failing hosts seen so far
+    private volatile int mHostRecoveries;
 
     protected final NetworkAvailabilityCheck mNetworkAvailabilityCheck;
 
+    protected final TileViewport mViewport = new TileViewport();
+
+    // the prefetch fields are only used on the UI thread
+    private final TileViewport mPrediction = new TileViewport();
+    private final MapTile mPrefetchTile = new MapTile(0, 0, 0);
+    private int mPrefetchBudget = TILE_PREFETCH_BUDGET;
+    private int mPrefetchCount;
+
     /**
      * Creates an {@link MapTileLayerArray} with no tile providers.
      *
@@ -61,8 +83,10 @@ public class MapTileLayerArray extends MapTileLayerBase {
                              final MapTileModuleLayerBase[] pTileProviderArray) {
         super(context, pTileSource);
 
-        mWorking = new HashMap<MapTile, MapTileRequestState>();
-        mUnaccessibleTiles = new ArrayList<MapTile>();
+        mWorking = new LongHashMap<MapTileRequestState>();
+        mNegativeTiles = new NegativeTileCache(context != null
+                ? MapTileCache.getDiskCacheDir(context, NEGATIVE_TILES_SUBDIR) : null,
+                NegativeTileCache.DEFAULT_MAX_ENTRIES);
 
         mNetworkAvailabilityCheck = new NetworkAvailabilityCheck(context);
 
@@ -70,11 +94,16 @@ public class MapTileLayerArray extends MapTileLayerBase {
         if (pTileProviderArray != null) {
             mCacheKey = pTileProviderArray[0].getCacheKey();
             Collections.addAll(mTileProviderList, pTileProviderArray);
+        } else if (pTileSource != null) {
+            // providers added by a subclass are for its source
+            mCacheKey = pTileSource.getCacheKey();
         }
+        mNegativeTiles.loadInBackground(mCacheKey);
     }
 
     @Override
     public void detach() {
+        mNegativeTiles.saveInBackground(mCacheKey);
         if (getTileSource() != null) {
             getTileSource().detach();
         }
@@ -95,24 +124,41 @@ public class MapTileLayerArray extends MapTileLayerBase {
     }
 
     /**
-     * Checks whether this tile is unavailable and the system is offline.
+     * Checks whether this tile failed to load recently enough not to be requested again. Tiles
+     * that failed while offline are requested again as soon as the network is back, and tiles
+     * that failed on a server error or an unavailable host as soon as a host recovers, see
+     * {@link HostCircuitBreaker}.
      *
      * @param pTile the tile in question
      * @return whether the tile is unavailable
      */
     private boolean tileUnavailable(final MapTile pTile) {
-        if (mUnaccessibleTiles.size() > 0) {
-            if (networkAvailable() || !useDataConnection()) {
-                mUnaccessibleTiles.clear();
-            } else if (mUnaccessibleTiles.contains(pTile)) {
-                return true;
-            }
+        if (mNegativeTiles.count(NegativeTileCache.Reason.OFFLINE) > 0
+                && (networkAvailable() || !useDataConnection())) {
+            mNegativeTiles.clear(NegativeTileCache.Reason.OFFLINE);
         }
-        return false;
+        final int hostRecoveries =
+                NetworkStack.getInstance().getCircuitBreaker().getRecoveryCount();
+        if (hostRecoveries != mHostRecoveries) {
+            mHostRecoveries = hostRecoveries;
+            mNegativeTiles.clear(NegativeTileCache.Reason.SERVER_ERROR);
+            mNegativeTiles.clear(NegativeTileCache.Reason.HOST_UNAVAILABLE);
+        }
+        return mNegativeTiles.contains(pTile.getKey());
     }
 
     @Override
     public Drawable getMapTile(final MapTile pTile, final boolean allowRemote) {
+        return getMapTile(pTile, allowRemote, null);
+    }
+
+    /**
+     * @param leases the draw pass's leases, the tile is leased in them if it is returned; null
+     *               to return the tile without a lease
+     */
+    @Override
+    public Drawable getMapTile(final MapTile pTile, final boolean allowRemote,
+            final DrawableLeases leases) {
         //       Log.d(TAG, "getMapTile() with pTile (CacheKey) = '" + pTile.getCacheKey() + "'; allowRemote = '" + allowRemote + "'");
         if (tileUnavailable(pTile)) {
 //            Log.d(TAG, "MapTileLayerArray.getMapTile() tileUnavailable: " + pTile);
@@ -120,44 +166,21 @@ public class MapTileLayerArray extends MapTileLayerBase {
         }
 
         CacheableBitmapDrawable tileDrawable = mTileCache.getMapTileFromMemory(pTile);
+        // checking the bitmap and leasing it is atomic, it can't be reused in between
+        if (tileDrawable != null && !(leases != null ? leases.acquire(tileDrawable)
+                : tileDrawable.isBitmapValid())) {
+            tileDrawable = null;
+        }
 
-        if (tileDrawable != null && tileDrawable.isBitmapValid() && !BitmapUtils.isCacheDrawableExpired(tileDrawable)) {
-            tileDrawable.setBeingUsed(true);
+        if (tileDrawable != null && !BitmapUtils.isCacheDrawableExpired(tileDrawable)) {
 //            Log.d(TAG, "Found tile(" + pTile.getCacheKey() + ") in memory, so returning for drawing.");
             return tileDrawable;
         } else if (allowRemote) {
 //            Log.d(TAG, "Tile not found in memory so will load from remote.");
-            boolean alreadyInProgress = false;
-            synchronized (mWorking) {
-                alreadyInProgress = mWorking.containsKey(pTile);
-            }
-
-            if (!alreadyInProgress) {
-//                Log.d(TAG, "MapTileLayerArray.getMapTile() requested but not in cache, trying from async providers: " + pTile);
-
-                final MapTileRequestState state;
-
-                synchronized (mTileProviderList) {
-                    final MapTileModuleLayerBase[] providerArray = new MapTileModuleLayerBase[mTileProviderList.size()];
-                    state = new MapTileRequestState(pTile, mTileProviderList.toArray(providerArray), this);
-                }
-
-                synchronized (mWorking) {
-                    // Check again
-                    alreadyInProgress = mWorking.containsKey(pTile);
-                    if (alreadyInProgress) {
-                        return null;
-                    }
-                    mWorking.put(pTile, state);
-                }
-
-                final MapTileModuleLayerBase provider = findNextAppropriateProvider(state);
-                if (provider != null) {
-                    provider.loadMapTileAsync(state);
-                } else {
-                    mapTileRequestFailed(state);
-                }
+            if (!requestTile(pTile)) {
+                return null;
             }
+            // the expired tile stands in until the new one is loaded
             return tileDrawable;
         }
 /*
@@ -169,31 +192,227 @@ public class MapTileLayerArray extends MapTileLayerBase {
         return null;
     }
 
+    /**
+     * Send a tile through the asynchronous provider chain, unless a request for it is already in
+     * progress.
+     *
+     * @return false if the request was already in progress when it was about to be sent
+     */
+    private boolean requestTile(final MapTile pTile) {
+        boolean alreadyInProgress = false;
+        synchronized (mWorking) {
+            alreadyInProgress = mWorking.containsKey(pTile.getKey());
+        }
+
+        if (!alreadyInProgress) {
+//            Log.d(TAG, "MapTileLayerArray.getMapTile() requested but not in cache, trying from async providers: " + pTile);
+
+            final MapTileRequestState state;
+
+            synchronized (mTileProviderList) {
+                final MapTileModuleLayerBase[] providerArray = new MapTileModuleLayerBase[mTileProviderList.size()];
+                state = new MapTileRequestState(pTile.copy(), mTileProviderList.toArray(providerArray), this);
+            }
+
+            synchronized (mWorking) {
+                // Check again
+                alreadyInProgress = mWorking.containsKey(pTile.getKey());
+                if (alreadyInProgress) {
+                    return false;
+                }
+                mWorking.put(pTile.getKey(), state);
+            }
+
+            final MapTileModuleLayerBase provider = findNextAppropriateProvider(state);
+            if (provider != null) {
+                provider.loadMapTileAsync(state);
+            } else {
+                mapTileRequestFailed(state);
+            }
+        }
+        return true;
+    }
+
     @Override
     public void mapTileRequestCompleted(final MapTileRequestState aState,
                                         final Drawable aDrawable) {
         synchronized (mWorking) {
-            mWorking.remove(aState.getMapTile());
+            mWorking.remove(aState.getMapTile().getKey());
         }
+        mNegativeTiles.remove(aState.getMapTile().getKey());
         super.mapTileRequestCompleted(aState, aDrawable);
     }
 
+    @Override
+    public void mapTileRequestCancelled(final MapTileRequestState aState) {
+        synchronized (mWorking) {
+            mWorking.remove(aState.getMapTile().getKey());
+        }
+        // the tile may have come back into view while its cancelled load wound down, and
+        // wasn't requested again then because it was still being worked on. Pending requests
+        // dropped for room aren't cancelled, and are left to the next redraw.
+        final MapTileModuleLayerBase provider = aState.getCurrentProvider();
+        if (aState.isCancelled() && provider != null
+                && provider.isTileWanted(aState.getMapTile())) {
+            requestRedraw();
+        }
+        super.mapTileRequestCancelled(aState);
+    }
+
+    @Override
+    public void setViewport(final int zoom, final int left, final int top, final int right,
+            final int bottom) {
+        if (!mViewport.set(zoom, left, top, right, bottom)) {
+            return;
+        }
+        synchronized (mTileProviderList) {
+            for (int i = 0; i < mTileProviderList.size(); i++) {
+                mTileProviderList.get(i).setViewport(mViewport);
+            }
+        }
+    }
+
+    /**
+     * Request the tiles of the predicted range center-out, up to {@link #getPrefetchBudget()} of
+     * them. The providers keep the requests pending behind the visible tiles, and cancel them
+     * when the prediction changes or is dropped while they are not visible.
+     */
+    @Override
+    public void prefetch(final int zoom, final int left, final int top, final int right,
+            final int bottom) {
+        if (mPrefetchBudget <= 0 || !mPrediction.set(zoom, left, top, right, bottom)) {
+            return;
+        }
+        synchronized (mTileProviderList) {
+            for (int i = 0; i < mTileProviderList.size(); i++) {
+                mTileProviderList.get(i).setPrediction(mPrediction);
+            }
+        }
+        // center-out, the way TileLooper walks the viewport, until the budget is spent
+        final int centerX = (left + right) / 2;
+        final int centerY = (top + bottom) / 2;
+        final int rings = Math.max(Math.max(centerX - left, right - centerX),
+                Math.max(centerY - top, bottom - centerY));
+        mPrefetchCount = 0;
+        prefetchTile(zoom, centerX, centerY);
+        for (int ring = 1; ring <= rings && mPrefetchCount < mPrefetchBudget; ring++) {
+            for (int x = centerX - ring; x <= centerX + ring; x++) {
+                prefetchTile(zoom, x, centerY - ring);
+                prefetchTile(zoom, x, centerY + ring);
+            }
+            for (int y = centerY - ring + 1; y < centerY + ring; y++) {
+                prefetchTile(zoom, centerX - ring, y);
+                prefetchTile(zoom, centerX + ring, y);
+            }
+        }
+    }
+
+    private void prefetchTile(final int zoom, final int x, final int y) {
+        if (mPrefetchCount >= mPrefetchBudget || x < mPrediction.getLeft()
+                || x > mPrediction.getRight() || y < mPrediction.getTop()
+                || y > mPrediction.getBottom()) {
+            return;
+        }
+        final int worldSize = 1 << zoom;
+        final MapTile tile = mPrefetchTile.set(getCacheKey(), zoom, GeometryMath.mod(x, worldSize),
+                GeometryMath.mod(y, worldSize));
+        if (tileUnavailable(tile)) {
+            return;
+        }
+        final CacheableBitmapDrawable tileDrawable = mTileCache.getMapTileFromMemory(tile);
+        if (tileDrawable != null && tileDrawable.isBitmapValid()
+                && !BitmapUtils.isCacheDrawableExpired(tileDrawable)) {
+            return;
+        }
+        synchronized (mWorking) {
+            // also true for a tile the range wraps around to a second time
+            if (mWorking.containsKey(tile.getKey())) {
+                return;
+            }
+        }
+        if (requestTile(tile)) {
+            mPrefetchCount++;
+        }
+    }
+
+    @Override
+    public void cancelPrefetch() {
+        if (!mPrediction.clear()) {
+            return;
+        }
+        synchronized (mTileProviderList) {
+            for (int i = 0; i < mTileProviderList.size(); i++) {
+                mTileProviderList.get(i).setPrediction(mPrediction);
+            }
+        }
+    }
+
+    public int getPrefetchBudget() {
+        return mPrefetchBudget;
+    }
+
+    /**
+     * Set how many tiles of a predicted viewport are requested at most, 0 disables prefetching.
+     * Defaults to {@link #TILE_PREFETCH_BUDGET}.
+     */
+    public void setPrefetchBudget(final int budget) {
+        mPrefetchBudget = budget;
+        if (budget <= 0) {
+            cancelPrefetch();
+        }
+    }
+
     @Override
     public void mapTileRequestFailed(final MapTileRequestState aState) {
+        // taken before the next provider is, which forgets them
+        final MapTileModuleLayerBase failedProvider = aState.getCurrentProvider();
+        NegativeTileCache.Reason reason = aState.getFailure();
         final MapTileModuleLayerBase nextProvider = findNextAppropriateProvider(aState);
         if (nextProvider != null) {
             nextProvider.loadMapTileAsync(aState);
         } else {
             synchronized (mWorking) {
-                mWorking.remove(aState.getMapTile());
+                mWorking.remove(aState.getMapTile().getKey());
             }
             if (!networkAvailable()) {
-                mUnaccessibleTiles.add(aState.getMapTile());
+                reason = NegativeTileCache.Reason.OFFLINE;
+            }
+            if (reason == NegativeTileCache.Reason.HOST_UNAVAILABLE) {
+                // until the host may be probed, a recovery forgets it sooner
+                mNegativeTiles.put(aState.getMapTile().getKey(), reason,
+                        getHostRetryIn(failedProvider, aState.getMapTile()));
+            } else if (reason != null) {
+                mNegativeTiles.put(aState.getMapTile().getKey(), reason);
             }
             super.mapTileRequestFailed(aState);
         }
     }
 
+    /**
+     * @return how long until the hosts a tile is downloaded from may be asked again, the longest
+     * if there are several, or until any host may be if the provider doesn't download it
+     */
+    private static long getHostRetryIn(final MapTileModuleLayerBase provider,
+            final MapTile tile) {
+        final HostCircuitBreaker breaker = NetworkStack.getInstance().getCircuitBreaker();
+        final ITileLayer tileSource = provider != null ? provider.getTileSource() : null;
+        // the host is the same whatever the resolution
+        final String[] urls = tileSource instanceof WebSourceTileLayer
+                ? ((WebSourceTileLayer) tileSource).getTileURLs(tile, false) : null;
+        if (urls == null) {
+            return breaker.getRetryIn();
+        }
+        long result = 0;
+        for (String url : urls) {
+            try {
+                result = Math.max(result, breaker.getRetryIn(new URL(url).getHost()));
+            } catch (MalformedURLException e) {
+                // never requested, so never turned down
+            }
+        }
+        return result;
+    }
+
     @Override
     public void mapTileRequestExpiredTile(MapTileRequestState aState,
                                           CacheableBitmapDrawable aDrawable) {
@@ -207,7 +426,7 @@ public class MapTileLayerArray extends MapTileLayerBase {
             nextProvider.loadMapTileAsync(aState);
         } else {
             synchronized (mWorking) {
-                mWorking.remove(aState.getMapTile());
+                mWorking.remove(aState.getMapTile().getKey());
             }
         }
     }
@@ -273,13 +492,47 @@ public class MapTileLayerArray extends MapTileLayerBase {
 
     @Override
     public void setTileSource(final ITileLayer aTileSource) {
+        mNegativeTiles.saveInBackground(mCacheKey);
+        mNegativeTiles.clear();
         super.setTileSource(aTileSource);
-        mUnaccessibleTiles.clear();
+        mNegativeTiles.loadInBackground(mCacheKey);
         synchronized (mTileProviderList) {
             mTileProviderList.clear();
         }
     }
 
+    /**
+     * Set the share of the tile threads of the process the providers of a tile source get
+     * while other sources have tiles to load, see
+     * {@link com.mapbox.mapboxsdk.tileprovider.modules.SharedTileExecutor}.
+     *
+     * @param weight a positive weight, 1 by default
+     */
+    public void setTileSourceWeight(final ITileLayer aTileSource, final int weight) {
+        synchronized (mTileProviderList) {
+            for (final MapTileModuleLayerBase tileProvider : mTileProviderList) {
+                if (tileProvider.getTileSource() == aTileSource) {
+                    tileProvider.setWeight(weight);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of tiles waiting to be loaded by the providers of a tile source
+     */
+    public int getTileSourceQueueDepth(final ITileLayer aTileSource) {
+        int result = 0;
+        synchronized (mTileProviderList) {
+            for (final MapTileModuleLayerBase tileProvider : mTileProviderList) {
+                if (tileProvider.getTileSource() == aTileSource) {
+                    result += tileProvider.getPendingCount();
+                }
+            }
+        }
+        return result;
+    }
+
     @Override
     public boolean hasNoSource() {
         synchronized (mTileProviderList) {
@@ -11,10 +11,14 @@ import android.os.Message;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.tileprovider.cache.TileDiskCache;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
+import com.mapbox.mapboxsdk.util.AppUtils;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+import uk.co.senab.bitmapcache.DrawableLeases;
 
 /**
  * This is an abstract class. The tile provider is responsible for:
@@ -34,6 +38,7 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
     private boolean mUseDataConnection = true;
 
     private ITileLayer mTileSource;
+    private final boolean mHdpi;
     protected String mCacheKey = "";
 
     /**
@@ -42,11 +47,33 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
      * subsequent future requests. Note that this may return a {@link CacheableBitmapDrawable} in
      * which case you should follow proper handling procedures for using that Drawable or it may
      * reused while you are working with it.
+     * <p/>
+     * pTile is usually the draw loop's reusable descriptor, keep {@link MapTile#copy()} if it
+     * has to outlive this call.
      *
      * @see CacheableBitmapDrawable
      */
     public abstract Drawable getMapTile(MapTile pTile, boolean allowRemote);
 
+    /**
+     * Same as {@link #getMapTile(MapTile, boolean)}, and takes a lease in {@code leases} on the
+     * tile if it is a {@link CacheableBitmapDrawable}, so that its bitmap isn't recycled or
+     * reused until the draw pass releases it.
+     *
+     * @param leases the draw pass's leases, or null to return the tile without a lease
+     * @return the tile, or null if it isn't available or can't be drawn anymore
+     */
+    public Drawable getMapTile(MapTile pTile, boolean allowRemote, DrawableLeases leases) {
+        final Drawable drawable = getMapTile(pTile, allowRemote);
+        if (drawable instanceof CacheableBitmapDrawable) {
+            final CacheableBitmapDrawable cached = (CacheableBitmapDrawable) drawable;
+            if (!(leases != null ? leases.acquire(cached) : cached.isBitmapValid())) {
+                return null;
+            }
+        }
+        return drawable;
+    }
+
     public abstract void detach();
 
     /**
@@ -153,6 +180,7 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         mTileRequestCompleteHandler = pDownloadFinishedListener;
         mTileSource = pTileSource;
         mTileCache = this.createTileCache(aContext);
+        mHdpi = AppUtils.isRunningOn2xOrGreaterScreen(aContext);
     }
 
     /**
@@ -197,6 +225,46 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         }
     }
 
+    /**
+     * Called by implementation class methods indicating that they have dropped a request for a
+     * tile that left the viewport. Nothing needs redrawing.
+     *
+     * @param pState the map tile request state object
+     */
+    @Override
+    public void mapTileRequestCancelled(final MapTileRequestState pState) {
+        if (DEBUG_TILE_PROVIDERS) {
+            Log.d(TAG, "MapTileLayerBase.mapTileRequestCancelled(): " + pState.getMapTile());
+        }
+    }
+
+    /**
+     * Set the range of tiles being drawn so that pending requests can be ordered center-out and
+     * the ones for tiles that left the screen cancelled. Bounds are in tile coordinates at the
+     * given zoom level, the way {@link com.mapbox.mapboxsdk.util.TileLooper} walks them.
+     * The default implementation does nothing.
+     */
+    public void setViewport(final int zoom, final int left, final int top, final int right,
+            final int bottom) {
+    }
+
+    /**
+     * Request the tiles of the range expected to be drawn once the map stops moving, such as the
+     * end of a fling or of a zoom animation, in the same coordinates as
+     * {@link #setViewport(int, int, int, int, int)}. A new prediction replaces the previous one.
+     * The default implementation does nothing.
+     */
+    public void prefetch(final int zoom, final int left, final int top, final int right,
+            final int bottom) {
+    }
+
+    /**
+     * Drop the current prediction, cancelling the requests for its tiles that are not visible.
+     * The default implementation does nothing.
+     */
+    public void cancelPrefetch() {
+    }
+
     /**
      * Called by implementation class methods indicating that they have produced an expired result
      * that can be used but better results may be delivered later. The tile is added to the cache,
@@ -260,6 +328,16 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         BitmapUtils.setCacheDrawableExpired(drawable);
     }
 
+    /**
+     * Ask the map to redraw, for instance to request again a tile whose request was cancelled
+     * but is visible again.
+     */
+    protected void requestRedraw() {
+        if (mTileRequestCompleteHandler != null) {
+            mTileRequestCompleteHandler.sendEmptyMessage(MapTile.MAPTILE_SUCCESS_ID);
+        }
+    }
+
     public void setTileRequestCompleteHandler(final Handler handler) {
         mTileRequestCompleteHandler = handler;
     }
@@ -268,8 +346,16 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         mTileCache.purgeMemoryCache();
     }
 
+    /**
+     * Make room in the memory cache for the tiles on screen, the size of a tile depending on
+     * the {@link com.mapbox.mapboxsdk.tileprovider.tilesource.TileDecodePolicy} of the layer.
+     */
     public void memoryCacheNeedsMoreMemory(int numberOfTiles) {
-        mTileCache.getCache().resizeMemoryForTiles(numberOfTiles);
+        int tileBytes = 0;
+        if (mTileSource instanceof TileLayer) {
+            tileBytes = ((TileLayer) mTileSource).getDecodedTileBytes(mHdpi);
+        }
+        mTileCache.getCache().resizeMemoryForTiles(numberOfTiles, tileBytes);
     }
 
     public void clearTileDiskCache() {
@@ -280,6 +366,14 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         mTileCache.setDiskCacheEnabled(enabled);
     }
 
+    /**
+     * Replace the default disk cache of every map, see
+     * {@link MapTileCache#setDiskCache(TileDiskCache)}.
+     */
+    public void setDiskCache(final TileDiskCache diskCache) {
+        mTileCache.setDiskCache(diskCache);
+    }
+
     /**
      * Whether to use the network connection if it's available.
      */
@@ -72,6 +72,7 @@ public class MapTileLayerBasic extends MapTileLayerArray implements IMapTileProv
             }
             mTileProviderList.add(index, downloaderProvider);
         }
+        downloaderProvider.setViewport(mViewport);
     }
 
     public void removeTileSource(final int index) {
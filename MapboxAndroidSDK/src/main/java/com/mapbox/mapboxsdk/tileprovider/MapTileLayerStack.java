@@ -0,0 +1,679 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.util.Log;
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.tileprovider.cache.NegativeTileCache;
+import com.mapbox.mapboxsdk.tileprovider.modules.ConfigurablePriorityThreadFactory;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
+import com.mapbox.mapboxsdk.util.AppUtils;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
+import com.mapbox.mapboxsdk.util.LongHashMap;
+import com.mapbox.mapboxsdk.views.MapView;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import uk.co.senab.bitmapcache.BitmapPool;
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+import uk.co.senab.bitmapcache.DrawableLeases;
+
+/**
+ * A tile provider that draws its tile sources on top of each other, the first one at the bottom,
+ * where {@link MapTileLayerBasic} uses them as a chain of fallbacks.
+ * <p/>
+ * Every layer is a {@link MapTileLayerArray} of its own with its own downloader, so the tiles of
+ * the layers are fetched in parallel, cached under the cache key of their source in the
+ * {@link MapTileCache} of the stack and can fail independently: a sparse overlay missing a tile doesn't keep the other layers from showing.
+ * <p/>
+ * Once every layer of a tile is in memory, the layers are flattened into one composited tile on
+ * a background thread and cached under the cache key of the stack, so that drawing the tile is
+ * one bitmap draw however many layers there are. Until then the layers are drawn one by one.
+ * A composited tile is dropped when one of its layers is loaded again, and all of them when the
+ * layers change or with {@link #invalidateLayer(ITileLayer)}.
+ */
+public class MapTileLayerStack extends MapTileLayerBase {
+
+    private static final String TAG = "MapTileLayerStack";
+
+    private MapView mMapView;
+    private Handler mTileRequestCompleteHandler;
+
+    // replaced as a whole when the layers change, so the draw loop can walk it without locking
+    private volatile Layer[] mLayers = new Layer[0];
+
+    // the source id of the composited tiles, made of the cache keys of the layers
+    private volatile int mCompositeSourceId;
+
+    private boolean mCompositingEnabled = true;
+    private ExecutorService mCompositor;
+    // the tiles being composited, false once one of their layers changed while they were
+    private final LongHashMap<Boolean> mCompositing = new LongHashMap<Boolean>();
+
+    // only used on the UI thread
+    private final MapTile mLayerTile = new MapTile(0, 0, 0);
+    private final StackedDrawable mStacked = new StackedDrawable();
+
+    // only used on the compositor thread
+    private final Paint mCompositePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mCompositeRect = new Rect();
+
+    /**
+     * One tile source of the stack.
+     */
+    private class Layer extends MapTileLayerArray {
+
+        Layer(final Context context, final ITileLayer tileSource) {
+            // which loads the missing tiles of the source
+            super(context, tileSource, null, null);
+            final MapTileDownloader downloader =
+                    new MapTileDownloader(tileSource, mTileCache, mNetworkAvailabilityCheck,
+                            mMapView);
+            downloader.setViewport(mViewport);
+            mTileProviderList.add(downloader);
+        }
+
+        /**
+         * Layers share the cache of the stack, so that they follow its disk cache setting and
+         * changing it resets the shared cache once.
+         */
+        @Override
+        public MapTileCache createTileCache(final Context aContext) {
+            return MapTileLayerStack.this.mTileCache;
+        }
+
+        /**
+         * @return true if the layer has nothing to draw on a tile, because its source doesn't
+         * have it or doesn't cover its zoom level
+         */
+        boolean isBlank(final MapTile tile) {
+            return tile.getZ() < getMinimumZoomLevel() || tile.getZ() > getMaximumZoomLevel()
+                    || mNegativeTiles.get(tile.getKey()) == NegativeTileCache.Reason.NOT_FOUND;
+        }
+
+        @Override
+        public boolean useDataConnection() {
+            return MapTileLayerStack.this.useDataConnection();
+        }
+
+        @Override
+        public void mapTileRequestCompleted(final MapTileRequestState aState,
+                final Drawable aDrawable) {
+            // before the map is told to redraw, so the outdated composite isn't drawn again
+            invalidateComposite(aState.getMapTile());
+            super.mapTileRequestCompleted(aState, aDrawable);
+        }
+
+        @Override
+        public void mapTileRequestExpiredTile(final MapTileRequestState aState,
+                final CacheableBitmapDrawable aDrawable) {
+            invalidateComposite(aState.getMapTile());
+            super.mapTileRequestExpiredTile(aState, aDrawable);
+        }
+    }
+
+    /**
+     * The layers of a tile that isn't composited yet, drawn on top of each other. There is only
+     * one, reused for every tile, since the draw loop draws a tile before it asks for the next.
+     */
+    private static final class StackedDrawable extends Drawable {
+        Drawable[] mDrawables = new Drawable[0];
+        int mCount;
+
+        /**
+         * Make room for the layers of a tile.
+         */
+        Drawable[] reset(final int layers) {
+            if (mDrawables.length < layers) {
+                mDrawables = new Drawable[layers];
+            }
+            mCount = 0;
+            return mDrawables;
+        }
+
+        void setCount(final int count) {
+            mCount = count;
+            // don't keep the tiles of the previous tile from being collected
+            for (int i = count; i < mDrawables.length; i++) {
+                mDrawables[i] = null;
+            }
+        }
+
+        @Override
+        public void draw(final Canvas canvas) {
+            final Rect bounds = getBounds();
+            for (int i = 0; i < mCount; i++) {
+                mDrawables[i].setBounds(bounds);
+                mDrawables[i].draw(canvas);
+            }
+        }
+
+        @Override
+        public void setAlpha(final int alpha) {
+            // the layers are cached drawables, they are drawn as they are
+        }
+
+        @Override
+        public void setColorFilter(final ColorFilter colorFilter) {
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+
+    /**
+     * Create an empty stack. It is given to a {@link MapView} by a subclass through
+     * {@link MapView#MapView(Context, int, MapTileLayerBase)}, and its layers are set with
+     * {@link MapView#setTileSource(ITileLayer[])}.
+     *
+     * @param context the context of the map
+     */
+    public MapTileLayerStack(final Context context) {
+        super(context, null);
+    }
+
+    /**
+     * Called by the map this stack is given to, before any layer is added.
+     */
+    public void setMapView(final MapView mapView) {
+        mMapView = mapView;
+        setTileRequestCompleteHandler(mapView.getTileRequestCompleteHandler());
+    }
+
+    /**
+     * Replace every layer.
+     *
+     * @param tileSources the layers, from the bottom up
+     */
+    public void setTileSources(final ITileLayer[] tileSources) {
+        final Layer[] previous = mLayers;
+        int count = 0;
+        for (ITileLayer source : tileSources) {
+            if (source != null) {
+                count++;
+            }
+        }
+        final Layer[] layers = new Layer[count];
+        count = 0;
+        for (ITileLayer source : tileSources) {
+            if (source != null) {
+                layers[count++] = newLayer(source);
+            }
+        }
+        setLayers(layers);
+        for (Layer layer : previous) {
+            layer.detach();
+        }
+    }
+
+    /**
+     * Replace every layer with one.
+     */
+    @Override
+    public void setTileSource(final ITileLayer tileSource) {
+        setTileSources(new ITileLayer[] { tileSource });
+    }
+
+    /**
+     * Add a layer on top of the others.
+     */
+    public void addTileSource(final ITileLayer tileSource) {
+        addTileSource(tileSource, mLayers.length);
+    }
+
+    /**
+     * Add a layer.
+     *
+     * @param index the position of the layer, 0 being the bottom
+     */
+    public void addTileSource(final ITileLayer tileSource, final int index) {
+        final Layer[] layers = mLayers;
+        if (tileSource == null || index < 0 || index > layers.length) {
+            return;
+        }
+        final Layer[] result = new Layer[layers.length + 1];
+        System.arraycopy(layers, 0, result, 0, index);
+        result[index] = newLayer(tileSource);
+        System.arraycopy(layers, index, result, index + 1, layers.length - index);
+        setLayers(result);
+    }
+
+    /**
+     * Remove a layer.
+     *
+     * @param index the position of the layer, 0 being the bottom
+     */
+    public void removeTileSource(final int index) {
+        final Layer[] layers = mLayers;
+        if (index < 0 || index >= layers.length) {
+            return;
+        }
+        final Layer[] result = new Layer[layers.length - 1];
+        System.arraycopy(layers, 0, result, 0, index);
+        System.arraycopy(layers, index + 1, result, index, layers.length - index - 1);
+        setLayers(result);
+        layers[index].detach();
+    }
+
+    public void removeTileSource(final ITileLayer tileSource) {
+        final int index = indexOf(tileSource);
+        if (index >= 0) {
+            removeTileSource(index);
+        }
+    }
+
+    /**
+     * @return the layers, from the bottom up
+     */
+    public ITileLayer[] getTileSources() {
+        final Layer[] layers = mLayers;
+        final ITileLayer[] result = new ITileLayer[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            result[i] = layers[i].getTileSource();
+        }
+        return result;
+    }
+
+    /**
+     * @return the bottom layer, or null if there is none
+     */
+    @Override
+    public ITileLayer getTileSource() {
+        final Layer[] layers = mLayers;
+        return layers.length > 0 ? layers[0].getTileSource() : null;
+    }
+
+    /**
+     * Drop the composited tiles after the tiles of a layer changed other than by being loaded
+     * again, such as after its data was edited on the server.
+     */
+    public void invalidateLayer(final ITileLayer tileSource) {
+        if (indexOf(tileSource) >= 0) {
+            setLayers(mLayers);
+        }
+    }
+
+    /**
+     * Set the share of the tile threads of the process a layer gets while other layers have
+     * tiles to load, see {@link MapTileLayerArray#setTileSourceWeight(ITileLayer, int)}.
+     */
+    public void setTileSourceWeight(final ITileLayer tileSource, final int weight) {
+        for (Layer layer : mLayers) {
+            layer.setTileSourceWeight(tileSource, weight);
+        }
+    }
+
+    /**
+     * @return the number of tiles of a layer waiting to be loaded
+     */
+    public int getTileSourceQueueDepth(final ITileLayer tileSource) {
+        int result = 0;
+        for (Layer layer : mLayers) {
+            result += layer.getTileSourceQueueDepth(tileSource);
+        }
+        return result;
+    }
+
+    private int indexOf(final ITileLayer tileSource) {
+        final Layer[] layers = mLayers;
+        for (int i = 0; i < layers.length; i++) {
+            if (layers[i].getTileSource() == tileSource) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Layer newLayer(final ITileLayer tileSource) {
+        if (mMapView == null) {
+            throw new IllegalStateException("MapTileLayerStack is not attached to a MapView");
+        }
+        final Layer layer = new Layer(context, tileSource);
+        layer.setTileRequestCompleteHandler(mTileRequestCompleteHandler);
+        return layer;
+    }
+
+    /**
+     * Install a new set of layers, or the same one again after the tiles of a layer changed.
+     * The cache key of the composited tiles is made of the cache keys of the layers, and the
+     * composited tiles of the previous set are dropped, along with the ones being composited.
+     */
+    private void setLayers(final Layer[] layers) {
+        final StringBuilder cacheKey = new StringBuilder();
+        for (Layer layer : layers) {
+            cacheKey.append(layer.getCacheKey()).append('+');
+        }
+        final String previousKey = mCacheKey;
+        mLayers = layers;
+        mCacheKey = layers.length > 0 ? cacheKey.toString() : "";
+        mCompositeSourceId = TileKey.getSourceId(mCacheKey);
+        synchronized (mCompositing) {
+            final long[] keys = mCompositing.keys();
+            for (long key : keys) {
+                mCompositing.put(key, Boolean.FALSE);
+            }
+        }
+        if (previousKey != null && previousKey.length() > 0) {
+            mTileCache.removeTilesFromMemory(previousKey);
+        }
+    }
+
+    /**
+     * Drop the composited tile of a tile of one of the layers.
+     */
+    private void invalidateComposite(final MapTile layerTile) {
+        final long key = TileKey.pack(mCompositeSourceId, layerTile.getZ(), layerTile.getX(),
+                layerTile.getY());
+        synchronized (mCompositing) {
+            if (mCompositing.containsKey(key)) {
+                mCompositing.put(key, Boolean.FALSE);
+            }
+        }
+        mTileCache.getCache().removeFromMemoryCache(key);
+    }
+
+    /**
+     * Whether layers are flattened into composited tiles once they are all loaded, true by
+     * default. Without it every layer of a tile is drawn on every frame.
+     */
+    public void setCompositingEnabled(final boolean enabled) {
+        mCompositingEnabled = enabled;
+    }
+
+    public boolean isCompositingEnabled() {
+        return mCompositingEnabled;
+    }
+
+    @Override
+    public Drawable getMapTile(final MapTile pTile, final boolean allowRemote) {
+        return getMapTile(pTile, allowRemote, null);
+    }
+
+    /**
+     * @return the composited tile if it is in memory, otherwise the layers of the tile that are,
+     * or null if none is. Several layers are returned as a drawable that is reused by the next
+     * call, so it has to be drawn first.
+     */
+    @Override
+    public Drawable getMapTile(final MapTile pTile, final boolean allowRemote,
+            final DrawableLeases leases) {
+        final Layer[] layers = mLayers;
+        if (layers.length == 0) {
+            return null;
+        }
+        if (layers.length == 1) {
+            return layers[0].getMapTile(layerTile(layers[0], pTile), allowRemote, leases);
+        }
+
+        if (mCompositingEnabled) {
+            final CacheableBitmapDrawable composite = mTileCache.getMapTileFromMemory(pTile);
+            if (composite != null && (leases != null ? leases.acquire(composite)
+                    : composite.isBitmapValid())) {
+                return composite;
+            }
+        }
+
+        final Drawable[] drawables = mStacked.reset(layers.length);
+        int count = 0;
+        boolean complete = true;
+        for (int i = 0; i < layers.length; i++) {
+            final MapTile layerTile = layerTile(layers[i], pTile);
+            final Drawable drawable = layers[i].getMapTile(layerTile, allowRemote, leases);
+            if (drawable != null) {
+                drawables[count++] = drawable;
+                if (!(drawable instanceof CacheableBitmapDrawable)
+                        || BitmapUtils.isCacheDrawableExpired(drawable)) {
+                    complete = false;
+                }
+            } else if (!layers[i].isBlank(layerTile)) {
+                complete = false;
+            }
+        }
+        mStacked.setCount(count);
+        if (count == 0) {
+            return null;
+        }
+        if (complete && mCompositingEnabled && count > 1) {
+            composite(pTile, drawables, count);
+        }
+        return count == 1 ? drawables[0] : mStacked;
+    }
+
+    /**
+     * @return the draw loop's tile re-targeted at a layer
+     */
+    private MapTile layerTile(final Layer layer, final MapTile pTile) {
+        mLayerTile.set(layer.getCacheKey(), pTile.getZ(), pTile.getX(), pTile.getY());
+        mLayerTile.setTileRect(pTile.getTileRect());
+        return mLayerTile;
+    }
+
+    /**
+     * Flatten the layers of a tile on the compositor thread and put the result in the memory
+     * cache. The layers are leased until they are drawn.
+     */
+    private void composite(final MapTile pTile, final Drawable[] drawables, final int count) {
+        final long key = pTile.getKey();
+        synchronized (mCompositing) {
+            if (mCompositing.containsKey(key)) {
+                return;
+            }
+            mCompositing.put(key, Boolean.TRUE);
+        }
+        final CacheableBitmapDrawable[] layers = new CacheableBitmapDrawable[count];
+        for (int i = 0; i < count; i++) {
+            layers[i] = (CacheableBitmapDrawable) drawables[i];
+            if (!layers[i].acquire()) {
+                release(layers, i);
+                synchronized (mCompositing) {
+                    mCompositing.remove(key);
+                }
+                return;
+            }
+        }
+        final MapTile tile = pTile.copy();
+        try {
+            getCompositor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    Bitmap bitmap = null;
+                    try {
+                        bitmap = compositeLayers(layers);
+                    } catch (final Throwable e) {
+                        Log.e(TAG, "Error compositing tile: " + tile, e);
+                    } finally {
+                        release(layers, layers.length);
+                    }
+                    final Boolean valid;
+                    synchronized (mCompositing) {
+                        valid = mCompositing.remove(key);
+                    }
+                    if (bitmap != null && Boolean.TRUE.equals(valid)) {
+                        final CacheableBitmapDrawable drawable =
+                                mTileCache.putTileInMemoryCache(tile, bitmap);
+                        mapTileRequestCompleted(new MapTileRequestState(tile, null,
+                                MapTileLayerStack.this), drawable);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // detached
+            release(layers, layers.length);
+            synchronized (mCompositing) {
+                mCompositing.remove(key);
+            }
+        }
+    }
+
+    private static void release(final CacheableBitmapDrawable[] layers, final int count) {
+        for (int i = 0; i < count; i++) {
+            layers[i].release();
+        }
+    }
+
+    /**
+     * Draw the layers of a tile into one bitmap the size and config of the bottom layer,
+     * reusing a bitmap of the pool if there is one.
+     */
+    private Bitmap compositeLayers(final CacheableBitmapDrawable[] layers) {
+        final Bitmap bottom = layers[0].getBitmap();
+        final int width = bottom.getWidth();
+        final int height = bottom.getHeight();
+        final Bitmap.Config config =
+                bottom.getConfig() != null ? bottom.getConfig() : Bitmap.Config.ARGB_8888;
+        final BitmapPool pool = mTileCache.getBitmapPool();
+        Bitmap result = pool != null ? pool.get(width, height, config) : null;
+        if (result == null) {
+            result = Bitmap.createBitmap(width, height, config);
+        }
+        final Canvas canvas = new Canvas(result);
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        mCompositeRect.set(0, 0, width, height);
+        for (CacheableBitmapDrawable layer : layers) {
+            canvas.drawBitmap(layer.getBitmap(), null, mCompositeRect, mCompositePaint);
+        }
+        return result;
+    }
+
+    private synchronized ExecutorService getCompositor() {
+        if (mCompositor == null) {
+            mCompositor = Executors.newSingleThreadExecutor(
+                    new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY, "compositor"));
+        }
+        return mCompositor;
+    }
+
+    @Override
+    public void detach() {
+        synchronized (this) {
+            if (mCompositor != null) {
+                mCompositor.shutdownNow();
+                mCompositor = null;
+            }
+        }
+        for (Layer layer : mLayers) {
+            layer.detach();
+        }
+    }
+
+    @Override
+    public void setTileRequestCompleteHandler(final Handler handler) {
+        super.setTileRequestCompleteHandler(handler);
+        mTileRequestCompleteHandler = handler;
+        for (Layer layer : mLayers) {
+            layer.setTileRequestCompleteHandler(handler);
+        }
+    }
+
+    @Override
+    public void setViewport(final int zoom, final int left, final int top, final int right,
+            final int bottom) {
+        for (Layer layer : mLayers) {
+            layer.setViewport(zoom, left, top, right, bottom);
+        }
+    }
+
+    @Override
+    public void prefetch(final int zoom, final int left, final int top, final int right,
+            final int bottom) {
+        for (Layer layer : mLayers) {
+            layer.prefetch(zoom, left, top, right, bottom);
+        }
+    }
+
+    @Override
+    public void cancelPrefetch() {
+        for (Layer layer : mLayers) {
+            layer.cancelPrefetch();
+        }
+    }
+
+    /**
+     * Make room in the memory cache for the tiles of every layer and their composited tiles.
+     */
+    @Override
+    public void memoryCacheNeedsMoreMemory(final int numberOfTiles) {
+        final Layer[] layers = mLayers;
+        if (layers.length == 0) {
+            return;
+        }
+        int tileBytes = 0;
+        if (layers[0].getTileSource() instanceof TileLayer) {
+            tileBytes = ((TileLayer) layers[0].getTileSource()).getDecodedTileBytes(
+                    AppUtils.isRunningOn2xOrGreaterScreen(context));
+        }
+        final int composites = layers.length > 1 && mCompositingEnabled ? 1 : 0;
+        mTileCache.getCache().resizeMemoryForTiles(
+                numberOfTiles * (layers.length + composites), tileBytes);
+    }
+
+    @Override
+    public boolean hasNoSource() {
+        return mLayers.length == 0;
+    }
+
+    @Override
+    public float getMinimumZoomLevel() {
+        float result = MINIMUM_ZOOMLEVEL;
+        for (Layer layer : mLayers) {
+            result = Math.max(result, layer.getMinimumZoomLevel());
+        }
+        return result;
+    }
+
+    @Override
+    public float getMaximumZoomLevel() {
+        float result = MAXIMUM_ZOOMLEVEL;
+        for (Layer layer : mLayers) {
+            result = Math.min(result, layer.getMaximumZoomLevel());
+        }
+        return result;
+    }
+
+    @Override
+    public int getTileSizePixels() {
+        final Layer[] layers = mLayers;
+        return layers.length > 0 ? layers[0].getTileSizePixels() : 0;
+    }
+
+    @Override
+    public BoundingBox getBoundingBox() {
+        BoundingBox result = null;
+        for (Layer layer : mLayers) {
+            final BoundingBox box = layer.getBoundingBox();
+            if (result == null) {
+                result = box;
+            } else if (box != null) {
+                result = result.union(box);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public LatLng getCenterCoordinate() {
+        final Layer[] layers = mLayers;
+        return layers.length > 0 ? layers[0].getCenterCoordinate() : null;
+    }
+
+    @Override
+    public float getCenterZoom() {
+        final Layer[] layers = mLayers;
+        return layers.length > 0 ? layers[0].getCenterZoom()
+                : (getMaximumZoomLevel() + getMinimumZoomLevel()) / 2;
+    }
+}
@@ -1,6 +1,8 @@
 package com.mapbox.mapboxsdk.tileprovider;
 
+import com.mapbox.mapboxsdk.tileprovider.cache.NegativeTileCache;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileModuleLayerBase;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -15,6 +17,10 @@ public class MapTileRequestState {
     private final MapTile mMapTile;
     private final IMapTileProviderCallback mCallback;
     private MapTileModuleLayerBase mCurrentProvider;
+    private NegativeTileCache.Reason mFailure;
+    private volatile boolean mCancelled;
+    // guarded by this, dropped once the request is cancelled
+    private ArrayList<Runnable> mCancelListeners;
 
     /**
      * Initialize a new state to keep track of a map tile
@@ -47,8 +53,80 @@ public class MapTileRequestState {
         return mCallback;
     }
 
+    /**
+     * @return the provider loading the tile, or null before the first one or after the last
+     */
+    public MapTileModuleLayerBase getCurrentProvider() {
+        return mCurrentProvider;
+    }
+
     public MapTileModuleLayerBase getNextProvider() {
         mCurrentProvider = mProviderQueue.poll();
+        mFailure = null;
         return mCurrentProvider;
     }
+
+    /**
+     * Set why the current provider couldn't load the tile.
+     */
+    public void setFailure(final NegativeTileCache.Reason failure) {
+        mFailure = failure;
+    }
+
+    /**
+     * @return why the last provider that tried couldn't load the tile, or null if it didn't say
+     */
+    public NegativeTileCache.Reason getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * Cancel the request, such as when its tile has left the viewport. The network request or
+     * decode it is waiting on is aborted through the listeners added with
+     * {@link #addCancelListener}, and the provider then reports the request as cancelled
+     * instead of failed.
+     */
+    public void cancel() {
+        final ArrayList<Runnable> listeners;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            listeners = mCancelListeners;
+            mCancelListeners = null;
+        }
+        if (listeners != null) {
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Run a listener when the request is cancelled, or right away if it already is. Remove it
+     * with {@link #removeCancelListener} once the work it aborts is over.
+     */
+    public void addCancelListener(final Runnable listener) {
+        synchronized (this) {
+            if (!mCancelled) {
+                if (mCancelListeners == null) {
+                    mCancelListeners = new ArrayList<Runnable>(2);
+                }
+                mCancelListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    public synchronized void removeCancelListener(final Runnable listener) {
+        if (mCancelListeners != null) {
+            mCancelListeners.remove(listener);
+        }
+    }
 }
@@ -0,0 +1,93 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Packs a tile source and z/x/y coordinates into a single long so that tiles can be used as
+ * hash keys without building any Strings.
+ * <p/>
+ * Layout, from the most significant bit: 15 bits of source id, 5 bits of zoom, 22 bits of y and
+ * 22 bits of x. 22 bits covers every column and row up to {@link #MAXIMUM_ZOOMLEVEL}.
+ * <p/>
+ * Source ids are assigned per process, so packed keys must never be persisted. The disk cache
+ * keeps using {@link MapTile#getCacheKey()}.
+ */
+public final class TileKey implements TileLayerConstants {
+
+    private static final int COORD_BITS = 22;
+    private static final int ZOOM_BITS = 5;
+    private static final int SOURCE_BITS = 15;
+
+    private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+    private static final long ZOOM_MASK = (1L << ZOOM_BITS) - 1;
+    private static final long SOURCE_MASK = (1L << SOURCE_BITS) - 1;
+
+    private static final int Y_SHIFT = COORD_BITS;
+    private static final int ZOOM_SHIFT = COORD_BITS * 2;
+    private static final int SOURCE_SHIFT = ZOOM_SHIFT + ZOOM_BITS;
+
+    private static final ConcurrentHashMap<String, Integer> sSourceIds =
+            new ConcurrentHashMap<String, Integer>();
+    private static final AtomicInteger sNextSourceId = new AtomicInteger(1);
+
+    /**
+     * This is a utility class with only static members.
+     */
+    private TileKey() {
+    }
+
+    /**
+     * Get the process-wide id for a tile source cache key. The empty key always maps to 0.
+     * <p/>
+     * Ids are never given to another key, since packed keys holding them may still be in use,
+     * so a process can only use {@code 2^15 - 1} distinct cache keys.
+     *
+     * @param cacheKey the cache key of a tile source
+     * @return a small positive integer unique to that cache key
+     * @throws IllegalStateException if every id was given out already
+     */
+    public static int getSourceId(final String cacheKey) {
+        if (cacheKey == null || cacheKey.length() == 0) {
+            return 0;
+        }
+        Integer id = sSourceIds.get(cacheKey);
+        if (id == null) {
+            final int next = sNextSourceId.getAndIncrement();
+            if (next <= 0 || next > SOURCE_MASK) {
+                throw new IllegalStateException("More than " + SOURCE_MASK
+                        + " tile source cache keys, can't add " + cacheKey);
+            }
+            final Integer newId = next;
+            id = sSourceIds.putIfAbsent(cacheKey, newId);
+            if (id == null) {
+                id = newId;
+            }
+        }
+        return id;
+    }
+
+    public static long pack(final int sourceId, final int z, final int x, final int y) {
+        return ((sourceId & SOURCE_MASK) << SOURCE_SHIFT)
+                | ((z & ZOOM_MASK) << ZOOM_SHIFT)
+                | ((y & COORD_MASK) << Y_SHIFT)
+                | (x & COORD_MASK);
+    }
+
+    public static int getSourceId(final long key) {
+        return (int) ((key >>> SOURCE_SHIFT) & SOURCE_MASK);
+    }
+
+    public static int getZ(final long key) {
+        return (int) ((key >>> ZOOM_SHIFT) & ZOOM_MASK);
+    }
+
+    public static int getX(final long key) {
+        return (int) (key & COORD_MASK);
+    }
+
+    public static int getY(final long key) {
+        return (int) ((key >>> Y_SHIFT) & COORD_MASK);
+    }
+}
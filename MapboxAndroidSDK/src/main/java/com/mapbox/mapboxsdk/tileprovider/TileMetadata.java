@@ -0,0 +1,182 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.text.TextUtils;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+
+/**
+ * HTTP caching information of a tile, kept next to it in the disk cache: the validators used to
+ * revalidate it with a conditional request, when it stops being fresh, and the content type of
+ * the image as it was downloaded.
+ */
+public class TileMetadata implements TileLayerConstants {
+
+    private static final String VERSION = "2";
+    private static final char SEPARATOR = '\n';
+
+    public static final String CONTENT_TYPE_PNG = "image/png";
+
+    private String mETag;
+    private String mLastModified;
+    private long mExpires;
+    private String mContentType;
+
+    public TileMetadata(final String eTag, final String lastModified, final long expires,
+            final String contentType) {
+        mETag = eTag;
+        mLastModified = lastModified;
+        mExpires = expires;
+        mContentType = contentType;
+    }
+
+    /**
+     * Read the metadata of a successful response.
+     *
+     * @param connection a connection whose response code has been read
+     * @param now the current time in milliseconds
+     */
+    public static TileMetadata fromConnection(final HttpURLConnection connection, final long now) {
+        return new TileMetadata(connection.getHeaderField("ETag"),
+                connection.getHeaderField("Last-Modified"),
+                getExpires(connection, now),
+                connection.getContentType());
+    }
+
+    /**
+     * Refresh from a 304 Not Modified response: the server may send new validators and a new
+     * lifetime, anything it leaves out is kept.
+     */
+    public void refresh(final HttpURLConnection connection, final long now) {
+        final String eTag = connection.getHeaderField("ETag");
+        if (!TextUtils.isEmpty(eTag)) {
+            mETag = eTag;
+        }
+        final String lastModified = connection.getHeaderField("Last-Modified");
+        if (!TextUtils.isEmpty(lastModified)) {
+            mLastModified = lastModified;
+        }
+        mExpires = getExpires(connection, now);
+    }
+
+    /**
+     * Combine with the metadata of another layer of a composited tile. A composite can't be
+     * revalidated as a whole, so the validators are dropped and it expires with its first layer.
+     * The composite is stored as a PNG.
+     */
+    public void merge(final TileMetadata other) {
+        mETag = null;
+        mLastModified = null;
+        mExpires = Math.min(mExpires, other.mExpires);
+        mContentType = CONTENT_TYPE_PNG;
+    }
+
+    /**
+     * Add If-None-Match / If-Modified-Since headers to a request for this tile.
+     */
+    public void addConditionalHeaders(final HttpURLConnection connection) {
+        if (!TextUtils.isEmpty(mETag)) {
+            connection.setRequestProperty("If-None-Match", mETag);
+        }
+        if (!TextUtils.isEmpty(mLastModified)) {
+            connection.setRequestProperty("If-Modified-Since", mLastModified);
+        }
+    }
+
+    public boolean hasValidators() {
+        return !TextUtils.isEmpty(mETag) || !TextUtils.isEmpty(mLastModified);
+    }
+
+    public boolean isExpired(final long now) {
+        return now >= mExpires;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    public long getExpires() {
+        return mExpires;
+    }
+
+    /**
+     * @return the content type of the cached image, for instance image/jpeg, or null if unknown
+     */
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * Work out when a response stops being fresh: Cache-Control max-age, then Expires, then a
+     * tenth of the time since Last-Modified, then {@link #TILE_DEFAULT_MAX_AGE_MS}.
+     */
+    private static long getExpires(final HttpURLConnection connection, final long now) {
+        final String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            final String[] directives = cacheControl.split(",");
+            for (String directive : directives) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return now;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(directive.substring(8).trim()) * 1000;
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        final long expires = connection.getExpiration();
+        if (expires > 0) {
+            // Expires is relative to the server clock
+            final long date = connection.getDate();
+            return date > 0 ? now + expires - date : expires;
+        }
+        final long lastModified = connection.getLastModified();
+        if (lastModified > 0 && lastModified < now) {
+            return now + Math.min((now - lastModified) / 10, TILE_DEFAULT_MAX_AGE_MS);
+        }
+        return now + TILE_DEFAULT_MAX_AGE_MS;
+    }
+
+    /**
+     * @return a String to store in the disk cache, see {@link #decode(String)}
+     */
+    public String encode() {
+        return VERSION + SEPARATOR + (mETag != null ? mETag : "") + SEPARATOR
+                + (mLastModified != null ? mLastModified : "") + SEPARATOR + mExpires + SEPARATOR
+                + (mContentType != null ? mContentType : "");
+    }
+
+    /**
+     * @return the metadata, or null if the String is empty or unreadable
+     */
+    public static TileMetadata decode(final String encoded) {
+        if (TextUtils.isEmpty(encoded)) {
+            return null;
+        }
+        final String[] fields = encoded.split(String.valueOf(SEPARATOR), -1);
+        if (fields.length != 5 || !VERSION.equals(fields[0])) {
+            return null;
+        }
+        try {
+            return new TileMetadata(fields[1].length() > 0 ? fields[1] : null,
+                    fields[2].length() > 0 ? fields[2] : null, Long.parseLong(fields[3]),
+                    fields[4].length() > 0 ? fields[4] : null);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TileMetadata[eTag=" + mETag + ", lastModified=" + mLastModified + ", expires="
+                + mExpires + ", contentType=" + mContentType + "]";
+    }
+}
@@ -0,0 +1,167 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+/**
+ * The range of tiles currently drawn, used to prioritize and cancel tile requests.
+ * <p/>
+ * Bounds are in tile coordinates at {@link #getZoom()} and may lie outside of the world, the way
+ * {@link com.mapbox.mapboxsdk.util.TileLooper} walks them; they are wrapped when tiles are
+ * compared against them.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class TileViewport {
+
+    private int mZoom = -1;
+    private int mLeft;
+    private int mTop;
+    private int mRight;
+    private int mBottom;
+
+    /**
+     * Set the visible tile range.
+     *
+     * @return true if this changed the viewport
+     */
+    public boolean set(final int zoom, final int left, final int top, final int right,
+            final int bottom) {
+        if (zoom == mZoom && left == mLeft && top == mTop && right == mRight
+                && bottom == mBottom) {
+            return false;
+        }
+        mZoom = zoom;
+        mLeft = left;
+        mTop = top;
+        mRight = right;
+        mBottom = bottom;
+        return true;
+    }
+
+    public boolean set(final TileViewport viewport) {
+        return set(viewport.mZoom, viewport.mLeft, viewport.mTop, viewport.mRight,
+                viewport.mBottom);
+    }
+
+    /**
+     * Reset the viewport to the state it had before it was first set.
+     *
+     * @return true if this changed the viewport
+     */
+    public boolean clear() {
+        if (mZoom < 0) {
+            return false;
+        }
+        mZoom = -1;
+        return true;
+    }
+
+    /**
+     * @return false until the viewport has been set, and once it has been cleared
+     */
+    public boolean isValid() {
+        return mZoom >= 0;
+    }
+
+    public int getZoom() {
+        return mZoom;
+    }
+
+    public int getLeft() {
+        return mLeft;
+    }
+
+    public int getTop() {
+        return mTop;
+    }
+
+    public int getRight() {
+        return mRight;
+    }
+
+    public int getBottom() {
+        return mBottom;
+    }
+
+    /**
+     * Whether any part of a tile, at any zoom level, is inside the viewport.
+     */
+    public boolean isVisible(final MapTile tile) {
+        if (!isValid()) {
+            return true;
+        }
+        final int dz = tile.getZ() - mZoom;
+        if (dz >= 0) {
+            return inRange(tile.getX() >> dz, mLeft, mRight)
+                    && inRange(tile.getY() >> dz, mTop, mBottom);
+        }
+        // a parent tile covers several tiles of the viewport's zoom level
+        return overlaps(tile.getX() << -dz, ((tile.getX() + 1) << -dz) - 1, mLeft, mRight)
+                && overlaps(tile.getY() << -dz, ((tile.getY() + 1) << -dz) - 1, mTop, mBottom);
+    }
+
+    /**
+     * The priority of a tile request, lower values should be loaded first. Tiles of the
+     * viewport's zoom level come first, then the closest zoom levels, and within a zoom level
+     * the tiles closest to the center of the viewport.
+     */
+    public long priorityOf(final MapTile tile) {
+        if (!isValid()) {
+            return 0;
+        }
+        final int dz = Math.abs(tile.getZ() - mZoom);
+        final long dx = distance(tile.getZ(), tile.getX(), mLeft + mRight + 1);
+        final long dy = distance(tile.getZ(), tile.getY(), mTop + mBottom + 1);
+        return ((long) dz << 48) + dx * dx + dy * dy;
+    }
+
+    /**
+     * Distance between the center of a tile and the center of the viewport, in half tiles of
+     * the viewport's zoom level so that it stays an integer.
+     *
+     * @param doubleCenter twice the center of the viewport on that axis
+     */
+    private long distance(final int z, final int coordinate, final int doubleCenter) {
+        final int dz = z - mZoom;
+        final long doubleTileCenter;
+        if (dz >= 0) {
+            doubleTileCenter = (((long) coordinate << 1) + 1) >> dz;
+        } else {
+            doubleTileCenter = (((long) coordinate << 1) + 1) << -dz;
+        }
+        final long worldSize = 2L << mZoom;
+        final long d = wrap(doubleTileCenter - doubleCenter, worldSize);
+        return Math.min(d, worldSize - d);
+    }
+
+    private boolean inRange(final int value, final int min, final int max) {
+        final int worldSize = 1 << mZoom;
+        if (max - min + 1 >= worldSize) {
+            return true;
+        }
+        return wrap(value - min, worldSize) <= max - min;
+    }
+
+    private boolean overlaps(final int min, final int max, final int viewMin, final int viewMax) {
+        final int worldSize = 1 << mZoom;
+        if (viewMax - viewMin + 1 >= worldSize || max - min + 1 >= worldSize) {
+            return true;
+        }
+        return wrap(min - viewMin, worldSize) <= viewMax - viewMin
+                || wrap(viewMin - min, worldSize) <= max - min;
+    }
+
+    private static long wrap(final long value, final long size) {
+        final long result = value % size;
+        return result < 0 ? result + size : result;
+    }
+
+    private static int wrap(final int value, final int size) {
+        final int result = value % size;
+        return result < 0 ? result + size : result;
+    }
+
+    @Override
+    public String toString() {
+        return "TileViewport[z=" + mZoom + ", " + mLeft + "," + mTop + " - " + mRight + ","
+                + mBottom + "]";
+    }
+}
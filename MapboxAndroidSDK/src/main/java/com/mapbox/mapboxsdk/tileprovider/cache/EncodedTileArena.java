@@ -0,0 +1,169 @@
+package com.mapbox.mapboxsdk.tileprovider.cache;
+
+import com.mapbox.mapboxsdk.util.LongHashMap;
+import java.nio.ByteBuffer;
+
+/**
+ * A memory tier of encoded tiles between the bitmaps of the memory cache and the disk cache: an
+ * encoded tile takes a tenth of the memory of its bitmap or less, and showing it again only
+ * costs a decode, no disk read or download.
+ * <p/>
+ * Tiles are appended to one direct {@link ByteBuffer} used as a ring, and indexed by their
+ * {@link com.mapbox.mapboxsdk.tileprovider.MapTile#getKey() key}. When the write position comes
+ * back around, the tiles it runs over are evicted, so the arena keeps the most recently added
+ * tiles in a fixed amount of memory without ever compacting or fragmenting.
+ * <p/>
+ * This class is thread safe.
+ */
+public class EncodedTileArena {
+
+    private static final class Entry {
+        int offset;
+        int length;
+    }
+
+    private final ByteBuffer mBuffer;
+    // in the order the tiles were written, which is their order in the ring from mPosition on
+    private final LongHashMap<Entry> mIndex = new LongHashMap<Entry>();
+    private int mPosition;
+    private int mSize;
+
+    private int mPutCount;
+    private int mEvictionCount;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * @param capacity the size of the arena in bytes
+     */
+    public EncodedTileArena(final int capacity) {
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Add the encoded image of a tile, replacing the previous one.
+     *
+     * @return false if the tile is too large for the arena
+     */
+    public synchronized boolean put(final long key, final byte[] data) {
+        final int capacity = mBuffer.capacity();
+        // keep the arena from cycling on a few huge tiles
+        if (data.length > capacity / 4) {
+            return false;
+        }
+        remove(key);
+        if (mPosition + data.length > capacity) {
+            // the previous lap's tiles at the end of the ring go first
+            while (!mIndex.isEmpty() && mIndex.get(mIndex.eldestKey()).offset >= mPosition) {
+                evictEldest();
+            }
+            mPosition = 0;
+        }
+        while (!mIndex.isEmpty()) {
+            final Entry eldest = mIndex.get(mIndex.eldestKey());
+            if (eldest.offset < mPosition || eldest.offset >= mPosition + data.length) {
+                break;
+            }
+            evictEldest();
+        }
+
+        final Entry entry = new Entry();
+        entry.offset = mPosition;
+        entry.length = data.length;
+        mBuffer.position(mPosition);
+        mBuffer.put(data);
+        mIndex.put(key, entry);
+        mPosition += data.length;
+        mSize += data.length;
+        mPutCount++;
+        return true;
+    }
+
+    /**
+     * @return a copy of the encoded image of a tile, or null if it isn't in the arena
+     */
+    public synchronized byte[] get(final long key) {
+        final Entry entry = mIndex.get(key);
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        final byte[] data = new byte[entry.length];
+        mBuffer.position(entry.offset);
+        mBuffer.get(data);
+        return data;
+    }
+
+    public synchronized boolean contains(final long key) {
+        return mIndex.containsKey(key);
+    }
+
+    public synchronized void remove(final long key) {
+        final Entry entry = mIndex.remove(key);
+        if (entry != null) {
+            mSize -= entry.length;
+        }
+    }
+
+    /**
+     * Remove every tile.
+     */
+    public synchronized void clear() {
+        mIndex.clear();
+        mPosition = 0;
+        mSize = 0;
+    }
+
+    private void evictEldest() {
+        final Entry entry = mIndex.removeEldest();
+        mSize -= entry.length;
+        mEvictionCount++;
+    }
+
+    /**
+     * @return the number of bytes of the tiles in the arena
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * @return the number of tiles in the arena
+     */
+    public synchronized int count() {
+        return mIndex.size();
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    /**
+     * @return the number of tiles overwritten to make room for new ones
+     */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("EncodedTileArena[tiles=%d,size=%d,capacity=%d,hits=%d,misses=%d,"
+                + "hitRate=%d%%]", mIndex.size(), mSize, mBuffer.capacity(), mHitCount,
+                mMissCount, hitPercent);
+    }
+}
@@ -0,0 +1,386 @@
+package com.mapbox.mapboxsdk.tileprovider.cache;
+
+import android.util.Log;
+import com.mapbox.mapboxsdk.tileprovider.TileKey;
+import com.mapbox.mapboxsdk.tileprovider.modules.ConfigurablePriorityThreadFactory;
+import com.mapbox.mapboxsdk.tileprovider.util.StreamUtils;
+import com.mapbox.mapboxsdk.util.HostCircuitBreaker;
+import com.mapbox.mapboxsdk.util.LongHashMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The tiles that could not be loaded, and why, so that they aren't requested again on every
+ * frame until the failure is likely to be over. Tiles are keyed by their packed key, see
+ * {@link TileKey}.
+ * <p/>
+ * Every {@link Reason} has its own time to live: a tile missing from its source stays missing
+ * for a day, a server error is retried after half a minute, and tiles that failed while offline
+ * are retried as soon as the network is back, see {@link #clear(Reason)}.
+ * <p/>
+ * Missing tiles can be saved per source to a directory, so that sparse overlay layers don't
+ * request their empty tiles again after a restart. Like {@link TilePackCache}, the files leave
+ * out the source bits of the keys, which are only valid within a process. The files are read
+ * and written one at a time on a low priority thread of the process, see
+ * {@link #loadInBackground(String)} and {@link #saveInBackground(String)}.
+ * <p/>
+ * This class is thread safe.
+ */
+public class NegativeTileCache {
+    private static final String TAG = "NegativeTileCache";
+
+    /**
+     * Why a tile could not be loaded.
+     */
+    public static enum Reason {
+        /**
+         * The network was unavailable.
+         */
+        OFFLINE,
+
+        /**
+         * The source has no such tile: HTTP 404, 410, 204 or an empty response.
+         */
+        NOT_FOUND,
+
+        /**
+         * Any other HTTP status or I/O error.
+         */
+        SERVER_ERROR,
+
+        /**
+         * The host of the tile is failing and wasn't asked, see {@link HostCircuitBreaker}. The
+         * tile should be requested again once the host may be probed, not after a fixed time.
+         */
+        HOST_UNAVAILABLE
+    }
+
+    /**
+     * The default maximum number of tiles kept, the oldest failures are forgotten first.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    private static final long DEFAULT_OFFLINE_TTL = 60 * 1000L;
+    private static final long DEFAULT_NOT_FOUND_TTL = 24 * 60 * 60 * 1000L;
+    private static final long DEFAULT_SERVER_ERROR_TTL = 30 * 1000L;
+    private static final long DEFAULT_HOST_UNAVAILABLE_TTL =
+            HostCircuitBreaker.DEFAULT_MIN_BACKOFF_MS;
+
+    // the most recent missing tiles saved per source
+    private static final int MAX_SAVED_ENTRIES = 1024;
+
+    private static final int FILE_VERSION = 1;
+    private static final String FILE_SUFFIX = ".missing";
+
+    private static final class Entry {
+        Reason reason;
+        long expires;
+    }
+
+    /**
+     * The missing tiles of a source to be saved, newest first, without their source bits.
+     */
+    private static final class Saved {
+        final long[] keys;
+        final long[] expires;
+        int count;
+
+        Saved(final int size) {
+            keys = new long[size];
+            expires = new long[size];
+        }
+    }
+
+    // reads and writes the files of every cache in order
+    private static ExecutorService sFileExecutor;
+
+    // in the order the failures happened
+    private final LongHashMap<Entry> mEntries = new LongHashMap<Entry>();
+    private final long[] mTimeToLive = new long[Reason.values().length];
+    private final int[] mCounts = new int[Reason.values().length];
+    private final File mDirectory;
+    private final int mMaxEntries;
+
+    /**
+     * @param directory where missing tiles are saved, or null to keep them in memory only
+     * @param maxEntries the maximum number of tiles to keep
+     */
+    public NegativeTileCache(final File directory, final int maxEntries) {
+        mDirectory = directory;
+        mMaxEntries = maxEntries;
+        mTimeToLive[Reason.OFFLINE.ordinal()] = DEFAULT_OFFLINE_TTL;
+        mTimeToLive[Reason.NOT_FOUND.ordinal()] = DEFAULT_NOT_FOUND_TTL;
+        mTimeToLive[Reason.SERVER_ERROR.ordinal()] = DEFAULT_SERVER_ERROR_TTL;
+        mTimeToLive[Reason.HOST_UNAVAILABLE.ordinal()] = DEFAULT_HOST_UNAVAILABLE_TTL;
+    }
+
+    /**
+     * Set how long tiles that failed for a reason are not requested again.
+     */
+    public synchronized void setTimeToLive(final Reason reason, final long millis) {
+        mTimeToLive[reason.ordinal()] = millis;
+    }
+
+    public synchronized long getTimeToLive(final Reason reason) {
+        return mTimeToLive[reason.ordinal()];
+    }
+
+    /**
+     * Record that a tile could not be loaded, replacing an earlier failure.
+     */
+    public synchronized void put(final long key, final Reason reason) {
+        putUntil(key, reason, System.currentTimeMillis() + mTimeToLive[reason.ordinal()]);
+    }
+
+    /**
+     * Record that a tile could not be loaded for a time of its own rather than the time to live
+     * of its reason, such as until the host of a {@link Reason#HOST_UNAVAILABLE} tile may be
+     * probed.
+     */
+    public synchronized void put(final long key, final Reason reason, final long timeToLive) {
+        putUntil(key, reason, System.currentTimeMillis() + timeToLive);
+    }
+
+    private void putUntil(final long key, final Reason reason, final long expires) {
+        final Entry entry = new Entry();
+        entry.reason = reason;
+        entry.expires = expires;
+        final Entry previous = mEntries.put(key, entry);
+        if (previous != null) {
+            mCounts[previous.reason.ordinal()]--;
+        }
+        mCounts[reason.ordinal()]++;
+        while (mEntries.size() > mMaxEntries) {
+            mCounts[mEntries.removeEldest().reason.ordinal()]--;
+        }
+    }
+
+    /**
+     * @return why the tile could not be loaded, or null if it may be requested
+     */
+    public synchronized Reason get(final long key) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires <= System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+        return entry.reason;
+    }
+
+    /**
+     * @return true if the tile may not be requested yet
+     */
+    public boolean contains(final long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Forget the failure of a tile, once it has been loaded after all.
+     */
+    public synchronized void remove(final long key) {
+        final Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mCounts[entry.reason.ordinal()]--;
+        }
+    }
+
+    /**
+     * @return the number of tiles that failed for a reason, expired or not
+     */
+    public synchronized int count(final Reason reason) {
+        return mCounts[reason.ordinal()];
+    }
+
+    /**
+     * Forget the tiles that failed for a reason, such as {@link Reason#OFFLINE} when the network
+     * is back.
+     */
+    public synchronized void clear(final Reason reason) {
+        if (mCounts[reason.ordinal()] == 0) {
+            return;
+        }
+        final long[] keys = mEntries.keys();
+        for (long key : keys) {
+            if (mEntries.get(key).reason == reason) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * Forget every failure.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    private static synchronized ExecutorService getFileExecutor() {
+        if (sFileExecutor == null) {
+            sFileExecutor = Executors.newSingleThreadExecutor(
+                    new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY, "negativetiles"));
+        }
+        return sFileExecutor;
+    }
+
+    /**
+     * Read the missing tiles of a source saved by {@link #save(String)} on the file thread, so
+     * that the UI thread doesn't wait for the disk. Tiles requested until they are read are
+     * requested once more.
+     *
+     * @return the read, done once the tiles are back
+     */
+    public Future<?> loadInBackground(final String source) {
+        return getFileExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                load(source);
+            }
+        });
+    }
+
+    /**
+     * Save the tiles of a source that are missing from it on the file thread. The tiles are
+     * taken right away, so the cache may be cleared or reloaded as soon as this returns.
+     *
+     * @return the write, done once the file is replaced
+     */
+    public Future<?> saveInBackground(final String source) {
+        final File file = getFile(source);
+        final Saved saved = file != null ? getSaved(source) : null;
+        return getFileExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                if (file != null) {
+                    write(source, file, saved);
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the missing tiles of a source saved by {@link #save(String)}.
+     */
+    public void load(final String source) {
+        final File file = getFile(source);
+        if (file == null || !file.exists()) {
+            return;
+        }
+        final int sourceId = TileKey.getSourceId(source);
+        final long now = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    final long key = in.readLong();
+                    final long expires = in.readLong();
+                    if (expires > now) {
+                        putUntil(TileKey.pack(sourceId, TileKey.getZ(key), TileKey.getX(key),
+                                TileKey.getY(key)), Reason.NOT_FOUND, expires);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading missing tiles of " + source, e);
+        } finally {
+            StreamUtils.closeStream(in);
+        }
+    }
+
+    /**
+     * Write the tiles of a source that are missing from it, replacing the previous file.
+     */
+    public void save(final String source) {
+        final File file = getFile(source);
+        if (file != null) {
+            write(source, file, getSaved(source));
+        }
+    }
+
+    private synchronized Saved getSaved(final String source) {
+        final int sourceId = TileKey.getSourceId(source);
+        final long now = System.currentTimeMillis();
+        final long[] all = mEntries.keys();
+        final Saved saved = new Saved(Math.min(all.length, MAX_SAVED_ENTRIES));
+        for (int i = all.length - 1; i >= 0 && saved.count < saved.keys.length; i--) {
+            final long key = all[i];
+            final Entry entry = mEntries.get(key);
+            if (entry.reason == Reason.NOT_FOUND && entry.expires > now
+                    && TileKey.getSourceId(key) == sourceId) {
+                saved.keys[saved.count] = TileKey.pack(0, TileKey.getZ(key), TileKey.getX(key),
+                        TileKey.getY(key));
+                saved.expires[saved.count] = entry.expires;
+                saved.count++;
+            }
+        }
+        return saved;
+    }
+
+    private void write(final String source, final File file, final Saved saved) {
+        if (saved.count == 0) {
+            file.delete();
+            return;
+        }
+        final File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            mDirectory.mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(saved.count);
+            // oldest first, the order they are put back in by load()
+            for (int i = saved.count - 1; i >= 0; i--) {
+                out.writeLong(saved.keys[i]);
+                out.writeLong(saved.expires[i]);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.e(TAG, "Error replacing " + file);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing missing tiles of " + source, e);
+        } finally {
+            StreamUtils.closeStream(out);
+            temp.delete();
+        }
+    }
+
+    private File getFile(final String source) {
+        if (mDirectory == null || source == null || source.length() == 0) {
+            return null;
+        }
+        return new File(mDirectory, TilePackCache.getPackName(source) + FILE_SUFFIX);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("NegativeTileCache[tiles=%d,offline=%d,notFound=%d,serverError=%d,"
+                        + "hostUnavailable=%d]", mEntries.size(), count(Reason.OFFLINE),
+                count(Reason.NOT_FOUND), count(Reason.SERVER_ERROR),
+                count(Reason.HOST_UNAVAILABLE));
+    }
+}
@@ -0,0 +1,53 @@
+package com.mapbox.mapboxsdk.tileprovider.cache;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import java.nio.ByteBuffer;
+
+/**
+ * A disk tier for {@link com.mapbox.mapboxsdk.tileprovider.MapTileCache} that replaces the
+ * default one-file-per-tile disk cache, see
+ * {@link com.mapbox.mapboxsdk.tileprovider.MapTileCache#setDiskCache(TileDiskCache)}.
+ * <p/>
+ * Tiles are stored as encoded images together with an opaque metadata String. Implementations
+ * must be thread safe, handle their own I/O errors and may block, so they are never called from
+ * the main thread.
+ */
+public interface TileDiskCache {
+
+    boolean contains(MapTile tile);
+
+    /**
+     * @return the encoded image of a tile, or null if it isn't cached
+     */
+    ByteBuffer get(MapTile tile);
+
+    /**
+     * @return the metadata of a tile, an empty String if it was stored without any, or null if
+     * it isn't cached
+     */
+    String getMetadata(MapTile tile);
+
+    /**
+     * Store the encoded image of a tile and its metadata, which may be null.
+     */
+    void put(MapTile tile, byte[] data, String metadata);
+
+    /**
+     * Replace the metadata of a cached tile, keeping its image.
+     *
+     * @return false if the tile isn't cached
+     */
+    boolean putMetadata(MapTile tile, String metadata);
+
+    void remove(MapTile tile);
+
+    /**
+     * Remove every tile.
+     */
+    void clear();
+
+    /**
+     * Write pending changes to disk and release the files.
+     */
+    void close();
+}
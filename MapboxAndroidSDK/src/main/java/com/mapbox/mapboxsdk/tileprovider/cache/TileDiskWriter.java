@@ -0,0 +1,307 @@
+package com.mapbox.mapboxsdk.tileprovider.cache;
+
+import android.os.Process;
+import android.util.Log;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.TileMetadata;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.mapbox.mapboxsdk.util.LongHashMap;
+import java.util.ArrayList;
+
+/**
+ * Writes downloaded tiles to the disk cache behind the downloads, so that a tile is delivered as
+ * soon as it is decoded whatever the speed of the flash.
+ * <p/>
+ * Tiles are handed to one low priority thread of the process and keyed by their
+ * {@link MapTile#getKey() key}: a tile downloaded again before its write replaces the pending
+ * one instead of being written twice. The thread takes the oldest tiles a batch at a time, but
+ * writes and commits each of them on its own: what is shared by a burst of writes is the flush
+ * of the journal of the disk cache, not a transaction.
+ * <p/>
+ * The pending tiles are bounded in bytes. Past the bound the oldest are dropped rather than
+ * making the downloads wait: a dropped tile is still in the memory caches, and at worst is
+ * downloaded again. Pending tiles are readable, see {@link #getPending(long)}, so a tile evicted
+ * from memory before it reached the disk isn't downloaded again.
+ * <p/>
+ * New metadata of a tile already on disk goes through the writer too, see {@link #putMetadata},
+ * so that it is never overwritten by an older write of the tile still pending.
+ * <p/>
+ * This class is thread safe.
+ */
+public final class TileDiskWriter implements TileLayerConstants {
+
+    private static final String TAG = "TileDiskWriter";
+
+    // the number of tiles taken off the queue at once
+    private static final int BATCH_SIZE = 16;
+
+    private static TileDiskWriter sInstance;
+
+    private static final class Write {
+        final MapTileCache cache;
+        final MapTile tile;
+        // null for a write of the metadata alone
+        final byte[] data;
+        final TileMetadata metadata;
+
+        Write(final MapTileCache cache, final MapTile tile, final byte[] data,
+              final TileMetadata metadata) {
+            this.cache = cache;
+            this.tile = tile;
+            this.data = data;
+            this.metadata = metadata;
+        }
+
+        int size() {
+            return data != null ? data.length : 0;
+        }
+    }
+
+    // in the order the tiles were handed over, guarded by this. A tile stays in it while it is
+    // written, so that it can be read until it is on disk.
+    private final LongHashMap<Write> mPending = new LongHashMap<Write>();
+    // the tiles a thread is writing, guarded by this. No other thread takes a tile with the same
+    // key meanwhile, not even a newer download of it, so writes of a tile never overlap.
+    private final LongHashMap<Write> mInFlight = new LongHashMap<Write>();
+    // the batch being taken, guarded by this
+    private final ArrayList<Write> mBatch = new ArrayList<Write>(BATCH_SIZE);
+    private final LongHashMap.Visitor<Write> mBatchCollector = new LongHashMap.Visitor<Write>() {
+        @Override
+        public boolean visit(final long key, final Write write) {
+            if (!mInFlight.containsKey(key)) {
+                mBatch.add(write);
+            }
+            return mBatch.size() < BATCH_SIZE;
+        }
+    };
+    private final int mMaxPendingBytes;
+    private int mPendingBytes;
+    private Thread mThread;
+
+    private int mWriteCount;
+    private int mCoalescedCount;
+    private int mDroppedCount;
+
+    /**
+     * @return the writer of the process, holding up to
+     * {@link #TILE_DISK_WRITE_MAXIMUM_PENDING_BYTES} of pending tiles
+     */
+    public static synchronized TileDiskWriter getInstance() {
+        if (sInstance == null) {
+            sInstance = new TileDiskWriter(TILE_DISK_WRITE_MAXIMUM_PENDING_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param maxPendingBytes the size of the tiles that may wait to be written
+     */
+    TileDiskWriter(final int maxPendingBytes) {
+        mMaxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Hand a tile over to be written to a disk cache, see
+     * {@link MapTileCache#putTileDataInDiskCache}. Never blocks.
+     */
+    public synchronized void put(final MapTileCache cache, final MapTile tile, final byte[] data,
+                                 final TileMetadata metadata) {
+        enqueue(new Write(cache, tile, data, metadata));
+    }
+
+    /**
+     * Hand over new HTTP caching metadata of a tile in a disk cache, see
+     * {@link MapTileCache#putTileMetadata}. A pending write of the tile keeps its image and
+     * takes the metadata instead, so that neither overwrites the other. Never blocks.
+     */
+    public synchronized void putMetadata(final MapTileCache cache, final MapTile tile,
+                                         final TileMetadata metadata) {
+        final Write previous = mPending.get(tile.getKey());
+        enqueue(new Write(cache, tile, previous != null ? previous.data : null, metadata));
+    }
+
+    private void enqueue(final Write write) {
+        // a newer download of a tile is the newest pending tile, the first to stay if the
+        // oldest are dropped
+        final Write previous = mPending.remove(write.tile.getKey());
+        mPending.put(write.tile.getKey(), write);
+        if (previous != null) {
+            mPendingBytes -= previous.size();
+            mCoalescedCount++;
+        }
+        mPendingBytes += write.size();
+        while (mPendingBytes > mMaxPendingBytes && mPending.size() > 1) {
+            mPendingBytes -= mPending.removeEldest().size();
+            mDroppedCount++;
+        }
+        if (mThread == null) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "diskwriter");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the encoded image of a tile that wasn't written yet, or null if there is none
+     */
+    public synchronized byte[] getPending(final long key) {
+        final Write write = mPending.get(key);
+        return write != null ? write.data : null;
+    }
+
+    /**
+     * @return the HTTP caching metadata of a tile that wasn't written yet, or null if there is
+     * none
+     */
+    public synchronized TileMetadata getPendingMetadata(final long key) {
+        final Write write = mPending.get(key);
+        return write != null ? write.metadata : null;
+    }
+
+    /**
+     * @return whether the image of a tile waits to be written
+     */
+    public synchronized boolean contains(final long key) {
+        return getPending(key) != null;
+    }
+
+    /**
+     * Drop a tile that wasn't written yet, once it is removed from the caches.
+     */
+    public synchronized void remove(final long key) {
+        final Write write = mPending.remove(key);
+        if (write != null) {
+            mPendingBytes -= write.size();
+        }
+    }
+
+    /**
+     * @return the number of tiles waiting to be written
+     */
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    public synchronized int getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    public synchronized int getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * @return the number of writes saved by a newer download of the same tile
+     */
+    public synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return the number of tiles dropped because too many were waiting
+     */
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Write the pending tiles on the calling thread, such as before the process goes away, and
+     * wait for the ones the writer thread is writing.
+     */
+    public void drain() {
+        while (true) {
+            final Write[] batch;
+            synchronized (this) {
+                batch = takeBatch(false);
+                if (batch == null) {
+                    if (mInFlight.isEmpty()) {
+                        return;
+                    }
+                    // the rest is being written, or waits for an older write of its tile
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    continue;
+                }
+            }
+            writeBatch(batch);
+        }
+    }
+
+    /**
+     * Take the oldest pending tiles no other thread is writing.
+     *
+     * @return the tiles, or null if there are none and wait is false
+     */
+    private synchronized Write[] takeBatch(final boolean wait) {
+        while (true) {
+            mPending.visit(mBatchCollector);
+            if (!mBatch.isEmpty()) {
+                final Write[] batch = mBatch.toArray(new Write[mBatch.size()]);
+                mBatch.clear();
+                for (Write write : batch) {
+                    mInFlight.put(write.tile.getKey(), write);
+                }
+                return batch;
+            }
+            if (!wait) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // the writer lives as long as the process
+            }
+        }
+    }
+
+    private void writeBatch(final Write[] batch) {
+        for (Write write : batch) {
+            try {
+                if (write.data != null) {
+                    write.cache.putTileDataInDiskCache(write.tile, write.data, write.metadata);
+                } else {
+                    write.cache.putTileMetadata(write.tile, write.metadata);
+                }
+            } catch (final Throwable e) {
+                Log.e(TAG, "Error writing tile " + write.tile, e);
+            }
+            synchronized (this) {
+                // unless it was replaced or dropped meanwhile
+                if (mPending.get(write.tile.getKey()) == write) {
+                    mPending.remove(write.tile.getKey());
+                    mPendingBytes -= write.size();
+                }
+                mInFlight.remove(write.tile.getKey());
+                mWriteCount++;
+                // a newer download of the tile may be taken now, and a drain may wait for it
+                notifyAll();
+            }
+        }
+    }
+
+    private void work() {
+        // Make sure we're running with a background priority
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            writeBatch(takeBatch(true));
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("TileDiskWriter[pending=%d,bytes=%d,written=%d,coalesced=%d,"
+                        + "dropped=%d]", mPending.size(), mPendingBytes, mWriteCount,
+                mCoalescedCount, mDroppedCount);
+    }
+}
@@ -0,0 +1,641 @@
+package com.mapbox.mapboxsdk.tileprovider.cache;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Tiles of one source stored in a single append-only pack file, found through a memory-mapped
+ * open addressing hash index keyed by the packed z/x/y key of a tile.
+ * <p/>
+ * The pack is mapped as well, so {@link #get(long)} hands out a read-only view of the mapping
+ * and no bytes are copied until the image is decoded. Replacing or removing a tile only appends
+ * to the pack; once the pack outgrows its maximum size it is compacted: live tiles are copied to
+ * a new pack, dropping the oldest ones until the pack is back to {@link #COMPACTED_FILL} of its
+ * maximum size.
+ * <p/>
+ * Every record in the pack carries a checksum. The index is marked dirty while it has unflushed
+ * changes, and an index that is dirty, missing or that doesn't match the pack is rebuilt by
+ * scanning the pack, which stops at the first torn record. A crash can therefore lose the
+ * writes that were not flushed, but never returns a corrupt tile.
+ * <p/>
+ * All methods are synchronized.
+ */
+public class TilePack {
+    private static final String TAG = "TilePack";
+
+    static final String PACK_SUFFIX = ".pack";
+    static final String INDEX_SUFFIX = ".idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int RECORD_MAGIC = 0x54494c45;
+    private static final int INDEX_MAGIC = 0x54494458;
+    private static final int INDEX_VERSION = 1;
+
+    // record: magic, key, data length (-1 for a removal), metadata length, crc
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4 + 4 + 4;
+    private static final int RECORD_CRC_OFFSET = RECORD_HEADER_SIZE - 4;
+
+    // index header: magic, version, capacity, count, pack length, live bytes, clean flag
+    private static final int INDEX_HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8 + 4 + 4;
+    private static final int INDEX_CAPACITY_OFFSET = 8;
+    private static final int INDEX_COUNT_OFFSET = 12;
+    private static final int INDEX_PACK_LENGTH_OFFSET = 16;
+    private static final int INDEX_LIVE_BYTES_OFFSET = 24;
+    private static final int INDEX_CLEAN_OFFSET = 32;
+    // slot: key, record offset
+    private static final int SLOT_SIZE = 16;
+    private static final long EMPTY_SLOT = -1;
+    private static final int MIN_INDEX_CAPACITY = 1024;
+
+    // the pack is mapped in chunks of this size, so appends rarely have to remap it
+    private static final int PACK_GROWTH = 1024 * 1024;
+
+    /**
+     * The largest maximum size of a pack. The pack is mapped in memory and addressed with ints,
+     * and may grow a little past its maximum size before it is compacted.
+     */
+    public static final long MAXIMUM_SIZE = (Integer.MAX_VALUE / PACK_GROWTH - 1) * PACK_GROWTH;
+
+    /**
+     * How full a pack is left after compaction, relative to its maximum size.
+     */
+    public static final float COMPACTED_FILL = 0.75f;
+
+    private final File mPackFile;
+    private final File mIndexFile;
+    private final long mMaxSize;
+
+    private RandomAccessFile mPack;
+    private MappedByteBuffer mPackMap;
+    private RandomAccessFile mIndex;
+    private MappedByteBuffer mIndexMap;
+
+    private int mCapacity;
+    private int mCount;
+    private long mPackLength;
+    private long mLiveBytes;
+    private boolean mDirty;
+
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mHeader = new byte[RECORD_HEADER_SIZE];
+    private final ByteBuffer mHeaderBuffer = ByteBuffer.wrap(mHeader);
+
+    /**
+     * Open the pack called name in directory, creating it if needed.
+     *
+     * @param maxSize the pack size above which it is compacted, at most {@link #MAXIMUM_SIZE}
+     */
+    public TilePack(final File directory, final String name, final long maxSize)
+            throws IOException {
+        if (maxSize < PACK_GROWTH) {
+            throw new IllegalArgumentException("maxSize < " + PACK_GROWTH);
+        }
+        if (maxSize > MAXIMUM_SIZE) {
+            throw new IllegalArgumentException("maxSize > " + MAXIMUM_SIZE);
+        }
+        mPackFile = new File(directory, name + PACK_SUFFIX);
+        mIndexFile = new File(directory, name + INDEX_SUFFIX);
+        mMaxSize = maxSize;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        // a compaction that didn't finish
+        new File(directory, name + PACK_SUFFIX + TEMP_SUFFIX).delete();
+        open();
+    }
+
+    private void open() throws IOException {
+        mPack = new RandomAccessFile(mPackFile, "rw");
+        mIndex = new RandomAccessFile(mIndexFile, "rw");
+        final long fileLength = mPack.length();
+        mPackMap = mPack.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                roundUpToGrowth(Math.max(fileLength, 1)));
+        if (!loadIndex(fileLength)) {
+            Log.i(TAG, "Rebuilding index of " + mPackFile);
+            rebuildIndex();
+        }
+    }
+
+    /**
+     * Map the index file and check that it describes the pack.
+     *
+     * @return false if the index has to be rebuilt
+     */
+    private boolean loadIndex(final long packFileLength) throws IOException {
+        if (mIndex.length() < INDEX_HEADER_SIZE) {
+            return false;
+        }
+        mIndexMap = mIndex.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mIndex.length());
+        if (mIndexMap.getInt(0) != INDEX_MAGIC || mIndexMap.getInt(4) != INDEX_VERSION
+                || mIndexMap.getInt(INDEX_CLEAN_OFFSET) != 1) {
+            return false;
+        }
+        mCapacity = mIndexMap.getInt(INDEX_CAPACITY_OFFSET);
+        mCount = mIndexMap.getInt(INDEX_COUNT_OFFSET);
+        mPackLength = mIndexMap.getLong(INDEX_PACK_LENGTH_OFFSET);
+        mLiveBytes = mIndexMap.getLong(INDEX_LIVE_BYTES_OFFSET);
+        return mCapacity >= MIN_INDEX_CAPACITY && Integer.bitCount(mCapacity) == 1
+                && mIndex.length() == INDEX_HEADER_SIZE + (long) mCapacity * SLOT_SIZE
+                && mPackLength <= packFileLength;
+    }
+
+    /**
+     * Recreate the index from the records of the pack. The pack is cut at the first record that
+     * is torn or fails its checksum.
+     */
+    private void rebuildIndex() throws IOException {
+        createIndex(MIN_INDEX_CAPACITY);
+        mPackLength = 0;
+        mLiveBytes = 0;
+        long offset = 0;
+        final long limit = mPack.length();
+        while (offset + RECORD_HEADER_SIZE <= limit) {
+            final long recordSize = checkRecord(offset, limit);
+            if (recordSize < 0) {
+                break;
+            }
+            final long key = mPackMap.getLong((int) offset + 4);
+            final int dataLength = mPackMap.getInt((int) offset + 12);
+            removeFromIndex(key);
+            if (dataLength >= 0) {
+                addToIndex(key, offset, recordSize);
+            }
+            offset += recordSize;
+        }
+        mPackLength = offset;
+        markClean();
+    }
+
+    /**
+     * @return the size of the valid record at offset, or -1 if there is none
+     */
+    private long checkRecord(final long offset, final long limit) {
+        final int position = (int) offset;
+        if (mPackMap.getInt(position) != RECORD_MAGIC) {
+            return -1;
+        }
+        final int dataLength = mPackMap.getInt(position + 12);
+        final int metadataLength = mPackMap.getInt(position + 16);
+        if (dataLength < -1 || metadataLength < 0) {
+            return -1;
+        }
+        final long recordSize = (long) RECORD_HEADER_SIZE + Math.max(dataLength, 0)
+                + metadataLength;
+        if (offset + recordSize > limit) {
+            return -1;
+        }
+        mCrc.reset();
+        final ByteBuffer record = mPackMap.duplicate();
+        record.position(position);
+        record.get(mHeader);
+        mCrc.update(mHeader, 0, RECORD_CRC_OFFSET);
+        final byte[] chunk = new byte[8192];
+        long remaining = recordSize - RECORD_HEADER_SIZE;
+        while (remaining > 0) {
+            final int count = (int) Math.min(remaining, chunk.length);
+            record.get(chunk, 0, count);
+            mCrc.update(chunk, 0, count);
+            remaining -= count;
+        }
+        if ((int) mCrc.getValue() != mPackMap.getInt(position + RECORD_CRC_OFFSET)) {
+            return -1;
+        }
+        return recordSize;
+    }
+
+    public synchronized boolean contains(final long key) {
+        return findSlot(key) >= 0;
+    }
+
+    /**
+     * @return a read-only view of the image of a tile, or null. The view reads straight from the
+     * mapped pack. Files are replaced rather than truncated, so it stays readable even if the
+     * pack is compacted, cleared or closed meanwhile.
+     */
+    public synchronized ByteBuffer get(final long key) {
+        final int slot = findSlot(key);
+        if (slot < 0) {
+            return null;
+        }
+        final int position = (int) getSlotOffset(slot);
+        final int dataLength = mPackMap.getInt(position + 12);
+        final ByteBuffer data = mPackMap.asReadOnlyBuffer();
+        data.position(position + RECORD_HEADER_SIZE);
+        data.limit(position + RECORD_HEADER_SIZE + dataLength);
+        return data.slice();
+    }
+
+    /**
+     * @return the metadata of a tile, an empty String if it was stored without any, or null if
+     * the pack doesn't have the tile
+     */
+    public synchronized String getMetadata(final long key) {
+        final int slot = findSlot(key);
+        if (slot < 0) {
+            return null;
+        }
+        final int position = (int) getSlotOffset(slot);
+        final int dataLength = mPackMap.getInt(position + 12);
+        final int metadataLength = mPackMap.getInt(position + 16);
+        final byte[] metadata = new byte[metadataLength];
+        final ByteBuffer record = mPackMap.duplicate();
+        record.position(position + RECORD_HEADER_SIZE + dataLength);
+        record.get(metadata);
+        return decodeString(metadata);
+    }
+
+    /**
+     * Store a tile, replacing any previous version.
+     */
+    public synchronized void put(final long key, final byte[] data, final String metadata)
+            throws IOException {
+        append(key, ByteBuffer.wrap(data), encodeString(metadata));
+    }
+
+    /**
+     * Replace the metadata of a tile, keeping its image.
+     *
+     * @return false if the pack doesn't have the tile
+     */
+    public synchronized boolean putMetadata(final long key, final String metadata)
+            throws IOException {
+        final ByteBuffer data = get(key);
+        if (data == null) {
+            return false;
+        }
+        append(key, data, encodeString(metadata));
+        return true;
+    }
+
+    public synchronized void remove(final long key) throws IOException {
+        if (findSlot(key) >= 0) {
+            append(key, null, new byte[0]);
+        }
+    }
+
+    /**
+     * Remove every tile and truncate the pack.
+     */
+    public synchronized void clear() throws IOException {
+        // truncating a mapped file would fault readers of views handed out by get()
+        closeQuietly(mPack);
+        if (!mPackFile.delete()) {
+            throw new IOException("Can't delete " + mPackFile);
+        }
+        mPack = new RandomAccessFile(mPackFile, "rw");
+        mPackMap = mPack.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, PACK_GROWTH);
+        createIndex(MIN_INDEX_CAPACITY);
+        mPackLength = 0;
+        mLiveBytes = 0;
+        markClean();
+    }
+
+    /**
+     * Write the mapped pack and index to disk and mark the index clean.
+     */
+    public synchronized void flush() {
+        if (!mDirty) {
+            return;
+        }
+        mPackMap.force();
+        markClean();
+    }
+
+    /**
+     * Flush and close the files. The mappings are released once they are garbage collected.
+     */
+    public synchronized void close() {
+        flush();
+        closeQuietly(mPack);
+        closeQuietly(mIndex);
+    }
+
+    /**
+     * @return the number of tiles in the pack
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the length of the pack, including replaced and removed tiles
+     */
+    public synchronized long getPackLength() {
+        return mPackLength;
+    }
+
+    /**
+     * @return the bytes used by the current version of every tile
+     */
+    public synchronized long getLiveBytes() {
+        return mLiveBytes;
+    }
+
+    /**
+     * Append a record for key, data null meaning the tile is removed.
+     */
+    private void append(final long key, final ByteBuffer data, final byte[] metadata)
+            throws IOException {
+        final int dataLength = data != null ? data.remaining() : -1;
+        final long recordSize = (long) RECORD_HEADER_SIZE + Math.max(dataLength, 0)
+                + metadata.length;
+        if (data != null && mPackLength + recordSize > mMaxSize) {
+            compact(recordSize);
+        }
+        markDirty();
+        ensurePackMapped(mPackLength + recordSize);
+
+        mHeaderBuffer.clear();
+        mHeaderBuffer.putInt(RECORD_MAGIC).putLong(key).putInt(dataLength)
+                .putInt(metadata.length);
+        mCrc.reset();
+        mCrc.update(mHeader, 0, RECORD_CRC_OFFSET);
+        if (data != null) {
+            if (data.hasArray()) {
+                mCrc.update(data.array(), data.arrayOffset() + data.position(), dataLength);
+            } else {
+                final byte[] copy = new byte[dataLength];
+                data.duplicate().get(copy);
+                mCrc.update(copy);
+            }
+        }
+        mCrc.update(metadata);
+        mHeaderBuffer.putInt((int) mCrc.getValue());
+
+        final int position = (int) mPackLength;
+        final ByteBuffer record = mPackMap.duplicate();
+        record.position(position);
+        record.put(mHeader);
+        if (data != null) {
+            record.put(data.duplicate());
+        }
+        record.put(metadata);
+        mPackLength += recordSize;
+
+        removeFromIndex(key);
+        if (data != null) {
+            addToIndex(key, position, recordSize);
+        }
+    }
+
+    /**
+     * Copy the live tiles to a new pack, newest first, leaving out the oldest ones that don't fit
+     * in {@link #COMPACTED_FILL} of the maximum size together with room for the next record.
+     */
+    private void compact(final long incomingSize) throws IOException {
+        final long budget = Math.max((long) (mMaxSize * COMPACTED_FILL) - incomingSize, 0);
+
+        // collect the live records in pack order, which is the order they were written in
+        final long[] offsets = new long[mCount];
+        int live = 0;
+        for (int slot = 0; slot < mCapacity; slot++) {
+            if (getSlotKey(slot) != EMPTY_SLOT) {
+                offsets[live++] = getSlotOffset(slot);
+            }
+        }
+        Arrays.sort(offsets, 0, live);
+        int first = live;
+        long kept = 0;
+        while (first > 0) {
+            final long size = recordSize(offsets[first - 1]);
+            if (kept + size > budget) {
+                break;
+            }
+            kept += size;
+            first--;
+        }
+
+        final File tempFile = new File(mPackFile.getPath() + TEMP_SUFFIX);
+        final RandomAccessFile temp = new RandomAccessFile(tempFile, "rw");
+        try {
+            final MappedByteBuffer tempMap = temp.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0, roundUpToGrowth(Math.max(kept, 1)));
+            for (int i = first; i < live; i++) {
+                final ByteBuffer record = mPackMap.duplicate();
+                record.position((int) offsets[i]);
+                record.limit((int) (offsets[i] + recordSize(offsets[i])));
+                tempMap.put(record);
+            }
+            tempMap.force();
+            temp.setLength(kept);
+        } finally {
+            closeQuietly(temp);
+        }
+
+        // from here on the index doesn't match the pack until it is rebuilt
+        writeIndexHeader(false);
+        mIndexMap.force();
+        closeQuietly(mPack);
+        if (!tempFile.renameTo(mPackFile)) {
+            throw new IOException("Can't replace " + mPackFile);
+        }
+        mPack = new RandomAccessFile(mPackFile, "rw");
+        mPackMap = mPack.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                roundUpToGrowth(Math.max(kept, 1)));
+        rebuildIndex();
+        Log.i(TAG, "Compacted " + mPackFile + ": kept " + mCount + " tiles, " + kept + " bytes");
+    }
+
+    private long recordSize(final long offset) {
+        final int position = (int) offset;
+        return (long) RECORD_HEADER_SIZE + Math.max(mPackMap.getInt(position + 12), 0)
+                + mPackMap.getInt(position + 16);
+    }
+
+    private void ensurePackMapped(final long length) throws IOException {
+        if (length > mPackMap.capacity()) {
+            mPackMap = mPack.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    roundUpToGrowth(length));
+        }
+    }
+
+    private static long roundUpToGrowth(final long length) {
+        return (length + PACK_GROWTH - 1) / PACK_GROWTH * PACK_GROWTH;
+    }
+
+    /**
+     * Mark the index dirty on disk before the first change after a flush, so that the index is
+     * rebuilt if the changes don't make it to disk.
+     */
+    private void markDirty() {
+        if (!mDirty) {
+            mDirty = true;
+            mIndexMap.putInt(INDEX_CLEAN_OFFSET, 0);
+            mIndexMap.force();
+        }
+    }
+
+    private void markClean() {
+        writeIndexHeader(true);
+        mIndexMap.force();
+        mDirty = false;
+    }
+
+    private void writeIndexHeader(final boolean clean) {
+        mIndexMap.putInt(0, INDEX_MAGIC);
+        mIndexMap.putInt(4, INDEX_VERSION);
+        mIndexMap.putInt(INDEX_CAPACITY_OFFSET, mCapacity);
+        mIndexMap.putInt(INDEX_COUNT_OFFSET, mCount);
+        mIndexMap.putLong(INDEX_PACK_LENGTH_OFFSET, mPackLength);
+        mIndexMap.putLong(INDEX_LIVE_BYTES_OFFSET, mLiveBytes);
+        mIndexMap.putInt(INDEX_CLEAN_OFFSET, clean ? 1 : 0);
+    }
+
+    private void createIndex(final int capacity) throws IOException {
+        final long length = INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        mIndex.setLength(length);
+        mIndexMap = mIndex.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        mCapacity = capacity;
+        mCount = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            setSlot(slot, EMPTY_SLOT, 0);
+        }
+        writeIndexHeader(false);
+    }
+
+    /**
+     * Double the index capacity, re-inserting every entry.
+     */
+    private void growIndex() throws IOException {
+        final int oldCapacity = mCapacity;
+        final long[] keys = new long[mCount];
+        final long[] offsets = new long[mCount];
+        int count = 0;
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            final long key = getSlotKey(slot);
+            if (key != EMPTY_SLOT) {
+                keys[count] = key;
+                offsets[count] = getSlotOffset(slot);
+                count++;
+            }
+        }
+        createIndex(oldCapacity * 2);
+        for (int i = 0; i < count; i++) {
+            insertSlot(keys[i], offsets[i]);
+        }
+        mCount = count;
+    }
+
+    private void addToIndex(final long key, final long offset, final long recordSize)
+            throws IOException {
+        if ((mCount + 1) * 2 > mCapacity) {
+            growIndex();
+        }
+        insertSlot(key, offset);
+        mCount++;
+        mLiveBytes += recordSize;
+        mIndexMap.putInt(INDEX_COUNT_OFFSET, mCount);
+    }
+
+    private void insertSlot(final long key, final long offset) {
+        int slot = hash(key) & (mCapacity - 1);
+        while (getSlotKey(slot) != EMPTY_SLOT) {
+            slot = (slot + 1) & (mCapacity - 1);
+        }
+        setSlot(slot, key, offset);
+    }
+
+    /**
+     * Remove key with backward shift deletion, so the index never needs tombstones.
+     */
+    private void removeFromIndex(final long key) {
+        int slot = findSlot(key);
+        if (slot < 0) {
+            return;
+        }
+        mLiveBytes -= recordSize(getSlotOffset(slot));
+        final int mask = mCapacity - 1;
+        int next = (slot + 1) & mask;
+        while (true) {
+            final long nextKey = getSlotKey(next);
+            if (nextKey == EMPTY_SLOT) {
+                break;
+            }
+            final int home = hash(nextKey) & mask;
+            // move the entry back if its home slot isn't cyclically within (slot, next]
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                setSlot(slot, nextKey, getSlotOffset(next));
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        setSlot(slot, EMPTY_SLOT, 0);
+        mCount--;
+        mIndexMap.putInt(INDEX_COUNT_OFFSET, mCount);
+    }
+
+    private int findSlot(final long key) {
+        final int mask = mCapacity - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            final long slotKey = getSlotKey(slot);
+            if (slotKey == key) {
+                return slot;
+            }
+            if (slotKey == EMPTY_SLOT) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private long getSlotKey(final int slot) {
+        return mIndexMap.getLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    private long getSlotOffset(final int slot) {
+        return mIndexMap.getLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE + 8);
+    }
+
+    private void setSlot(final int slot, final long key, final long offset) {
+        mIndexMap.putLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE, key);
+        mIndexMap.putLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE + 8, offset);
+    }
+
+    private static int hash(final long key) {
+        // spread the x/y bits, neighbouring tiles differ in the low bits only
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static byte[] encodeString(final String value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String decodeString(final byte[] value) {
+        try {
+            return new String(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void closeQuietly(final RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing pack file", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TilePack[" + mPackFile + ", tiles=" + size() + ", length=" + getPackLength()
+                + ", live=" + getLiveBytes() + "]";
+    }
+}
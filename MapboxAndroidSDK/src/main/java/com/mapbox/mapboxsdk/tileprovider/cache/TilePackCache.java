@@ -0,0 +1,235 @@
+package com.mapbox.mapboxsdk.tileprovider.cache;
+
+import android.util.Log;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.TileKey;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link TileDiskCache} keeping the tiles of every source in a {@link TilePack}: one pack file
+ * and one index file per source instead of one file per tile, so there is no journal to append
+ * to and no directory with thousands of entries to maintain.
+ * <p/>
+ * Tiles are keyed by their packed z/x/y key, see {@link TileKey}, with the source bits left out:
+ * source ids are only valid within a process, so the source picks the pack instead. The maximum
+ * size applies to each pack.
+ * <p/>
+ * Writes are flushed to disk at most {@link #FLUSH_DELAY_SECS} seconds after they happen.
+ */
+public class TilePackCache implements TileDiskCache {
+    private static final String TAG = "TilePackCache";
+
+    public static final int FLUSH_DELAY_SECS = 5;
+
+    private final File mDirectory;
+    private final long mMaxPackSize;
+    private final HashMap<String, TilePack> mPacks = new HashMap<String, TilePack>();
+
+    private final ScheduledThreadPoolExecutor mFlusher = new ScheduledThreadPoolExecutor(1);
+    private ScheduledFuture<?> mFlushFuture;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param directory the directory the packs are kept in
+     * @param maxPackSize the size above which a pack is compacted, at most
+     *                    {@link TilePack#MAXIMUM_SIZE}
+     */
+    public TilePackCache(final File directory, final long maxPackSize) {
+        if (maxPackSize > TilePack.MAXIMUM_SIZE) {
+            throw new IllegalArgumentException("maxPackSize > " + TilePack.MAXIMUM_SIZE);
+        }
+        mDirectory = directory;
+        mMaxPackSize = maxPackSize;
+    }
+
+    @Override
+    public boolean contains(final MapTile tile) {
+        final TilePack pack = getPack(tile);
+        return pack != null && pack.contains(getPackKey(tile));
+    }
+
+    @Override
+    public ByteBuffer get(final MapTile tile) {
+        final TilePack pack = getPack(tile);
+        return pack != null ? pack.get(getPackKey(tile)) : null;
+    }
+
+    @Override
+    public String getMetadata(final MapTile tile) {
+        final TilePack pack = getPack(tile);
+        return pack != null ? pack.getMetadata(getPackKey(tile)) : null;
+    }
+
+    @Override
+    public void put(final MapTile tile, final byte[] data, final String metadata) {
+        final TilePack pack = getPack(tile);
+        if (pack == null) {
+            return;
+        }
+        try {
+            pack.put(getPackKey(tile), data, metadata);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing tile " + tile.getCacheKey(), e);
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public boolean putMetadata(final MapTile tile, final String metadata) {
+        final TilePack pack = getPack(tile);
+        if (pack == null) {
+            return false;
+        }
+        try {
+            return pack.putMetadata(getPackKey(tile), metadata);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing metadata of tile " + tile.getCacheKey(), e);
+            return false;
+        } finally {
+            scheduleFlush();
+        }
+    }
+
+    @Override
+    public void remove(final MapTile tile) {
+        final TilePack pack = getPack(tile);
+        if (pack == null) {
+            return;
+        }
+        try {
+            pack.remove(getPackKey(tile));
+        } catch (IOException e) {
+            Log.e(TAG, "Error removing tile " + tile.getCacheKey(), e);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Clear the packs that are open and delete the files of all others.
+     */
+    @Override
+    public void clear() {
+        synchronized (mPacks) {
+            for (TilePack pack : mPacks.values()) {
+                try {
+                    pack.clear();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error clearing " + pack, e);
+                }
+            }
+            final File[] files = mDirectory.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                final String name = file.getName();
+                if (!name.endsWith(TilePack.PACK_SUFFIX) && !name.endsWith(TilePack.INDEX_SUFFIX)) {
+                    continue;
+                }
+                final String packName = name.substring(0, name.lastIndexOf('.'));
+                if (!isOpen(packName)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (mPacks) {
+            for (TilePack pack : mPacks.values()) {
+                pack.close();
+            }
+            mPacks.clear();
+        }
+        mFlusher.shutdown();
+    }
+
+    /**
+     * Write the changes to every pack to disk.
+     */
+    public void flush() {
+        synchronized (mPacks) {
+            mFlushFuture = null;
+            for (TilePack pack : mPacks.values()) {
+                pack.flush();
+            }
+        }
+    }
+
+    private void scheduleFlush() {
+        synchronized (mPacks) {
+            // unlike rescheduling on every write, this still flushes while tiles keep coming in
+            if (mFlushFuture == null && !mFlusher.isShutdown()) {
+                mFlushFuture = mFlusher.schedule(mFlushRunnable, FLUSH_DELAY_SECS,
+                        TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return the pack of the source of tile, opening it first if needed, or null if it can't be
+     * opened
+     */
+    private TilePack getPack(final MapTile tile) {
+        final String source = tile.getSourceCacheKey();
+        synchronized (mPacks) {
+            TilePack pack = mPacks.get(source);
+            if (pack == null) {
+                try {
+                    pack = new TilePack(mDirectory, getPackName(source), mMaxPackSize);
+                    mPacks.put(source, pack);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error opening tile pack for " + source, e);
+                }
+            }
+            return pack;
+        }
+    }
+
+    private boolean isOpen(final String packName) {
+        for (String source : mPacks.keySet()) {
+            if (getPackName(source).equals(packName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getPackKey(final MapTile tile) {
+        return TileKey.pack(0, tile.getZ(), tile.getX(), tile.getY());
+    }
+
+    /**
+     * @return a file name for a source cache key, which may contain any character
+     */
+    static String getPackName(final String source) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(source.getBytes("UTF-8"));
+            final StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
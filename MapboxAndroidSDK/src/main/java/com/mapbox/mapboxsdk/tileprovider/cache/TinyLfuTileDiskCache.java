@@ -0,0 +1,104 @@
+package com.mapbox.mapboxsdk.tileprovider.cache;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.util.FrequencySketch;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link TileDiskCache} that only stores tiles which have been asked for a few times
+ * recently, so that one long fling or zoom out doesn't fill the disk tier with tiles that are
+ * never looked at again and push out the ones that are:
+ *
+ * <pre>
+ * cache.setDiskCache(new TinyLfuTileDiskCache(new TilePackCache(directory, maxPackSize),
+ *         2000, TinyLfuTileDiskCache.DEFAULT_MINIMUM_FREQUENCY));
+ * </pre>
+ *
+ * Every lookup of a tile counts in a {@link FrequencySketch}, the way the TinyLFU admission
+ * policy counts them. The disk tier doesn't expose its eviction order, so instead of comparing
+ * a tile with the one it would displace, new tiles are admitted once they reach a minimum
+ * frequency. Tiles already stored are always updated.
+ */
+public class TinyLfuTileDiskCache implements TileDiskCache {
+
+    /**
+     * The default number of lookups before a tile is stored: a tile seen for the second time.
+     */
+    public static final int DEFAULT_MINIMUM_FREQUENCY = 2;
+
+    private final TileDiskCache mDiskCache;
+    private final FrequencySketch mSketch;
+    private final int mMinimumFrequency;
+    private int mRejectCount;
+
+    /**
+     * @param diskCache the disk tier that stores the tiles
+     * @param expectedTiles about how many tiles fit in the disk tier
+     * @param minimumFrequency the number of recent lookups a tile needs to be stored
+     */
+    public TinyLfuTileDiskCache(final TileDiskCache diskCache, final int expectedTiles,
+            final int minimumFrequency) {
+        mDiskCache = diskCache;
+        mSketch = new FrequencySketch(expectedTiles);
+        mMinimumFrequency = Math.min(minimumFrequency, FrequencySketch.MAXIMUM_FREQUENCY);
+    }
+
+    @Override
+    public boolean contains(final MapTile tile) {
+        return mDiskCache.contains(tile);
+    }
+
+    @Override
+    public ByteBuffer get(final MapTile tile) {
+        mSketch.increment(tile.getKey());
+        return mDiskCache.get(tile);
+    }
+
+    @Override
+    public String getMetadata(final MapTile tile) {
+        return mDiskCache.getMetadata(tile);
+    }
+
+    @Override
+    public void put(final MapTile tile, final byte[] data, final String metadata) {
+        if (mSketch.frequency(tile.getKey()) < mMinimumFrequency && !mDiskCache.contains(tile)) {
+            synchronized (this) {
+                mRejectCount++;
+            }
+            return;
+        }
+        mDiskCache.put(tile, data, metadata);
+    }
+
+    @Override
+    public boolean putMetadata(final MapTile tile, final String metadata) {
+        return mDiskCache.putMetadata(tile, metadata);
+    }
+
+    @Override
+    public void remove(final MapTile tile) {
+        mDiskCache.remove(tile);
+    }
+
+    @Override
+    public void clear() {
+        mDiskCache.clear();
+        mSketch.clear();
+    }
+
+    @Override
+    public void close() {
+        mDiskCache.close();
+    }
+
+    /**
+     * @return the number of tiles that weren't stored because they were too rare
+     */
+    public synchronized int getRejectCount() {
+        return mRejectCount;
+    }
+
+    public TileDiskCache getDiskCache() {
+        return mDiskCache;
+    }
+}
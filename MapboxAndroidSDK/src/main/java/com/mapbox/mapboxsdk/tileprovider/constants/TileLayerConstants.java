@@ -34,6 +34,12 @@ public interface TileLayerConstants {
     public static final int CACHE_MAPTILECOUNT_DEFAULT = 9;
 
     public static final int CACHE_MAPTILEDISKSIZE_DEFAULT = 100 * 1024 * 1024;
+
+    /**
+     * The default size of the memory tier of encoded tiles, see
+     * {@link com.mapbox.mapboxsdk.tileprovider.cache.EncodedTileArena}.
+     */
+    public static final int CACHE_ENCODED_TILES_SIZE_DEFAULT = 4 * 1024 * 1024;
     /**
      * number of tile download threads, conforming to OSM policy:
      * http://wiki.openstreetmap.org/wiki/Tile_usage_policy
@@ -41,4 +47,28 @@ public interface TileLayerConstants {
     public static final int NUMBER_OF_TILE_DOWNLOAD_THREADS = 8;
 
     public static final int TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE = 40;
+
+    /**
+     * How many downloaded tiles may wait to be decoded before the download threads wait.
+     */
+    public static final int TILE_DECODE_MAXIMUM_QUEUE_SIZE = 8;
+
+    /**
+     * How many bytes of downloaded tiles may wait to be written to the disk cache, see
+     * {@link com.mapbox.mapboxsdk.tileprovider.cache.TileDiskWriter}. Past that the oldest
+     * writes are dropped rather than holding up the downloads.
+     */
+    public static final int TILE_DISK_WRITE_MAXIMUM_PENDING_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * How many tiles of a predicted viewport are requested at most, kept below the queue size so
+     * that prefetching never pushes visible tiles out of the queue.
+     */
+    public static final int TILE_PREFETCH_BUDGET = 24;
+
+    /**
+     * How long a downloaded tile stays fresh when the server doesn't say, before it is
+     * revalidated.
+     */
+    public static final long TILE_DEFAULT_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
 }
@@ -7,18 +7,26 @@ import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.TileKey;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.util.LongHashMap;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * An access layer to the MBTiles format. This is useful for offline tiles
  * that one would pre-package with an app.
+ * <p/>
+ * Tiles are read through a small pool of read-only connections, one per tile loading thread,
+ * so that loaders don't queue up behind the single lock of a shared connection. Queries use
+ * constant SQL with bound arguments, so every connection compiles them once and reuses them
+ * from its statement cache. {@link #getTiles} reads a whole range of tiles in one query.
  */
-public class MBTilesFileArchive implements IArchiveFile {
-
-    private final SQLiteDatabase mDatabase;
+public class MBTilesFileArchive implements IArchiveFile, TileLayerConstants {
 
     // TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB);
     public static final String TABLE_TILES = "tiles";
@@ -26,45 +34,197 @@ public class MBTilesFileArchive implements IArchiveFile {
     public static final String COL_TILES_TILE_DATA = "tile_data";
     public static final String COL_VALUE = "value";
 
+    /**
+     * The default number of connections, one per tile download thread.
+     */
+    public static final int DEFAULT_CONNECTION_POOL_SIZE = NUMBER_OF_TILE_DOWNLOAD_THREADS;
+
+    private static final String SQL_TILE = "SELECT " + COL_TILES_TILE_DATA + " FROM "
+            + TABLE_TILES + " WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+    private static final String SQL_TILE_RANGE = "SELECT tile_column, tile_row, "
+            + COL_TILES_TILE_DATA + " FROM " + TABLE_TILES
+            + " WHERE zoom_level=? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?";
+    private static final String SQL_METADATA = "SELECT name, " + COL_VALUE + " FROM "
+            + TABLE_METADATA;
+
+    private final SQLiteDatabase mDatabase;
+    private int mPoolSize;
+    // connections not in use; the pool fields are guarded by it
+    private final ArrayList<SQLiteDatabase> mIdle = new ArrayList<SQLiteDatabase>();
+    private int mOpenCount;
+    private boolean mClosed;
+
+    private HashMap<String, String> mMetadata;
+
     public MBTilesFileArchive(final SQLiteDatabase pDatabase) {
+        this(pDatabase, DEFAULT_CONNECTION_POOL_SIZE);
+    }
+
+    /**
+     * @param pDatabase the MBTiles database, also the first connection of the pool
+     * @param poolSize the maximum number of connections to the database. Extra connections are
+     *                 opened read-only when needed, and only if the database is a file.
+     */
+    public MBTilesFileArchive(final SQLiteDatabase pDatabase, final int poolSize) {
         mDatabase = pDatabase;
+        final String path = pDatabase.getPath();
+        mPoolSize = path != null && new File(path).isFile() ? Math.max(poolSize, 1) : 1;
+        mIdle.add(pDatabase);
+        mOpenCount = 1;
     }
 
     public static MBTilesFileArchive getDatabaseFileArchive(final File pFile)
             throws SQLiteException {
-        return new MBTilesFileArchive(SQLiteDatabase.openDatabase(pFile.getAbsolutePath(), null,
-                SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.OPEN_READONLY)
-        );
+        return new MBTilesFileArchive(openDatabase(pFile.getAbsolutePath()));
+    }
+
+    private static SQLiteDatabase openDatabase(final String path) throws SQLiteException {
+        return SQLiteDatabase.openDatabase(path, null,
+                SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.OPEN_READONLY);
+    }
+
+    /**
+     * Take a connection from the pool, opening a new one if all are in use and the pool isn't
+     * full, or waiting for one otherwise. If a connection fails to open the pool shrinks to the
+     * connections that are open, so a call tries to open at most one.
+     *
+     * @return a connection to hand back with {@link #release(SQLiteDatabase)}, or null if the
+     * archive is closed
+     */
+    private SQLiteDatabase acquire() {
+        boolean mayOpen = true;
+        while (true) {
+            synchronized (mIdle) {
+                while (true) {
+                    if (mClosed) {
+                        return null;
+                    }
+                    if (!mIdle.isEmpty()) {
+                        return mIdle.remove(mIdle.size() - 1);
+                    }
+                    if (mayOpen && mOpenCount < mPoolSize) {
+                        mOpenCount++;
+                        break;
+                    }
+                    try {
+                        mIdle.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+            }
+            try {
+                return openDatabase(mDatabase.getPath());
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Error opening connection to " + mDatabase.getPath(), e);
+                synchronized (mIdle) {
+                    // don't try again, share the connections that are open
+                    mOpenCount--;
+                    mPoolSize = mOpenCount;
+                }
+                mayOpen = false;
+            }
+        }
+    }
+
+    private void release(final SQLiteDatabase database) {
+        synchronized (mIdle) {
+            if (mClosed) {
+                database.close();
+                return;
+            }
+            mIdle.add(database);
+            mIdle.notify();
+        }
+    }
+
+    /**
+     * @return the number of connections open, in use or not
+     */
+    public int getConnectionCount() {
+        synchronized (mIdle) {
+            return mOpenCount;
+        }
     }
 
     @Override
     public InputStream getInputStream(final ITileLayer pTileSource, final MapTile pTile) {
+        final byte[] data = getTileData(pTile.getZ(), pTile.getX(), pTile.getY());
+        return data != null ? new ByteArrayInputStream(data) : null;
+    }
+
+    /**
+     * Read the image of a single tile.
+     *
+     * @return the encoded image, or null if the archive doesn't have the tile
+     */
+    public byte[] getTileData(final int z, final int x, final int y) {
+        final SQLiteDatabase database = acquire();
+        if (database == null) {
+            return null;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(SQL_TILE, new String[] {
+                    Integer.toString(z), Integer.toString(x), Integer.toString(toTmsRow(z, y))
+            });
+            return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        } catch (final SQLiteException e) {
+            Log.e(TAG, "Error getting tile " + z + "/" + x + "/" + y, e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            release(database);
+        }
+    }
 
+    /**
+     * Read every tile of a range at one zoom level in a single query.
+     *
+     * @param out receives the images of the tiles the archive has, keyed by
+     *            {@link TileKey#pack(int, int, int, int)} with a source id of 0
+     * @return the number of tiles read
+     */
+    public int getTiles(final int z, final int minX, final int minY, final int maxX,
+            final int maxY, final LongHashMap<byte[]> out) {
+        final SQLiteDatabase database = acquire();
+        if (database == null) {
+            return 0;
+        }
+        Cursor cursor = null;
+        int count = 0;
         try {
-            InputStream ret = null;
-            final String[] tile = { COL_TILES_TILE_DATA };
-            final String[] xyz = {
-                    Integer.toString(pTile.getX()),
-                    Double.toString(Math.pow(2, pTile.getZ()) - pTile.getY() - 1),
-                    Integer.toString(pTile.getZ())
-            };
-
-            final Cursor cur = mDatabase.query(TABLE_TILES, tile,
-                    "tile_column=? and tile_row=? and zoom_level=?", xyz, null, null, null);
-
-            if (cur.getCount() != 0) {
-                cur.moveToFirst();
-                ret = new ByteArrayInputStream(cur.getBlob(0));
+            // MBTiles rows count from the bottom, so the range flips
+            cursor = database.rawQuery(SQL_TILE_RANGE, new String[] {
+                    Integer.toString(z), Integer.toString(minX), Integer.toString(maxX),
+                    Integer.toString(toTmsRow(z, maxY)), Integer.toString(toTmsRow(z, minY))
+            });
+            while (cursor.moveToNext()) {
+                final int x = cursor.getInt(0);
+                final int y = toTmsRow(z, cursor.getInt(1));
+                out.put(TileKey.pack(0, z, x, y), cursor.getBlob(2));
+                count++;
             }
-            cur.close();
-            if (ret != null) {
-                return ret;
+        } catch (final SQLiteException e) {
+            Log.e(TAG, "Error getting tiles " + z + "/" + minX + "-" + maxX + "/" + minY + "-"
+                    + maxY, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
             }
-        } catch (final Throwable e) {
-            Log.e(TAG, "Error getting db stream: " + pTile, e);
+            release(database);
         }
+        return count;
+    }
 
-        return null;
+    /**
+     * Convert between XYZ rows and the TMS rows of MBTiles, the conversion is its own inverse.
+     */
+    private static int toTmsRow(final int z, final int row) {
+        return (1 << z) - 1 - row;
     }
 
     @Override
@@ -72,20 +232,36 @@ public class MBTilesFileArchive implements IArchiveFile {
         return "MBTiles [mDatabase=" + mDatabase.getPath() + "]";
     }
 
-    private String getStringValue(String key) {
-        final String[] column = { COL_VALUE };
-        final String[] query = { key };
-
-        Cursor c =
-                this.mDatabase.query(TABLE_METADATA, column, "name = ?", query, null, null, null);
-        try {
-            c.moveToFirst();
-            return c.getString(0);
-        } catch (Exception e) {
-            return null;
-        } finally {
-            c.close();
+    /**
+     * Read the whole metadata table once, it is small and every value is needed when the layer
+     * is set up.
+     */
+    private synchronized String getStringValue(String key) {
+        if (mMetadata == null) {
+            final SQLiteDatabase database = acquire();
+            if (database == null) {
+                return null;
+            }
+            final HashMap<String, String> metadata = new HashMap<String, String>();
+            Cursor c = null;
+            try {
+                c = database.rawQuery(SQL_METADATA, null);
+                while (c.moveToNext()) {
+                    metadata.put(c.getString(0), c.getString(1));
+                }
+                // only once it was read whole, a failed read is tried again
+                mMetadata = metadata;
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Error reading metadata of " + mDatabase.getPath(), e);
+                return null;
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+                release(database);
+            }
         }
+        return mMetadata.get(key);
     }
 
     public float getMinZoomLevel() {
@@ -145,9 +321,17 @@ public class MBTilesFileArchive implements IArchiveFile {
         return null;
     }
 
+    /**
+     * Close every connection. Connections in use are closed when they are handed back.
+     */
     public void close() {
-        if (mDatabase != null) {
-            mDatabase.close();
+        synchronized (mIdle) {
+            mClosed = true;
+            for (SQLiteDatabase database : mIdle) {
+                database.close();
+            }
+            mIdle.clear();
+            mIdle.notifyAll();
         }
     }
 
@@ -1,28 +1,54 @@
 package com.mapbox.mapboxsdk.tileprovider.modules;
 
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.tileprovider.IMapTileProviderCallback;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
 import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.TileMetadata;
+import com.mapbox.mapboxsdk.tileprovider.cache.NegativeTileCache;
+import com.mapbox.mapboxsdk.tileprovider.cache.TileDiskWriter;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.MBTilesLayer;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.WebSourceTileLayer;
 import com.mapbox.mapboxsdk.util.AppUtils;
+import com.mapbox.mapboxsdk.util.LongHashMap;
 import com.mapbox.mapboxsdk.views.MapView;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
 import com.mapbox.mapboxsdk.views.util.TilesLoadedListener;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicReference;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
  * The {@link MapTileDownloader} loads tiles from an HTTP server.
+ * <p/>
+ * Loading a tile from a {@link WebSourceTileLayer} goes through three stages, each with its own
+ * threads and bounded queue: the download threads only fetch the encoded images, a pool sized to
+ * the number of cores decodes them into the memory cache, and a single low priority thread
+ * writes them to the disk cache. Every stage is shared by all the downloaders of the process.
+ * <p/>
+ * Tiles found in the caches are read by the download threads too, and only their bytes reach
+ * the decode stage. A slow network or disk then doesn't hold up decoding, and no more tiles are
+ * decoded at once than there are cores to decode them.
  */
 public class MapTileDownloader extends MapTileModuleLayerBase {
     private static final String TAG = "MapTileDownloader";
 
+    /**
+     * The number of decode threads, leaving a core to the UI thread where there is more than one.
+     */
+    public static final int DECODE_THREADS =
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
     private final AtomicReference<TileLayer> mTileSource = new AtomicReference<>();
     private final AtomicReference<MapTileCache> mTileCache = new AtomicReference<>();
 
@@ -31,6 +57,39 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
     private boolean mUseDataConnection;
     boolean hdpi;
 
+    /**
+     * Stale tiles are served from the disk cache straight away and revalidated on a single low
+     * priority thread of the process, so they never hold up the tiles that still have to be
+     * downloaded. Tiles being revalidated are keyed by {@link MapTile#getKey()}, which tells the
+     * sources apart, and guarded by the map itself.
+     */
+    private static ExecutorService sRevalidator;
+    private static final LongHashMap<MapTile> sRevalidating = new LongHashMap<MapTile>();
+
+    // decodes for every downloader of the process, see getDecoder()
+    private static StageExecutor sDecoder;
+
+    /**
+     * @return the decode stage of the process, with {@link #DECODE_THREADS} threads. Like the
+     * {@link SharedTileExecutor} and the {@link TileDiskWriter}, it is shared by every downloader
+     * so that several maps or layers don't decode more tiles at once than there are cores.
+     */
+    public static synchronized StageExecutor getDecoder() {
+        if (sDecoder == null) {
+            sDecoder = new StageExecutor("decoder", DECODE_THREADS,
+                    TILE_DECODE_MAXIMUM_QUEUE_SIZE, Thread.NORM_PRIORITY);
+        }
+        return sDecoder;
+    }
+
+    private static synchronized ExecutorService getRevalidator() {
+        if (sRevalidator == null) {
+            sRevalidator = Executors.newSingleThreadExecutor(
+                    new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY, "revalidator"));
+        }
+        return sRevalidator;
+    }
+
     public MapTileDownloader(final ITileLayer pTileSource, final MapTileCache pTileCache,
                              final NetworkAvailabilityCheck pNetworkAvailabilityCheck, final MapView mapView) {
         super(NUMBER_OF_TILE_DOWNLOAD_THREADS, TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE);
@@ -126,6 +185,16 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         return (tileLayer != null) ? tileLayer.getTileSizePixels() : 0;
     }
 
+    /**
+     * Options for decoding one tile of the tile source, following its decode policy.
+     *
+     * @return the options, or null if there is no tile source
+     */
+    public BitmapFactory.Options getDecodeOptions() {
+        TileLayer tileLayer = mTileSource.get();
+        return (tileLayer != null) ? tileLayer.getDecodeOptions(hdpi) : null;
+    }
+
     @Override
     public void setTileSource(final ITileLayer tileSource) {
         if (mTileSource.get() != null) {
@@ -140,6 +209,140 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         }
     }
 
+    /**
+     * Hand a tile over to be written to the disk cache behind the downloads, see
+     * {@link TileDiskWriter}. Never blocks.
+     */
+    public void putTileInDiskCache(final MapTile tile, final byte[] data,
+            final TileMetadata metadata) {
+        TileDiskWriter.getInstance().put(mTileCache.get(), tile, data, metadata);
+    }
+
+    /**
+     * Hand new HTTP caching metadata of a tile in the disk cache over to the
+     * {@link TileDiskWriter}, so that it lands after any write of the tile still pending. Never
+     * blocks.
+     */
+    public void putTileMetadataInDiskCache(final MapTile tile, final TileMetadata metadata) {
+        TileDiskWriter.getInstance().putMetadata(mTileCache.get(), tile, metadata);
+    }
+
+    /**
+     * @return the number of tiles waiting to be decoded, by every downloader
+     */
+    public int getDecodeQueueDepth() {
+        return getDecoder().getQueueDepth();
+    }
+
+    /**
+     * @return the number of tiles waiting to be written to the disk cache, by every downloader
+     */
+    public int getDiskWriteQueueDepth() {
+        return TileDiskWriter.getInstance().getPendingCount();
+    }
+
+    /**
+     * Drop a tile that can't be decoded from the caches, so that it is downloaded again. Removing
+     * it from the disk is left to the revalidator thread, the decode stage doesn't wait on I/O.
+     */
+    private void dropUndecodableTile(final MapTile tile) {
+        Log.w(TAG, "Dropping undecodable tile: " + tile);
+        final MapTileCache cache = mTileCache.get();
+        try {
+            getRevalidator().execute(new Runnable() {
+                @Override
+                public void run() {
+                    cache.removeTile(tile);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // left in the cache, it is dropped the next time it is read
+        }
+    }
+
+    /**
+     * Revalidate a tile served from the cache in the background if its metadata says it is
+     * stale. The metadata is read on the revalidator thread too, so that the decode stage never
+     * waits on the disk. Tiles without metadata are considered fresh. A tile that changed is
+     * decoded on the decode stage and reported to the callback of the request it was served for,
+     * so that anything drawn from the stale tile is dropped and the map redrawn.
+     */
+    private void revalidateIfStale(final MapTileRequestState aState) {
+        final MapTile tile = aState.getMapTile();
+        final IMapTileProviderCallback callback = aState.getCallback();
+        final TileLayer tileLayer = mTileSource.get();
+        if (!(tileLayer instanceof WebSourceTileLayer) || !mUseDataConnection
+                || !isNetworkAvailable()) {
+            return;
+        }
+        final MapTile revalidated = tile.copy();
+        synchronized (sRevalidating) {
+            if (sRevalidating.containsKey(revalidated.getKey())) {
+                return;
+            }
+            sRevalidating.put(revalidated.getKey(), revalidated);
+        }
+        try {
+            getRevalidator().execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean decoding = false;
+                    try {
+                        if (isDetached()) {
+                            return;
+                        }
+                        final TileMetadata metadata =
+                                mTileCache.get().getTileMetadata(revalidated);
+                        if (metadata == null
+                                || !metadata.isExpired(System.currentTimeMillis())) {
+                            return;
+                        }
+                        final WebSourceTileLayer webLayer = (WebSourceTileLayer) tileLayer;
+                        final WebSourceTileLayer.Download download = webLayer.revalidateTile(
+                                MapTileDownloader.this, revalidated, hdpi, metadata);
+                        if (download == null || isDetached()) {
+                            return;
+                        }
+                        // the revalidation ends once the new tile is decoded
+                        getDecoder().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    final CacheableBitmapDrawable drawable = isDetached() ? null
+                                            : webLayer.decodeTile(MapTileDownloader.this,
+                                                    revalidated, download);
+                                    if (drawable != null && !isDetached()) {
+                                        callback.mapTileRequestCompleted(new MapTileRequestState(
+                                                revalidated, null, callback), drawable);
+                                    }
+                                } catch (final Throwable e) {
+                                    Log.e(TAG, "Error decoding tile: " + revalidated, e);
+                                } finally {
+                                    endRevalidation(revalidated);
+                                }
+                            }
+                        });
+                        decoding = true;
+                    } catch (RejectedExecutionException e) {
+                        // the decode stage is shut down
+                    } finally {
+                        if (!decoding) {
+                            endRevalidation(revalidated);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            endRevalidation(revalidated);
+        }
+    }
+
+    private static void endRevalidation(final MapTile tile) {
+        synchronized (sRevalidating) {
+            sRevalidating.remove(tile.getKey());
+        }
+    }
+
     @Override
     public String getCacheKey() {
         TileLayer tileLayer = mTileSource.get();
@@ -148,13 +351,109 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
 
     protected class TileLoader extends MapTileModuleLayerBase.TileLoader {
 
+        /**
+         * Read the encoded image of a tile from the memory tier of encoded tiles or the disk
+         * cache, or else download it, on this thread, and hand it to the decode stage. The decode
+         * stage never waits on I/O.
+         */
+        @Override
+        protected boolean handOffTile(final MapTileRequestState aState) {
+            final MapTile tile = aState.getMapTile();
+            final MapTileCache cache = mTileCache.get();
+            final byte[] arenaData = cache.getTileDataFromArena(tile);
+            final byte[] data = arenaData != null ? arenaData : cache.getTileDataFromDisk(tile);
+            if (data != null) {
+                return decode(aState, new Callable<Drawable>() {
+                    @Override
+                    public Drawable call() {
+                        final Drawable drawable =
+                                cache.decodeTileData(tile, data, getDecodeOptions());
+                        if (drawable == null) {
+                            dropUndecodableTile(tile);
+                            return null;
+                        }
+                        if (arenaData == null) {
+                            cache.putTileDataInArena(tile, data);
+                        }
+                        revalidateIfStale(aState);
+                        return drawable;
+                    }
+                });
+            }
+            final TileLayer tileLayer = mTileSource.get();
+            if (!(tileLayer instanceof WebSourceTileLayer)) {
+                return false;
+            }
+            final WebSourceTileLayer webLayer = (WebSourceTileLayer) tileLayer;
+            final NegativeTileCache.Reason[] failure = new NegativeTileCache.Reason[1];
+            final WebSourceTileLayer.Download download =
+                    webLayer.downloadTile(MapTileDownloader.this, tile, hdpi, failure, aState);
+            if (download == null) {
+                if (!aState.isCancelled()) {
+                    aState.setFailure(failure[0]);
+                }
+                tileLoadFinished(aState, null);
+                return true;
+            }
+            return decode(aState, new Callable<Drawable>() {
+                @Override
+                public Drawable call() {
+                    return webLayer.decodeTile(MapTileDownloader.this, tile, download, aState);
+                }
+            });
+        }
+
+        /**
+         * Run a decode on the decode stage and report its result, blocking while the stage is
+         * behind.
+         *
+         * @return true, the request is always handed over
+         */
+        private boolean decode(final MapTileRequestState aState,
+                final Callable<Drawable> decode) {
+            final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    Drawable result = null;
+                    try {
+                        // cancelled or detached while it waited for the stage
+                        result = aState.isCancelled() || isDetached() ? null : decode.call();
+                    } catch (final Throwable e) {
+                        Log.e(TAG, "Error decoding tile: " + aState.getMapTile(), e);
+                    }
+                    tileLoadFinished(aState, result);
+                }
+            };
+            if (isDetached()) {
+                tileLoadFinished(aState, null);
+                return true;
+            }
+            try {
+                getDecoder().execute(task);
+            } catch (RejectedExecutionException e) {
+                // interrupted while waiting for room
+                tileLoadFinished(aState, null);
+            }
+            return true;
+        }
+
         @Override
         public Drawable loadTile(final MapTileRequestState aState) throws CantContinueException {
             final MapTile tile = aState.getMapTile();
 //            Log.d(TAG, "loadTile() with tile = '" + tile + "'");
+            if (mTileCache != null) {
+                final Drawable drawable = mTileCache.get().getMapTileFromArena(tile, getDecodeOptions());
+                if (drawable != null) {
+                    return drawable;
+                }
+            }
             if (mTileCache != null && mTileCache.get().containsTileInDiskCache(tile)) {
 //                Log.d(TAG, "tile found in Disk Cache, so returning it. tile = '" + tile + "'");
-                return mTileCache.get().getMapTileFromDisk(tile);
+                final Drawable drawable = mTileCache.get().getMapTileFromDisk(tile, getDecodeOptions());
+                if (drawable != null) {
+                    revalidateIfStale(aState);
+                }
+                return drawable;
             }
             TileLayer tileLayer = mTileSource.get();
             Drawable result =
@@ -7,15 +7,13 @@ import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.TileViewport;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.RejectedExecutionException;
+import com.mapbox.mapboxsdk.util.LongHashMap;
+import java.util.ArrayList;
+import java.util.TreeSet;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
@@ -111,49 +109,309 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
 
     public abstract String getCacheKey();
 
-    private final ExecutorService mExecutor;
+    private final SharedTileExecutor mExecutor;
+    private final int mMaximumActiveCount;
+    private volatile int mWeight = SharedTileExecutor.DEFAULT_WEIGHT;
+    private volatile boolean mDetached;
+
+    /**
+     * A pending request and its place in the loading order.
+     */
+    private static final class Pending implements Comparable<Pending> {
+        final MapTileRequestState state;
+        // when it was last requested, ties go to the eldest request
+        final long sequence;
+        long priority;
+
+        Pending(final MapTileRequestState state, final long sequence, final long priority) {
+            this.state = state;
+            this.sequence = sequence;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(final Pending other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
 
     protected final Object mQueueLockObject = new Object();
-    protected final HashMap<MapTile, MapTileRequestState> mWorking;
-    protected final LinkedHashMap<MapTile, MapTileRequestState> mPending;
+    // Both queues are keyed by MapTile.getKey()
+    protected final LongHashMap<MapTileRequestState> mWorking;
+    private final LongHashMap<Pending> mPending;
+    private final int mPendingQueueSize;
+
+    // guarded by mQueueLockObject
+    private final TileViewport mViewport = new TileViewport();
+    private final TileViewport mPrediction = new TileViewport();
+    // the pending requests in the order they are loaded, re-sorted when the viewports change
+    private final TreeSet<Pending> mPendingOrder = new TreeSet<Pending>();
+    private long mPendingSequence;
+    private final ArrayList<Pending> mPendingScratch = new ArrayList<Pending>();
+    private final ArrayList<MapTileRequestState> mWorkingScratch =
+            new ArrayList<MapTileRequestState>();
+
+    // prefetched tiles are loaded after every visible one, whatever their zoom level
+    private static final long PREFETCH_PRIORITY = 1L << 56;
 
+    /**
+     * Removes the pending request that should be loaded next: the one closest to the center of
+     * the viewport, then the one closest to the center of the predicted viewport, or the eldest
+     * one until a viewport has been set. Must be called while holding mQueueLockObject.
+     */
     public MapTileRequestState popFirstPending() {
-        for (MapTile tile : mPending.keySet()) {
-            return mPending.remove(tile);
+        final Pending first = mPendingOrder.pollFirst();
+        if (first == null) {
+            return null;
+        }
+        mPending.remove(first.state.getMapTile().getKey());
+        return first.state;
+    }
+
+    /**
+     * Removes the pending request that would be loaded last, the eldest of the furthest ones.
+     */
+    private MapTileRequestState popLastPending() {
+        if (mPendingOrder.isEmpty()) {
+            return null;
+        }
+        final Pending furthest = mPendingOrder.ceiling(
+                new Pending(null, Long.MIN_VALUE, mPendingOrder.last().priority));
+        mPendingOrder.remove(furthest);
+        mPending.remove(furthest.state.getMapTile().getKey());
+        return furthest.state;
+    }
+
+    private void putPending(final MapTileRequestState state) {
+        final long key = state.getMapTile().getKey();
+        final Pending pending = new Pending(state, mPendingSequence++,
+                priorityOf(state.getMapTile()));
+        final Pending previous = mPending.put(key, pending);
+        if (previous != null) {
+            mPendingOrder.remove(previous);
+        }
+        mPendingOrder.add(pending);
+    }
+
+    private void removePending(final long key) {
+        final Pending pending = mPending.remove(key);
+        if (pending != null) {
+            mPendingOrder.remove(pending);
+        }
+    }
+
+    /**
+     * @return the loading priority of a tile, lower first, 0 for every tile until a viewport has
+     * been set
+     */
+    private long priorityOf(final MapTile tile) {
+        if (!mViewport.isValid()) {
+            return 0;
+        }
+        if (mPrediction.isValid() && !mViewport.isVisible(tile)) {
+            return PREFETCH_PRIORITY + mPrediction.priorityOf(tile);
+        }
+        return mViewport.priorityOf(tile);
+    }
+
+    private boolean isWanted(final MapTile tile) {
+        return mViewport.isVisible(tile) || (mPrediction.isValid() && mPrediction.isVisible(tile));
+    }
+
+    /**
+     * Set the range of tiles being drawn. Pending requests are then loaded center-out, and the
+     * ones for tiles that are neither visible nor predicted are cancelled, including those
+     * being downloaded or decoded.
+     */
+    public void setViewport(final TileViewport viewport) {
+        ArrayList<MapTileRequestState> cancelled = null;
+        synchronized (mQueueLockObject) {
+            if (mViewport.set(viewport)) {
+                cancelled = cancelUnwanted();
+            }
+        }
+        cancel(cancelled);
+    }
+
+    /**
+     * Set the range of tiles expected to be drawn once the map stops moving. Its tiles are kept
+     * pending while they are not visible, and loaded after the visible ones. An invalid viewport
+     * clears the prediction; either way the requests for tiles of a previous prediction that are
+     * neither visible nor predicted anymore are cancelled.
+     */
+    public void setPrediction(final TileViewport prediction) {
+        ArrayList<MapTileRequestState> cancelled = null;
+        synchronized (mQueueLockObject) {
+            final boolean changed = prediction.isValid() ? mPrediction.set(prediction)
+                    : mPrediction.clear();
+            if (changed) {
+                cancelled = cancelUnwanted();
+            }
+        }
+        cancel(cancelled);
+    }
+
+    /**
+     * @return true if the tile is visible or predicted, so a request for it that was cancelled
+     * has to be made again
+     */
+    public boolean isTileWanted(final MapTile tile) {
+        synchronized (mQueueLockObject) {
+            return !mViewport.isValid() || isWanted(tile);
+        }
+    }
+
+    /**
+     * Cancel requests being loaded, outside of mQueueLockObject: their cancel listeners may
+     * close connections.
+     */
+    private static void cancel(final ArrayList<MapTileRequestState> states) {
+        if (states != null) {
+            for (int i = 0; i < states.size(); i++) {
+                states.get(i).cancel();
+            }
+        }
+    }
+
+    /**
+     * Drop the pending requests for tiles that are neither visible nor predicted, and sort the
+     * others for the new viewports. Must be called while holding mQueueLockObject.
+     *
+     * @return the requests being loaded for such tiles, for the caller to cancel once it has
+     * released the lock, or null if there are none
+     */
+    private ArrayList<MapTileRequestState> cancelUnwanted() {
+        mPendingScratch.clear();
+        mPending.values(mPendingScratch);
+        // priorities are only changed out of the set
+        mPendingOrder.clear();
+        for (int i = 0; i < mPendingScratch.size(); i++) {
+            final Pending pending = mPendingScratch.get(i);
+            final MapTileRequestState state = pending.state;
+            if (!isWanted(state.getMapTile())) {
+                mPending.remove(state.getMapTile().getKey());
+                state.getCallback().mapTileRequestCancelled(state);
+            } else {
+                pending.priority = priorityOf(state.getMapTile());
+                mPendingOrder.add(pending);
+            }
+        }
+        mPendingScratch.clear();
+        // the loaders report these as cancelled once they stop
+        ArrayList<MapTileRequestState> cancelled = null;
+        mWorking.values(mWorkingScratch);
+        for (int i = 0; i < mWorkingScratch.size(); i++) {
+            final MapTileRequestState state = mWorkingScratch.get(i);
+            if (!isWanted(state.getMapTile())) {
+                if (cancelled == null) {
+                    cancelled = new ArrayList<MapTileRequestState>();
+                }
+                cancelled.add(state);
+            }
+        }
+        mWorkingScratch.clear();
+        return cancelled;
+    }
+
+    /**
+     * Copy the range of tiles being drawn, for tile sources that can load several tiles at once.
+     *
+     * @return false if no viewport has been set yet
+     */
+    public boolean getViewport(final TileViewport out) {
+        synchronized (mQueueLockObject) {
+            out.set(mViewport);
+            return mViewport.isValid();
         }
-        return null;
     }
 
     /**
      * Initialize a new tile provider, given a thread pool and a pending queue size. The pending
      * queue
      * size must be larger than or equal to the thread pool size.
+     * <p/>
+     * Tiles are loaded by the threads of the {@link SharedTileExecutor} of the process, the
+     * thread pool size is how many of them this provider may use at once.
      */
     public MapTileModuleLayerBase(int pThreadPoolSize, final int pPendingQueueSize) {
+        this(SharedTileExecutor.getInstance(), pThreadPoolSize, pPendingQueueSize);
+    }
+
+    /**
+     * Initialize a new tile provider whose tiles are loaded by the threads of the given
+     * executor, such as one of its own for a test.
+     */
+    protected MapTileModuleLayerBase(final SharedTileExecutor pExecutor, int pThreadPoolSize,
+            final int pPendingQueueSize) {
         if (pPendingQueueSize < pThreadPoolSize) {
             Log.w(TAG,
                     "The pending queue size is smaller than the thread pool size. Automatically reducing the thread pool size.");
             pThreadPoolSize = pPendingQueueSize;
         }
-        mExecutor = Executors.newFixedThreadPool(pThreadPoolSize,
-                new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, getThreadGroupName()));
+        mExecutor = pExecutor;
 
-        mWorking = new HashMap<MapTile, MapTileRequestState>();
-        mPending =
-                new LinkedHashMap<MapTile, MapTileRequestState>(pPendingQueueSize + 2, 0.1f, true) {
+        mWorking = new LongHashMap<MapTileRequestState>(pThreadPoolSize, false);
+        mPending = new LongHashMap<Pending>(pPendingQueueSize + 2, false);
+        mPendingQueueSize = pPendingQueueSize;
+        mMaximumActiveCount = Math.max(1, pThreadPoolSize);
+    }
 
-                    private static final long serialVersionUID = 6455337315681858866L;
+    /**
+     * Set the share of the tile threads this provider gets while other providers have tiles
+     * pending, see {@link SharedTileExecutor#setWeight}.
+     */
+    public void setWeight(final int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        }
+        mWeight = weight;
+    }
 
-                    @Override
-                    protected boolean removeEldestEntry(
-                            final Map.Entry<MapTile, MapTileRequestState> pEldest) {
-                        while (size() > pPendingQueueSize) {
-                            MapTileRequestState state = popFirstPending();
-                            state.getCallback().mapTileRequestFailed(state);
-                        }
-                        return false;
-                    }
-                };
+    public int getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * @return the number of tiles this provider may load at once
+     */
+    public int getMaximumActiveCount() {
+        return mMaximumActiveCount;
+    }
+
+    /**
+     * @return the number of tiles waiting to be loaded
+     */
+    public int getPendingCount() {
+        synchronized (mQueueLockObject) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * @return the number of tiles being loaded
+     */
+    public int getWorkingCount() {
+        synchronized (mQueueLockObject) {
+            return mWorking.size();
+        }
+    }
+
+    /**
+     * Load the next pending tile on the calling thread, for the {@link SharedTileExecutor}.
+     *
+     * @return false if there was no pending tile
+     */
+    boolean loadNextTile() {
+        final Runnable loader = getTileLoader();
+        if (loader instanceof TileLoader) {
+            return ((TileLoader) loader).loadNextTile();
+        }
+        // a loader of its own drains the queue
+        loader.run();
+        return false;
     }
 
     /**
@@ -163,21 +421,25 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
         synchronized (mQueueLockObject) {
 /*
                 Log.d(TAG, "MapTileModuleLayerBase.loadMaptileAsync() on provider: " + getName() + " for tile: " + pState.getMapTile());
-                if (mPending.containsKey(pState.getMapTile())) {
+                if (mPending.containsKey(pState.getMapTile().getKey())) {
                     Log.d(TAG, "MapTileModuleLayerBase.loadMaptileAsync() tile already exists in request queue for modular provider. Moving to front of queue.");
                 } else {
                     Log.d(TAG, "MapTileModuleLayerBase.loadMaptileAsync() adding tile to request queue for modular provider.");
                 }
 */
-            // this will put the tile in the queue, or move it to the front of
-            // the queue if it's already present
-            mPending.put(pState.getMapTile(), pState);
+            // this will put the tile in the queue, or make it the newest request if it's
+            // already present
+            putPending(pState);
+            // make room by dropping the request furthest from the viewport. Its tile is not
+            // broken, so it must not fall through to the next provider.
+            while (mPending.size() > mPendingQueueSize) {
+                MapTileRequestState state = popLastPending();
+                state.getCallback().mapTileRequestCancelled(state);
+            }
         }
 
-        try {
-            mExecutor.execute(getTileLoader());
-        } catch (final RejectedExecutionException e) {
-            Log.w(TAG, "RejectedExecutionException", e);
+        if (!mDetached) {
+            mExecutor.signal(this);
         }
     }
 
@@ -187,16 +449,29 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
     protected void clearQueue() {
         synchronized (mQueueLockObject) {
             mPending.clear();
+            mPendingOrder.clear();
             mWorking.clear();
         }
     }
 
+    /**
+     * @return true once the provider is detached, tiles still loading are then dropped
+     */
+    protected boolean isDetached() {
+        return mDetached;
+    }
+
     /**
      * Detach, we're shutting down - Stops all workers.
      */
     public void detach() {
+        mDetached = true;
+        final ArrayList<MapTileRequestState> working = new ArrayList<MapTileRequestState>();
+        synchronized (mQueueLockObject) {
+            mWorking.values(working);
+        }
         this.clearQueue();
-        this.mExecutor.shutdown();
+        cancel(working);
     }
 
     /**
@@ -210,8 +485,8 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
                         + " for tile: "
                         + mapTile);
             }
-            mPending.remove(mapTile);
-            mWorking.remove(mapTile);
+            removePending(mapTile.getKey());
+            mWorking.remove(mapTile.getKey());
         }
     }
 
@@ -232,6 +507,20 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
         protected abstract Drawable loadTile(MapTileRequestState pState)
                 throws CantContinueException;
 
+        /**
+         * Start loading the requested tile for loaders that finish it on another thread, so this
+         * one can move on to the next request. A loader that returns true must report the
+         * result later with {@link #tileLoadFinished}. The default implementation returns false,
+         * and the tile is then loaded on this thread with {@link #loadTile}.
+         *
+         * @return true if the request was handed over
+         * @throws CantContinueException
+         */
+        protected boolean handOffTile(final MapTileRequestState pState)
+                throws CantContinueException {
+            return false;
+        }
+
         protected void onTileLoaderInit() {
             // Do nothing by default
         }
@@ -243,12 +532,10 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
         protected MapTileRequestState nextTile() {
 
             synchronized (mQueueLockObject) {
-                // get the most recently accessed tile
-                // - the last item in the iterator that's not already being
-                // processed
+                // get the pending tile closest to the center of the viewport
                 MapTileRequestState state = popFirstPending();
                 if (state != null) {
-                    mWorking.put(state.getMapTile(), state);
+                    mWorking.put(state.getMapTile().getKey(), state);
                     if (DEBUG_TILE_PROVIDERS) {
                         Log.d(TAG, "TileLoader.nextTile() on provider: "
                                 + getName()
@@ -284,6 +571,41 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
             pState.getCallback().mapTileRequestExpiredTile(pState, pDrawable);
         }
 
+        /**
+         * Report the result of loading a tile, from any thread.
+         *
+         * @param pDrawable the tile, or null if it couldn't be loaded and other tile providers
+         *                  need to be called, or if the request was cancelled
+         */
+        protected void tileLoadFinished(final MapTileRequestState pState,
+                final Drawable pDrawable) {
+            if (pDrawable == null && pState.isCancelled()) {
+                tileLoadedCancelled(pState);
+            } else if (pDrawable == null) {
+                tileLoadedFailed(pState);
+            } else if (BitmapUtils.isCacheDrawableExpired(pDrawable)) {
+                tileLoadedExpired(pState, (CacheableBitmapDrawable) pDrawable);
+            } else {
+                tileLoaded(pState, pDrawable);
+            }
+        }
+
+        /**
+         * The request was cancelled while its tile was loading, see
+         * {@link MapTileRequestState#cancel()}. This is not a failure: the tile isn't broken and
+         * must not fall through to the next provider.
+         */
+        protected void tileLoadedCancelled(final MapTileRequestState pState) {
+            if (DEBUG_TILE_PROVIDERS) {
+                Log.i(TAG, "TileLoader.tileLoadedCancelled() on provider: "
+                        + getName()
+                        + " with tile: "
+                        + pState.getMapTile());
+            }
+            removeTileFromQueues(pState.getMapTile());
+            pState.getCallback().mapTileRequestCancelled(pState);
+        }
+
         protected void tileLoadedFailed(final MapTileRequestState pState) {
             if (DEBUG_TILE_PROVIDERS) {
                 Log.i(TAG, "TileLoader.tileLoadedFailed() on provider: "
@@ -295,6 +617,33 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
             pState.getCallback().mapTileRequestFailed(pState);
         }
 
+        /**
+         * Load the next pending tile.
+         *
+         * @return false if there was no pending tile
+         */
+        boolean loadNextTile() {
+            final MapTileRequestState state = nextTile();
+            if (state == null) {
+                return false;
+            }
+            Drawable result = null;
+            try {
+                if (handOffTile(state)) {
+                    return true;
+                }
+                result = loadTile(state);
+            } catch (final CantContinueException e) {
+                Log.e(TAG, "Tile loader can't continue: " + state.getMapTile(), e);
+                clearQueue();
+            } catch (final Throwable e) {
+                Log.e(TAG, "Error downloading tile: " + state.getMapTile(), e);
+            }
+
+            tileLoadFinished(state, result);
+            return true;
+        }
+
         /**
          * This is a functor class of type Runnable. The run method is the encapsulated function.
          */
@@ -305,26 +654,8 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
 
             onTileLoaderInit();
 
-            MapTileRequestState state;
-            Drawable result = null;
-            while ((state = nextTile()) != null) {
-                try {
-                    result = null;
-                    result = loadTile(state);
-                } catch (final CantContinueException e) {
-                    Log.e(TAG, "Tile loader can't continue: " + state.getMapTile(), e);
-                    clearQueue();
-                } catch (final Throwable e) {
-                    Log.e(TAG, "Error downloading tile: " + state.getMapTile(), e);
-                }
-
-                if (result == null) {
-                    tileLoadedFailed(state);
-                } else if (BitmapUtils.isCacheDrawableExpired(result)) {
-                    tileLoadedExpired(state, (CacheableBitmapDrawable) result);
-                } else {
-                    tileLoaded(state, result);
-                }
+            while (loadNextTile()) {
+                // until the queue is empty
             }
 
             onTileLoaderShutdown();
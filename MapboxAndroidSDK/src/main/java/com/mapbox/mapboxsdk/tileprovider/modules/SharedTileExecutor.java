@@ -0,0 +1,224 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.os.Process;
+import android.util.Log;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import java.util.ArrayList;
+
+/**
+ * The threads that load tiles for every {@link MapTileModuleLayerBase} of the process, so that
+ * a map of several layers, or several maps, share one limit on the tiles loaded at once instead
+ * of each provider having a pool of its own.
+ * <p/>
+ * Providers are served one tile at a time by stride scheduling: every tile a provider loads
+ * moves it forward in virtual time by the inverse of its weight, and the provider with pending
+ * tiles furthest behind goes next. A layer of weight 2 thus gets twice the tiles of a layer of
+ * weight 1 while both have tiles pending, and a provider that was idle starts again at the
+ * current time instead of catching up on the time it skipped. A provider also never has more
+ * tiles loading at once than its own limit.
+ * <p/>
+ * This class is thread safe.
+ */
+public final class SharedTileExecutor implements TileLayerConstants {
+
+    private static final String TAG = "SharedTileExecutor";
+
+    /**
+     * The weight of a provider unless it is given another one, see
+     * {@link MapTileModuleLayerBase#setWeight(int)}.
+     */
+    public static final int DEFAULT_WEIGHT = 1;
+
+    private static final long STRIDE = 1 << 20;
+
+    private static SharedTileExecutor sInstance;
+
+    private static final class Source {
+        final MapTileModuleLayerBase provider;
+        // virtual time, the provider furthest behind goes next
+        long pass;
+        int active;
+        // how often the provider was told it has pending tiles
+        int signals;
+
+        Source(final MapTileModuleLayerBase provider) {
+            this.provider = provider;
+        }
+    }
+
+    private final int mThreadCount;
+    private Thread[] mWorkers;
+
+    // the providers that may have pending tiles or are loading some, guarded by this. Idle
+    // providers are dropped, so providers that are never detached aren't kept alive.
+    private final ArrayList<Source> mSources = new ArrayList<Source>();
+    private long mVirtualTime;
+    private int mActive;
+
+    /**
+     * @return the executor of the process, with {@link #NUMBER_OF_TILE_DOWNLOAD_THREADS} threads
+     */
+    public static synchronized SharedTileExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new SharedTileExecutor(NUMBER_OF_TILE_DOWNLOAD_THREADS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Create an executor of its own, for providers that must not share the threads of the
+     * process, such as in tests.
+     *
+     * @param threadCount the number of tiles loaded at once, by every provider together
+     */
+    public SharedTileExecutor(final int threadCount) {
+        mThreadCount = threadCount;
+    }
+
+    /**
+     * Tell the workers that a provider has pending tiles.
+     */
+    synchronized void signal(final MapTileModuleLayerBase provider) {
+        Source source = find(provider);
+        if (source == null) {
+            source = new Source(provider);
+            // no credit for the time it was idle
+            source.pass = mVirtualTime;
+            mSources.add(source);
+            if (mWorkers == null) {
+                startWorkers();
+            }
+        }
+        source.signals++;
+        notifyAll();
+    }
+
+    /**
+     * @return the number of tiles a provider is loading
+     */
+    public synchronized int getActiveCount(final MapTileModuleLayerBase provider) {
+        final Source source = find(provider);
+        return source != null ? source.active : 0;
+    }
+
+    /**
+     * @return the number of tiles waiting for a thread in a provider's queue
+     */
+    public int getQueueDepth(final MapTileModuleLayerBase provider) {
+        return provider.getPendingCount();
+    }
+
+    /**
+     * @return the number of tiles loading, by every provider together
+     */
+    public synchronized int getActiveCount() {
+        return mActive;
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * @return the number of providers with tiles pending or loading
+     */
+    public synchronized int getProviderCount() {
+        return mSources.size();
+    }
+
+    private Source find(final MapTileModuleLayerBase provider) {
+        for (int i = 0; i < mSources.size(); i++) {
+            if (mSources.get(i).provider == provider) {
+                return mSources.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the provider furthest behind in virtual time that may load one more tile,
+     * or null if there is none. Must be called while holding this.
+     */
+    private Source next() {
+        Source result = null;
+        for (int i = 0; i < mSources.size(); i++) {
+            final Source source = mSources.get(i);
+            if (source.active < source.provider.getMaximumActiveCount()
+                    && (result == null || source.pass < result.pass)) {
+                result = source;
+            }
+        }
+        return result;
+    }
+
+    private void startWorkers() {
+        mWorkers = new Thread[mThreadCount];
+        for (int i = 0; i < mThreadCount; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "tileworker-" + i);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    private void work() {
+        // Make sure we're running with a background priority
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            final Source source;
+            final int signals;
+            synchronized (this) {
+                Source next;
+                while ((next = next()) == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // the workers live as long as the process
+                    }
+                }
+                source = next;
+                signals = source.signals;
+                source.active++;
+                mActive++;
+                mVirtualTime = source.pass;
+                source.pass += STRIDE / source.provider.getWeight();
+            }
+
+            boolean loaded = false;
+            try {
+                loaded = source.provider.loadNextTile();
+            } catch (final Throwable e) {
+                Log.e(TAG, "Error loading tile of " + source.provider.getName(), e);
+            }
+
+            synchronized (this) {
+                source.active--;
+                mActive--;
+                if (!loaded && source.signals == signals && source.active == 0) {
+                    // its queue is empty and nothing was requested since
+                    mSources.remove(source);
+                }
+                // a provider at its limit may go again
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder result = new StringBuilder("SharedTileExecutor[threads=")
+                .append(mThreadCount).append(",active=").append(mActive);
+        for (int i = 0; i < mSources.size(); i++) {
+            final Source source = mSources.get(i);
+            result.append(',').append(source.provider.getName())
+                    .append("[weight=").append(source.provider.getWeight())
+                    .append(",active=").append(source.active)
+                    .append(",pending=").append(source.provider.getPendingCount()).append(']');
+        }
+        return result.append(']').toString();
+    }
+}
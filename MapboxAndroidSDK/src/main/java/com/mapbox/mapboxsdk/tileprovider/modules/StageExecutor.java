@@ -0,0 +1,59 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stage of the tile loading pipeline: a fixed pool of threads fed by a bounded queue.
+ * <p/>
+ * When the queue is full {@link #execute(Runnable)} blocks until there is room, so a stage that
+ * can't keep up slows down the stage feeding it instead of piling up work, and tile requests
+ * wait in their provider's pending queue where they can still be reprioritized or cancelled.
+ * Once the stage is shut down, execute throws {@link RejectedExecutionException}.
+ */
+public class StageExecutor extends ThreadPoolExecutor {
+
+    private static final RejectedExecutionHandler BLOCK_WHEN_FULL =
+            new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(final Runnable r,
+                        final ThreadPoolExecutor executor) {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("Stage is shut down");
+                    }
+                    try {
+                        executor.getQueue().put(r);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                    // lost a race with shutdown(), which won't run queued work it didn't see
+                    if (executor.isShutdown() && executor.remove(r)) {
+                        throw new RejectedExecutionException("Stage is shut down");
+                    }
+                }
+            };
+
+    /**
+     * @param name the name of the threads
+     * @param threads the number of threads
+     * @param queueSize how many tasks may wait for a thread
+     * @param priority the {@link Thread} priority of the threads
+     */
+    public StageExecutor(final String name, final int threads, final int queueSize,
+            final int priority) {
+        super(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ConfigurablePriorityThreadFactory(priority, name), BLOCK_WHEN_FULL);
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+}
@@ -8,8 +8,11 @@ import android.util.Log;
 
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.TileKey;
+import com.mapbox.mapboxsdk.tileprovider.TileViewport;
 import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesFileArchive;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
+import com.mapbox.mapboxsdk.util.LongHashMap;
 import com.mapbox.mapboxsdk.views.util.constants.MapViewConstants;
 
 import java.io.File;
@@ -29,6 +32,20 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
     private static final String TAG = "MBTilesLayer";
     MBTilesFileArchive mbTilesFileArchive;
 
+    /**
+     * Viewports with more tiles than this are read tile by tile.
+     */
+    private static final int MAX_BATCH_TILES = 64;
+
+    // tiles read together with the rest of their viewport that haven't been requested yet,
+    // keyed by TileKey.pack(0, z, x, y). Guarded by mBatchLock, like the viewports.
+    private final Object mBatchLock = new Object();
+    private final LongHashMap<byte[]> mBatch = new LongHashMap<byte[]>();
+    private final TileViewport mBatchViewport = new TileViewport();
+    private final TileViewport mViewport = new TileViewport();
+    // while a batch is read, the range of mBatchViewport
+    private boolean mBatchLoading;
+
     /**
      * Initialize a new tile layer, represented by a MBTiles file.
      *
@@ -187,16 +204,32 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
             mbTilesFileArchive.close();
             mbTilesFileArchive = null;
         }
+        synchronized (mBatchLock) {
+            mBatch.clear();
+        }
+    }
+
+    /**
+     * The archive's tiles are read at the size they were stored, whatever the screen.
+     */
+    @Override
+    protected int getSourceTileSize(final boolean hdpi) {
+        return super.getSourceTileSize(false);
     }
 
     @Override
     public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
                                                        final MapTile aTile, boolean hdpi) {
-        if (mbTilesFileArchive != null) {
-            InputStream stream = mbTilesFileArchive.getInputStream(this, aTile);
-            if (stream != null) {
+        final MBTilesFileArchive archive = mbTilesFileArchive;
+        if (archive != null) {
+            byte[] data = getBatchedTileData(archive, downloader, aTile);
+            if (data == null) {
+                data = archive.getTileData(aTile.getZ(), aTile.getX(), aTile.getY());
+            }
+            if (data != null) {
                 CacheableBitmapDrawable result =
-                        downloader.getCache().putTileStream(aTile, stream, null);
+                        downloader.getCache().putTileData(aTile, data,
+                                getDecodeOptions(hdpi));
                 if (result == null) {
                     Log.d(TAG, "error reading stream from mbtiles");
                 }
@@ -205,4 +238,75 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
         }
         return null;
     }
+
+    /**
+     * When the viewport moves to a new range of tiles, the first tile requested in it reads the
+     * whole range in one query and the other loaders pick their tile from that batch, instead of
+     * running one query per tile. The query runs outside of the lock: loaders of tiles in the
+     * range wait for it, the others read their tile on their own meanwhile.
+     *
+     * @return the image of the tile, or null if it has to be read on its own
+     */
+    private byte[] getBatchedTileData(final MBTilesFileArchive archive,
+            final MapTileDownloader downloader, final MapTile aTile) {
+        final long key = TileKey.pack(0, aTile.getZ(), aTile.getX(), aTile.getY());
+        final int zoom;
+        final int left;
+        final int top;
+        final int right;
+        final int bottom;
+        synchronized (mBatchLock) {
+            while (true) {
+                final byte[] data = mBatch.remove(key);
+                if (data != null) {
+                    return data;
+                }
+                if (!mBatchLoading || !mBatchViewport.isVisible(aTile)) {
+                    break;
+                }
+                try {
+                    mBatchLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if (mBatchLoading || !downloader.getViewport(mViewport)
+                    || mViewport.getZoom() != aTile.getZ() || !mViewport.isVisible(aTile)
+                    || !mBatchViewport.set(mViewport)) {
+                return null;
+            }
+            // clamp to the world instead of wrapping, the batch only needs to be mostly useful
+            final int max = (1 << mViewport.getZoom()) - 1;
+            zoom = mViewport.getZoom();
+            left = Math.max(mViewport.getLeft(), 0);
+            top = Math.max(mViewport.getTop(), 0);
+            right = Math.min(mViewport.getRight(), max);
+            bottom = Math.min(mViewport.getBottom(), max);
+            if (right < left || bottom < top
+                    || (right - left + 1) * (bottom - top + 1) > MAX_BATCH_TILES) {
+                return null;
+            }
+            // tiles of the previous viewport that weren't requested won't be
+            mBatch.clear();
+            mBatchLoading = true;
+        }
+        final LongHashMap<byte[]> batch = new LongHashMap<byte[]>();
+        try {
+            archive.getTiles(zoom, left, top, right, bottom, batch);
+        } finally {
+            synchronized (mBatchLock) {
+                mBatchLoading = false;
+                // unless the layer was detached meanwhile
+                if (mbTilesFileArchive == archive) {
+                    for (long batchKey : batch.keys()) {
+                        mBatch.put(batchKey, batch.get(batchKey));
+                    }
+                    mBatch.remove(key);
+                }
+                mBatchLock.notifyAll();
+            }
+        }
+        return batch.get(key);
+    }
 }
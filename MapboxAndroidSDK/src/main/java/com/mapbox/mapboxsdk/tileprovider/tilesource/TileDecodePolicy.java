@@ -0,0 +1,119 @@
+package com.mapbox.mapboxsdk.tileprovider.tilesource;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.DisplayMetrics;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+
+/**
+ * How the images of a tile layer are decoded, see {@link TileLayer#setDecodePolicy}.
+ * <p/>
+ * Base layers that cover the whole map have no use for an alpha channel and can be decoded to
+ * {@link Bitmap.Config#RGB_565}, half the memory of {@link Bitmap.Config#ARGB_8888}, so that
+ * the memory cache holds twice as many of their tiles. Overlay layers keep their alpha.
+ * <p/>
+ * Tiles larger than they are ever drawn, such as @2x tiles on a screen of less than twice the
+ * default density, can also be scaled down while they are decoded, with
+ * {@link BitmapFactory.Options#inSampleSize} and then
+ * {@link BitmapFactory.Options#inDensity}. Scaled tiles are never decoded into reused bitmaps.
+ */
+public class TileDecodePolicy {
+
+    /**
+     * Tiles with transparency, decoded as they are downloaded. The default of every layer.
+     */
+    public static final TileDecodePolicy OVERLAY = new TileDecodePolicy(false, 0);
+
+    /**
+     * Opaque tiles, decoded to {@link Bitmap.Config#RGB_565} at the size they are downloaded.
+     */
+    public static final TileDecodePolicy OPAQUE = new TileDecodePolicy(true, 0);
+
+    private final boolean mOpaque;
+    private final int mMaximumTileSize;
+
+    /**
+     * @param opaque true if the tiles have no transparent pixels
+     * @param maximumTileSize the size in pixels tiles are scaled down to if they are larger, or
+     *                        0 to keep them at their size
+     */
+    public TileDecodePolicy(final boolean opaque, final int maximumTileSize) {
+        mOpaque = opaque;
+        mMaximumTileSize = maximumTileSize;
+    }
+
+    /**
+     * A policy that scales tiles down to the size the default tile takes on a display.
+     *
+     * @param metrics the metrics of the display the map is shown on
+     * @param opaque true if the tiles have no transparent pixels
+     */
+    public static TileDecodePolicy forDisplay(final DisplayMetrics metrics,
+            final boolean opaque) {
+        return new TileDecodePolicy(opaque,
+                Math.round(TileLayerConstants.DEFAULT_TILE_SIZE * metrics.density));
+    }
+
+    public boolean isOpaque() {
+        return mOpaque;
+    }
+
+    /**
+     * @return the size in pixels tiles are scaled down to, 0 if they aren't
+     */
+    public int getMaximumTileSize() {
+        return mMaximumTileSize;
+    }
+
+    public Bitmap.Config getConfig() {
+        return mOpaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Options for decoding one tile. They are changed by the decoding and can't be shared.
+     *
+     * @param sourceTileSize the size in pixels of the downloaded tiles
+     */
+    public BitmapFactory.Options newDecodeOptions(final int sourceTileSize) {
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inPreferredConfig = getConfig();
+        // dithering hides the banding of gradients in 16 bits
+        opts.inDither = mOpaque;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // the images of tiles made of several URLs are drawn into the first one
+            opts.inMutable = true;
+        }
+        if (mMaximumTileSize > 0 && sourceTileSize > mMaximumTileSize) {
+            int sampleSize = 1;
+            while (sourceTileSize / (sampleSize * 2) >= mMaximumTileSize) {
+                sampleSize *= 2;
+            }
+            opts.inSampleSize = sampleSize;
+            final int sampledSize = sourceTileSize / sampleSize;
+            if (sampledSize != mMaximumTileSize) {
+                opts.inScaled = true;
+                opts.inDensity = sampledSize;
+                opts.inTargetDensity = mMaximumTileSize;
+            }
+        }
+        return opts;
+    }
+
+    /**
+     * @param sourceTileSize the size in pixels of the downloaded tiles
+     * @return the number of bytes of a decoded tile
+     */
+    public int getTileBytes(final int sourceTileSize) {
+        final int size = mMaximumTileSize > 0
+                ? Math.min(sourceTileSize, mMaximumTileSize)
+                : sourceTileSize;
+        return size * size * (mOpaque ? 2 : 4);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TileDecodePolicy[config=%s,maximumTileSize=%d]", getConfig(),
+                mMaximumTileSize);
+    }
+}
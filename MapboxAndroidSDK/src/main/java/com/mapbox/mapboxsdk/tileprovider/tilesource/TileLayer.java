@@ -1,5 +1,6 @@
 package com.mapbox.mapboxsdk.tileprovider.tilesource;
 
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
@@ -22,6 +23,7 @@ public class TileLayer implements ITileLayer, TileLayerConstants, MapViewConstan
     protected BoundingBox mBoundingBox = WORLD_BOUNDING_BOX;
     protected LatLng mCenter = new LatLng(0, 0);
     private final int mTileSizePixels = DEFAULT_TILE_SIZE;
+    protected TileDecodePolicy mDecodePolicy = TileDecodePolicy.OVERLAY;
 
     public TileLayer(final String pId, final String aUrl) {
         mUrl = aUrl;
@@ -76,6 +78,44 @@ public class TileLayer implements ITileLayer, TileLayerConstants, MapViewConstan
         return this;
     }
 
+    /**
+     * Sets how the layer's tiles are decoded, {@link TileDecodePolicy#OVERLAY} by default.
+     * Opaque base layers should use {@link TileDecodePolicy#OPAQUE} to take half the memory.
+     */
+    public TileLayer setDecodePolicy(final TileDecodePolicy aDecodePolicy) {
+        this.mDecodePolicy = aDecodePolicy;
+        return this;
+    }
+
+    public TileDecodePolicy getDecodePolicy() {
+        return mDecodePolicy;
+    }
+
+    /**
+     * Options for decoding one of the layer's tiles, following its {@link TileDecodePolicy}.
+     *
+     * @param hdpi a boolean that indicates whether the tile is at 2x or retina size
+     */
+    public BitmapFactory.Options getDecodeOptions(final boolean hdpi) {
+        return mDecodePolicy.newDecodeOptions(getSourceTileSize(hdpi));
+    }
+
+    /**
+     * @param hdpi a boolean that indicates whether the tile is at 2x or retina size
+     * @return the number of bytes of one of the layer's tiles once it is decoded
+     */
+    public int getDecodedTileBytes(final boolean hdpi) {
+        return mDecodePolicy.getTileBytes(getSourceTileSize(hdpi));
+    }
+
+    /**
+     * @param hdpi a boolean that indicates whether 2x or retina tiles are requested
+     * @return the size in pixels of the layer's tiles as they are downloaded
+     */
+    protected int getSourceTileSize(final boolean hdpi) {
+        return hdpi ? 2 * getTileSizePixels() : getTileSizePixels();
+    }
+
     public Drawable getDrawableFromTile(final MapTileDownloader downloader, final MapTile aTile,
             boolean hdpi) {
         return null;
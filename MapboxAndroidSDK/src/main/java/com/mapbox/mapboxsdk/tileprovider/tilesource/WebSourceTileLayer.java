@@ -10,12 +10,35 @@ import android.util.Log;
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.TileMetadata;
+import com.mapbox.mapboxsdk.tileprovider.cache.NegativeTileCache;
+import com.mapbox.mapboxsdk.tileprovider.cache.TileDiskWriter;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
+import com.mapbox.mapboxsdk.tileprovider.util.StreamUtils;
+import com.mapbox.mapboxsdk.util.HostCircuitBreaker;
+import com.mapbox.mapboxsdk.util.NetworkStack;
 import com.mapbox.mapboxsdk.util.NetworkUtils;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
 import com.mapbox.mapboxsdk.views.util.TilesLoadedListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -25,7 +48,7 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
     private static final String TAG = "WebSourceTileLayer";
 
-    // Tracks the number of threads active in the getBitmapFromURL method.
+    // Tracks the number of threads active in the getDataFromURL method.
     private AtomicInteger activeThreads = new AtomicInteger(0);
     protected boolean mEnableSSL = false;
 
@@ -91,63 +114,422 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
                 .replace("{2x}", hdpi ? "@2x" : "");
     }
 
+    /**
+     * Initial size of the buffer holding a downloaded tile, enough for most 256px tiles.
+     */
+    private static final int ENCODED_TILE_BUFFER_SIZE = 32 * 1024;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
     private static final Paint compositePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
-    private Bitmap compositeBitmaps(final Bitmap source, Bitmap dest) {
+    @Override
+    protected int getSourceTileSize(final boolean hdpi) {
+        return super.getSourceTileSize(this instanceof MapboxTileLayer ? false : hdpi);
+    }
+
+    /**
+     * Draw source over dest. A dest that can't be drawn into, such as one decoded before API 11,
+     * is replaced by a mutable copy.
+     *
+     * @return the bitmap source was drawn into
+     */
+    private static Bitmap compositeBitmaps(final Bitmap source, Bitmap dest) {
+        if (!dest.isMutable()) {
+            final Bitmap copy = dest.copy(
+                    dest.getConfig() != null ? dest.getConfig() : Bitmap.Config.ARGB_8888, true);
+            dest.recycle();
+            dest = copy;
+        }
         Canvas canvas = new Canvas(dest);
         canvas.drawBitmap(source, 0, 0, compositePaint);
         return dest;
     }
 
+    /**
+     * The images of a tile as they were downloaded, see {@link #downloadTile}.
+     */
+    public static class Download {
+        private final ArrayList<byte[]> mImages = new ArrayList<byte[]>();
+        private TileMetadata mMetadata;
+
+        /**
+         * @return the encoded image of every URL of the tile that could be downloaded, in the
+         * order they are composited
+         */
+        public List<byte[]> getImages() {
+            return mImages;
+        }
+
+        /**
+         * @return the HTTP caching metadata of the images, merged, or null if the server sent
+         * none
+         */
+        public TileMetadata getMetadata() {
+            return mMetadata;
+        }
+    }
+
     @Override
     public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
             final MapTile aTile, boolean hdpi) {
-        if (downloader.isNetworkAvailable()) {
-            TilesLoadedListener listener = downloader.getTilesLoadedListener();
+        final Download download = downloadTile(downloader, aTile, hdpi);
+        return download != null ? decodeTile(downloader, aTile, download) : null;
+    }
+
+    /**
+     * Download the images of a tile without decoding them, the network half of
+     * {@link #getDrawableFromTile}.
+     *
+     * @param downloader the downloader the tile was requested from
+     * @param aTile a map tile
+     * @param hdpi a boolean that indicates whether the tile should be at 2x or retina size
+     * @return the images, or null if none of them could be downloaded, or one of them failed
+     * with anything but a missing tile
+     */
+    public Download downloadTile(final MapTileDownloader downloader, final MapTile aTile,
+            final boolean hdpi) {
+        return downloadTile(downloader, aTile, hdpi, null);
+    }
+
+    /**
+     * Download the images of a tile without decoding them, and tell why if none could be.
+     *
+     * @param failure if not null, receives in its first element why the tile couldn't be
+     *                downloaded: {@link NegativeTileCache.Reason#NOT_FOUND} only if every URL
+     *                of the tile is missing from its server
+     * @see #downloadTile(MapTileDownloader, MapTile, boolean)
+     */
+    public Download downloadTile(final MapTileDownloader downloader, final MapTile aTile,
+            final boolean hdpi, final NegativeTileCache.Reason[] failure) {
+        return downloadTile(downloader, aTile, hdpi, failure, null);
+    }
+
+    /**
+     * Download the images of a tile without decoding them, and stop as soon as the request for
+     * the tile is cancelled.
+     *
+     * @param request the request for the tile, or null. Once it is cancelled the connections
+     *                still open are closed, and null is returned without a failure.
+     * @see #downloadTile(MapTileDownloader, MapTile, boolean, NegativeTileCache.Reason[])
+     */
+    public Download downloadTile(final MapTileDownloader downloader, final MapTile aTile,
+            final boolean hdpi, final NegativeTileCache.Reason[] failure,
+            final MapTileRequestState request) {
+        if (!downloader.isNetworkAvailable()) {
+            if (failure != null) {
+                failure[0] = NegativeTileCache.Reason.OFFLINE;
+            }
+            return null;
+        }
+        final String[] urls = getTileURLs(aTile, this instanceof MapboxTileLayer ? false : hdpi);
+        if (urls == null) {
+            return null;
+        }
+        final TilesLoadedListener listener = downloader.getTilesLoadedListener();
+        if (listener != null) {
+            listener.onTilesLoadStarted();
+        }
+        final Download download = new Download();
+        final NegativeTileCache.Reason reason = urls.length == 1
+                ? fetchComponent(urls[0], download, request)
+                : fetchComponents(urls, download, request);
+        if (checkThreadControl()) {
+            if (listener != null) {
+                listener.onTilesLoaded();
+            }
+        }
+        if (isCancelled(request) || Thread.currentThread().isInterrupted()) {
+            // not a failure of the tile
+            return null;
+        }
+        if ((reason != null && reason != NegativeTileCache.Reason.NOT_FOUND)
+                || download.mImages.isEmpty()) {
+            if (failure != null) {
+                failure[0] = reason != null ? reason : NegativeTileCache.Reason.SERVER_ERROR;
+            }
+            return null;
+        }
+        return download;
+    }
+
+    /**
+     * An image of a tile composited from several URLs.
+     */
+    private static final class Component {
+        final String url;
+        int index;
+        byte[] image;
+        TileMetadata metadata;
+        NegativeTileCache.Reason failure;
+
+        Component(final String url) {
+            this.url = url;
+        }
+    }
 
-            boolean tempHDPI = hdpi;
-            if (this instanceof MapboxTileLayer) {
-                tempHDPI = false;
+    /**
+     * The size in bytes of the images kept from tiles of several URLs that could not all be
+     * downloaded, see {@link #fetchComponents}.
+     */
+    private static final int COMPONENT_CACHE_SIZE = 1024 * 1024;
+
+    // images of incomplete composite tiles by URL, oldest first, guarded by itself
+    private final LinkedHashMap<String, Component> mComponentCache =
+            new LinkedHashMap<String, Component>();
+    private int mComponentCacheBytes;
+
+    /**
+     * Download the only image of a tile.
+     *
+     * @return why it couldn't be, or null
+     */
+    private NegativeTileCache.Reason fetchComponent(final String url, final Download download,
+            final MapTileRequestState request) {
+        final Component component = fetch(url, request);
+        if (component.image != null) {
+            download.mImages.add(component.image);
+            download.mMetadata = component.metadata;
+        }
+        return component.failure;
+    }
+
+    /**
+     * Download the images of a tile composited from several URLs at once, on the threads of the
+     * {@link NetworkStack}, so that the tile takes as long as its slowest image rather than all
+     * of them one after the other.
+     * <p/>
+     * An image missing from its server is left out of the composite, like a sparse overlay.
+     * Any other failure fails the tile as soon as it happens: the connections of the images
+     * still in flight are closed, and the images downloaded before are kept so that only the
+     * missing ones are requested again the next time. So are the images that arrive after the
+     * tile failed or was cancelled.
+     *
+     * @return the failure of the first image that failed, which fails the tile,
+     * {@link NegativeTileCache.Reason#NOT_FOUND} if every image is missing, or null, also if
+     * the thread was interrupted
+     */
+    private NegativeTileCache.Reason fetchComponents(final String[] urls,
+            final Download download, final MapTileRequestState request) {
+        // cancelled once the tile fails or its request is, which closes the connections of the
+        // images still downloading: a blocking read doesn't heed an interrupt
+        final MapTileRequestState siblings = new MapTileRequestState(
+                request != null ? request.getMapTile() : null, null, null);
+        final Runnable cancelSiblings = new Runnable() {
+            @Override
+            public void run() {
+                siblings.cancel();
             }
+        };
+        if (request != null) {
+            request.addCancelListener(cancelSiblings);
+        }
+        // every image downloaded until the tile is abandoned, those already taken from
+        // fetches included, guarded by itself
+        final ArrayList<Component> completed = new ArrayList<Component>(urls.length);
+        final AtomicBoolean abandoned = new AtomicBoolean();
 
-            String[] urls = getTileURLs(aTile, tempHDPI);
-            CacheableBitmapDrawable result = null;
-            Bitmap resultBitmap = null;
-            if (urls != null) {
-                MapTileCache cache = downloader.getCache();
-                if (listener != null) {
-                    listener.onTilesLoadStarted();
-                }
-                for (final String url : urls) {
-                    Bitmap bitmap = getBitmapFromURL(aTile, url, cache);
-                    if (bitmap == null) {
-                        continue;
+        final Component[] components = new Component[urls.length];
+        final ExecutorCompletionService<Component> fetches =
+                new ExecutorCompletionService<Component>(new Executor() {
+                    @Override
+                    public void execute(final Runnable command) {
+                        NetworkStack.getInstance().submit(Executors.callable(command));
                     }
-                    if (resultBitmap == null) {
-                        resultBitmap = bitmap;
-                    } else {
-                        resultBitmap = compositeBitmaps(bitmap, resultBitmap);
+                });
+        final ArrayList<Future<Component>> inFlight = new ArrayList<Future<Component>>();
+        for (int i = 0; i < urls.length; i++) {
+            components[i] = takeCachedComponent(urls[i]);
+            if (components[i] == null) {
+                final String url = urls[i];
+                final int index = i;
+                inFlight.add(fetches.submit(new Callable<Component>() {
+                    @Override
+                    public Component call() {
+                        final Component component = fetch(url, siblings);
+                        component.index = index;
+                        synchronized (completed) {
+                            if (!abandoned.get()) {
+                                completed.add(component);
+                            } else if (component.image != null) {
+                                putCachedComponent(component);
+                            }
+                        }
+                        return component;
                     }
+                }));
+            }
+        }
+
+        NegativeTileCache.Reason failed = null;
+        boolean interrupted = false;
+        try {
+            for (int done = 0; done < inFlight.size() && failed == null; done++) {
+                final Component component = fetches.take().get();
+                components[component.index] = component;
+                if (component.failure != NegativeTileCache.Reason.NOT_FOUND) {
+                    failed = component.failure;
                 }
-                if (resultBitmap != null) {
-                    //get drawable by putting it into cache (memory and disk)
-                    result = cache.putTileBitmap(aTile, resultBitmap);
-                }
-                if (checkThreadControl()) {
-                    if (listener != null) {
-                        listener.onTilesLoaded();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            interrupted = true;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error downloading MapTile: " + urls[0], e);
+            failed = NegativeTileCache.Reason.SERVER_ERROR;
+        } finally {
+            if (request != null) {
+                request.removeCancelListener(cancelSiblings);
+            }
+        }
+
+        if (failed != null || interrupted) {
+            synchronized (completed) {
+                abandoned.set(true);
+                for (Component component : completed) {
+                    if (component.image != null) {
+                        putCachedComponent(component);
                     }
                 }
             }
+            siblings.cancel();
+            for (Future<Component> fetch : inFlight) {
+                fetch.cancel(true);
+            }
+            return failed;
+        }
 
-            if (result != null) {
-                TileLoadedListener listener2 = downloader.getTileLoadedListener();
-                result = listener2 != null ? listener2.onTileLoaded(result) : result;
+        // composited in the order of the URLs, whatever order they arrived in
+        for (Component component : components) {
+            if (component.image == null) {
+                continue;
+            }
+            if (download.mImages.isEmpty()) {
+                download.mMetadata = component.metadata;
+            } else if (download.mMetadata != null && component.metadata != null) {
+                download.mMetadata.merge(component.metadata);
             }
+            download.mImages.add(component.image);
+        }
+        return download.mImages.isEmpty() ? NegativeTileCache.Reason.NOT_FOUND : null;
+    }
 
-            return result;
+    private Component fetch(final String url, final MapTileRequestState request) {
+        final Component component = new Component(url);
+        final TileMetadata[] metadata = new TileMetadata[1];
+        final NegativeTileCache.Reason[] failure = new NegativeTileCache.Reason[1];
+        component.image = getDataFromURL(url, metadata, failure, request);
+        component.metadata = metadata[0];
+        if (component.image == null) {
+            component.failure = failure[0] != null ? failure[0]
+                    : NegativeTileCache.Reason.SERVER_ERROR;
         }
-        return null;
+        return component;
+    }
+
+    private Component takeCachedComponent(final String url) {
+        synchronized (mComponentCache) {
+            final Component component = mComponentCache.remove(url);
+            if (component != null) {
+                mComponentCacheBytes -= component.image.length;
+            }
+            return component;
+        }
+    }
+
+    private void putCachedComponent(final Component component) {
+        if (component.image.length > COMPONENT_CACHE_SIZE) {
+            return;
+        }
+        synchronized (mComponentCache) {
+            final Component previous = mComponentCache.put(component.url, component);
+            if (previous != null) {
+                mComponentCacheBytes -= previous.image.length;
+            }
+            mComponentCacheBytes += component.image.length;
+            final Iterator<Component> eldest = mComponentCache.values().iterator();
+            while (mComponentCacheBytes > COMPONENT_CACHE_SIZE) {
+                mComponentCacheBytes -= eldest.next().image.length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Decode and composite the images of a tile and put the result in the memory cache, the CPU
+     * half of {@link #getDrawableFromTile}. Writing the tile to the disk cache is left to the
+     * downloader, see {@link MapTileDownloader#putTileInDiskCache}.
+     *
+     * @param downloader the downloader the tile was requested from
+     * @param aTile a map tile
+     * @param download the images of the tile
+     * @return the tile, or null if none of the images could be decoded
+     */
+    public CacheableBitmapDrawable decodeTile(final MapTileDownloader downloader,
+            final MapTile aTile, final Download download) {
+        return decodeTile(downloader, aTile, download, null);
+    }
+
+    /**
+     * Decode and composite the images of a tile, and stop as soon as the request for the tile
+     * is cancelled.
+     *
+     * @param request the request for the tile, or null. Once it is cancelled the decode under
+     *                way is aborted and null is returned.
+     * @see #decodeTile(MapTileDownloader, MapTile, Download)
+     */
+    public CacheableBitmapDrawable decodeTile(final MapTileDownloader downloader,
+            final MapTile aTile, final Download download, final MapTileRequestState request) {
+        final MapTileCache cache = downloader.getCache();
+        final List<byte[]> images = download.getImages();
+        Bitmap resultBitmap = null;
+        for (int i = 0; i < images.size(); i++) {
+            if (isCancelled(request)) {
+                return null;
+            }
+            final BitmapFactory.Options opts = downloader.getDecodeOptions();
+            final Runnable cancelDecode = opts == null ? null : new Runnable() {
+                @Override
+                public void run() {
+                    opts.requestCancelDecode();
+                }
+            };
+            if (request != null && cancelDecode != null) {
+                request.addCancelListener(cancelDecode);
+            }
+            final Bitmap bitmap;
+            try {
+                bitmap = cache.decodeBitmap(images.get(i), opts);
+            } finally {
+                if (request != null && cancelDecode != null) {
+                    request.removeCancelListener(cancelDecode);
+                }
+            }
+            if (bitmap == null && isCancelled(request)) {
+                return null;
+            } else if (bitmap == null) {
+                Log.e(TAG, "Error decoding MapTile: " + aTile);
+            } else if (resultBitmap == null) {
+                resultBitmap = bitmap;
+            } else {
+                resultBitmap = compositeBitmaps(bitmap, resultBitmap);
+            }
+        }
+        if (resultBitmap == null) {
+            return null;
+        }
+        // a single image is cached as downloaded, composites have to be re-compressed, before
+        // the bitmap is in the memory cache where it may be recycled
+        final byte[] data = images.size() == 1 ? images.get(0)
+                : MapTileCache.compress(resultBitmap);
+        CacheableBitmapDrawable result = cache.putTileInMemoryCache(aTile, resultBitmap);
+        cache.putTileDataInArena(aTile, data);
+        downloader.putTileInDiskCache(aTile, data, download.getMetadata());
+        final TileLoadedListener listener = downloader.getTileLoadedListener();
+        if (result != null && listener != null) {
+            result = listener.onTileLoaded(result);
+        }
+        return result;
     }
 
     /**
@@ -160,26 +542,265 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
      * @return the tile if valid, otherwise null
      */
     public Bitmap getBitmapFromURL(MapTile mapTile, final String url, final MapTileCache aCache) {
+        final byte[] data = getDataFromURL(url, null);
+        if (data == null) {
+            return null;
+        }
+        final Bitmap bitmap = aCache.decodeBitmap(data, getDecodeOptions(false));
+        if (bitmap != null) {
+            aCache.putTileInMemoryCache(mapTile, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Requests the encoded image at a given URL.
+     *
+     * @param url the map tile url. should refer to a valid bitmap resource.
+     * @param metadata if not null, receives the HTTP caching metadata of the response in its
+     *                 first element
+     * @return the response body, or null if the request failed
+     */
+    public byte[] getDataFromURL(final String url, final TileMetadata[] metadata) {
+        return getDataFromURL(url, metadata, null);
+    }
+
+    /**
+     * Requests the encoded image at a given URL, and tell why it couldn't be.
+     *
+     * @param failure if not null, receives in its first element why the request failed:
+     *                {@link NegativeTileCache.Reason#NOT_FOUND} for a 404, 410, 204 or an empty
+     *                body, {@link NegativeTileCache.Reason#SERVER_ERROR} for any other status or
+     *                error
+     * @see #getDataFromURL(String, TileMetadata[])
+     */
+    public byte[] getDataFromURL(final String url, final TileMetadata[] metadata,
+            final NegativeTileCache.Reason[] failure) {
+        return getDataFromURL(url, metadata, failure, null);
+    }
+
+    /**
+     * Requests the encoded image at a given URL, and stop as soon as the request for its tile
+     * is cancelled.
+     *
+     * @param request the request for the tile, or null. Once it is cancelled the connection is
+     *                closed and null is returned.
+     * @see #getDataFromURL(String, TileMetadata[], NegativeTileCache.Reason[])
+     */
+    public byte[] getDataFromURL(final String url, final TileMetadata[] metadata,
+            final NegativeTileCache.Reason[] failure, final MapTileRequestState request) {
         // We track the active threads here, every exit point should decrement this value.
         activeThreads.incrementAndGet();
 
-        if (TextUtils.isEmpty(url)) {
+        if (TextUtils.isEmpty(url) || isCancelled(request)) {
             activeThreads.decrementAndGet();
             return null;
         }
 
+        final NetworkStack networkStack = NetworkStack.getInstance();
+        final HostCircuitBreaker breaker = networkStack.getCircuitBreaker();
+        URL tileUrl = null;
+        boolean allowed = false;
+        // whether the response showed the host is up, null if there was none
+        Boolean hostUp = null;
+        boolean acquired = false;
+        InputStream inputStream = null;
+        Runnable disconnect = null;
         try {
-            HttpURLConnection connection = NetworkUtils.getHttpURLConnection(new URL(url));
-            Bitmap bitmap = BitmapFactory.decodeStream(connection.getInputStream());
-            if (bitmap != null) {
-                aCache.putTileInMemoryCache(mapTile, bitmap);
+            tileUrl = new URL(url);
+            if (!breaker.allowRequest(tileUrl)) {
+                // the host is failing, leave it alone and make do with the cached tiles
+                setFailure(failure, NegativeTileCache.Reason.HOST_UNAVAILABLE);
+                return null;
             }
-            return bitmap;
+            allowed = true;
+            networkStack.acquireHost(tileUrl);
+            acquired = true;
+            final HttpURLConnection connection = NetworkUtils.getHttpURLConnection(tileUrl);
+            if (request != null) {
+                disconnect = new Runnable() {
+                    @Override
+                    public void run() {
+                        // aborts a connect or read under way on the downloading thread. Closing
+                        // the socket is I/O, and cancel() may be called on the UI thread.
+                        networkStack.submit(Executors.callable(new Runnable() {
+                            @Override
+                            public void run() {
+                                connection.disconnect();
+                            }
+                        }));
+                    }
+                };
+                request.addCancelListener(disconnect);
+            }
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND
+                    || responseCode == HttpURLConnection.HTTP_GONE
+                    || responseCode == HttpURLConnection.HTTP_NO_CONTENT) {
+                hostUp = true;
+                setFailure(failure, NegativeTileCache.Reason.NOT_FOUND);
+                return null;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.e(TAG, "Error downloading MapTile: " + url + ": HTTP " + responseCode);
+                hostUp = !isHostFailure(responseCode);
+                setFailure(failure, NegativeTileCache.Reason.SERVER_ERROR);
+                return null;
+            }
+            inputStream = connection.getInputStream();
+            final ByteArrayOutputStream data = new ByteArrayOutputStream(ENCODED_TILE_BUFFER_SIZE);
+            StreamUtils.copy(inputStream, data);
+            hostUp = true;
+            if (data.size() == 0) {
+                setFailure(failure, NegativeTileCache.Reason.NOT_FOUND);
+                return null;
+            }
+            if (metadata != null) {
+                metadata[0] = TileMetadata.fromConnection(connection, System.currentTimeMillis());
+            }
+            return data.toByteArray();
         } catch (final Throwable e) {
+            if (isCancelled(request)) {
+                return null;
+            }
             Log.e(TAG, "Error downloading MapTile: " + url + ":" + e);
+            // a fetch interrupted by a failing sibling says nothing about the host, a timeout does
+            if (!(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException) {
+                hostUp = false;
+            }
+            setFailure(failure, NegativeTileCache.Reason.SERVER_ERROR);
         } finally {
+            if (disconnect != null) {
+                request.removeCancelListener(disconnect);
+            }
+            if (allowed) {
+                reportHostHealth(breaker, tileUrl, hostUp);
+            }
+            // closing the stream hands the connection back to the pool
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing tile stream: " + url, e);
+                }
+            }
+            if (acquired) {
+                networkStack.releaseHost(tileUrl);
+            }
             activeThreads.decrementAndGet();
         }
         return null;
     }
+
+    /**
+     * @return true for the statuses of a host that is down or overloaded
+     */
+    private static boolean isHostFailure(final int responseCode) {
+        return responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                || responseCode == HTTP_TOO_MANY_REQUESTS;
+    }
+
+    private static void reportHostHealth(final HostCircuitBreaker breaker, final URL url,
+            final Boolean hostUp) {
+        if (hostUp == null) {
+            breaker.reportAbandoned(url);
+        } else if (hostUp) {
+            breaker.reportSuccess(url);
+        } else {
+            breaker.reportFailure(url);
+        }
+    }
+
+    private static boolean isCancelled(final MapTileRequestState request) {
+        return request != null && request.isCancelled();
+    }
+
+    private static void setFailure(final NegativeTileCache.Reason[] failure,
+            final NegativeTileCache.Reason reason) {
+        if (failure != null) {
+            failure[0] = reason;
+        }
+    }
+
+    /**
+     * Revalidate a tile that is in the disk cache but has gone stale, without decoding it. If its
+     * metadata has validators the server is asked with a conditional request, and a 304 Not
+     * Modified only refreshes the metadata, which is handed to the {@link TileDiskWriter} behind
+     * any write of the tile still pending. Otherwise, or for tiles composited from several URLs,
+     * the tile is downloaded again.
+     *
+     * @param downloader the downloader the tile was requested from
+     * @param aTile a map tile
+     * @param hdpi a boolean that indicates whether the tile should be at 2x or retina size
+     * @param metadata the stale metadata of the cached tile
+     * @return the images of the tile if it changed, to be decoded with {@link #decodeTile},
+     * otherwise null
+     */
+    public Download revalidateTile(final MapTileDownloader downloader, final MapTile aTile,
+            final boolean hdpi, final TileMetadata metadata) {
+        final String[] urls = getTileURLs(aTile, this instanceof MapboxTileLayer ? false : hdpi);
+        if (urls == null || urls.length != 1 || !metadata.hasValidators()) {
+            return downloadTile(downloader, aTile, hdpi);
+        }
+        final NetworkStack networkStack = NetworkStack.getInstance();
+        final HostCircuitBreaker breaker = networkStack.getCircuitBreaker();
+        URL tileUrl = null;
+        boolean allowed = false;
+        Boolean hostUp = null;
+        boolean acquired = false;
+        InputStream inputStream = null;
+        try {
+            tileUrl = new URL(urls[0]);
+            if (!breaker.allowRequest(tileUrl)) {
+                // the stale tile will do until the host is back
+                return null;
+            }
+            allowed = true;
+            networkStack.acquireHost(tileUrl);
+            acquired = true;
+            HttpURLConnection connection = NetworkUtils.getHttpURLConnection(tileUrl);
+            metadata.addConditionalHeaders(connection);
+            final int responseCode = connection.getResponseCode();
+            final long now = System.currentTimeMillis();
+            hostUp = !isHostFailure(responseCode);
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                metadata.refresh(connection, now);
+                downloader.putTileMetadataInDiskCache(aTile, metadata);
+                return null;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.w(TAG, "Unexpected response revalidating MapTile: " + tileUrl + ":"
+                        + responseCode);
+                return null;
+            }
+            inputStream = connection.getInputStream();
+            final ByteArrayOutputStream data = new ByteArrayOutputStream(ENCODED_TILE_BUFFER_SIZE);
+            StreamUtils.copy(inputStream, data);
+            if (data.size() == 0) {
+                return null;
+            }
+            final Download download = new Download();
+            download.mImages.add(data.toByteArray());
+            download.mMetadata = TileMetadata.fromConnection(connection, now);
+            return download;
+        } catch (final IOException e) {
+            Log.e(TAG, "Error revalidating MapTile: " + urls[0] + ":" + e);
+            hostUp = false;
+        } finally {
+            if (allowed) {
+                reportHostHealth(breaker, tileUrl, hostUp);
+            }
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing tile stream: " + urls[0], e);
+                }
+            }
+            if (acquired) {
+                networkStack.releaseHost(tileUrl);
+            }
+        }
+        return null;
+    }
 }
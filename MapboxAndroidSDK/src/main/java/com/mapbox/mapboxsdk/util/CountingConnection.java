@@ -0,0 +1,331 @@
+package com.mapbox.mapboxsdk.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.security.Permission;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A connection opened by {@link NetworkStack}, that counts the request and the body bytes read
+ * for it when they come from the network. OkHttp doesn't run network interceptors for
+ * HttpURLConnections, so they can't do the counting.
+ * <p/>
+ * Everything else is handed to the connection of OkHttp.
+ */
+final class CountingConnection extends HttpURLConnection {
+
+    // set by OkHttp on every response, such as "NETWORK 200", "CACHE 200" or
+    // "CONDITIONAL_CACHE 304"
+    private static final String RESPONSE_SOURCE = "OkHttp-Response-Source";
+
+    private final HttpURLConnection mDelegate;
+    private final NetworkStack mNetworkStack;
+    private boolean mCounted;
+    // whether the body comes from the network rather than the HTTP cache
+    private boolean mFromNetwork;
+
+    CountingConnection(final HttpURLConnection delegate, final NetworkStack networkStack) {
+        super(delegate.getURL());
+        mDelegate = delegate;
+        mNetworkStack = networkStack;
+    }
+
+    /**
+     * Count the request once its response is there, unless it came from the HTTP cache.
+     */
+    private synchronized void countResponse() {
+        if (mCounted) {
+            return;
+        }
+        mCounted = true;
+        final String source = mDelegate.getHeaderField(RESPONSE_SOURCE);
+        mFromNetwork = source == null || source.startsWith("NETWORK");
+        if (source == null || !source.startsWith("CACHE")) {
+            mNetworkStack.countRequest();
+        }
+    }
+
+    private InputStream countBody(final InputStream in) {
+        if (in == null || !mFromNetwork) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final int b = in.read();
+                if (b != -1) {
+                    mNetworkStack.countBytes(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int count)
+                    throws IOException {
+                final int read = in.read(buffer, offset, count);
+                if (read > 0) {
+                    mNetworkStack.countBytes(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(final long count) throws IOException {
+                final long skipped = in.skip(count);
+                if (skipped > 0) {
+                    mNetworkStack.countBytes(skipped);
+                }
+                return skipped;
+            }
+        };
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        final InputStream in = mDelegate.getInputStream();
+        countResponse();
+        return countBody(in);
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        final InputStream in = mDelegate.getErrorStream();
+        if (in != null) {
+            countResponse();
+        }
+        return countBody(in);
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        final int code = mDelegate.getResponseCode();
+        countResponse();
+        return code;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        return mDelegate.getResponseMessage();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        mDelegate.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        mDelegate.disconnect();
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return mDelegate.usingProxy();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mDelegate.getOutputStream();
+    }
+
+    @Override
+    public Permission getPermission() throws IOException {
+        return mDelegate.getPermission();
+    }
+
+    @Override
+    public URL getURL() {
+        return mDelegate.getURL();
+    }
+
+    @Override
+    public String getHeaderField(final String key) {
+        return mDelegate.getHeaderField(key);
+    }
+
+    @Override
+    public String getHeaderField(final int position) {
+        return mDelegate.getHeaderField(position);
+    }
+
+    @Override
+    public String getHeaderFieldKey(final int position) {
+        return mDelegate.getHeaderFieldKey(position);
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        return mDelegate.getHeaderFields();
+    }
+
+    @Override
+    public int getHeaderFieldInt(final String field, final int defaultValue) {
+        return mDelegate.getHeaderFieldInt(field, defaultValue);
+    }
+
+    @Override
+    public long getHeaderFieldDate(final String field, final long defaultValue) {
+        return mDelegate.getHeaderFieldDate(field, defaultValue);
+    }
+
+    @Override
+    public int getContentLength() {
+        return mDelegate.getContentLength();
+    }
+
+    @Override
+    public String getContentType() {
+        return mDelegate.getContentType();
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return mDelegate.getContentEncoding();
+    }
+
+    @Override
+    public long getDate() {
+        return mDelegate.getDate();
+    }
+
+    @Override
+    public long getExpiration() {
+        return mDelegate.getExpiration();
+    }
+
+    @Override
+    public long getLastModified() {
+        return mDelegate.getLastModified();
+    }
+
+    @Override
+    public void setRequestProperty(final String field, final String newValue) {
+        mDelegate.setRequestProperty(field, newValue);
+    }
+
+    @Override
+    public void addRequestProperty(final String field, final String value) {
+        mDelegate.addRequestProperty(field, value);
+    }
+
+    @Override
+    public String getRequestProperty(final String field) {
+        return mDelegate.getRequestProperty(field);
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestProperties() {
+        return mDelegate.getRequestProperties();
+    }
+
+    @Override
+    public void setRequestMethod(final String method) throws ProtocolException {
+        mDelegate.setRequestMethod(method);
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return mDelegate.getRequestMethod();
+    }
+
+    @Override
+    public void setConnectTimeout(final int timeoutMillis) {
+        mDelegate.setConnectTimeout(timeoutMillis);
+    }
+
+    @Override
+    public int getConnectTimeout() {
+        return mDelegate.getConnectTimeout();
+    }
+
+    @Override
+    public void setReadTimeout(final int timeoutMillis) {
+        mDelegate.setReadTimeout(timeoutMillis);
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return mDelegate.getReadTimeout();
+    }
+
+    @Override
+    public void setUseCaches(final boolean newValue) {
+        mDelegate.setUseCaches(newValue);
+    }
+
+    @Override
+    public boolean getUseCaches() {
+        return mDelegate.getUseCaches();
+    }
+
+    @Override
+    public void setIfModifiedSince(final long newValue) {
+        mDelegate.setIfModifiedSince(newValue);
+    }
+
+    @Override
+    public long getIfModifiedSince() {
+        return mDelegate.getIfModifiedSince();
+    }
+
+    @Override
+    public void setInstanceFollowRedirects(final boolean followRedirects) {
+        mDelegate.setInstanceFollowRedirects(followRedirects);
+    }
+
+    @Override
+    public boolean getInstanceFollowRedirects() {
+        return mDelegate.getInstanceFollowRedirects();
+    }
+
+    @Override
+    public void setDoInput(final boolean newValue) {
+        mDelegate.setDoInput(newValue);
+    }
+
+    @Override
+    public boolean getDoInput() {
+        return mDelegate.getDoInput();
+    }
+
+    @Override
+    public void setDoOutput(final boolean newValue) {
+        mDelegate.setDoOutput(newValue);
+    }
+
+    @Override
+    public boolean getDoOutput() {
+        return mDelegate.getDoOutput();
+    }
+
+    @Override
+    public void setAllowUserInteraction(final boolean newValue) {
+        mDelegate.setAllowUserInteraction(newValue);
+    }
+
+    @Override
+    public boolean getAllowUserInteraction() {
+        return mDelegate.getAllowUserInteraction();
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(final int contentLength) {
+        mDelegate.setFixedLengthStreamingMode(contentLength);
+    }
+
+    @Override
+    public void setChunkedStreamingMode(final int chunkLength) {
+        mDelegate.setChunkedStreamingMode(chunkLength);
+    }
+
+    @Override
+    public String toString() {
+        return mDelegate.toString();
+    }
+}
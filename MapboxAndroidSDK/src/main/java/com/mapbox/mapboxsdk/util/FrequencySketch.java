@@ -0,0 +1,116 @@
+package com.mapbox.mapboxsdk.util;
+
+/**
+ * A count-min sketch that estimates how often keys have been seen recently, in a fixed amount of
+ * memory, the frequency filter of TinyLFU admission policies.
+ * <p/>
+ * Every key increments four 4-bit counters picked by different hashes, and its frequency is the
+ * smallest of them, so collisions can only make a key look more frequent than it is. Once the
+ * number of increments reaches ten times the expected number of entries, all counters are
+ * halved, so that keys that were popular a long time ago fade out.
+ * <p/>
+ * Counters are updated without locking: increments racing on the same counter may be lost,
+ * which only makes estimates a little lower.
+ */
+public class FrequencySketch {
+
+    /**
+     * The largest frequency a key can have.
+     */
+    public static final int MAXIMUM_FREQUENCY = 15;
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    // eight counters per int
+    private final int[] mTable;
+    private final int mCounterMask;
+    private final int mSampleSize;
+    private int mAdditions;
+
+    /**
+     * @param expectedEntries the number of keys the cache using the sketch can hold
+     */
+    public FrequencySketch(final int expectedEntries) {
+        int counters = 8;
+        while (counters < Math.max(expectedEntries, 1) * 16 && counters < (1 << 28)) {
+            counters <<= 1;
+        }
+        mTable = new int[counters >>> 3];
+        mCounterMask = counters - 1;
+        mSampleSize = Math.max(expectedEntries, 1) * 10;
+    }
+
+    /**
+     * Record one more occurrence of a key.
+     */
+    public void increment(final long key) {
+        final long hash = spread(key);
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementAt(indexOf(hash, i));
+        }
+        if (added && ++mAdditions >= mSampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @return the estimated number of recent occurrences of a key, at most
+     * {@link #MAXIMUM_FREQUENCY}
+     */
+    public int frequency(final long key) {
+        final long hash = spread(key);
+        int frequency = MAXIMUM_FREQUENCY;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, counterAt(indexOf(hash, i)));
+        }
+        return frequency;
+    }
+
+    /**
+     * Forget every key.
+     */
+    public void clear() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = 0;
+        }
+        mAdditions = 0;
+    }
+
+    private int counterAt(final int index) {
+        return (mTable[index >>> 3] >>> ((index & 7) << 2)) & 0xf;
+    }
+
+    private boolean incrementAt(final int index) {
+        final int shift = (index & 7) << 2;
+        final int value = mTable[index >>> 3];
+        if (((value >>> shift) & 0xf) == MAXIMUM_FREQUENCY) {
+            return false;
+        }
+        mTable[index >>> 3] = value + (1 << shift);
+        return true;
+    }
+
+    /**
+     * Halve every counter.
+     */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (mTable[i] >>> 1) & 0x77777777;
+        }
+        mAdditions >>>= 1;
+    }
+
+    private int indexOf(final long hash, final int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & mCounterMask;
+    }
+
+    private static long spread(final long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 31);
+    }
+}
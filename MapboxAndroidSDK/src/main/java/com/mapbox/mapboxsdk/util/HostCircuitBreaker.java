@@ -0,0 +1,271 @@
+package com.mapbox.mapboxsdk.util;
+
+import android.util.Log;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the health of every host the SDK requests tiles from, so that a server returning 5xx
+ * or timing out isn't asked again for every visible tile on every redraw.
+ * <p/>
+ * A host is <i>closed</i> while it works. After {@link #DEFAULT_FAILURE_THRESHOLD} failures in a
+ * row it <i>opens</i>: {@link #allowRequest(URL)} turns its requests down, and the map makes do
+ * with the cached tiles and the fallbacks it draws for missing ones. Once the backoff is over
+ * the host is <i>half open</i> and a single request is let through as a probe. If it succeeds
+ * the host closes again and the listeners hear of the recovery; if it fails the host opens
+ * again for twice as long, up to {@link #DEFAULT_MAX_BACKOFF_MS}.
+ * <p/>
+ * Callers report the outcome of every request that was allowed: {@link #reportSuccess} for any
+ * response that shows the host is up, even a 404, {@link #reportFailure} for a 5xx, 429 or I/O
+ * error, and {@link #reportAbandoned} for a request cancelled before it had an outcome.
+ * <p/>
+ * This class is thread safe.
+ */
+public class HostCircuitBreaker {
+    private static final String TAG = "HostCircuitBreaker";
+
+    /**
+     * The number of failures in a row that open a host.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * How long a host stays open the first time, doubled by every failed probe.
+     */
+    public static final long DEFAULT_MIN_BACKOFF_MS = 2 * 1000;
+
+    public static final long DEFAULT_MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+    /**
+     * Hears when hosts fail and recover.
+     */
+    public interface HostListener {
+        /**
+         * A host failed too often and its requests are turned down for a while.
+         *
+         * @param retryInMs how long until a request is let through as a probe
+         */
+        void onHostUnavailable(String host, long retryInMs);
+
+        /**
+         * A probe of an unavailable host succeeded, its requests are let through again.
+         */
+        void onHostRecovered(String host);
+    }
+
+    private static final class Health {
+        int failures;
+        boolean open;
+        // when the next probe may go, while open
+        long retryAt;
+        long backoff;
+        boolean probing;
+    }
+
+    private final ConcurrentHashMap<String, Health> mHosts =
+            new ConcurrentHashMap<String, Health>();
+    private final CopyOnWriteArrayList<HostListener> mListeners =
+            new CopyOnWriteArrayList<HostListener>();
+    private final AtomicInteger mRecoveryCount = new AtomicInteger();
+    private final Random mRandom = new Random();
+    private final int mFailureThreshold;
+    private final long mMinBackoff;
+    private final long mMaxBackoff;
+
+    public HostCircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_MIN_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    /**
+     * @param failureThreshold the number of failures in a row that open a host
+     * @param minBackoffMs how long a host stays open the first time
+     * @param maxBackoffMs the longest a host stays open
+     */
+    public HostCircuitBreaker(final int failureThreshold, final long minBackoffMs,
+            final long maxBackoffMs) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold < 1");
+        }
+        mFailureThreshold = failureThreshold;
+        mMinBackoff = minBackoffMs;
+        mMaxBackoff = Math.max(minBackoffMs, maxBackoffMs);
+    }
+
+    public void addHostListener(final HostListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeHostListener(final HostListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Ask whether a request may go to the host of url. Every request allowed must have its
+     * outcome reported.
+     *
+     * @return false while the host is open, or half open with a probe in flight
+     */
+    public boolean allowRequest(final URL url) {
+        final Health health = getHealth(url.getHost());
+        synchronized (health) {
+            if (!health.open) {
+                return true;
+            }
+            if (health.probing || System.currentTimeMillis() < health.retryAt) {
+                return false;
+            }
+            health.probing = true;
+            return true;
+        }
+    }
+
+    /**
+     * @return false if requests to the host are turned down for now
+     */
+    public boolean isAvailable(final String host) {
+        final Health health = mHosts.get(host);
+        if (health == null) {
+            return true;
+        }
+        synchronized (health) {
+            return !health.open
+                    || (!health.probing && System.currentTimeMillis() >= health.retryAt);
+        }
+    }
+
+    /**
+     * @return how long until a request to the unavailable host that can be probed first is let
+     * through, {@link #DEFAULT_MIN_BACKOFF_MS} if only probes in flight can tell, or 0 if every
+     * host is available
+     */
+    public long getRetryIn() {
+        final long now = System.currentTimeMillis();
+        long result = Long.MAX_VALUE;
+        boolean probing = false;
+        for (Health health : mHosts.values()) {
+            synchronized (health) {
+                if (!health.open) {
+                    continue;
+                }
+                if (health.probing) {
+                    probing = true;
+                } else {
+                    result = Math.min(result, Math.max(health.retryAt - now, 0));
+                }
+            }
+        }
+        if (result == Long.MAX_VALUE) {
+            return probing ? mMinBackoff : 0;
+        }
+        return result;
+    }
+
+    /**
+     * @return how long until a request to the host is let through, {@link #DEFAULT_MIN_BACKOFF_MS}
+     * if only the probe in flight can tell, or 0 if it is available
+     */
+    public long getRetryIn(final String host) {
+        final Health health = mHosts.get(host);
+        if (health == null) {
+            return 0;
+        }
+        synchronized (health) {
+            if (!health.open) {
+                return 0;
+            }
+            if (health.probing) {
+                return mMinBackoff;
+            }
+            return Math.max(health.retryAt - System.currentTimeMillis(), 0);
+        }
+    }
+
+    public void reportSuccess(final URL url) {
+        final Health health = getHealth(url.getHost());
+        final boolean recovered;
+        synchronized (health) {
+            recovered = health.open;
+            health.failures = 0;
+            health.open = false;
+            health.probing = false;
+            health.backoff = 0;
+        }
+        if (recovered) {
+            Log.i(TAG, url.getHost() + " recovered");
+            mRecoveryCount.incrementAndGet();
+            for (HostListener listener : mListeners) {
+                listener.onHostRecovered(url.getHost());
+            }
+        }
+    }
+
+    public void reportFailure(final URL url) {
+        final Health health = getHealth(url.getHost());
+        final long retryIn;
+        synchronized (health) {
+            health.failures++;
+            if (health.open ? !health.probing : health.failures < mFailureThreshold) {
+                // a request that was let through before the host opened
+                return;
+            }
+            health.backoff = health.open
+                    ? Math.min(health.backoff * 2, mMaxBackoff) : mMinBackoff;
+            // spread the probes of many devices out
+            retryIn = health.backoff + (long) (mRandom.nextDouble() * health.backoff / 4);
+            health.open = true;
+            health.probing = false;
+            health.retryAt = System.currentTimeMillis() + retryIn;
+        }
+        Log.w(TAG, url.getHost() + " unavailable, retrying in " + retryIn + "ms");
+        for (HostListener listener : mListeners) {
+            listener.onHostUnavailable(url.getHost(), retryIn);
+        }
+    }
+
+    /**
+     * Report a request that ended without telling anything about the host, such as a
+     * cancelled one. A probe that is abandoned lets the next request probe.
+     */
+    public void reportAbandoned(final URL url) {
+        final Health health = getHealth(url.getHost());
+        synchronized (health) {
+            health.probing = false;
+        }
+    }
+
+    /**
+     * @return the number of times a host recovered, so that tiles that failed while it was
+     * down can be requested again
+     */
+    public int getRecoveryCount() {
+        return mRecoveryCount.get();
+    }
+
+    private Health getHealth(final String host) {
+        Health health = mHosts.get(host);
+        if (health == null) {
+            final Health newHealth = new Health();
+            health = mHosts.putIfAbsent(host, newHealth);
+            if (health == null) {
+                health = newHealth;
+            }
+        }
+        return health;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder("HostCircuitBreaker[");
+        boolean first = true;
+        for (String host : mHosts.keySet()) {
+            if (!isAvailable(host)) {
+                result.append(first ? "" : ",").append(host);
+                first = false;
+            }
+        }
+        return result.append(']').toString();
+    }
+}
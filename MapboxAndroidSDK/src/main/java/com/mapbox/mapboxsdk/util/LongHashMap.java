@@ -0,0 +1,249 @@
+package com.mapbox.mapboxsdk.util;
+
+import java.util.Collection;
+
+/**
+ * A hash map keyed by primitive longs, so lookups never box their key. Entries are kept in a
+ * doubly linked list in either insertion or access order, like {@link java.util.LinkedHashMap},
+ * which makes it usable as the backing store of a queue or an LRU.
+ * <p/>
+ * This class is not thread safe.
+ *
+ * @param <V> the value type
+ */
+public class LongHashMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Called with the entries of a map in order, see {@link LongHashMap#visit}.
+     */
+    public interface Visitor<V> {
+        /**
+         * @return true to go on to the next entry, false to stop
+         */
+        boolean visit(long key, V value);
+    }
+
+    private static final class Entry<V> {
+        long key;
+        V value;
+        Entry<V> next;
+        Entry<V> before;
+        Entry<V> after;
+    }
+
+    private final boolean mAccessOrder;
+    private Entry<V>[] mTable;
+    private int mSize;
+    private int mThreshold;
+
+    // sentinel of the circular ordering list: header.after is the eldest entry
+    private final Entry<V> mHeader = new Entry<V>();
+
+    public LongHashMap() {
+        this(DEFAULT_CAPACITY, false);
+    }
+
+    /**
+     * @param initialCapacity the number of entries expected
+     * @param accessOrder true to order entries by last access, false for insertion order
+     */
+    public LongHashMap(final int initialCapacity, final boolean accessOrder) {
+        int capacity = 1;
+        while (capacity < initialCapacity / LOAD_FACTOR) {
+            capacity <<= 1;
+        }
+        mTable = newTable(Math.max(capacity, 2));
+        mThreshold = (int) (mTable.length * LOAD_FACTOR);
+        mAccessOrder = accessOrder;
+        mHeader.before = mHeader;
+        mHeader.after = mHeader;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Entry<V>[] newTable(final int capacity) {
+        // arrays of a generic type can't be created
+        return (Entry<V>[]) new Entry<?>[capacity];
+    }
+
+    private static int hash(final long key) {
+        int h = (int) (key ^ (key >>> 32));
+        return h ^ (h >>> 20) ^ (h >>> 12) ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    private Entry<V> getEntry(final long key) {
+        Entry<V> e = mTable[hash(key) & (mTable.length - 1)];
+        while (e != null && e.key != key) {
+            e = e.next;
+        }
+        return e;
+    }
+
+    public V get(final long key) {
+        final Entry<V> e = getEntry(key);
+        if (e == null) {
+            return null;
+        }
+        if (mAccessOrder) {
+            unlink(e);
+            linkLast(e);
+        }
+        return e.value;
+    }
+
+    public boolean containsKey(final long key) {
+        return getEntry(key) != null;
+    }
+
+    /**
+     * Associates value with key, moving the entry to the end of the ordering list if the map is
+     * access ordered.
+     *
+     * @return the previous value, or null if there was none
+     */
+    public V put(final long key, final V value) {
+        Entry<V> e = getEntry(key);
+        if (e != null) {
+            final V old = e.value;
+            e.value = value;
+            if (mAccessOrder) {
+                unlink(e);
+                linkLast(e);
+            }
+            return old;
+        }
+        if (mSize >= mThreshold) {
+            resize();
+        }
+        e = new Entry<V>();
+        e.key = key;
+        e.value = value;
+        final int index = hash(key) & (mTable.length - 1);
+        e.next = mTable[index];
+        mTable[index] = e;
+        linkLast(e);
+        mSize++;
+        return null;
+    }
+
+    public V remove(final long key) {
+        final int index = hash(key) & (mTable.length - 1);
+        Entry<V> prev = null;
+        Entry<V> e = mTable[index];
+        while (e != null) {
+            if (e.key == key) {
+                if (prev == null) {
+                    mTable[index] = e.next;
+                } else {
+                    prev.next = e.next;
+                }
+                unlink(e);
+                mSize--;
+                return e.value;
+            }
+            prev = e;
+            e = e.next;
+        }
+        return null;
+    }
+
+    /**
+     * @return the key of the eldest entry. Only valid if the map is not empty.
+     */
+    public long eldestKey() {
+        if (mSize == 0) {
+            throw new IllegalStateException("eldestKey() called on an empty map");
+        }
+        return mHeader.after.key;
+    }
+
+    /**
+     * Removes the eldest entry.
+     *
+     * @return its value, or null if the map is empty
+     */
+    public V removeEldest() {
+        if (mSize == 0) {
+            return null;
+        }
+        return remove(mHeader.after.key);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = null;
+        }
+        mHeader.before = mHeader;
+        mHeader.after = mHeader;
+        mSize = 0;
+    }
+
+    /**
+     * @return a copy of all keys, eldest first
+     */
+    public long[] keys() {
+        final long[] keys = new long[mSize];
+        int i = 0;
+        for (Entry<V> e = mHeader.after; e != mHeader; e = e.after) {
+            keys[i++] = e.key;
+        }
+        return keys;
+    }
+
+    /**
+     * Adds all values, eldest first, to the given collection.
+     */
+    public void values(final Collection<? super V> out) {
+        for (Entry<V> e = mHeader.after; e != mHeader; e = e.after) {
+            out.add(e.value);
+        }
+    }
+
+    /**
+     * Calls the visitor with the entries, eldest first, until it returns false. Unlike
+     * {@link #keys()} nothing is copied, so the map must not be changed meanwhile.
+     */
+    public void visit(final Visitor<? super V> visitor) {
+        for (Entry<V> e = mHeader.after; e != mHeader; e = e.after) {
+            if (!visitor.visit(e.key, e.value)) {
+                return;
+            }
+        }
+    }
+
+    private void linkLast(final Entry<V> e) {
+        e.after = mHeader;
+        e.before = mHeader.before;
+        mHeader.before.after = e;
+        mHeader.before = e;
+    }
+
+    private static <V> void unlink(final Entry<V> e) {
+        e.before.after = e.after;
+        e.after.before = e.before;
+        e.before = null;
+        e.after = null;
+    }
+
+    private void resize() {
+        final Entry<V>[] newTable = newTable(mTable.length << 1);
+        final int mask = newTable.length - 1;
+        for (Entry<V> e = mHeader.after; e != mHeader; e = e.after) {
+            final int index = hash(e.key) & mask;
+            e.next = newTable[index];
+            newTable[index] = e;
+        }
+        mTable = newTable;
+        mThreshold = (int) (newTable.length * LOAD_FACTOR);
+    }
+}
@@ -0,0 +1,312 @@
+package com.mapbox.mapboxsdk.util;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.OkUrlFactory;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLSocketFactory;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * The HTTP client shared by everything in the SDK that talks to the network: tiles, TileJSON,
+ * marker icons, GeoJSON and offline downloads. Sharing one client means sharing one connection
+ * pool, so consecutive tile requests reuse keep-alive (or SPDY/HTTP2) connections instead of
+ * paying for a new TCP and TLS handshake every time.
+ * <p/>
+ * The stack also limits how many requests may run against a single host at once, see
+ * {@link #acquireHost(URL)}, keeps track of the hosts that are failing, see
+ * {@link #getCircuitBreaker()}, and counts requests and received bytes.
+ * <p/>
+ * Use {@link #getInstance()}, or {@link #setInstance(NetworkStack)} before the first request to
+ * tune the pool.
+ */
+public class NetworkStack {
+
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+    public static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 6;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 20 * 1000;
+
+    private static NetworkStack sInstance;
+
+    private final OkHttpClient mClient;
+    private final OkUrlFactory mUrlFactory;
+    private final int mMaxRequestsPerHost;
+    private final ConcurrentHashMap<String, Semaphore> mHostPermits =
+            new ConcurrentHashMap<String, Semaphore>();
+
+    // runs the requests handed to submit(), started on first use
+    private ThreadPoolExecutor mExecutor;
+    private final HostCircuitBreaker mCircuitBreaker = new HostCircuitBreaker();
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+
+    public NetworkStack() {
+        this(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_DURATION_MS,
+                DEFAULT_MAX_REQUESTS_PER_HOST, DEFAULT_CONNECT_TIMEOUT_MS,
+                DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    /**
+     * @param maxIdleConnections the number of idle connections kept open for reuse
+     * @param keepAliveDurationMs how long an idle connection is kept open
+     * @param maxRequestsPerHost how many requests {@link #acquireHost(URL)} lets through to one
+     *                           host at a time
+     * @param connectTimeoutMs the connect timeout, 0 for none
+     * @param readTimeoutMs the read timeout, 0 for none
+     */
+    public NetworkStack(final int maxIdleConnections, final long keepAliveDurationMs,
+            final int maxRequestsPerHost, final int connectTimeoutMs, final int readTimeoutMs) {
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost < 1");
+        }
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        mClient = new OkHttpClient();
+        mClient.setConnectionPool(new ConnectionPool(maxIdleConnections, keepAliveDurationMs));
+        mClient.setConnectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS);
+        mClient.setReadTimeout(readTimeoutMs, TimeUnit.MILLISECONDS);
+        mClient.networkInterceptors().add(new CountingInterceptor());
+        mUrlFactory = new OkUrlFactory(mClient);
+    }
+
+    public static synchronized NetworkStack getInstance() {
+        if (sInstance == null) {
+            sInstance = new NetworkStack();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Replace the shared stack, for instance to tune the pool. Connections already pooled by the
+     * previous stack are not carried over.
+     */
+    public static synchronized void setInstance(final NetworkStack networkStack) {
+        if (networkStack == null) {
+            throw new NullPointerException("networkStack == null");
+        }
+        sInstance = networkStack;
+    }
+
+    /**
+     * @return the shared client. Configure copies made with {@link OkHttpClient#clone()} rather
+     * than the client itself.
+     */
+    public OkHttpClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * Open a connection through the shared connection pool.
+     *
+     * @param url the url to open
+     * @param cache an HTTP response cache for this request, or null
+     * @param sslSocketFactory a socket factory for this request, or null for the default one
+     * @return an unconnected HttpURLConnection with the SDK's User-Agent set
+     */
+    public HttpURLConnection open(final URL url, final Cache cache,
+            final SSLSocketFactory sslSocketFactory) {
+        final HttpURLConnection connection;
+        if (cache == null && sslSocketFactory == null) {
+            connection = mUrlFactory.open(url);
+        } else {
+            // the clone keeps the connection pool and interceptors of the shared client
+            final OkHttpClient client = mClient.clone();
+            if (cache != null) {
+                client.setCache(cache);
+            }
+            if (sslSocketFactory != null) {
+                client.setSslSocketFactory(sslSocketFactory);
+            }
+            connection = new OkUrlFactory(client).open(url);
+        }
+        connection.setRequestProperty("User-Agent", MapboxUtils.getUserAgent());
+        return new CountingConnection(connection, this);
+    }
+
+    /**
+     * Wait until fewer than maxRequestsPerHost requests are running against the host of url.
+     * Every successful call must be paired with {@link #releaseHost(URL)}, in a finally block.
+     *
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public void acquireHost(final URL url) throws InterruptedIOException {
+        try {
+            getHostPermits(url).acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + url.getHost());
+        }
+    }
+
+    public void releaseHost(final URL url) {
+        getHostPermits(url).release();
+    }
+
+    /**
+     * @return the health of the hosts requested through the stack, which tile requests check
+     * before going to the network
+     */
+    public HostCircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
+    /**
+     * Run a request on a thread of the stack, so that a caller can have several requests in
+     * flight at once, such as the images of a tile composited from several URLs. The threads
+     * are started as needed and stop after a minute idle; how many requests reach a host at
+     * once is still limited by {@link #acquireHost(URL)}.
+     */
+    public <T> Future<T> submit(final Callable<T> request) {
+        synchronized (this) {
+            if (mExecutor == null) {
+                mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread =
+                                new Thread(runnable, "network-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+        return mExecutor.submit(request);
+    }
+
+    private Semaphore getHostPermits(final URL url) {
+        final String host = url.getHost();
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            final Semaphore newPermits = new Semaphore(mMaxRequestsPerHost);
+            permits = mHostPermits.putIfAbsent(host, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * @return the number of requests that went to the network, not counting HTTP cache hits
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the number of response body bytes read from the network
+     */
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    /**
+     * @return the number of open connections in the pool
+     */
+    public int getConnectionCount() {
+        return mClient.getConnectionPool().getConnectionCount();
+    }
+
+    void countRequest() {
+        mRequestCount.incrementAndGet();
+    }
+
+    void countBytes(final long count) {
+        mBytesReceived.addAndGet(count);
+    }
+
+    public void resetCounters() {
+        mRequestCount.set(0);
+        mBytesReceived.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "NetworkStack[requests=" + getRequestCount() + ", bytes=" + getBytesReceived()
+                + ", connections=" + getConnectionCount() + "]";
+    }
+
+    /**
+     * Counts every request made with a Call of {@link #getClient()} that reaches the network,
+     * and the body bytes read for it. The connections returned by {@link #open} count their own.
+     */
+    private class CountingInterceptor implements Interceptor {
+        @Override
+        public Response intercept(final Chain chain) throws IOException {
+            countRequest();
+            final Response response = chain.proceed(chain.request());
+            final ResponseBody body = response.body();
+            if (body == null) {
+                return response;
+            }
+            return response.newBuilder().body(new CountingResponseBody(body)).build();
+        }
+    }
+
+    private class CountingResponseBody extends ResponseBody {
+        private final ResponseBody mBody;
+        private BufferedSource mSource;
+
+        CountingResponseBody(final ResponseBody body) {
+            mBody = body;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return mBody.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return mBody.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() throws IOException {
+            if (mSource == null) {
+                mSource = Okio.buffer(new ForwardingSource(mBody.source()) {
+                    @Override
+                    public long read(final Buffer sink, final long byteCount) throws IOException {
+                        final long read = super.read(sink, byteCount);
+                        if (read > 0) {
+                            countBytes(read);
+                        }
+                        return read;
+                    }
+                });
+            }
+            return mSource;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mBody.close();
+        }
+    }
+}
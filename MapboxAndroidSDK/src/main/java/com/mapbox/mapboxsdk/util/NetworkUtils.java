@@ -9,8 +9,6 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import com.squareup.okhttp.Cache;
-import com.squareup.okhttp.OkHttpClient;
-import com.squareup.okhttp.OkUrlFactory;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.File;
 import java.io.IOException;
@@ -33,17 +31,12 @@ public class NetworkUtils {
         return getHttpURLConnection(url, cache, null);
     }
 
+    /**
+     * Open a connection through the SDK's shared {@link NetworkStack}, so that it reuses pooled
+     * connections.
+     */
     public static HttpURLConnection getHttpURLConnection(final URL url, final Cache cache, final SSLSocketFactory sslSocketFactory) {
-        OkHttpClient client = new OkHttpClient();
-        if (cache != null) {
-            client.setCache(cache);
-        }
-        if (sslSocketFactory != null) {
-            client.setSslSocketFactory(sslSocketFactory);
-        }
-        HttpURLConnection connection = new OkUrlFactory(client).open(url);
-        connection.setRequestProperty("User-Agent", MapboxUtils.getUserAgent());
-        return connection;
+        return NetworkStack.getInstance().open(url, cache, sslSocketFactory);
     }
 
     public static Cache getCache(final File cacheDir, final int maxSize) throws IOException {
@@ -3,23 +3,29 @@ package com.mapbox.mapboxsdk.util;
 import android.graphics.Canvas;
 import android.graphics.Point;
 import android.graphics.Rect;
-import android.os.Handler;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.views.util.Projection;
-import java.util.ArrayList;
-import java.util.List;
-import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+import uk.co.senab.bitmapcache.DrawableLeases;
 
 /**
- * A class that will loop around all the map tiles in the given viewport.
+ * A class that will loop around all the map tiles in the given viewport, starting at the center
+ * and working outwards ring by ring, so the tiles the user is looking at are requested first.
+ * <p/>
+ * Once its lists have grown to the size of the viewport a loop does not allocate: the same
+ * {@link MapTile} is re-targeted for every tile handed to {@link #handleTile}, so implementations
+ * must {@link MapTile#copy()} it if they keep it around.
+ * <p/>
+ * The tiles drawn by a loop are leased in {@link #mLeases}, and released once the next loop is
+ * done, or by {@link #releaseLeases()} when the loop won't run again.
  */
 public abstract class TileLooper {
 
     protected final Point mUpperLeft = new Point();
     protected final Point mLowerRight = new Point();
     protected final Point center = new Point();
-    protected List<CacheableBitmapDrawable> mBeingUsedDrawables =
-            new ArrayList<CacheableBitmapDrawable>();
+    protected final DrawableLeases mLeases = new DrawableLeases();
+
+    private final MapTile mTile = new MapTile(0, 0, 0);
 
     public final int loop(final Canvas pCanvas, final String pCacheKey, final float pZoomLevel,
             final int pTileSizePx, final Rect pViewPort, final Rect pClipRect) {
@@ -33,17 +39,23 @@ public abstract class TileLooper {
         center.set((mUpperLeft.x + mLowerRight.x) / 2, (mUpperLeft.y + mLowerRight.y) / 2);
 
         final int roundedZoom = (int) Math.floor(pZoomLevel);
-        final int mapTileUpperBound = 1 << roundedZoom;
         initializeLoop(pZoomLevel, pTileSizePx);
 
-        int tileX, tileY;
-
-        for (int y = mUpperLeft.y; y <= mLowerRight.y; y++) {
-            for (int x = mUpperLeft.x; x <= mLowerRight.x; x++) {
-                tileY = GeometryMath.mod(y, mapTileUpperBound);
-                tileX = GeometryMath.mod(x, mapTileUpperBound);
-                final MapTile tile = new MapTile(pCacheKey, roundedZoom, tileX, tileY);
-                handleTile(pCanvas, pCacheKey, pTileSizePx, tile, x, y, pClipRect);
+        final int rings = Math.max(Math.max(center.x - mUpperLeft.x, mLowerRight.x - center.x),
+                Math.max(center.y - mUpperLeft.y, mLowerRight.y - center.y));
+        visit(pCanvas, pCacheKey, roundedZoom, pTileSizePx, center.x, center.y, pClipRect);
+        for (int ring = 1; ring <= rings; ring++) {
+            final int left = center.x - ring;
+            final int right = center.x + ring;
+            final int top = center.y - ring;
+            final int bottom = center.y + ring;
+            for (int x = left; x <= right; x++) {
+                visit(pCanvas, pCacheKey, roundedZoom, pTileSizePx, x, top, pClipRect);
+                visit(pCanvas, pCacheKey, roundedZoom, pTileSizePx, x, bottom, pClipRect);
+            }
+            for (int y = top + 1; y < bottom; y++) {
+                visit(pCanvas, pCacheKey, roundedZoom, pTileSizePx, left, y, pClipRect);
+                visit(pCanvas, pCacheKey, roundedZoom, pTileSizePx, right, y, pClipRect);
             }
         }
         finalizeLoop();
@@ -52,21 +64,31 @@ public abstract class TileLooper {
         return  (mLowerRight.y - mUpperLeft.y) * (mLowerRight.x - mUpperLeft.x);
     }
 
+    private void visit(final Canvas pCanvas, final String pCacheKey, final int pZoom,
+            final int pTileSizePx, final int x, final int y, final Rect pClipRect) {
+        if (x < mUpperLeft.x || x > mLowerRight.x || y < mUpperLeft.y || y > mLowerRight.y) {
+            return;
+        }
+        final int mapTileUpperBound = 1 << pZoom;
+        final int tileY = GeometryMath.mod(y, mapTileUpperBound);
+        final int tileX = GeometryMath.mod(x, mapTileUpperBound);
+        final MapTile tile = mTile.set(pCacheKey, pZoom, tileX, tileY);
+        handleTile(pCanvas, pCacheKey, pTileSizePx, tile, x, y, pClipRect);
+    }
+
     public abstract void initializeLoop(float pZoomLevel, int pTileSizePx);
 
     public abstract void handleTile(Canvas pCanvas, final String pCacheKey, int pTileSizePx,
             MapTile pTile, int pX, int pY, final Rect pClipRect);
 
     public void finalizeLoop() {
-        //we delay just to make sure drawable bitmaps are not reused while being drawn.
-        (new Handler()).postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                for (CacheableBitmapDrawable drawable : mBeingUsedDrawables) {
-                    drawable.setBeingUsed(false);
-                }
-                mBeingUsedDrawables.clear();
-            }
-        }, 1);
+        mLeases.endPass();
+    }
+
+    /**
+     * Release the leases of the tiles drawn by the last loops.
+     */
+    public void releaseLeases() {
+        mLeases.releaseAll();
     }
 }
@@ -177,6 +177,7 @@ public class MapController implements MapViewConstants {
                 setCenter(animateToTargetPoint);
             } else {
                 stopPanning();
+                mMapView.mTilePrefetcher.cancel();
             }
         }
 
@@ -247,9 +248,14 @@ public class MapController implements MapViewConstants {
         propertiesList.add(PropertyValuesHolder.ofFloat("scale", 1.0f, factor));
 
         if (zoomAndMove) {
+            mMapView.mTilePrefetcher.onZoomAnimation(targetZoom, p.x, p.y);
             PointEvaluator evaluator = new PointEvaluator();
             propertiesList.add(PropertyValuesHolder.ofObject("scrollPoint", evaluator, p));
         } else {
+            // the map scales around p, which stays where it is on the screen
+            mMapView.mTilePrefetcher.onZoomAnimation(targetZoom,
+                    p.x + (dCurrentScroll.x - p.x) / factor,
+                    p.y + (dCurrentScroll.y - p.y) / factor);
             mMapView.getProjection().toPixels(p, p);
             zoomDeltaScroll.set((float) (mMapView.getMeasuredWidth() / 2.0 - p.x), (float) (mMapView.getMeasuredHeight() / 2.0 - p.y));
         }
@@ -377,6 +383,7 @@ public class MapController implements MapViewConstants {
         mMapView.setZoomInternal(mMapView.getAnimatedZoom(), zoomOnLatLong, zoomDeltaScroll);
         zoomOnLatLong = null;
         mCurrentlyUserAction = false;
+        mMapView.mTilePrefetcher.onMotionEnd();
     }
 
     /**
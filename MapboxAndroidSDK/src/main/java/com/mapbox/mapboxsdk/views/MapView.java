@@ -46,6 +46,7 @@ import com.mapbox.mapboxsdk.overlay.TilesOverlay;
 import com.mapbox.mapboxsdk.overlay.UserLocationOverlay;
 import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBase;
 import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBasic;
+import com.mapbox.mapboxsdk.tileprovider.MapTileLayerStack;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.MapboxTileLayer;
@@ -58,6 +59,7 @@ import com.mapbox.mapboxsdk.util.constants.UtilConstants;
 import com.mapbox.mapboxsdk.views.util.OnMapOrientationChangeListener;
 import com.mapbox.mapboxsdk.views.util.Projection;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
+import com.mapbox.mapboxsdk.views.util.TilePrefetcher;
 import com.mapbox.mapboxsdk.views.util.TilesLoadedListener;
 import com.mapbox.mapboxsdk.views.util.constants.MapViewConstants;
 import com.mapbox.mapboxsdk.views.util.constants.MapViewLayouts;
@@ -131,6 +133,11 @@ public class MapView extends ViewGroup implements MapViewConstants, MapEventsRec
     protected final Scroller mScroller;
     protected boolean mIsFlinging;
 
+    /**
+     * Requests the tiles of where flings and zoom animations will end
+     */
+    protected final TilePrefetcher mTilePrefetcher;
+
     private final AtomicInteger mTargetZoomLevel = new AtomicInteger();
     private final AtomicBoolean mIsAnimating = new AtomicBoolean(false);
 
@@ -206,6 +213,10 @@ public class MapView extends ViewGroup implements MapViewConstants, MapEventsRec
                         : tileRequestCompleteHandler;
         mTileProvider = tileProvider;
         mTileProvider.setTileRequestCompleteHandler(mTileRequestCompleteHandler);
+        if (mTileProvider instanceof MapTileLayerStack) {
+            ((MapTileLayerStack) mTileProvider).setMapView(this);
+        }
+        mTilePrefetcher = new TilePrefetcher(this);
 
         mTilesOverlay = new TilesOverlay(mTileProvider);
         mOverlayManager = new OverlayManager(mTilesOverlay);
@@ -343,11 +354,17 @@ public class MapView extends ViewGroup implements MapViewConstants, MapEventsRec
     /**
      * Set the tile source of this map as an array of tile layers,
      * which will be presented on top of each other.
+     * <p/>
+     * With the default tile provider the layers are tried in turn for every tile. Give the map a
+     * {@link MapTileLayerStack} to fetch, cache and draw them as real layers instead.
      *
      * @param value Array of TileLayer
      */
     public void setTileSource(final ITileLayer[] value) {
-        if (value != null && mTileProvider != null && mTileProvider instanceof MapTileLayerBasic) {
+        if (value != null && mTileProvider instanceof MapTileLayerStack) {
+            ((MapTileLayerStack) mTileProvider).setTileSources(value);
+            updateAfterSourceChange();
+        } else if (value != null && mTileProvider != null && mTileProvider instanceof MapTileLayerBasic) {
             ((MapTileLayerBasic) mTileProvider).setTileSources(value);
             updateAfterSourceChange();
         }
@@ -360,35 +377,48 @@ public class MapView extends ViewGroup implements MapViewConstants, MapEventsRec
      * @param aTileSource TileLayer to use
      */
     public void setTileSource(final ITileLayer aTileSource) {
-        if (aTileSource != null && mTileProvider != null && mTileProvider instanceof MapTileLayerBasic) {
+        if (aTileSource != null && (mTileProvider instanceof MapTileLayerBasic
+                || mTileProvider instanceof MapTileLayerStack)) {
             mTileProvider.setTileSource(aTileSource);
             updateAfterSourceChange();
         }
     }
 
     public void addTileSource(final ITileLayer aTileSource) {
-        if (aTileSource != null && mTileProvider != null && mTileProvider instanceof MapTileLayerBasic) {
+        if (aTileSource != null && mTileProvider instanceof MapTileLayerStack) {
+            ((MapTileLayerStack) mTileProvider).addTileSource(aTileSource);
+            updateAfterSourceChange();
+        } else if (aTileSource != null && mTileProvider != null && mTileProvider instanceof MapTileLayerBasic) {
             ((MapTileLayerBasic) mTileProvider).addTileSource(aTileSource);
             updateAfterSourceChange();
         }
     }
 
     public void addTileSource(final ITileLayer aTileSource, final int index) {
-        if (aTileSource != null && mTileProvider != null && mTileProvider instanceof MapTileLayerBasic) {
+        if (aTileSource != null && mTileProvider instanceof MapTileLayerStack) {
+            ((MapTileLayerStack) mTileProvider).addTileSource(aTileSource, index);
+            updateAfterSourceChange();
+        } else if (aTileSource != null && mTileProvider != null && mTileProvider instanceof MapTileLayerBasic) {
             ((MapTileLayerBasic) mTileProvider).addTileSource(aTileSource, index);
             updateAfterSourceChange();
         }
     }
 
     public void removeTileSource(final ITileLayer aTileSource) {
-        if (aTileSource != null && mTileProvider != null && mTileProvider instanceof MapTileLayerBasic) {
+        if (aTileSource != null && mTileProvider instanceof MapTileLayerStack) {
+            ((MapTileLayerStack) mTileProvider).removeTileSource(aTileSource);
+            updateAfterSourceChange();
+        } else if (aTileSource != null && mTileProvider != null && mTileProvider instanceof MapTileLayerBasic) {
             ((MapTileLayerBasic) mTileProvider).removeTileSource(aTileSource);
             updateAfterSourceChange();
         }
     }
 
     public void removeTileSource(final int index) {
-        if (mTileProvider != null && mTileProvider instanceof MapTileLayerBasic) {
+        if (mTileProvider instanceof MapTileLayerStack) {
+            ((MapTileLayerStack) mTileProvider).removeTileSource(index);
+            updateAfterSourceChange();
+        } else if (mTileProvider != null && mTileProvider instanceof MapTileLayerBasic) {
             ((MapTileLayerBasic) mTileProvider).removeTileSource(index);
             updateAfterSourceChange();
         }
@@ -880,10 +910,6 @@ public class MapView extends ViewGroup implements MapViewConstants, MapEventsRec
         // snap for all snappables
         snapItems();
 
-        if (isLayedOut()) {
-            getMapOverlay().rescaleCache(newZoomLevel, curZoomLevel, getProjection());
-        }
-
         // do callback on listener
         if (newZoomLevel != curZoomLevel && mListeners.size() > 0) {
             final ZoomEvent event = new ZoomEvent(this, newZoomLevel, mController.currentlyInUserAction());
@@ -1716,6 +1742,7 @@ public class MapView extends ViewGroup implements MapViewConstants, MapEventsRec
                 // snapping-to any Snappable points.
                 if (!isAnimating()) {
                     snapItems();
+                    mTilePrefetcher.onMotionEnd();
                 }
                 mIsFlinging = false;
             } else {
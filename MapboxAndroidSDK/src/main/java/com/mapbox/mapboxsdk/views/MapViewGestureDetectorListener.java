@@ -30,6 +30,8 @@ public class MapViewGestureDetectorListener extends SimpleOnGestureListener {
             this.mapView.mScroller.abortAnimation();
             this.mapView.mIsFlinging = false;
         }
+        // whatever the last motion was heading to, the map is where it stays now
+        this.mapView.mTilePrefetcher.cancel();
 
         if (this.mapView.getOverlayManager().onDown(e, this.mapView)) {
             return true;
@@ -48,6 +50,7 @@ public class MapViewGestureDetectorListener extends SimpleOnGestureListener {
         this.mapView.mIsFlinging = true;
         this.mapView.mScroller.fling(this.mapView.getScrollX(), this.mapView.getScrollY(),
                 (int) -velocityX, (int) -velocityY, -worldSize, worldSize, -worldSize, worldSize);
+        this.mapView.mTilePrefetcher.onFling();
         return true;
     }
 
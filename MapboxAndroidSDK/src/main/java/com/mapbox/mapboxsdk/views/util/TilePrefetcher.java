@@ -0,0 +1,112 @@
+package com.mapbox.mapboxsdk.views.util;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+import com.mapbox.mapboxsdk.views.MapView;
+
+/**
+ * Predicts where the map will come to rest when a motion starts, and has the tile provider
+ * request the tiles of that viewport while the map is still moving, so that they are mostly
+ * loaded by the time it lands. Flings are predicted from the final position of the
+ * {@link android.widget.Scroller}, zoom animations from their target zoom level and center.
+ * <p/>
+ * A new prediction replaces the previous one, and {@link #cancel()} drops it when the motion is
+ * interrupted. Once the motion ends, {@link #onMotionEnd()} drops it too, so that tiles of a
+ * prediction the map didn't land on don't stay wanted. All methods must be called on the UI
+ * thread.
+ */
+public class TilePrefetcher {
+
+    private final MapView mMapView;
+
+    private final Runnable mCancel = new Runnable() {
+        @Override
+        public void run() {
+            cancel();
+        }
+    };
+
+    public TilePrefetcher(final MapView mapView) {
+        mMapView = mapView;
+    }
+
+    /**
+     * A fling has just started on the map's scroller.
+     */
+    public void onFling() {
+        final float zoom = mMapView.getZoomLevel(false);
+        predict(mMapView.getScroller().getFinalX(), mMapView.getScroller().getFinalY(), zoom,
+                zoom);
+    }
+
+    /**
+     * A zoom animation has just started.
+     *
+     * @param targetZoom the zoom level the animation ends at
+     * @param centerX the center of the map once the animation ends, in map pixels at the current
+     * zoom level like {@link MapView#getScrollX()}
+     * @param centerY see centerX
+     */
+    public void onZoomAnimation(final float targetZoom, final double centerX,
+            final double centerY) {
+        predict(centerX, centerY, mMapView.getZoomLevel(false), targetZoom);
+    }
+
+    /**
+     * The motion was interrupted before reaching the prediction.
+     */
+    public void cancel() {
+        mMapView.getTileProvider().cancelPrefetch();
+    }
+
+    /**
+     * The motion came to rest. The prediction is dropped once the map is drawn at its final
+     * position, so that the predicted tiles that are visible by then aren't cancelled.
+     */
+    public void onMotionEnd() {
+        mMapView.post(mCancel);
+    }
+
+    private void predict(double centerX, double centerY, final float zoom,
+            final float targetZoom) {
+        // a motion that ended just before doesn't drop this one
+        mMapView.removeCallbacks(mCancel);
+        if (!mMapView.isLayedOut()) {
+            return;
+        }
+        // the map stops at the edges of the scrollable area, the way MapView.scrollTo() does
+        final RectF limit = mMapView.getScrollableAreaLimit();
+        if (limit != null) {
+            final float width_2 = mMapView.getMeasuredWidth() / 2;
+            final float height_2 = mMapView.getMeasuredHeight() / 2;
+            centerX = clamp(centerX, limit.left + width_2, limit.right - width_2,
+                    limit.centerX());
+            centerY = clamp(centerY, limit.top + height_2, limit.bottom - height_2,
+                    limit.centerY());
+        }
+
+        // the same range as TilesOverlay draws, without its margin of one tile
+        final Rect screenRect = mMapView.getProjection().getScreenRect();
+        final int roundedZoom = (int) Math.floor(targetZoom);
+        final double scale = Math.pow(2, roundedZoom - zoom);
+        final double halfWidth = screenRect.width() / 2d * Math.pow(2, roundedZoom - targetZoom);
+        final double halfHeight = screenRect.height() / 2d * Math.pow(2, roundedZoom - targetZoom);
+        final int worldSize_2 = Projection.mapSize(roundedZoom) >> 1;
+        final int tileSize = Projection.getTileSize();
+        final double x = centerX * scale + worldSize_2;
+        final double y = centerY * scale + worldSize_2;
+        mMapView.getTileProvider().prefetch(roundedZoom,
+                (int) Math.floor((x - halfWidth) / tileSize),
+                (int) Math.floor((y - halfHeight) / tileSize),
+                (int) Math.floor((x + halfWidth) / tileSize),
+                (int) Math.floor((y + halfHeight) / tileSize));
+    }
+
+    private static double clamp(final double value, final double min, final double max,
+            final double center) {
+        if (max < min) {
+            return center;
+        }
+        return Math.min(Math.max(value, min), max);
+    }
+}
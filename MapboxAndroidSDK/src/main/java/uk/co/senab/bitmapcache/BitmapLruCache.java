@@ -29,13 +29,14 @@ import android.util.Log;
 import com.jakewharton.disklrucache.DiskLruCache;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -111,10 +112,13 @@ public class BitmapLruCache {
         }
     }
 
-    // The number of seconds after the last edit that the Disk Cache should be
-    // flushed
+    // The number of seconds after the first unflushed edit that the Disk Cache
+    // should be flushed, so edits in a burst share one flush
     static final int DISK_CACHE_FLUSH_DELAY_SECS = 5;
 
+    // The number of locks that disk cache edits are striped over, a power of two
+    static final int DISK_CACHE_EDIT_LOCK_COUNT = 32;
+
     /**
      * @throws IllegalStateException if the calling thread is the main/UI thread.
      */
@@ -125,6 +129,14 @@ public class BitmapLruCache {
         }
     }
 
+    /**
+     * Each disk cache entry holds the encoded image and a String of metadata, which is opaque to
+     * this class. Entries written without metadata get an empty String.
+     */
+    static final int DISK_CACHE_VALUE_COUNT = 2;
+    static final int DISK_CACHE_INDEX_IMAGE = 0;
+    static final int DISK_CACHE_INDEX_METADATA = 1;
+
     /**
      * The disk cache only accepts a reduced range of characters for the key values. This method
      * transforms the {@code url} into something accepted from {@link DiskLruCache}. Currently we
@@ -137,6 +149,26 @@ public class BitmapLruCache {
         return Md5.encode(url);
     }
 
+    /**
+     * The memory cache is keyed by longs. Callers that only have a {@code url} get a 64-bit
+     * FNV-1a hash of it; lookups by url then compare the url of the cached value, so a hash
+     * collision is a cache miss rather than a wrong bitmap.
+     *
+     * @param url - Key to be transformed
+     * @return key which can be used for the memory cache
+     */
+    static long transformUrlForMemoryCacheKey(String url) {
+        if (null == url) {
+            return 0;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, length = url.length(); i < length; i++) {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
     private File mTempDir;
 
     private Resources mResources;
@@ -148,13 +180,15 @@ public class BitmapLruCache {
 
     private RecyclePolicy mRecyclePolicy;
 
+    private SolidColorBitmaps mSolidColorBitmaps;
+
     /**
      * Disk Cache Variables
      */
     private DiskLruCache mDiskCache;
 
     // Variables which are only used when the Disk Cache is enabled
-    private HashMap<String, ReentrantLock> mDiskCacheEditLocks;
+    private ReentrantLock[] mDiskCacheEditLocks;
 
     private ScheduledThreadPoolExecutor mDiskCacheFlusherExecutor;
 
@@ -216,7 +250,19 @@ public class BitmapLruCache {
      *         false} otherwise.
      */
     public boolean containsInMemoryCache(String url) {
-        return null != mMemoryCache && null != mMemoryCache.get(url);
+        return null != getFromMemoryCache(url);
+    }
+
+    /**
+     * Returns whether the Memory Cache contains the specified key. This method is safe to be called
+     * from the main thread.
+     *
+     * @param key the memory cache key to search for.
+     * @return {@code true} if the Memory Cache is enabled and contains the specified key, {@code
+     *         false} otherwise.
+     */
+    public boolean containsInMemoryCache(long key) {
+        return null != mMemoryCache && null != mMemoryCache.get(key);
     }
 
     /**
@@ -263,6 +309,21 @@ public class BitmapLruCache {
      */
     public CacheableBitmapDrawable getFromDiskCache(final String url,
             final BitmapFactory.Options decodeOpts) {
+        return getFromDiskCache(transformUrlForMemoryCacheKey(url), url, decodeOpts);
+    }
+
+    /**
+     * Returns the value for {@code url} in the disk cache only, and caches it in the memory cache
+     * under {@code memoryKey}. You should not call this method from main/UI thread.
+     *
+     * @param memoryKey  - Key used for the memory cache
+     * @param url        - String representing the URL of the image, used for the disk cache
+     * @param decodeOpts - Options used for decoding the contents from the disk cache.
+     * @return Value for {@code url} from disk cache, or {@code null} if the disk cache is not
+     *         enabled.
+     */
+    public CacheableBitmapDrawable getFromDiskCache(final long memoryKey, final String url,
+            final BitmapFactory.Options decodeOpts) {
         CacheableBitmapDrawable result = null;
 
         if (null != mDiskCache) {
@@ -271,7 +332,8 @@ public class BitmapLruCache {
             try {
                 final String key = transformUrlForDiskCacheKey(url);
                 // Try and decode bitmap
-                result = decodeBitmapToDrawable(new SnapshotInputStreamProvider(key), url, decodeOpts);
+                result = decodeBitmapToDrawable(new SnapshotInputStreamProvider(key), memoryKey,
+                        url, decodeOpts);
 
                 if (null != result) {
                     if (null != mMemoryCache) {
@@ -301,17 +363,33 @@ public class BitmapLruCache {
      *         enabled.
      */
     public CacheableBitmapDrawable getFromMemoryCache(final String url) {
+        CacheableBitmapDrawable result = getFromMemoryCache(transformUrlForMemoryCacheKey(url));
+
+        if (null != result && (null == url || !url.equals(result.getUrl()))) {
+            result = null;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the value for {@code key} in the memory cache only. This method is safe to be called
+     * from the main thread and doesn't allocate.
+     *
+     * @param key - the memory cache key of the image
+     * @return Value for {@code key} from memory cache, or {@code null} if the memory cache is not
+     *         enabled.
+     */
+    public CacheableBitmapDrawable getFromMemoryCache(final long key) {
         CacheableBitmapDrawable result = null;
 
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                result = mMemoryCache.get(url);
+            result = mMemoryCache.get(key);
 
-                // If we get a value, but it has a invalid bitmap, remove it
-                if (null != result && !result.isBitmapValid()) {
-                    mMemoryCache.remove(url);
-                    result = null;
-                }
+            // If we get a value, but it has a invalid bitmap, remove it
+            if (null != result && !result.isBitmapValid()) {
+                mMemoryCache.remove(key, result);
+                result = null;
             }
         }
 
@@ -319,13 +397,24 @@ public class BitmapLruCache {
     }
 
 
+    /**
+     * Take an {@link Bitmap.Config#ARGB_8888} bitmap removed from the memory cache out of the
+     * {@link BitmapPool}, to draw into instead of allocating a new one.
+     *
+     * @return a mutable bitmap cleared to transparent, or null if there is none of that size
+     */
     public Bitmap getBitmapFromRemoved(final int width, final int height) {
-        if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                return mMemoryCache.getBitmapFromRemoved(width, height);
-            }
-        }
-        return null;
+        final BitmapPool pool = getBitmapPool();
+        return null != pool ? pool.get(width, height, Bitmap.Config.ARGB_8888) : null;
+    }
+
+    /**
+     * @return the pool of bitmaps removed from the memory cache that new bitmaps are decoded
+     *         into, or null if the memory cache is disabled or the recycle policy doesn't allow
+     *         reusing bitmaps.
+     */
+    public BitmapPool getBitmapPool() {
+        return null != mMemoryCache ? mMemoryCache.getBitmapPool() : null;
     }
 
     /**
@@ -379,6 +468,60 @@ public class BitmapLruCache {
         return d;
     }
 
+    /**
+     * Caches {@code bitmap} under {@code key} in the memory cache and, if {@code url} is not null,
+     * under {@code url} in the disk cache, compressed losslessly. <p/> If you have the disk cache
+     * enabled, you should not call this method from main/UI thread.
+     *
+     * @param key    - Key used for the memory cache.
+     * @param url    - String used for the disk cache, may be null.
+     * @param bitmap - Bitmap which has been decoded from {@code url}.
+     * @return CacheableBitmapDrawable which can be used to display the bitmap.
+     */
+    public CacheableBitmapDrawable put(final long key, final String url, final Bitmap bitmap) {
+        return put(key, url, bitmap, null);
+    }
+
+    /**
+     * Same as {@link #put(long, String, Bitmap)}, and stores {@code metadata} next to the bitmap
+     * in the disk cache.
+     */
+    public CacheableBitmapDrawable put(final long key, final String url, final Bitmap bitmap,
+            final String metadata) {
+        CacheableBitmapDrawable d = newDrawable(key, url, bitmap,
+                CacheableBitmapDrawable.SOURCE_UNKNOWN, false);
+
+        putInMemoryCache(d);
+        if (null != url) {
+            putInDiskCache(url, d, Bitmap.CompressFormat.PNG, 100, metadata);
+        }
+        return d;
+    }
+
+    /**
+     * Caches {@code bitmap} under {@code key} in the memory cache and, if {@code url} is not null,
+     * the {@code data} it was decoded from under {@code url} in the disk cache, together with
+     * {@code metadata}. The original contents are cached as is rather than re-compressed. <p/> If
+     * you have the disk cache enabled, you should not call this method from main/UI thread.
+     *
+     * @param key    - Key used for the memory cache.
+     * @param url    - String used for the disk cache, may be null.
+     * @param bitmap - Bitmap which has been decoded from {@code data}.
+     * @param data   - The encoded image, as downloaded from {@code url}.
+     * @return CacheableBitmapDrawable which can be used to display the bitmap.
+     */
+    public CacheableBitmapDrawable put(final long key, final String url, final Bitmap bitmap,
+            final byte[] data, final String metadata) {
+        CacheableBitmapDrawable d = newDrawable(key, url, bitmap,
+                CacheableBitmapDrawable.SOURCE_UNKNOWN, false);
+
+        putInMemoryCache(d);
+        if (null != url) {
+            putInDiskCache(url, data, metadata);
+        }
+        return d;
+    }
+
     public CacheableBitmapDrawable putInMemoryCache(final String url, final Bitmap bitmap) {
         return putInMemoryCache(url, bitmap, Bitmap.CompressFormat.PNG, 100);
     }
@@ -387,16 +530,52 @@ public class BitmapLruCache {
         return putInMemoryCache(url, drawable, Bitmap.CompressFormat.PNG, 100);
     }
 
-    public CacheableBitmapDrawable putInMemoryCache(final String url, final CacheableBitmapDrawable drawable,
-                                                    Bitmap.CompressFormat compressFormat, int compressQuality) {
+    /**
+     * Caches {@code bitmap} under {@code key} in the memory cache only.
+     *
+     * @return CacheableBitmapDrawable which can be used to display the bitmap.
+     */
+    public CacheableBitmapDrawable putInMemoryCache(final long key, final Bitmap bitmap) {
+        return putInMemoryCache(newDrawable(key, null, bitmap,
+                CacheableBitmapDrawable.SOURCE_UNKNOWN, false));
+    }
+
+    /**
+     * Decodes the contents of {@code ip} and caches the result under {@code key} in the memory
+     * cache only, for images kept in a disk cache of their own. You should not call this method
+     * from the main/UI thread.
+     *
+     * @return CacheableBitmapDrawable which can be used to display the bitmap, or {@code null} if
+     *         the contents can't be decoded.
+     */
+    public CacheableBitmapDrawable putInMemoryCache(final long key, final InputStreamProvider ip,
+            final BitmapFactory.Options decodeOpts) {
+        checkNotOnMainThread();
+
+        CacheableBitmapDrawable d = decodeBitmapToDrawable(ip, key, null, decodeOpts);
+        if (null != d && null != mMemoryCache) {
+            mMemoryCache.put(d);
+        }
+        return d;
+    }
+
+    /**
+     * Caches {@code drawable} under its own key in the memory cache only.
+     *
+     * @return the drawable
+     */
+    public CacheableBitmapDrawable putInMemoryCache(final CacheableBitmapDrawable drawable) {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.put(drawable);
-            }
+            mMemoryCache.put(drawable);
         }
         return drawable;
     }
 
+    public CacheableBitmapDrawable putInMemoryCache(final String url, final CacheableBitmapDrawable drawable,
+                                                    Bitmap.CompressFormat compressFormat, int compressQuality) {
+        return putInMemoryCache(drawable);
+    }
+
     public CacheableBitmapDrawable putInMemoryCache(final String url, final Bitmap bitmap,
                                        Bitmap.CompressFormat compressFormat, int compressQuality) {
 
@@ -416,6 +595,12 @@ public class BitmapLruCache {
 
     public CacheableBitmapDrawable putInDiskCache(final String url, final CacheableBitmapDrawable drawable,
                                                   Bitmap.CompressFormat compressFormat, int compressQuality) {
+        return putInDiskCache(url, drawable, compressFormat, compressQuality, null);
+    }
+
+    public CacheableBitmapDrawable putInDiskCache(final String url, final CacheableBitmapDrawable drawable,
+                                                  Bitmap.CompressFormat compressFormat, int compressQuality,
+                                                  final String metadata) {
 
         if (null != mDiskCache) {
             checkNotOnMainThread();
@@ -428,9 +613,10 @@ public class BitmapLruCache {
 
             try {
                 DiskLruCache.Editor editor = mDiskCache.edit(key);
-                os = editor.newOutputStream(0);
+                os = editor.newOutputStream(DISK_CACHE_INDEX_IMAGE);
                 drawable.getBitmap().compress(compressFormat, compressQuality, os);
                 os.flush();
+                editor.set(DISK_CACHE_INDEX_METADATA, null != metadata ? metadata : "");
                 editor.commit();
             } catch (IOException e) {
                 Log.e(Constants.LOG_TAG, "Error while writing to disk cache", e);
@@ -444,6 +630,41 @@ public class BitmapLruCache {
         return drawable;
     }
 
+    /**
+     * Caches the encoded image {@code data} for {@code url} in the disk cache as is, together with
+     * {@code metadata}. You should not call this method from main/UI thread.
+     */
+    public void putInDiskCache(final String url, final byte[] data, final String metadata) {
+        if (null != mDiskCache) {
+            checkNotOnMainThread();
+
+            final String key = transformUrlForDiskCacheKey(url);
+            final ReentrantLock lock = getLockForDiskCacheEdit(key);
+            lock.lock();
+
+            OutputStream os = null;
+
+            try {
+                DiskLruCache.Editor editor = mDiskCache.edit(key);
+                if (null == editor) {
+                    // another thread is writing the same entry
+                    return;
+                }
+                os = editor.newOutputStream(DISK_CACHE_INDEX_IMAGE);
+                os.write(data);
+                os.flush();
+                editor.set(DISK_CACHE_INDEX_METADATA, null != metadata ? metadata : "");
+                editor.commit();
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG, "Error while writing to disk cache", e);
+            } finally {
+                IoUtils.closeStream(os);
+                lock.unlock();
+                scheduleDiskCacheFlush();
+            }
+        }
+    }
+
     public CacheableBitmapDrawable putInDiskCache(final String url, final Bitmap bitmap,
                                        Bitmap.CompressFormat compressFormat, int compressQuality) {
 
@@ -494,22 +715,30 @@ public class BitmapLruCache {
      */
     public CacheableBitmapDrawable put(final String url, final byte[] data,
             final BitmapFactory.Options decodeOpts) {
+        return put(transformUrlForMemoryCacheKey(url), url, data, decodeOpts);
+    }
+
+    /**
+     * Same as {@link #put(String, byte[], BitmapFactory.Options)}, but caches the decoded bitmap
+     * under {@code key} in the memory cache.
+     */
+    public CacheableBitmapDrawable put(final long key, final String url, final byte[] data,
+            final BitmapFactory.Options decodeOpts) {
         checkNotOnMainThread();
 
         if (null == mDiskCache) {
             // shortcut to avoid temporary storage on disk
-            CacheableBitmapDrawable d = decodeBitmapToDrawable(new ByteArrayInputStreamProvider(data), url,
-                    decodeOpts);
+            CacheableBitmapDrawable d = decodeBitmapToDrawable(new ByteArrayInputStreamProvider(data),
+                    key, url, decodeOpts);
             if (null != d) {
                 if (null != mMemoryCache) {
-                    d.setCached(true);
-                    mMemoryCache.put(d.getUrl(), d);
+                    mMemoryCache.put(d);
                 }
                 return d;
             }
         }
 
-        return put(url, new ByteArrayInputStream(data), decodeOpts);
+        return put(key, url, new ByteArrayInputStream(data), decodeOpts);
     }
 
     /**
@@ -538,6 +767,25 @@ public class BitmapLruCache {
      */ //todo
     public CacheableBitmapDrawable put(final String url, final InputStream inputStream,
             final BitmapFactory.Options decodeOpts) {
+        return put(transformUrlForMemoryCacheKey(url), url, inputStream, decodeOpts);
+    }
+
+    /**
+     * Same as {@link #put(String, InputStream, BitmapFactory.Options)}, but caches the decoded
+     * bitmap under {@code key} in the memory cache.
+     */
+    public CacheableBitmapDrawable put(final long key, final String url,
+            final InputStream inputStream, final BitmapFactory.Options decodeOpts) {
+        return put(key, url, inputStream, decodeOpts, null);
+    }
+
+    /**
+     * Same as {@link #put(long, String, InputStream, BitmapFactory.Options)}, and stores
+     * {@code metadata} next to the original stream contents in the disk cache.
+     */
+    public CacheableBitmapDrawable put(final long key, final String url,
+            final InputStream inputStream, final BitmapFactory.Options decodeOpts,
+            final String metadata) {
         if (inputStream == null) return null;
         checkNotOnMainThread();
 
@@ -557,24 +805,22 @@ public class BitmapLruCache {
 
         if (null != tmpFile) {
             // Try and decode File
-            d = decodeBitmapToDrawable(new FileInputStreamProvider(tmpFile), url, decodeOpts);
+            d = decodeBitmapToDrawable(new FileInputStreamProvider(tmpFile), key, url, decodeOpts);
 
             if (d != null) {
                 if (null != mMemoryCache) {
-                    d.setCached(true);
-                    synchronized (mMemoryCache) {
-                        mMemoryCache.put(d.getUrl(), d);
-                    }
+                    mMemoryCache.put(d);
                 }
 
-                if (null != mDiskCache) {
-                    final String key = transformUrlForDiskCacheKey(url);
-                    final ReentrantLock lock = getLockForDiskCacheEdit(url);
+                if (null != mDiskCache && null != url) {
+                    final String diskKey = transformUrlForDiskCacheKey(url);
+                    final ReentrantLock lock = getLockForDiskCacheEdit(diskKey);
                     lock.lock();
 
                     try {
-                        DiskLruCache.Editor editor = mDiskCache.edit(key);
-                        IoUtils.copy(tmpFile, editor.newOutputStream(0));
+                        DiskLruCache.Editor editor = mDiskCache.edit(diskKey);
+                        IoUtils.copy(tmpFile, editor.newOutputStream(DISK_CACHE_INDEX_IMAGE));
+                        editor.set(DISK_CACHE_INDEX_METADATA, null != metadata ? metadata : "");
                         editor.commit();
                     } catch (IOException e) {
                         Log.e(Constants.LOG_TAG, "Error writing to disk cache. URL: " + url, e);
@@ -592,18 +838,120 @@ public class BitmapLruCache {
         return d;
     }
 
+    /**
+     * Returns the metadata stored next to {@code url} in the disk cache. You should not call this
+     * method from main/UI thread.
+     *
+     * @return the metadata, an empty String if the entry was stored without any, or {@code null}
+     *         if the disk cache is disabled or doesn't contain {@code url}
+     */
+    public String getDiskCacheMetadata(final String url) {
+        if (null != mDiskCache && null != url) {
+            checkNotOnMainThread();
+
+            DiskLruCache.Snapshot snapshot = null;
+            try {
+                snapshot = mDiskCache.get(transformUrlForDiskCacheKey(url));
+                if (null != snapshot) {
+                    return snapshot.getString(DISK_CACHE_INDEX_METADATA);
+                }
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG, "Error reading disk cache metadata. URL: " + url, e);
+            } finally {
+                if (null != snapshot) {
+                    snapshot.close();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the encoded image stored for {@code url} in the disk cache, without decoding it.
+     * You should not call this method from main/UI thread.
+     *
+     * @return the image, or {@code null} if the disk cache is disabled or doesn't contain
+     *         {@code url}
+     */
+    public byte[] getDiskCacheData(final String url) {
+        if (null != mDiskCache && null != url) {
+            checkNotOnMainThread();
+
+            DiskLruCache.Snapshot snapshot = null;
+            try {
+                snapshot = mDiskCache.get(transformUrlForDiskCacheKey(url));
+                if (null != snapshot) {
+                    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    IoUtils.copy(snapshot.getInputStream(DISK_CACHE_INDEX_IMAGE), data);
+                    return data.toByteArray();
+                }
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG, "Error reading disk cache. URL: " + url, e);
+            } finally {
+                if (null != snapshot) {
+                    snapshot.close();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the metadata of an existing disk cache entry without rewriting its image. You
+     * should not call this method from main/UI thread.
+     *
+     * @return {@code true} if the entry exists and was updated
+     */
+    public boolean putDiskCacheMetadata(final String url, final String metadata) {
+        if (null == mDiskCache || null == url) {
+            return false;
+        }
+        checkNotOnMainThread();
+
+        final String key = transformUrlForDiskCacheKey(url);
+        final ReentrantLock lock = getLockForDiskCacheEdit(key);
+        lock.lock();
+
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = mDiskCache.get(key);
+            // editing through the snapshot keeps the image, and fails if it changed meanwhile
+            final DiskLruCache.Editor editor = null != snapshot ? snapshot.edit() : null;
+            if (null == editor) {
+                return false;
+            }
+            editor.set(DISK_CACHE_INDEX_METADATA, null != metadata ? metadata : "");
+            editor.commit();
+            return true;
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error writing disk cache metadata. URL: " + url, e);
+            return false;
+        } finally {
+            if (null != snapshot) {
+                snapshot.close();
+            }
+            lock.unlock();
+            scheduleDiskCacheFlush();
+        }
+    }
+
     /**
      * Removes the entry for {@code url} from all enabled caches, if it exists. <p/> If you have the
      * disk cache enabled, you should not call this method from main/UI thread.
      */
     public void remove(String url) {
-        if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.remove(url);
-            }
-        }
+        remove(transformUrlForMemoryCacheKey(url), url);
+    }
 
-        if (null != mDiskCache) {
+    /**
+     * Removes the entry for {@code key} from the memory cache and the entry for {@code url} from
+     * the disk cache, if they exist. <p/> If you have the disk cache enabled, you should not call
+     * this method from main/UI thread.
+     */
+    public void remove(long key, String url) {
+        removeFromMemoryCache(key);
+
+        if (null != mDiskCache && null != url) {
             checkNotOnMainThread();
 
             try {
@@ -619,9 +967,28 @@ public class BitmapLruCache {
      * Removes the entry for {@code url} from memory, if it exists. <p/>
      */
     public void removeFromMemoryCache(String url) {
+        removeFromMemoryCache(transformUrlForMemoryCacheKey(url));
+    }
+
+    /**
+     * Removes the entry for {@code key} from memory, if it exists. <p/>
+     */
+    public void removeFromMemoryCache(long key) {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.remove(url);
+            mMemoryCache.remove(key);
+        }
+    }
+
+    /**
+     * Removes the entries whose keys are between {@code firstKey} and {@code lastKey}, both
+     * included, from memory. <p/>
+     */
+    public void removeFromMemoryCache(long firstKey, long lastKey) {
+        if (null != mMemoryCache) {
+            for (long key : mMemoryCache.keySnapshot()) {
+                if (key >= firstKey && key <= lastKey) {
+                    mMemoryCache.remove(key);
+                }
             }
         }
     }
@@ -646,6 +1013,14 @@ public class BitmapLruCache {
         mMemoryCache.resizeMemoryForTiles(numberOfTiles);
     }
 
+    /**
+     * @param tileBytes the number of bytes of a decoded tile, or 0 to size for the largest tile
+     *                  seen so far
+     */
+    public void resizeMemoryForTiles(int numberOfTiles, int tileBytes) {
+        mMemoryCache.resizeMemoryForTiles(numberOfTiles, tileBytes);
+    }
+
     /**
      * This method iterates through the memory cache (if enabled) and removes any entries which are
      * not currently being displayed. A good place to call this would be from {@link
@@ -653,17 +1028,16 @@ public class BitmapLruCache {
      */
     public void trimMemory() {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.trimMemory();
-            }
+            mMemoryCache.trimMemory();
         }
     }
 
     public void purgeMemoryCache() {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.evictAll();
-            }
+            mMemoryCache.evictAll();
+        }
+        if (null != mSolidColorBitmaps) {
+            mSolidColorBitmaps.clear();
         }
     }
 
@@ -678,11 +1052,43 @@ public class BitmapLruCache {
         }
     }
 
+    /**
+     * Release this cache once it is replaced by another: the memory cache is emptied, and the
+     * disk cache is closed on its flusher thread, which then ends. The cache must not be used
+     * afterwards.
+     */
+    public void close() {
+        purgeMemoryCache();
+        if (null != mDiskCacheFlusherExecutor) {
+            final DiskLruCache diskCache = mDiskCache;
+            synchronized (mDiskCacheFlusherExecutor) {
+                if (null != mDiskCacheFuture) {
+                    // closing flushes the journal too
+                    mDiskCacheFuture.cancel(false);
+                }
+                mDiskCacheFlusherExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            diskCache.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+                mDiskCacheFlusherExecutor.shutdown();
+            }
+        }
+    }
+
     synchronized void setDiskCache(DiskLruCache diskCache) {
         mDiskCache = diskCache;
 
         if (null != diskCache) {
-            mDiskCacheEditLocks = new HashMap<String, ReentrantLock>();
+            mDiskCacheEditLocks = new ReentrantLock[DISK_CACHE_EDIT_LOCK_COUNT];
+            for (int i = 0; i < mDiskCacheEditLocks.length; i++) {
+                mDiskCacheEditLocks[i] = new ReentrantLock();
+            }
             mDiskCacheFlusherExecutor = new ScheduledThreadPoolExecutor(1);
             mDiskCacheFlusherRunnable = new DiskCacheFlushRunnable(diskCache);
         }
@@ -693,42 +1099,82 @@ public class BitmapLruCache {
         mRecyclePolicy = memoryCache.getRecyclePolicy();
     }
 
-    private ReentrantLock getLockForDiskCacheEdit(String url) {
-        synchronized (mDiskCacheEditLocks) {
-            ReentrantLock lock = mDiskCacheEditLocks.get(url);
-            if (null == lock) {
-                lock = new ReentrantLock();
-                mDiskCacheEditLocks.put(url, lock);
-            }
-            return lock;
-        }
+    void setSolidColorBitmaps(SolidColorBitmaps solidColorBitmaps) {
+        mSolidColorBitmaps = solidColorBitmaps;
+    }
+
+    /**
+     * @return the bitmaps shared by single color images, or null if they aren't shared.
+     */
+    public SolidColorBitmaps getSolidColorBitmaps() {
+        return mSolidColorBitmaps;
+    }
+
+    private ReentrantLock getLockForDiskCacheEdit(String diskKey) {
+        // A fixed set of locks, so that a cache of many entries doesn't hold a lock for each
+        // of them. Edits of two keys sharing a lock wait for each other, which is rare.
+        int hash = diskKey.hashCode();
+        hash ^= (hash >>> 16);
+        return mDiskCacheEditLocks[hash & (mDiskCacheEditLocks.length - 1)];
     }
 
     private void scheduleDiskCacheFlush() {
-        // If we already have a flush scheduled, cancel it
-        if (null != mDiskCacheFuture) {
-            mDiskCacheFuture.cancel(false);
-        }
+        synchronized (mDiskCacheFlusherExecutor) {
+            // If we already have a flush scheduled, it will cover this edit too. Once the cache
+            // is closed, there is nothing left to flush.
+            if ((null != mDiskCacheFuture && !mDiskCacheFuture.isDone())
+                    || mDiskCacheFlusherExecutor.isShutdown()) {
+                return;
+            }
 
-        // Schedule a flush
-        mDiskCacheFuture = mDiskCacheFlusherExecutor
-                .schedule(mDiskCacheFlusherRunnable, DISK_CACHE_FLUSH_DELAY_SECS,
-                        TimeUnit.SECONDS);
+            // Schedule a flush
+            mDiskCacheFuture = mDiskCacheFlusherExecutor
+                    .schedule(mDiskCacheFlusherRunnable, DISK_CACHE_FLUSH_DELAY_SECS,
+                            TimeUnit.SECONDS);
+        }
     }
 
     public CacheableBitmapDrawable createCacheableBitmapDrawable(Bitmap bitmap, String url, int source)
     {
+        return createCacheableBitmapDrawable(bitmap, transformUrlForMemoryCacheKey(url), url, source);
+    }
+
+    public CacheableBitmapDrawable createCacheableBitmapDrawable(Bitmap bitmap, long key, String url,
+            int source) {
         if (bitmap != null) {
-            return new CacheableBitmapDrawable(url, mResources, bitmap, mRecyclePolicy, source);
+            return new CacheableBitmapDrawable(key, url, mResources, bitmap, mRecyclePolicy, source);
         }
         return null;
     }
 
-    private CacheableBitmapDrawable decodeBitmapToDrawable(InputStreamProvider ip, String url,
-            BitmapFactory.Options opts) {
+    private CacheableBitmapDrawable decodeBitmapToDrawable(InputStreamProvider ip, long key,
+            String url, BitmapFactory.Options opts) {
         AtomicInteger source = new AtomicInteger(0);
         Bitmap result = decodeBitmap(ip, opts, source);
-        return createCacheableBitmapDrawable(result, url, source.get());
+        return null != result ? newDrawable(key, url, result, source.get(), true) : null;
+    }
+
+    /**
+     * Wraps {@code bitmap}, or the bitmap it shares with the other images of its color if it is
+     * a single color and {@link SolidColorBitmaps} are enabled.
+     *
+     * @param owned - true if nothing else uses {@code bitmap}, which then goes back to the pool
+     *              when the shared bitmap replaces it.
+     */
+    private CacheableBitmapDrawable newDrawable(long key, String url, Bitmap bitmap, int source,
+            boolean owned) {
+        final SolidColorBitmaps solidColorBitmaps = mSolidColorBitmaps;
+        if (null != solidColorBitmaps) {
+            final Bitmap shared = solidColorBitmaps.get(bitmap);
+            if (null != shared) {
+                if (owned && shared != bitmap) {
+                    returnToPool(bitmap);
+                }
+                return new CacheableBitmapDrawable(key, url, mResources, shared, mRecyclePolicy,
+                        source, true);
+            }
+        }
+        return new CacheableBitmapDrawable(key, url, mResources, bitmap, mRecyclePolicy, source);
     }
 
     public Bitmap decodeBitmap(InputStreamProvider ip, BitmapFactory.Options opts) {
@@ -737,7 +1183,6 @@ public class BitmapLruCache {
     public Bitmap decodeBitmap(InputStreamProvider ip, BitmapFactory.Options opts,
                                AtomicInteger source) {
         Bitmap bm = null;
-        InputStream is = null;
         if (source != null) {
             source.set(CacheableBitmapDrawable.SOURCE_NEW);
         }
@@ -749,7 +1194,8 @@ public class BitmapLruCache {
                     opts = new BitmapFactory.Options();
                 }
 
-                if (opts.inSampleSize <= 1) {
+                // Scaled images don't have the size of the pooled bitmaps
+                if (opts.inSampleSize <= 1 && !isScaled(opts)) {
                     opts.inSampleSize = 1;
 
                     if (addInBitmapOptions(ip, opts) && source != null) {
@@ -758,24 +1204,38 @@ public class BitmapLruCache {
                 }
             }
 
-            // Get InputStream for actual decode
-            is = ip.getInputStream();
-            // Decode stream
-            if (is == null && ip instanceof ByteArrayInputStreamProvider) {
-                byte[] data = ((ByteArrayInputStreamProvider) ip).array;
-                bm = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
-            } else {
-                bm = BitmapFactory.decodeStream(is, null, opts);
+            try {
+                bm = decode(ip, opts);
+            } catch (IllegalArgumentException e) {
+                // The image can't be decoded into the pooled bitmap after all, allocate one
+                final Bitmap inBitmap = mRecyclePolicy.canInBitmap()
+                        ? SDK11.removeInBitmapOption(opts) : null;
+                if (null == inBitmap) {
+                    throw e;
+                }
+                returnToPool(inBitmap);
+                if (source != null) {
+                    source.set(CacheableBitmapDrawable.SOURCE_NEW);
+                }
+                bm = decode(ip, opts);
+            }
+            if (null == bm && mRecyclePolicy.canInBitmap()) {
+                // Not an image, keep the pooled bitmap for the next one
+                final Bitmap inBitmap = SDK11.removeInBitmapOption(opts);
+                returnToPool(inBitmap);
             }
         } catch (Exception e) {
             Log.e(Constants.LOG_TAG, "Unable to decode stream",  e);
-        } finally {
-            IoUtils.closeStream(is);
         }
 
         return bm;
     }
 
+    private static boolean isScaled(BitmapFactory.Options opts) {
+        return opts.inScaled && opts.inDensity != 0 && opts.inTargetDensity != 0
+                && opts.inDensity != opts.inTargetDensity;
+    }
+
     private boolean addInBitmapOptions(InputStreamProvider ip, BitmapFactory.Options opts) {
         // Create InputStream for decoding the bounds
         final InputStream is = ip.getInputStream();
@@ -795,21 +1255,44 @@ public class BitmapLruCache {
         opts.inMutable = true;
 
         // Try and find Bitmap to use for inBitmap
-        synchronized (mMemoryCache) {
-            Bitmap reusableBm = mMemoryCache.getBitmapFromRemoved(opts.outWidth, opts.outHeight);
-            if (reusableBm != null) {
-                if (Constants.DEBUG) {
-                    Log.i(Constants.LOG_TAG, "Using inBitmap");
-                }
-                SDK11.addInBitmapOption(opts, reusableBm);
-                return true;
+        final BitmapPool pool = getBitmapPool();
+        if (null == pool) {
+            return false;
+        }
+        Bitmap reusableBm = pool.get(opts.outWidth, opts.outHeight, opts.inPreferredConfig);
+        if (reusableBm != null) {
+            if (Constants.DEBUG) {
+                Log.i(Constants.LOG_TAG, "Using inBitmap");
             }
+            SDK11.addInBitmapOption(opts, reusableBm);
+            return true;
         }
 
-
         return false;
     }
 
+    private void returnToPool(Bitmap bitmap) {
+        final BitmapPool pool = getBitmapPool();
+        if (null != pool) {
+            pool.put(bitmap);
+        }
+    }
+
+    private static Bitmap decode(InputStreamProvider ip, BitmapFactory.Options opts) {
+        // Get InputStream for actual decode
+        final InputStream is = ip.getInputStream();
+        try {
+            // Decode stream
+            if (is == null && ip instanceof ByteArrayInputStreamProvider) {
+                byte[] data = ((ByteArrayInputStreamProvider) ip).array;
+                return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+            }
+            return BitmapFactory.decodeStream(is, null, opts);
+        } finally {
+            IoUtils.closeStream(is);
+        }
+    }
+
     /**
      * Builder class for {link {@link BitmapLruCache}. An example call:
      *
@@ -835,6 +1318,8 @@ public class BitmapLruCache {
 
         static final int DEFAULT_MEM_CACHE_MAX_SIZE_MB = 3;
 
+        static final int DEFAULT_BITMAP_POOL_MAX_SIZE_MB = 4;
+
         static final RecyclePolicy DEFAULT_RECYCLE_POLICY = RecyclePolicy.PRE_HONEYCOMB_ONLY;
 
         // Only used for Javadoc
@@ -859,6 +1344,12 @@ public class BitmapLruCache {
 
         private int mMemoryCacheMaxSize;
 
+        private int mBitmapPoolMaxSize;
+
+        private boolean mMemoryCacheAdmission;
+
+        private boolean mSolidColorSharing;
+
         private RecyclePolicy mRecyclePolicy;
 
         /**
@@ -878,6 +1369,7 @@ public class BitmapLruCache {
             // Memory Cache is enabled by default, with a small maximum size
             mMemoryCacheEnabled = true;
             mMemoryCacheMaxSize = DEFAULT_MEM_CACHE_MAX_SIZE_MB * MEGABYTE;
+            mBitmapPoolMaxSize = DEFAULT_BITMAP_POOL_MAX_SIZE_MB * MEGABYTE;
             mRecyclePolicy = DEFAULT_RECYCLE_POLICY;
         }
 
@@ -892,7 +1384,12 @@ public class BitmapLruCache {
                 if (Constants.DEBUG) {
                     Log.d("BitmapLruCache.Builder", "Creating Memory Cache");
                 }
-                cache.setMemoryCache(new BitmapMemoryLruCache(mMemoryCacheMaxSize, mRecyclePolicy));
+                cache.setMemoryCache(new BitmapMemoryLruCache(mMemoryCacheMaxSize, mRecyclePolicy,
+                        mBitmapPoolMaxSize, mMemoryCacheAdmission));
+                if (mSolidColorSharing) {
+                    cache.setSolidColorBitmaps(
+                            new SolidColorBitmaps(SolidColorBitmaps.DEFAULT_MAX_COLORS));
+                }
             }
 
             if (isValidOptionsForDiskCache()) {
@@ -901,7 +1398,8 @@ public class BitmapLruCache {
                     @Override
                     protected DiskLruCache doInBackground(Void... params) {
                         try {
-                            return DiskLruCache.open(mDiskCacheLocation, 0, 1, mDiskCacheMaxSize);
+                            return DiskLruCache.open(mDiskCacheLocation, 0,
+                                    DISK_CACHE_VALUE_COUNT, mDiskCacheMaxSize);
                         } catch (IOException e) {
                             e.printStackTrace();
                             return null;
@@ -971,6 +1469,43 @@ public class BitmapLruCache {
             return this;
         }
 
+        /**
+         * Set whether the Memory Cache should only keep bitmaps that are used again and again
+         * over a burst of bitmaps used once, with the W-TinyLFU policy of {@link
+         * LongLruCache#enableAdmission}, rather than the most recently used ones. Defaults to
+         * {@code false}.
+         *
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setMemoryCacheAdmissionEnabled(boolean enabled) {
+            mMemoryCacheAdmission = enabled;
+            return this;
+        }
+
+        /**
+         * Set whether images of a single color share one bitmap per color in the Memory Cache,
+         * see {@link SolidColorBitmaps}. Defaults to {@code false}.
+         *
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setSolidColorSharingEnabled(boolean enabled) {
+            mSolidColorSharing = enabled;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of bytes of bitmaps removed from the Memory Cache to keep for
+         * new bitmaps to be decoded into, on top of the Memory Cache itself. Defaults to {@value
+         * #DEFAULT_BITMAP_POOL_MAX_SIZE_MB}MB, 0 disables the reuse of bitmaps. Bitmaps are only
+         * reused if the recycle policy allows it.
+         *
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setBitmapPoolMaxSize(int size) {
+            mBitmapPoolMaxSize = size;
+            return this;
+        }
+
         /**
          * Sets the Memory Cache maximum size to be the default value of {@value
          * #DEFAULT_MEMORY_CACHE_HEAP_PERCENTAGE}% of heap size.
@@ -1097,6 +1632,50 @@ public class BitmapLruCache {
         }
     }
 
+    /**
+     * Reads from a ByteBuffer, such as a view of a memory-mapped file, without copying it first.
+     */
+    public static class ByteBufferInputStreamProvider implements InputStreamProvider {
+        final ByteBuffer mBuffer;
+
+        public ByteBufferInputStreamProvider(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            final ByteBuffer buffer = mBuffer.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (!buffer.hasRemaining()) {
+                        return -1;
+                    }
+                    len = Math.min(len, buffer.remaining());
+                    buffer.get(b, off, len);
+                    return len;
+                }
+
+                @Override
+                public long skip(long n) {
+                    n = Math.max(Math.min(n, buffer.remaining()), 0);
+                    buffer.position(buffer.position() + (int) n);
+                    return n;
+                }
+
+                @Override
+                public int available() {
+                    return buffer.remaining();
+                }
+            };
+        }
+    }
+
     final class SnapshotInputStreamProvider implements InputStreamProvider {
         final String mKey;
 
@@ -1109,7 +1688,7 @@ public class BitmapLruCache {
             try {
                 DiskLruCache.Snapshot snapshot = mDiskCache.get(mKey);
                 if (snapshot != null) {
-                    return snapshot.getInputStream(0);
+                    return snapshot.getInputStream(DISK_CACHE_INDEX_IMAGE);
                 }
             } catch (IOException e) {
                 Log.e(Constants.LOG_TAG, "Could open disk cache for url: " + mKey, e);
@@ -15,31 +15,44 @@
  ******************************************************************************/
 package uk.co.senab.bitmapcache;
 
-import android.graphics.Bitmap;
-import android.graphics.Color;
-import android.support.v4.util.LruCache;
 import android.util.Log;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.Set;
+import com.mapbox.mapboxsdk.util.FrequencySketch;
 
-final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawable> {
+final class BitmapMemoryLruCache extends StripedLongLruCache<CacheableBitmapDrawable> {
 
     public static final String TAG = "BitmapMemoryLruCache";
-    private final Set<SoftReference<CacheableBitmapDrawable>> mRemovedEntries;
-    private final BitmapLruCache.RecyclePolicy mRecyclePolicy;
-    private int largestValueSeenBytes;
 
-    BitmapMemoryLruCache(int maxSize, BitmapLruCache.RecyclePolicy policy) {
+    // A 256px ARGB_8888 tile, to guess how many entries the frequency sketch needs
+    private static final int TYPICAL_ENTRY_SIZE = 256 * 256 * 4;
+
+    private final BitmapPool mBitmapPool;
+    private final boolean mAdmission;
+    private int mWindowMaxSize;
+    private final BitmapLruCache.RecyclePolicy mRecyclePolicy;
+    private volatile int largestValueSeenBytes;
+
+    /**
+     * @param bitmapPoolMaxSize the byte budget of the pool that removed bitmaps are reused from,
+     *                          0 to not reuse them
+     * @param admission whether to use the W-TinyLFU policy rather than LRU. The window starts
+     *                  as large as the cache, and shrinks to twice the tiles on screen once
+     *                  {@link #resizeMemoryForTiles(int)} is called.
+     */
+    BitmapMemoryLruCache(int maxSize, BitmapLruCache.RecyclePolicy policy,
+            int bitmapPoolMaxSize, boolean admission) {
         super(maxSize);
 
+        mAdmission = admission;
+        if (admission) {
+            mWindowMaxSize = maxSize;
+            enableAdmission(new FrequencySketch(Math.max(64, maxSize / TYPICAL_ENTRY_SIZE)),
+                    maxSize);
+        }
+
         mRecyclePolicy = policy;
-        mRemovedEntries = policy.canInBitmap()
-                ? Collections.synchronizedSet(new HashSet<SoftReference<CacheableBitmapDrawable>>())
+        mBitmapPool = policy.canInBitmap() && bitmapPoolMaxSize > 0
+                ? new BitmapPool(bitmapPoolMaxSize)
                 : null;
         largestValueSeenBytes = 0;
     }
@@ -47,8 +60,12 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
     CacheableBitmapDrawable put(CacheableBitmapDrawable value) {
         if (null != value) {
             value.setCached(true);
-            largestValueSeenBytes = Math.max(value.getMemorySize(), largestValueSeenBytes);
-            return put(value.getUrl(), value);
+            if (value.getMemorySize() > largestValueSeenBytes) {
+                // rare, tiles of a layer have the same size
+                largestValueSeenBytes = value.getMemorySize();
+                setEntrySizeHint(largestValueSeenBytes);
+            }
+            return put(value.getKey(), value);
         }
 
         return null;
@@ -59,92 +76,73 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
     }
 
     public void resizeMemoryForTiles(int numberOfTiles) {
-        if (largestValueSeenBytes > 0 && numberOfTiles > 0) {
+        resizeMemoryForTiles(numberOfTiles, 0);
+    }
+
+    /**
+     * @param tileBytes the number of bytes of a decoded tile, which depends on the decode policy
+     *                  of the layer, or 0 to size for the largest tile seen so far
+     */
+    public void resizeMemoryForTiles(int numberOfTiles, int tileBytes) {
+        if (tileBytes <= 0) {
+            tileBytes = largestValueSeenBytes;
+        }
+        if (tileBytes > 0 && numberOfTiles > 0) {
+            // the segments keep room for tiles hashing unevenly on top of this
+            setEntrySizeHint(tileBytes);
             float factor = numberOfTiles * 1.05f; //increase by 5%
-            int newSize = (int) (factor * largestValueSeenBytes);
+            int newSize = (int) (factor * tileBytes);
             if (newSize > maxSize()) {
                 Log.d(TAG, "resizing for " + numberOfTiles + " tiles - to " + newSize / (1024 * 1024) + "MB");
                 resize(newSize);
             }
+            if (mAdmission) {
+                // Keep the tiles on screen in the window, with room to spare for uneven segments
+                int windowMaxSize = (int) Math.min(maxSize(),
+                        2L * numberOfTiles * tileBytes);
+                if (windowMaxSize != mWindowMaxSize) {
+                    mWindowMaxSize = windowMaxSize;
+                    setWindowMaxSize(windowMaxSize);
+                }
+            }
         }
     }
 
     @Override
-    protected int sizeOf(String key, CacheableBitmapDrawable value) {
+    protected int sizeOf(long key, CacheableBitmapDrawable value) {
         return value.getMemorySize();
     }
 
     @Override
-    protected void entryRemoved(boolean evicted, String key, CacheableBitmapDrawable oldValue,
+    protected void entryRemoved(boolean evicted, long key, CacheableBitmapDrawable oldValue,
             CacheableBitmapDrawable newValue) {
-        // Notify the wrapper that it's no longer being cached
-        oldValue.setCached(false);
-
-        if (mRemovedEntries != null && canUseForInBitmap(oldValue)) {
-            synchronized (mRemovedEntries) {
-                mRemovedEntries.add(new SoftReference<CacheableBitmapDrawable>(oldValue));
-            }
-        }
-    }
-
-    public Bitmap getBitmapFromRemoved(final int width, final int height) {
-        if (mRemovedEntries == null) {
-            return null;
+        // The bitmap goes to the pool once nothing displays it anymore
+        if (mBitmapPool != null && oldValue.isBitmapValid() && oldValue.isBitmapMutable()) {
+            oldValue.setReleasePool(mBitmapPool);
         }
 
-        Bitmap result = null;
-
-        synchronized (mRemovedEntries) {
-            final Iterator<SoftReference<CacheableBitmapDrawable>> it = mRemovedEntries.iterator();
-
-            while (it.hasNext()) {
-                CacheableBitmapDrawable value = it.next().get();
-
-                if (canUseForInBitmap(value)) {
-                    if (canUseForInBitmapForSize(value, width, height) && !value.isBeingDisplayed() && !value.isReferencedByCache()) {
-                        result = value.getBitmap();
-                        SDK12.setHasAlpha(result, true);
-                        result.eraseColor(Color.TRANSPARENT);
-                        value.setReused();
-                        it.remove();
-                        break;
-                    }
-                } else {
-                    it.remove();
-                }
-            }
-        }
-
-        return result;
-    }
-
-    private static boolean canUseForInBitmap(
-            CacheableBitmapDrawable candidate) {
-        return candidate != null &&
-                candidate.isBitmapValid() &&
-                candidate.isBitmapMutable();
+        // Notify the wrapper that it's no longer being cached
+        oldValue.setCached(false);
     }
 
-    private static boolean canUseForInBitmapForSize(
-            CacheableBitmapDrawable candidate, int width, int height) {
-        return
-                candidate.getIntrinsicWidth() == width &&
-                candidate.getIntrinsicHeight() == height;
+    /**
+     * @return the pool of bitmaps removed from this cache, or null if they aren't reused
+     */
+    BitmapPool getBitmapPool() {
+        return mBitmapPool;
     }
 
     void trimMemory() {
-        final Set<Entry<String, CacheableBitmapDrawable>> values = snapshot().entrySet();
+        final long[] keys = keySnapshot();
 
-        for (Entry<String, CacheableBitmapDrawable> entry : values) {
-            CacheableBitmapDrawable value = entry.getValue();
+        for (long key : keys) {
+            CacheableBitmapDrawable value = get(key);
             if (null == value || !value.isBeingDisplayed()) {
-                remove(entry.getKey());
+                remove(key);
             }
         }
-        if (mRemovedEntries != null) {
-            synchronized (mRemovedEntries) {
-                mRemovedEntries.clear();
-            }
+        if (mBitmapPool != null) {
+            mBitmapPool.clear();
         }
     }
 }
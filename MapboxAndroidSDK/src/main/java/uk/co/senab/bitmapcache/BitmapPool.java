@@ -0,0 +1,209 @@
+package uk.co.senab.bitmapcache;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import com.mapbox.mapboxsdk.util.LongHashMap;
+
+/**
+ * Bitmaps the memory cache is done with, kept so that new images can be decoded into them with
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of allocating new bitmaps.
+ * <p/>
+ * Bitmaps are bucketed by width, height and config, which inBitmap needs to match before KitKat,
+ * so that taking or returning one is a hash lookup. The pool has its own byte budget, separate
+ * from the memory cache's, and drops the bitmaps that were returned longest ago to stay under it.
+ * <p/>
+ * This class is thread safe.
+ */
+public class BitmapPool {
+
+    private static final class Entry {
+        long key;
+        Bitmap bitmap;
+        int size;
+        // the order bitmaps were returned in, across all buckets
+        Entry before;
+        Entry after;
+        // the bucket, from the most to the least recently returned bitmap
+        Entry bucketNext;
+        Entry bucketPrevious;
+    }
+
+    // the most recently returned bitmap of every bucket
+    private final LongHashMap<Entry> mBuckets = new LongHashMap<Entry>();
+    // sentinel of the circular list of all bitmaps: header.after is the eldest
+    private final Entry mHeader = new Entry();
+
+    private int mSize;
+    private int mMaxSize;
+
+    private int mPutCount;
+    private int mEvictionCount;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * @param maxSize the maximum number of bytes of bitmaps to keep
+     */
+    public BitmapPool(final int maxSize) {
+        mMaxSize = maxSize;
+        mHeader.before = mHeader;
+        mHeader.after = mHeader;
+    }
+
+    /**
+     * Take a bitmap out of the pool, cleared to transparent.
+     *
+     * @param config the config of the bitmap, null for {@link Bitmap.Config#ARGB_8888}
+     * @return a mutable bitmap of exactly that size and config, or null if the pool has none
+     */
+    public Bitmap get(final int width, final int height, final Bitmap.Config config) {
+        final Bitmap result;
+        synchronized (this) {
+            final Entry entry = mBuckets.get(keyOf(width, height,
+                    config != null ? config : Bitmap.Config.ARGB_8888));
+            if (entry == null) {
+                mMissCount++;
+                return null;
+            }
+            remove(entry);
+            mHitCount++;
+            result = entry.bitmap;
+        }
+        SDK12.setHasAlpha(result, true);
+        result.eraseColor(Color.TRANSPARENT);
+        return result;
+    }
+
+    /**
+     * Return a bitmap nothing uses anymore to the pool. Immutable and recycled bitmaps, and
+     * bitmaps larger than the whole pool, are ignored.
+     *
+     * @return true if the pool kept the bitmap
+     */
+    public boolean put(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return false;
+        }
+        final int size = bitmap.getRowBytes() * bitmap.getHeight();
+        synchronized (this) {
+            if (size > mMaxSize) {
+                return false;
+            }
+            final Entry entry = new Entry();
+            entry.key = keyOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            entry.bitmap = bitmap;
+            entry.size = size;
+
+            entry.after = mHeader;
+            entry.before = mHeader.before;
+            entry.before.after = entry;
+            mHeader.before = entry;
+
+            final Entry head = mBuckets.put(entry.key, entry);
+            if (head != null) {
+                entry.bucketNext = head;
+                head.bucketPrevious = entry;
+            }
+
+            mSize += size;
+            mPutCount++;
+            trimToSize(mMaxSize);
+        }
+        return true;
+    }
+
+    private void remove(final Entry entry) {
+        entry.before.after = entry.after;
+        entry.after.before = entry.before;
+
+        if (entry.bucketPrevious != null) {
+            entry.bucketPrevious.bucketNext = entry.bucketNext;
+        } else if (entry.bucketNext != null) {
+            mBuckets.put(entry.key, entry.bucketNext);
+        } else {
+            mBuckets.remove(entry.key);
+        }
+        if (entry.bucketNext != null) {
+            entry.bucketNext.bucketPrevious = entry.bucketPrevious;
+        }
+        mSize -= entry.size;
+    }
+
+    private void trimToSize(final int maxSize) {
+        while (mSize > maxSize && mHeader.after != mHeader) {
+            remove(mHeader.after);
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Change the byte budget, dropping bitmaps if the pool is now over it.
+     */
+    public synchronized void resize(final int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Drop every bitmap.
+     */
+    public synchronized void clear() {
+        trimToSize(-1);
+    }
+
+    /**
+     * The bucket of a bitmap: 28 bits of width and of height, and the config.
+     */
+    private static long keyOf(final int width, final int height, final Bitmap.Config config) {
+        return ((long) width << 36) | ((long) (height & 0xfffffff) << 8)
+                | (config != null ? config.ordinal() : 0xff);
+    }
+
+    /**
+     * @return the number of bytes of the bitmaps in the pool
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return the number of times {@link #get} returned a bitmap
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of times {@link #get} returned null
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of bitmaps the pool kept
+     */
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    /**
+     * @return the number of bitmaps dropped to stay under the byte budget
+     */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mSize, mMaxSize, mHitCount, mMissCount, hitPercent);
+    }
+}
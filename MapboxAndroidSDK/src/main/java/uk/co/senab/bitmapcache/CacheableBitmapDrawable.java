@@ -30,14 +30,22 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
     public static final int SOURCE_NEW = 0;
     public static final int SOURCE_INBITMAP = 1;
 
+    /**
+     * The memory counted for a drawable whose bitmap is shared: the drawable itself.
+     */
+    static final int SHARED_BITMAP_MEMORY_SIZE = 256;
+
     static final String LOG_TAG = "CacheableBitmapDrawable";
 
-    // URL Associated with this Bitmap
+    // URL Associated with this Bitmap, may be null if it is only cached by key
     private final String mUrl;
 
+    // Memory cache key of this Bitmap
+    private final long mKey;
+
     private BitmapLruCache.RecyclePolicy mRecyclePolicy;
 
-    // Number of Views currently displaying bitmap
+    // Number of leases on the bitmap: Views displaying it and passes drawing it
     private int mDisplayingCount;
 
     // Has it been displayed yet
@@ -61,11 +69,39 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
 
     private boolean mReused;
 
+    // Pool the bitmap goes to once it is neither cached nor displayed
+    private BitmapPool mReleasePool;
+
+    // The bitmap belongs to SolidColorBitmaps and is never recycled or reused
+    private final boolean mShared;
+
     public CacheableBitmapDrawable(String url, Resources resources, Bitmap bitmap,
             BitmapLruCache.RecyclePolicy recyclePolicy, int source) {
+        this(BitmapLruCache.transformUrlForMemoryCacheKey(url), url, resources, bitmap,
+                recyclePolicy, source);
+    }
+
+    public CacheableBitmapDrawable(long key, String url, Resources resources, Bitmap bitmap,
+            BitmapLruCache.RecyclePolicy recyclePolicy, int source) {
+        this(key, url, resources, bitmap, recyclePolicy, source, false);
+    }
+
+    /**
+     * @param shared - true if the bitmap is shared with other drawables, see {@link
+     *               SolidColorBitmaps}. It is then only counted for the drawable's own memory,
+     *               and is never recycled or reused.
+     */
+    public CacheableBitmapDrawable(long key, String url, Resources resources, Bitmap bitmap,
+            BitmapLruCache.RecyclePolicy recyclePolicy, int source, boolean shared) {
         super(resources, bitmap);
 
-        mMemorySize = null != bitmap ? (bitmap.getRowBytes() * bitmap.getHeight()) : 0;
+        if (shared) {
+            mMemorySize = SHARED_BITMAP_MEMORY_SIZE;
+        } else {
+            mMemorySize = null != bitmap ? (bitmap.getRowBytes() * bitmap.getHeight()) : 0;
+        }
+        mShared = shared;
+        mKey = key;
         mUrl = url;
         mRecyclePolicy = recyclePolicy;
         mDisplayingCount = 0;
@@ -81,6 +117,10 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
             Log.e(LOG_TAG, "trying to draw a reused bitmap: " + mUrl);
             return;
         }
+        if (Constants.DEBUG && !mShared && getLeaseCount() <= 0) {
+            Log.w(LOG_TAG, "drawing a bitmap without a lease, it may be reused meanwhile: "
+                    + mKey);
+        }
         try {
             super.draw(canvas);
         } catch (RuntimeException re) {
@@ -103,12 +143,19 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
     }
 
     /**
-     * @return the URL associated with the BitmapDrawable
+     * @return the URL associated with the BitmapDrawable, or null if it was only cached by key
      */
     public String getUrl() {
         return mUrl;
     }
 
+    /**
+     * @return the key of the BitmapDrawable in the memory cache
+     */
+    public long getKey() {
+        return mKey;
+    }
+
     /**
      * @return One of {@link #SOURCE_NEW}, {@link #SOURCE_INBITMAP} or {@link #SOURCE_UNKNOWN}
      * depending on how this Bitmap was created.
@@ -117,6 +164,13 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
         return mSource;
     }
 
+    /**
+     * @return true if the bitmap is shared with other drawables, see {@link SolidColorBitmaps}.
+     */
+    public boolean isBitmapShared() {
+        return mShared;
+    }
+
     /**
      * Returns true when this wrapper has a bitmap and the bitmap has not been recycled.
      *
@@ -150,17 +204,59 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
      * Used to signal to the Drawable whether it is being used or not.
      *
      * @param beingUsed - true if being used, false if not.
+     * @see #acquire()
      */
     public synchronized void setBeingUsed(boolean beingUsed) {
         if (beingUsed) {
             mDisplayingCount++;
             mHasBeenDisplayed = true;
+            checkState();
         } else {
-            mDisplayingCount--;
+            release();
+        }
+    }
+
+    /**
+     * Take a lease on the bitmap, which keeps it from being recycled or reused by a {@link
+     * BitmapPool} until the lease is {@link #release() released}. Checking that the bitmap can
+     * be drawn and taking the lease is atomic, so a bitmap leased this way is never overwritten
+     * while it is drawn.
+     *
+     * @return true - if the lease was taken, false if the bitmap can't be drawn anymore.
+     * @see DrawableLeases
+     */
+    public synchronized boolean acquire() {
+        if (!isBitmapValid()) {
+            return false;
+        }
+        mDisplayingCount++;
+        mHasBeenDisplayed = true;
+        return true;
+    }
+
+    /**
+     * Release a lease taken with {@link #acquire()}. Once no lease is left, and no cache
+     * references the wrapper, the bitmap may be recycled or reused.
+     */
+    public synchronized void release() {
+        if (mDisplayingCount <= 0) {
+            if (Constants.DEBUG) {
+                Log.e(LOG_TAG, "Released a lease that wasn't taken: " + mKey,
+                        new Throwable("Released Lease Method Stack"));
+            }
+            return;
         }
+        mDisplayingCount--;
         checkState();
     }
 
+    /**
+     * @return the number of leases on the bitmap.
+     */
+    public synchronized int getLeaseCount() {
+        return mDisplayingCount;
+    }
+
     /**
      * Used to signal to the wrapper whether it is being referenced by a cache or not.
      *
@@ -169,12 +265,23 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
     synchronized void setCached(boolean added) {
         if (added) {
             mCacheCount++;
+            mReleasePool = null;
         } else {
             mCacheCount--;
         }
         checkState();
     }
 
+    /**
+     * Used to hand the bitmap to a {@link BitmapPool} once the wrapper is no longer referenced by
+     * a cache or being displayed, after which the wrapper can't be drawn anymore.
+     *
+     * @param pool - the pool, or null to keep the bitmap.
+     */
+    synchronized void setReleasePool(BitmapPool pool) {
+        mReleasePool = pool;
+    }
+
     /**
      * Used to signal to the wrapper that the attached bitmap has been reused.
      */
@@ -230,6 +337,23 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
                     mHasBeenDisplayed, mDisplayingCount, mCacheCount, mUrl));
         }
 
+        // A shared bitmap outlives any one of its drawables
+        if (mShared) {
+            return;
+        }
+
+        // Reuse the bitmap rather than recycle it, if a cache released it to a pool
+        if (null != mReleasePool && mCacheCount <= 0 && mDisplayingCount <= 0) {
+            final BitmapPool pool = mReleasePool;
+            mReleasePool = null;
+            if (isBitmapValid()) {
+                // flag first, another thread may take the bitmap as soon as it is in the pool
+                mReused = true;
+                mReused = pool.put(getBitmap());
+            }
+            return;
+        }
+
         // If the policy doesn't let us recycle, return now
         if (!mRecyclePolicy.canRecycle()) {
             return;
@@ -0,0 +1,89 @@
+package uk.co.senab.bitmapcache;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * The leases a drawing pass holds on the bitmaps it draws, see
+ * {@link CacheableBitmapDrawable#acquire()}. A bitmap is only recycled or reused once every lease
+ * on it is released.
+ * <p/>
+ * With hardware acceleration the bitmaps of a frame are read when its display list is rendered,
+ * after the pass that drew them has returned. So the leases of a pass are released when the
+ * next pass ends, once the display list that referenced them has been replaced, and all of them
+ * when drawing stops for good with {@link #releaseAll()}.
+ * <p/>
+ * This class is not thread safe, it belongs to the thread that draws.
+ */
+public class DrawableLeases {
+
+    private ArrayList<CacheableBitmapDrawable> mCurrent = new ArrayList<CacheableBitmapDrawable>();
+    private ArrayList<CacheableBitmapDrawable> mPrevious =
+            new ArrayList<CacheableBitmapDrawable>();
+
+    // Where the leases were created, to find the owner of leaked leases in debug builds
+    private final Throwable mCreationStackTrace;
+
+    public DrawableLeases() {
+        mCreationStackTrace = Constants.DEBUG ? new Throwable("DrawableLeases created") : null;
+    }
+
+    /**
+     * Take a lease on {@code drawable} for the current pass.
+     *
+     * @return false if the bitmap of {@code drawable} can't be drawn anymore.
+     */
+    public boolean acquire(CacheableBitmapDrawable drawable) {
+        if (!drawable.acquire()) {
+            return false;
+        }
+        mCurrent.add(drawable);
+        return true;
+    }
+
+    /**
+     * End the current pass, releasing the leases of the previous one.
+     */
+    public void endPass() {
+        release(mPrevious);
+        final ArrayList<CacheableBitmapDrawable> previous = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = previous;
+    }
+
+    /**
+     * Release every lease, once nothing drawn with them can be rendered anymore.
+     */
+    public void releaseAll() {
+        release(mPrevious);
+        release(mCurrent);
+    }
+
+    private static void release(ArrayList<CacheableBitmapDrawable> leases) {
+        final int count = leases.size();
+        for (int i = 0; i < count; i++) {
+            leases.get(i).release();
+        }
+        leases.clear();
+    }
+
+    /**
+     * @return the number of leases held.
+     */
+    public int size() {
+        return mCurrent.size() + mPrevious.size();
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            if (null != mCreationStackTrace && size() > 0) {
+                Log.e(Constants.LOG_TAG, "Leaked " + size()
+                        + " bitmap leases, releaseAll() was never called", mCreationStackTrace);
+            }
+        } finally {
+            super.finalize();
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package uk.co.senab.bitmapcache;
+
+import com.mapbox.mapboxsdk.util.FrequencySketch;
+import com.mapbox.mapboxsdk.util.LongHashMap;
+
+/**
+ * A copy of {@link android.support.v4.util.LruCache} keyed by primitive longs, so that cache
+ * lookups from the drawing thread don't need to build or box a key.
+ * <p/>
+ * With {@link #enableAdmission} the cache follows the W-TinyLFU policy instead of plain LRU: new
+ * entries go to a small LRU window, and an entry leaving the window only displaces the least
+ * recently used entry of the rest of the cache if a {@link FrequencySketch} has seen it more
+ * often. A burst of entries used once, like the tiles of a long fling, then passes through the
+ * window without flushing the entries that are used again and again.
+ *
+ * @param <V> the value type
+ */
+public class LongLruCache<V> {
+
+    private final LongHashMap<V> map;
+
+    /** Size of this cache in units. Not necessarily the number of elements. */
+    private int size;
+    private int maxSize;
+
+    // Only with admission: the window of new entries, its share of size, and the frequencies
+    private LongHashMap<V> window;
+    private int windowSize;
+    private int windowMaxSize;
+    private FrequencySketch sketch;
+
+    private int putCount;
+    private int evictionCount;
+    private int hitCount;
+    private int missCount;
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    public LongLruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        this.map = new LongHashMap<V>(0, true);
+    }
+
+    /**
+     * Sets the size of the cache.
+     *
+     * @param maxSize The new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        synchronized (this) {
+            this.maxSize = maxSize;
+        }
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Switch from LRU to the W-TinyLFU policy, see the class documentation. Entries already
+     * cached stay where they are.
+     *
+     * @param sketch the frequencies of the keys, which may be shared with other caches
+     * @param windowMaxSize the maximum size of the window, in the units of {@link #sizeOf}
+     */
+    public synchronized void enableAdmission(FrequencySketch sketch, int windowMaxSize) {
+        if (sketch == null) {
+            throw new NullPointerException("sketch == null");
+        }
+        if (window == null) {
+            window = new LongHashMap<V>(0, true);
+        }
+        this.sketch = sketch;
+        this.windowMaxSize = windowMaxSize;
+    }
+
+    /**
+     * Set the maximum size of the window once admission is enabled. Entries over it move out of
+     * the window, or are evicted, as the cache fills up.
+     */
+    public synchronized void setWindowMaxSize(int windowMaxSize) {
+        this.windowMaxSize = windowMaxSize;
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache. If a value was returned, it is
+     * moved to the head of the queue. This returns null if a value is not cached.
+     * <p/>
+     * With admission, a value found outside of the window counts as one more use of its key,
+     * and moves back to the window. Hits in the window, like the same tile drawn frame after
+     * frame, don't count.
+     */
+    public final V get(long key) {
+        synchronized (this) {
+            V mapValue;
+            if (window != null) {
+                mapValue = window.get(key);
+                if (mapValue != null) {
+                    hitCount++;
+                    return mapValue;
+                }
+                mapValue = map.remove(key);
+                if (mapValue != null) {
+                    sketch.increment(key);
+                    window.put(key, mapValue);
+                    windowSize += safeSizeOf(key, mapValue);
+                    hitCount++;
+                    return mapValue;
+                }
+                missCount++;
+                return null;
+            }
+            mapValue = map.get(key);
+            if (mapValue != null) {
+                hitCount++;
+                return mapValue;
+            }
+            missCount++;
+        }
+        return null;
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is moved to the head of the queue.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value == null");
+        }
+
+        V previous;
+        synchronized (this) {
+            putCount++;
+            size += safeSizeOf(key, value);
+            if (window != null) {
+                sketch.increment(key);
+                windowSize += safeSizeOf(key, value);
+                previous = window.put(key, value);
+                if (previous != null) {
+                    windowSize -= safeSizeOf(key, previous);
+                } else {
+                    previous = map.remove(key);
+                }
+            } else {
+                previous = map.put(key, value);
+            }
+            if (previous != null) {
+                size -= safeSizeOf(key, previous);
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+
+        trimToSize(maxSize);
+        return previous;
+    }
+
+    /**
+     * Remove the eldest entries until the total of remaining entries is at or below the
+     * requested size. With admission, entries over the window's maximum size leave it first,
+     * and the less frequent of each of them and the eldest entry outside of the window is
+     * evicted when there is no room for both.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1 to evict even
+     *                0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        while (true) {
+            long key;
+            V value;
+            synchronized (this) {
+                final boolean empty = map.isEmpty() && (window == null || window.isEmpty());
+                if (size < 0 || (empty && size != 0)) {
+                    throw new IllegalStateException(getClass().getName()
+                            + ".sizeOf() is reporting inconsistent results!");
+                }
+
+                if (size <= maxSize || empty) {
+                    break;
+                }
+
+                if (window != null && windowSize > windowMaxSize && !window.isEmpty()) {
+                    key = window.eldestKey();
+                    value = window.remove(key);
+                    final int candidateSize = safeSizeOf(key, value);
+                    windowSize -= candidateSize;
+                    // size - windowSize is now the size of the rest plus the candidate
+                    if (size - windowSize <= maxSize - windowMaxSize) {
+                        map.put(key, value);
+                        continue;
+                    }
+                    if (!map.isEmpty()) {
+                        final long victimKey = map.eldestKey();
+                        if (sketch.frequency(key) > sketch.frequency(victimKey)) {
+                            map.put(key, value);
+                            key = victimKey;
+                            value = map.remove(victimKey);
+                        }
+                    }
+                } else if (!map.isEmpty()) {
+                    key = map.eldestKey();
+                    value = map.remove(key);
+                } else {
+                    key = window.eldestKey();
+                    value = window.remove(key);
+                    windowSize -= safeSizeOf(key, value);
+                }
+                size -= safeSizeOf(key, value);
+                evictionCount++;
+            }
+
+            entryRemoved(true, key, value, null);
+        }
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(long key) {
+        V previous;
+        synchronized (this) {
+            previous = removeFromWindow(key);
+            if (previous == null) {
+                previous = map.remove(key);
+            }
+            if (previous != null) {
+                size -= safeSizeOf(key, previous);
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous, null);
+        }
+
+        return previous;
+    }
+
+    /**
+     * Removes the entry for {@code key} only if it is still mapped to {@code value}.
+     *
+     * @return true if the entry was removed.
+     */
+    public final boolean remove(long key, V value) {
+        if (value == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (window != null && window.get(key) == value) {
+                removeFromWindow(key);
+            } else if (map.get(key) == value) {
+                map.remove(key);
+            } else {
+                return false;
+            }
+            size -= safeSizeOf(key, value);
+        }
+
+        entryRemoved(false, key, value, null);
+        return true;
+    }
+
+    private V removeFromWindow(long key) {
+        if (window == null) {
+            return null;
+        }
+        final V previous = window.remove(key);
+        if (previous != null) {
+            windowSize -= safeSizeOf(key, previous);
+        }
+        return previous;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is invoked when a value
+     * is evicted to make space, removed by a call to {@link #remove}, or replaced by a call to
+     * {@link #put}. The default implementation does nothing.
+     *
+     * <p>The method is called without synchronization: other threads may access the cache while
+     * this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space, false if the removal was
+     *                caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null, this removal was
+     *                 caused by a {@link #put}. Otherwise it was caused by an eviction or a
+     *                 {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, long key, V oldValue, V newValue) {
+    }
+
+    private int safeSizeOf(long key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in user-defined units.
+     * The default implementation returns 1 so that size is the number of entries and max size
+     * is the maximum number of entries.
+     */
+    protected int sizeOf(long key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number of entries in
+     * the cache. For all other caches, this returns the sum of the sizes of the entries in this
+     * cache.
+     */
+    public synchronized final int size() {
+        return size;
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum number of
+     * entries in the cache. For all other caches, this returns the maximum sum of the sizes of
+     * the entries in this cache.
+     */
+    public synchronized final int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value that was already present in the
+     * cache.
+     */
+    public synchronized final int hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null.
+     */
+    public synchronized final int missCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public synchronized final int putCount() {
+        return putCount;
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public synchronized final int evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns a copy of the current keys of the cache, ordered from least recently accessed to
+     * most recently accessed. With admission, the keys of the window come last.
+     */
+    public synchronized final long[] keySnapshot() {
+        if (window == null || window.isEmpty()) {
+            return map.keys();
+        }
+        final long[] mainKeys = map.keys();
+        final long[] windowKeys = window.keys();
+        final long[] keys = new long[mainKeys.length + windowKeys.length];
+        System.arraycopy(mainKeys, 0, keys, 0, mainKeys.length);
+        System.arraycopy(windowKeys, 0, keys, mainKeys.length, windowKeys.length);
+        return keys;
+    }
+
+    @Override
+    public synchronized final String toString() {
+        int accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        return String.format("LongLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize, hitCount, missCount, hitPercent);
+    }
+}
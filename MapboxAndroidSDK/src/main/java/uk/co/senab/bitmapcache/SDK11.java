@@ -28,4 +28,13 @@ class SDK11 {
         opts.inBitmap = inBitmap;
     }
 
+    static Bitmap removeInBitmapOption(BitmapFactory.Options opts) {
+        if (null == opts) {
+            return null;
+        }
+        final Bitmap inBitmap = opts.inBitmap;
+        opts.inBitmap = null;
+        return inBitmap;
+    }
+
 }
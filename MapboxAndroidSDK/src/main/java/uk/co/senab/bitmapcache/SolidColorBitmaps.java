@@ -0,0 +1,155 @@
+package uk.co.senab.bitmapcache;
+
+import android.graphics.Bitmap;
+
+import com.mapbox.mapboxsdk.util.LongHashMap;
+
+/**
+ * One immutable bitmap per color and size, shared by every cached image that is a single color,
+ * such as the sea and empty land on map tiles. The memory cache then holds a small drawable per
+ * image instead of a full bitmap.
+ * <p/>
+ * Finding out whether an image is a single color costs a few pixel reads for most images, which
+ * differ in their corners or center, and a scan of every row for the others.
+ * <p/>
+ * This class is thread safe.
+ */
+public class SolidColorBitmaps {
+
+    /**
+     * The default number of shared bitmaps to keep.
+     */
+    public static final int DEFAULT_MAX_COLORS = 32;
+
+    private static final int MAX_DIMENSION = 0xfff;
+
+    // keeps the most recently used colors, older bitmaps stay alive as long as drawables use them
+    private final LongHashMap<Bitmap> mBitmaps = new LongHashMap<Bitmap>(16, true);
+    private final int mMaxColors;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * @param maxColors the number of shared bitmaps to keep
+     */
+    public SolidColorBitmaps(final int maxColors) {
+        mMaxColors = maxColors;
+    }
+
+    /**
+     * Find the shared bitmap of an image.
+     *
+     * @return an immutable bitmap of the same size, config and color, or null if the image isn't
+     * a single color. Images whose config can't be told, such as some decoded from GIFs, get an
+     * {@link Bitmap.Config#ARGB_8888} one.
+     */
+    public Bitmap get(final Bitmap bitmap) {
+        if (null == bitmap || bitmap.isRecycled() || bitmap.getWidth() > MAX_DIMENSION
+                || bitmap.getHeight() > MAX_DIMENSION) {
+            return null;
+        }
+        final long color = getColor(bitmap);
+        if (color < 0) {
+            return null;
+        }
+        final long key = keyOf(bitmap, (int) color);
+        synchronized (this) {
+            final Bitmap shared = mBitmaps.get(key);
+            if (null != shared) {
+                mHitCount++;
+                return shared;
+            }
+        }
+        final Bitmap shared = bitmap.copy(configOf(bitmap), false);
+        if (null == shared) {
+            return null;
+        }
+        synchronized (this) {
+            mMissCount++;
+            mBitmaps.put(key, shared);
+            while (mBitmaps.size() > mMaxColors) {
+                mBitmaps.removeEldest();
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * @return the color of every pixel of a bitmap, or -1 if the pixels differ
+     */
+    public static long getColor(final Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (width == 0 || height == 0) {
+            return -1;
+        }
+        final int color = bitmap.getPixel(0, 0);
+        if (bitmap.getPixel(width - 1, 0) != color
+                || bitmap.getPixel(0, height - 1) != color
+                || bitmap.getPixel(width - 1, height - 1) != color
+                || bitmap.getPixel(width / 2, height / 2) != color) {
+            return -1;
+        }
+        final int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                if (row[x] != color) {
+                    return -1;
+                }
+            }
+        }
+        return color & 0xffffffffL;
+    }
+
+    /**
+     * The shared bitmap of an image: the color, 12 bits of width and of height, and the config.
+     */
+    private static long keyOf(final Bitmap bitmap, final int color) {
+        return ((long) color << 32) | ((long) (bitmap.getWidth() & 0xfff) << 20)
+                | ((bitmap.getHeight() & 0xfff) << 8) | configOf(bitmap).ordinal();
+    }
+
+    /**
+     * @return the config of a bitmap, {@link Bitmap.Config#ARGB_8888} if it has none it can tell
+     */
+    private static Bitmap.Config configOf(final Bitmap bitmap) {
+        final Bitmap.Config config = bitmap.getConfig();
+        return null != config ? config : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Drop every shared bitmap. Drawables that use one keep it.
+     */
+    public synchronized void clear() {
+        mBitmaps.clear();
+    }
+
+    /**
+     * @return the number of shared bitmaps kept
+     */
+    public synchronized int size() {
+        return mBitmaps.size();
+    }
+
+    /**
+     * @return the number of single color images that used a bitmap that was already shared
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of single color images that needed a new shared bitmap
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SolidColorBitmaps[colors=%d,hits=%d,misses=%d]", mBitmaps.size(),
+                mHitCount, mMissCount);
+    }
+}
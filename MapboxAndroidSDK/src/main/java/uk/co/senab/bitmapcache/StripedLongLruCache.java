@@ -0,0 +1,309 @@
+package uk.co.senab.bitmapcache;
+
+import com.mapbox.mapboxsdk.util.FrequencySketch;
+
+/**
+ * A {@link LongLruCache} split into segments that each guard a part of the keys with their own
+ * lock, so that lookups from the drawing thread don't wait for the tile loading threads adding
+ * entries to other segments.
+ * <p/>
+ * Every segment evicts its own least recently used entries once it holds more than its share of
+ * the maximum size, the way {@code com.google.common.cache.LocalCache} does, so the entry that
+ * is evicted is only the least recently used one of its segment.
+ * <p/>
+ * Keys don't hash evenly across segments: of the few dozen tiles on screen, one segment may get
+ * twice its share. So that such a segment doesn't evict tiles that are still drawn, every
+ * segment holds its share plus three standard deviations of the number of entries it gets, of
+ * the size given by {@link #setEntrySizeHint(int)}. The cache may then hold that much more than
+ * its maximum size.
+ *
+ * @param <V> the value type
+ */
+public class StripedLongLruCache<V> {
+
+    /**
+     * The default number of segments.
+     */
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 4;
+
+    private final Segment<V>[] mSegments;
+    private final int mShift;
+    private int mMaxSize;
+    private int mEntrySize = 1;
+
+    private static final class Segment<V> extends LongLruCache<V> {
+
+        private final StripedLongLruCache<V> mOwner;
+
+        Segment(final StripedLongLruCache<V> owner, final int maxSize) {
+            super(maxSize);
+            mOwner = owner;
+        }
+
+        @Override
+        protected int sizeOf(final long key, final V value) {
+            return mOwner.sizeOf(key, value);
+        }
+
+        @Override
+        protected void entryRemoved(final boolean evicted, final long key, final V oldValue,
+                final V newValue) {
+            mOwner.entryRemoved(evicted, key, oldValue, newValue);
+        }
+    }
+
+    public StripedLongLruCache(final int maxSize) {
+        this(maxSize, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param maxSize the maximum sum of the sizes of the entries, see {@link LongLruCache}
+     * @param concurrencyLevel the number of threads expected to use the cache at the same time,
+     *                         rounded up to a power of two to get the number of segments
+     */
+    public StripedLongLruCache(final int maxSize, final int concurrencyLevel) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        int segments = 1;
+        int shift = 64;
+        while (segments < concurrencyLevel) {
+            segments <<= 1;
+            shift--;
+        }
+        mShift = shift;
+        mMaxSize = maxSize;
+        mSegments = newSegments(segments);
+        for (int i = 0; i < segments; i++) {
+            mSegments[i] = new Segment<V>(this, segmentSize(maxSize, segments, mEntrySize));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Segment<V>[] newSegments(final int count) {
+        // arrays of a generic type can't be created
+        return (Segment<V>[]) new Segment<?>[count];
+    }
+
+    /**
+     * @return the share of a segment, with room for the keys that hash unevenly
+     */
+    private static int segmentSize(final int maxSize, final int segments, final int entrySize) {
+        final int share = Math.max(1, maxSize / segments);
+        if (segments == 1) {
+            return share;
+        }
+        final int entries = Math.max(1, share / entrySize);
+        final long headroom = (long) entrySize * (1 + (int) Math.ceil(3 * Math.sqrt(entries)));
+        return (int) Math.min(Integer.MAX_VALUE, share + headroom);
+    }
+
+    /**
+     * Set the typical size of an entry, as returned by {@link #sizeOf}, which the segments keep
+     * room for on top of their share of the maximum size. Defaults to 1.
+     */
+    public void setEntrySizeHint(final int entrySize) {
+        if (entrySize <= 0) {
+            throw new IllegalArgumentException("entrySize <= 0");
+        }
+        final int maxSize;
+        synchronized (this) {
+            if (entrySize == mEntrySize) {
+                return;
+            }
+            mEntrySize = entrySize;
+            maxSize = mMaxSize;
+        }
+        resizeSegments(maxSize, entrySize);
+    }
+
+    private void resizeSegments(final int maxSize, final int entrySize) {
+        for (Segment<V> segment : mSegments) {
+            segment.resize(segmentSize(maxSize, mSegments.length, entrySize));
+        }
+    }
+
+    /**
+     * Tile keys differ mostly in their low bits, the multiplication spreads them to the high bits
+     * the segment is picked from.
+     */
+    private Segment<V> segmentFor(final long key) {
+        if (mShift == 64) {
+            return mSegments[0];
+        }
+        return mSegments[(int) ((key * 0x9e3779b97f4a7c15L) >>> mShift)];
+    }
+
+    /**
+     * Sets the size of the cache.
+     *
+     * @param maxSize The new maximum size.
+     */
+    public void resize(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        final int entrySize;
+        synchronized (this) {
+            mMaxSize = maxSize;
+            entrySize = mEntrySize;
+        }
+        resizeSegments(maxSize, entrySize);
+    }
+
+    /**
+     * Switch every segment to the W-TinyLFU policy, see {@link LongLruCache#enableAdmission}.
+     *
+     * @param sketch the frequencies of the keys, shared by the segments
+     * @param windowMaxSize the maximum size of the windows of all segments together
+     */
+    public void enableAdmission(final FrequencySketch sketch, final int windowMaxSize) {
+        for (Segment<V> segment : mSegments) {
+            segment.enableAdmission(sketch, windowMaxSize / mSegments.length);
+        }
+    }
+
+    /**
+     * @see LongLruCache#setWindowMaxSize(int)
+     */
+    public void setWindowMaxSize(final int windowMaxSize) {
+        for (Segment<V> segment : mSegments) {
+            segment.setWindowMaxSize(windowMaxSize / mSegments.length);
+        }
+    }
+
+    /**
+     * @see LongLruCache#get(long)
+     */
+    public final V get(final long key) {
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * @see LongLruCache#put(long, Object)
+     */
+    public final V put(final long key, final V value) {
+        return segmentFor(key).put(key, value);
+    }
+
+    /**
+     * @see LongLruCache#remove(long)
+     */
+    public final V remove(final long key) {
+        return segmentFor(key).remove(key);
+    }
+
+    /**
+     * @see LongLruCache#remove(long, Object)
+     */
+    public final boolean remove(final long key, final V value) {
+        return segmentFor(key).remove(key, value);
+    }
+
+    /**
+     * Remove the eldest entries of every segment until the total of remaining entries is at or
+     * below the requested size.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1 to evict even
+     *                0-sized elements.
+     */
+    public void trimToSize(final int maxSize) {
+        for (Segment<V> segment : mSegments) {
+            segment.trimToSize(maxSize < 0 ? maxSize : maxSize / mSegments.length);
+        }
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * @see LongLruCache#entryRemoved(boolean, long, Object, Object)
+     */
+    protected void entryRemoved(boolean evicted, long key, V oldValue, V newValue) {
+    }
+
+    /**
+     * @see LongLruCache#sizeOf(long, Object)
+     */
+    protected int sizeOf(long key, V value) {
+        return 1;
+    }
+
+    public final int size() {
+        int size = 0;
+        for (Segment<V> segment : mSegments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public synchronized final int maxSize() {
+        return mMaxSize;
+    }
+
+    public final int hitCount() {
+        int count = 0;
+        for (Segment<V> segment : mSegments) {
+            count += segment.hitCount();
+        }
+        return count;
+    }
+
+    public final int missCount() {
+        int count = 0;
+        for (Segment<V> segment : mSegments) {
+            count += segment.missCount();
+        }
+        return count;
+    }
+
+    public final int putCount() {
+        int count = 0;
+        for (Segment<V> segment : mSegments) {
+            count += segment.putCount();
+        }
+        return count;
+    }
+
+    public final int evictionCount() {
+        int count = 0;
+        for (Segment<V> segment : mSegments) {
+            count += segment.evictionCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns a copy of the current keys of the cache, ordered from least recently accessed to
+     * most recently accessed within each segment.
+     */
+    public final long[] keySnapshot() {
+        final long[][] keys = new long[mSegments.length][];
+        int count = 0;
+        for (int i = 0; i < mSegments.length; i++) {
+            keys[i] = mSegments[i].keySnapshot();
+            count += keys[i].length;
+        }
+        final long[] result = new long[count];
+        int offset = 0;
+        for (long[] segmentKeys : keys) {
+            System.arraycopy(segmentKeys, 0, result, offset, segmentKeys.length);
+            offset += segmentKeys.length;
+        }
+        return result;
+    }
+
+    @Override
+    public final String toString() {
+        final int hits = hitCount();
+        final int accesses = hits + missCount();
+        final int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format(
+                "StripedLongLruCache[maxSize=%d,segments=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize(), mSegments.length, hits, accesses - hits, hitPercent);
+    }
+}
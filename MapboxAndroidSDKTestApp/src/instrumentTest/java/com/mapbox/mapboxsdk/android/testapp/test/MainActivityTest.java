@@ -5,14 +5,86 @@
 
 package com.mapbox.mapboxsdk.android.testapp.test;
 
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Debug;
+import android.util.Log;
 import android.test.ActivityInstrumentationTestCase2;
 import com.mapbox.mapboxsdk.android.testapp.MainActivity;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.overlay.TilesOverlay;
+import com.mapbox.mapboxsdk.tileprovider.IMapTileProviderCallback;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.MapTileLayerArray;
+import com.mapbox.mapboxsdk.tileprovider.MapTileLayerStack;
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.TileKey;
+import com.mapbox.mapboxsdk.tileprovider.TileMetadata;
+import com.mapbox.mapboxsdk.tileprovider.TileViewport;
+import com.mapbox.mapboxsdk.tileprovider.cache.EncodedTileArena;
+import com.mapbox.mapboxsdk.tileprovider.cache.NegativeTileCache;
+import com.mapbox.mapboxsdk.tileprovider.cache.TileDiskCache;
+import com.mapbox.mapboxsdk.tileprovider.cache.TileDiskWriter;
+import com.mapbox.mapboxsdk.tileprovider.cache.TilePack;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesFileArchive;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileModuleLayerBase;
+import com.mapbox.mapboxsdk.tileprovider.modules.SharedTileExecutor;
+import com.mapbox.mapboxsdk.tileprovider.modules.StageExecutor;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.MBTilesLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.TileDecodePolicy;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.WebSourceTileLayer;
+import com.mapbox.mapboxsdk.util.FrequencySketch;
+import com.mapbox.mapboxsdk.util.HostCircuitBreaker;
+import com.mapbox.mapboxsdk.util.LongHashMap;
+import com.mapbox.mapboxsdk.util.NetworkStack;
+import com.mapbox.mapboxsdk.views.MapView;
 import com.mapbox.mapboxsdk.views.util.Projection;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import junit.framework.Assert;
+import uk.co.senab.bitmapcache.BitmapLruCache;
+import uk.co.senab.bitmapcache.BitmapPool;
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+import uk.co.senab.bitmapcache.DrawableLeases;
+import uk.co.senab.bitmapcache.LongLruCache;
+import uk.co.senab.bitmapcache.SolidColorBitmaps;
+import uk.co.senab.bitmapcache.StripedLongLruCache;
 
 public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActivity> {
     public MainActivityTest() {
@@ -83,6 +155,1399 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 
         Assert.assertTrue(tile.equals(tileB));
         Assert.assertFalse(tile.equals(tileC));
+
+        Assert.assertEquals(tile.getKey(), tileB.getKey());
+        Assert.assertFalse(tile.getKey() == tileC.getKey());
+        Assert.assertEquals(TileKey.getZ(tile.getKey()), 1);
+        Assert.assertEquals(TileKey.getX(tile.getKey()), 2);
+        Assert.assertEquals(TileKey.getY(tile.getKey()), 3);
+
+        MapTile otherSource = new MapTile("other", 1, 2, 3);
+        Assert.assertFalse(tile.equals(otherSource));
+    }
+
+    public void testTileViewport() throws Exception {
+        TileViewport viewport = new TileViewport();
+        Assert.assertTrue(viewport.isVisible(new MapTile(5, 0, 0)));
+
+        Assert.assertTrue(viewport.set(4, 2, 2, 6, 6));
+        Assert.assertFalse(viewport.set(4, 2, 2, 6, 6));
+
+        Assert.assertTrue(viewport.isVisible(new MapTile(4, 4, 4)));
+        Assert.assertFalse(viewport.isVisible(new MapTile(4, 10, 4)));
+        // parent and child tiles over the viewport
+        Assert.assertTrue(viewport.isVisible(new MapTile(3, 1, 1)));
+        Assert.assertTrue(viewport.isVisible(new MapTile(5, 9, 9)));
+        Assert.assertFalse(viewport.isVisible(new MapTile(5, 30, 9)));
+
+        // center first, then further away, then other zoom levels
+        long center = viewport.priorityOf(new MapTile(4, 4, 4));
+        long edge = viewport.priorityOf(new MapTile(4, 6, 6));
+        long parent = viewport.priorityOf(new MapTile(3, 2, 2));
+        Assert.assertTrue(center < edge);
+        Assert.assertTrue(edge < parent);
+    }
+
+    public void testTileLooperDoesNotAllocate() throws Exception {
+        final MapTileCache cache = new MapTileCache(getActivity());
+        final List<String> loads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch gate = new CountDownLatch(1);
+        final StubWebTileLayer source = new StubWebTileLayer("looper-test", null);
+        // the missing tile is requested once and never arrives
+        final FakeTileProvider provider = new FakeTileProvider(new SharedTileExecutor(1),
+                "looper-test", 1, loads, gate);
+        final MapTileLayerArray layer = new MapTileLayerArray(getActivity(), source, null,
+                new MapTileModuleLayerBase[] {provider});
+        final TilesOverlay overlay = new TilesOverlay(layer);
+        final String key = layer.getCacheKey();
+        final int size = Projection.getTileSize();
+        // 2/1/1 to 2/2/2 are drawn, 2/2/2 is missing and drawn from its parent and a child
+        final MapTile[] cached = new MapTile[] {
+                new MapTile(key, 2, 1, 1), new MapTile(key, 2, 2, 1), new MapTile(key, 2, 1, 2),
+                new MapTile(key, 1, 1, 1), new MapTile(key, 3, 4, 4)};
+        for (MapTile tile : cached) {
+            final Bitmap bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+            bitmap.eraseColor(Color.RED);
+            cache.putTileInMemoryCache(tile, bitmap);
+        }
+        final Bitmap frame = Bitmap.createBitmap(size * 2, size * 2, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(frame);
+        canvas.translate(-size, -size);
+        final Rect viewPort = new Rect(size, size, size * 3, size * 3);
+
+        try {
+            // the first frames request the missing tile and size the cache, the next one only
+            // draws what is in memory
+            overlay.drawTiles(canvas, 2, size, viewPort, viewPort);
+            overlay.drawTiles(canvas, 2, size, viewPort, viewPort);
+
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+            overlay.drawTiles(canvas, 2, size, viewPort, viewPort);
+            Debug.stopAllocCounting();
+
+            Assert.assertEquals(0, Debug.getThreadAllocCount());
+            // every pixel was drawn, the missing tile by its fallbacks
+            Assert.assertEquals(Color.RED, frame.getPixel(size * 3 / 2, size * 3 / 2));
+            Assert.assertEquals(Color.RED, frame.getPixel(size * 5 / 4, size * 7 / 4));
+        } finally {
+            gate.countDown();
+            overlay.onDetach(null);
+            for (MapTile tile : cached) {
+                cache.removeTile(tile);
+            }
+            frame.recycle();
+        }
+    }
+
+    public void testTilePack() throws Exception {
+        final File directory = new File(getActivity().getCacheDir(), "test_tile_pack");
+        final long key = TileKey.pack(0, 4, 3, 5);
+        TilePack pack = new TilePack(directory, "test", 1024 * 1024);
+        pack.clear();
+        pack.put(key, new byte[] { 1, 2, 3 }, "metadata");
+        pack.put(TileKey.pack(0, 4, 3, 6), new byte[] { 4 }, null);
+        pack.remove(TileKey.pack(0, 4, 3, 6));
+
+        ByteBuffer data = pack.get(key);
+        Assert.assertEquals(3, data.remaining());
+        Assert.assertEquals(3, data.get(2));
+        Assert.assertEquals("metadata", pack.getMetadata(key));
+        Assert.assertTrue(pack.putMetadata(key, "updated"));
+        Assert.assertEquals(3, pack.get(key).remaining());
+        Assert.assertNull(pack.get(TileKey.pack(0, 4, 3, 6)));
+        Assert.assertEquals(1, pack.size());
+
+        // reopening without a flush rebuilds the index from the pack
+        pack = new TilePack(directory, "test", 1024 * 1024);
+        Assert.assertEquals(1, pack.size());
+        Assert.assertEquals("updated", pack.getMetadata(key));
+        Assert.assertEquals(2, pack.get(key).get(1));
+        pack.clear();
+        pack.close();
+
+        // offsets in the mapped pack are ints
+        try {
+            new TilePack(directory, "test", TilePack.MAXIMUM_SIZE + 1);
+            Assert.fail("a pack can't outgrow its mapping");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testBitmapPool() throws Exception {
+        final Bitmap tile = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        final Bitmap other = Bitmap.createBitmap(256, 256, Bitmap.Config.RGB_565);
+        final BitmapPool pool = new BitmapPool(256 * 256 * 4);
+        Assert.assertTrue(pool.put(tile));
+        Assert.assertNull(pool.get(256, 256, Bitmap.Config.RGB_565));
+        Assert.assertSame(tile, pool.get(256, 256, null));
+        Assert.assertNull(pool.get(256, 256, Bitmap.Config.ARGB_8888));
+        Assert.assertEquals(1, pool.hitCount());
+        Assert.assertEquals(2, pool.missCount());
+
+        // the budget drops the bitmap returned longest ago
+        Assert.assertTrue(pool.put(other));
+        Assert.assertTrue(pool.put(tile));
+        Assert.assertEquals(1, pool.evictionCount());
+        Assert.assertNull(pool.get(256, 256, Bitmap.Config.RGB_565));
+        Assert.assertSame(tile, pool.get(256, 256, Bitmap.Config.ARGB_8888));
+        Assert.assertEquals(0, pool.size());
+        Assert.assertFalse(pool.put(Bitmap.createBitmap(512, 512, Bitmap.Config.ARGB_8888)));
+    }
+
+    public void testStripedLongLruCacheKeepsVisibleTiles() throws Exception {
+        // a 6x4 viewport of @2x tiles, in a cache sized the way resizeMemoryForTiles does
+        final int tileBytes = 512 * 512 * 4;
+        final int visible = 24;
+        final StripedLongLruCache<Object> cache =
+                new StripedLongLruCache<Object>((int) (visible * 1.05f * tileBytes)) {
+                    @Override
+                    protected int sizeOf(final long key, final Object value) {
+                        return tileBytes;
+                    }
+                };
+        cache.setEntrySizeHint(tileBytes);
+        final Object value = new Object();
+        final Random random = new Random(7);
+        for (int view = 0; view < 200; view++) {
+            final int left = random.nextInt(1000);
+            final int top = random.nextInt(1000);
+            for (int y = 0; y < 4; y++) {
+                for (int x = 0; x < 6; x++) {
+                    cache.put(TileKey.pack(0, 14, left + x, top + y), value);
+                }
+            }
+            // no segment evicted a tile that is on screen, however unevenly they hashed
+            for (int y = 0; y < 4; y++) {
+                for (int x = 0; x < 6; x++) {
+                    Assert.assertNotNull(cache.get(TileKey.pack(0, 14, left + x, top + y)));
+                }
+            }
+        }
+    }
+
+    public void testStripedLongLruCacheUnderLoad() throws Exception {
+        final StripedLongLruCache<Object> cache = new StripedLongLruCache<Object>(1024);
+        final Object value = new Object();
+        for (int x = 0; x < 16; x++) {
+            cache.put(TileKey.pack(0, 10, x, 0), value);
+        }
+        // loaders insert other tiles while the draw loop looks the visible ones up
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger errors = new AtomicInteger();
+        final Thread[] loaders = new Thread[8];
+        for (int i = 0; i < loaders.length; i++) {
+            final int loader = i;
+            loaders[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        int y = 1;
+                        while (!done.get()) {
+                            cache.put(TileKey.pack(0, 10, loader, y++ & 0x3ff), value);
+                        }
+                    } catch (RuntimeException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            loaders[i].start();
+        }
+        final int lookups = 200000;
+        int misses = 0;
+        for (int i = 0; i < lookups; i++) {
+            final long key = TileKey.pack(0, 10, i & 15, 0);
+            if (cache.get(key) == null) {
+                // the draw loop requests it again
+                misses++;
+                cache.put(key, value);
+            }
+        }
+        done.set(true);
+        for (Thread thread : loaders) {
+            thread.join();
+        }
+        Log.i("MainActivityTest", cache.toString());
+
+        Assert.assertEquals(0, errors.get());
+        // the visible tiles are used all the time and stay in the cache
+        Assert.assertTrue("visible tiles missed " + misses + " times", misses < lookups / 100);
+        Assert.assertTrue(cache.hitCount() + cache.missCount() >= lookups);
+        cache.evictAll();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.keySnapshot().length);
+    }
+
+    /**
+     * Replay a trace of a user going back to one of a few places between flings through new
+     * tiles, and count the views whose tiles were all in memory.
+     *
+     * @return the hit rate of the first frame of every view, in percent
+     */
+    private static int replayTrace(final LongLruCache<Object> cache) {
+        final Random random = new Random(42);
+        final Object value = new Object();
+        int requests = 0;
+        int hits = 0;
+        int flungTo = 1000;
+        for (int round = 0; round < 200; round++) {
+            final int home = random.nextInt(3);
+            // one view of a 4x4 home area, then a fling across eight views of new tiles
+            for (int view = 0; view < 9; view++) {
+                for (int frame = 0; frame < 3; frame++) {
+                    for (int tile = 0; tile < 16; tile++) {
+                        final long key = view == 0
+                                ? TileKey.pack(0, 12, home * 4 + (tile & 3), tile >> 2)
+                                : TileKey.pack(0, 12, flungTo + view * 4 + (tile & 3), tile >> 2);
+                        final boolean hit = cache.get(key) != null;
+                        if (!hit) {
+                            cache.put(key, value);
+                        }
+                        if (frame == 0) {
+                            requests++;
+                            hits += hit ? 1 : 0;
+                        }
+                    }
+                }
+            }
+            flungTo += 64;
+        }
+        return 100 * hits / requests;
+    }
+
+    public void testMemoryCacheAdmission() throws Exception {
+        final FrequencySketch sketch = new FrequencySketch(128);
+        sketch.increment(7);
+        sketch.increment(7);
+        Assert.assertEquals(2, sketch.frequency(7));
+        Assert.assertEquals(0, sketch.frequency(8));
+
+        final LongLruCache<Object> lru = new LongLruCache<Object>(128);
+        final LongLruCache<Object> tinyLfu = new LongLruCache<Object>(128);
+        tinyLfu.enableAdmission(new FrequencySketch(128), 32);
+        final int lruHitRate = replayTrace(lru);
+        final int tinyLfuHitRate = replayTrace(tinyLfu);
+        Log.i("MainActivityTest", "hit rate of the fling trace: LRU " + lruHitRate
+                + "%, W-TinyLFU " + tinyLfuHitRate + "%");
+
+        Assert.assertTrue(tinyLfuHitRate > lruHitRate);
+        Assert.assertTrue(tinyLfu.size() <= tinyLfu.maxSize());
+        tinyLfu.evictAll();
+        Assert.assertEquals(0, tinyLfu.size());
+    }
+
+    public void testEncodedTileArena() throws Exception {
+        final EncodedTileArena arena = new EncodedTileArena(1000);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(arena.put(i, new byte[] { (byte) i, 1, 2 }));
+        }
+        Assert.assertFalse(arena.put(9, new byte[300]));
+        Assert.assertEquals(4, arena.count());
+        Assert.assertEquals(3, arena.get(3)[0]);
+        Assert.assertNull(arena.get(9));
+
+        // once the ring wraps around, the oldest tiles are overwritten
+        for (int i = 10; i < 15; i++) {
+            Assert.assertTrue(arena.put(i, new byte[200]));
+        }
+        Assert.assertNull(arena.get(0));
+        Assert.assertEquals(200, arena.get(14).length);
+        Assert.assertTrue(arena.size() <= arena.capacity());
+        Assert.assertTrue(arena.evictionCount() > 0);
+        arena.clear();
+        Assert.assertEquals(0, arena.size());
+    }
+
+    public void testTileDecodePolicy() throws Exception {
+        BitmapFactory.Options opts = TileDecodePolicy.OVERLAY.newDecodeOptions(512);
+        Assert.assertEquals(Bitmap.Config.ARGB_8888, opts.inPreferredConfig);
+        Assert.assertTrue(opts.inSampleSize <= 1);
+        Assert.assertEquals(512 * 512 * 4, TileDecodePolicy.OVERLAY.getTileBytes(512));
+
+        // opaque @2x tiles on a 1.5x screen: 565, no sampling, scaled down to 384px
+        final TileDecodePolicy policy = new TileDecodePolicy(true, 384);
+        opts = policy.newDecodeOptions(512);
+        Assert.assertEquals(Bitmap.Config.RGB_565, opts.inPreferredConfig);
+        Assert.assertTrue(opts.inSampleSize <= 1);
+        Assert.assertEquals(512, opts.inDensity);
+        Assert.assertEquals(384, opts.inTargetDensity);
+        Assert.assertEquals(384 * 384 * 2, policy.getTileBytes(512));
+
+        // on a 1x screen they are sampled down by two, without scaling
+        opts = new TileDecodePolicy(true, 256).newDecodeOptions(512);
+        Assert.assertEquals(2, opts.inSampleSize);
+        Assert.assertEquals(0, opts.inDensity);
+        Assert.assertEquals(256 * 256 * 2, TileDecodePolicy.OPAQUE.getTileBytes(256));
+    }
+
+    public void testSolidColorBitmaps() throws Exception {
+        final SolidColorBitmaps solidColorBitmaps = new SolidColorBitmaps(2);
+        final Bitmap sea = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        sea.eraseColor(Color.BLUE);
+        Assert.assertEquals(Color.BLUE, (int) SolidColorBitmaps.getColor(sea));
+
+        final Bitmap shared = solidColorBitmaps.get(sea);
+        Assert.assertNotNull(shared);
+        Assert.assertFalse(shared.isMutable());
+        Assert.assertEquals(256, shared.getWidth());
+        final Bitmap otherSea = sea.copy(Bitmap.Config.ARGB_8888, true);
+        Assert.assertSame(shared, solidColorBitmaps.get(otherSea));
+        Assert.assertEquals(1, solidColorBitmaps.hitCount());
+
+        // one pixel away from the corners and the center is enough to tell them apart
+        otherSea.setPixel(17, 200, Color.WHITE);
+        Assert.assertEquals(-1, SolidColorBitmaps.getColor(otherSea));
+        Assert.assertNull(solidColorBitmaps.get(otherSea));
+        Assert.assertEquals(1, solidColorBitmaps.size());
+    }
+
+    public void testDrawableLeases() throws Exception {
+        final CacheableBitmapDrawable drawable = new CacheableBitmapDrawable(1, null, null,
+                Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888),
+                BitmapLruCache.RecyclePolicy.ALWAYS, CacheableBitmapDrawable.SOURCE_NEW);
+        final DrawableLeases leases = new DrawableLeases();
+        Assert.assertTrue(leases.acquire(drawable));
+        Assert.assertTrue(leases.acquire(drawable));
+        Assert.assertEquals(2, drawable.getLeaseCount());
+
+        // the leases of a pass outlive it by one pass, for the display list that drew them
+        leases.endPass();
+        Assert.assertEquals(2, drawable.getLeaseCount());
+        Assert.assertTrue(drawable.isBitmapValid());
+        leases.endPass();
+        Assert.assertEquals(0, drawable.getLeaseCount());
+        Assert.assertEquals(0, leases.size());
+
+        // uncached and released, the bitmap is recycled and can't be leased again
+        Assert.assertFalse(drawable.isBitmapValid());
+        Assert.assertFalse(leases.acquire(drawable));
+        drawable.release();
+        Assert.assertEquals(0, drawable.getLeaseCount());
+    }
+
+    public void testNegativeTileCache() throws Exception {
+        final File dir = new File(getActivity().getCacheDir(), "test_negative_tiles");
+        final String source = "test-negative";
+        final int sourceId = TileKey.getSourceId(source);
+        final long missing = TileKey.pack(sourceId, 14, 8000, 5000);
+        final long offline = TileKey.pack(sourceId, 14, 8001, 5000);
+        final long broken = TileKey.pack(sourceId, 14, 8002, 5000);
+
+        final NegativeTileCache cache = new NegativeTileCache(dir, 16);
+        cache.setTimeToLive(NegativeTileCache.Reason.SERVER_ERROR, 0);
+        cache.put(missing, NegativeTileCache.Reason.NOT_FOUND);
+        cache.put(offline, NegativeTileCache.Reason.OFFLINE);
+        cache.put(broken, NegativeTileCache.Reason.SERVER_ERROR);
+        Assert.assertEquals(NegativeTileCache.Reason.NOT_FOUND, cache.get(missing));
+        Assert.assertTrue(cache.contains(offline));
+        // expired failures are dropped when they are looked up
+        Assert.assertFalse(cache.contains(broken));
+        Assert.assertEquals(0, cache.count(NegativeTileCache.Reason.SERVER_ERROR));
+
+        // the network is back
+        cache.clear(NegativeTileCache.Reason.OFFLINE);
+        Assert.assertFalse(cache.contains(offline));
+        Assert.assertTrue(cache.contains(missing));
+
+        // a tile of a failing host is kept for as long as the host is, not for its reason
+        final long rejected = TileKey.pack(sourceId, 14, 8003, 5000);
+        cache.put(rejected, NegativeTileCache.Reason.HOST_UNAVAILABLE, 0);
+        Assert.assertFalse(cache.contains(rejected));
+        cache.put(rejected, NegativeTileCache.Reason.HOST_UNAVAILABLE, 60 * 1000);
+        Assert.assertEquals(NegativeTileCache.Reason.HOST_UNAVAILABLE, cache.get(rejected));
+        cache.clear(NegativeTileCache.Reason.HOST_UNAVAILABLE);
+        Assert.assertFalse(cache.contains(rejected));
+
+        // only missing tiles outlive the process
+        cache.put(offline, NegativeTileCache.Reason.OFFLINE);
+        cache.save(source);
+        final NegativeTileCache reloaded = new NegativeTileCache(dir, 16);
+        reloaded.load(source);
+        Assert.assertEquals(1, reloaded.size());
+        Assert.assertEquals(NegativeTileCache.Reason.NOT_FOUND, reloaded.get(missing));
+
+        reloaded.remove(missing);
+        reloaded.save(source);
+        Assert.assertEquals(0, dir.list().length);
+
+        // off the UI thread, taking the tiles before the cache is cleared
+        final Future<?> saved = cache.saveInBackground(source);
+        cache.clear();
+        saved.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, dir.list().length);
+        final NegativeTileCache background = new NegativeTileCache(dir, 16);
+        background.loadInBackground(source).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(NegativeTileCache.Reason.NOT_FOUND, background.get(missing));
+        background.clear();
+        background.save(source);
+    }
+
+    public void testMapTileLayerStack() throws Exception {
+        final MapTileLayerStack stack = new MapTileLayerStack(getActivity());
+        Assert.assertTrue(stack.hasNoSource());
+        Assert.assertEquals("", stack.getCacheKey());
+        Assert.assertNull(stack.getTileSource());
+        Assert.assertNull(stack.getMapTile(new MapTile(stack.getCacheKey(), 1, 0, 0), false));
+        Assert.assertTrue(stack.isCompositingEnabled());
+
+        // layers need the map their downloaders report to
+        try {
+            stack.addTileSource(
+                    new WebSourceTileLayer("test", "http://example.com/{z}/{x}/{y}.png"));
+            Assert.fail("a stack without a map can't have layers");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(stack.hasNoSource());
+        }
+        stack.detach();
+    }
+
+    public void testMapTileLayerStackCompositing() throws Exception {
+        final MapTileCache cache = new MapTileCache(getActivity());
+        final StubWebTileLayer bottom = new StubWebTileLayer("composite-bottom", null);
+        final StubWebTileLayer top = new StubWebTileLayer("composite-top", null);
+        bottom.setColor(Color.RED);
+        top.setColor(Color.TRANSPARENT);
+        // stale as soon as it is cached, so it is revalidated whenever it is loaded from there
+        bottom.mMetadata = new TileMetadata(null, null, 1, TileMetadata.CONTENT_TYPE_PNG);
+        final MapTileLayerStack stack = new MapTileLayerStack(getActivity());
+        stack.setMapView(createMapView());
+        stack.setTileSources(new ITileLayer[] {bottom, top});
+        final MapTile tile = new MapTile(stack.getCacheKey(), 3, 1, 2);
+        final MapTile bottomTile = new MapTile(bottom.getCacheKey(), 3, 1, 2);
+        cache.removeTile(bottomTile);
+        cache.removeTile(new MapTile(top.getCacheKey(), 3, 1, 2));
+
+        // flattened into one tile once both layers are in memory
+        Assert.assertEquals(Color.RED, awaitComposite(stack, tile, Color.RED));
+        Assert.assertEquals(1, bottom.mUrls.size());
+
+        // the bottom tile changed on the server, and is loaded again from the caches
+        bottom.setColor(Color.GREEN);
+        cache.removeTileFromMemory(tile);
+        cache.removeTileFromMemory(bottomTile);
+        // the composite of the stale tile is dropped once the tile is revalidated
+        Assert.assertEquals(Color.GREEN, awaitComposite(stack, tile, Color.GREEN));
+        Assert.assertTrue(bottom.mUrls.size() >= 2);
+
+        // invalidating a layer drops the composited tiles but keeps the cache key
+        final String cacheKey = stack.getCacheKey();
+        stack.invalidateLayer(bottom);
+        Assert.assertEquals(cacheKey, stack.getCacheKey());
+        Assert.assertNull(cache.getMapTileFromMemory(tile));
+        stack.detach();
+        cache.removeTile(bottomTile);
+    }
+
+    public void testPrefetch() throws Exception {
+        final List<String> loads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch gate = new CountDownLatch(1);
+        final FakeTileProvider provider = new FakeTileProvider(new SharedTileExecutor(1),
+                "prefetch-test", 1, loads, gate);
+        final MapTileLayerArray layer = new MapTileLayerArray(getActivity(), null, null,
+                new MapTileModuleLayerBase[] {provider});
+        layer.setPrefetchBudget(10);
+        layer.setViewport(10, 0, 0, 1, 1);
+
+        // a fling predicted to land away from the viewport, up to the budget
+        layer.prefetch(10, 100, 100, 104, 104);
+        Assert.assertEquals(10, provider.getPendingCount() + provider.getWorkingCount());
+        // the same prediction isn't requested twice
+        layer.prefetch(10, 100, 100, 104, 104);
+        Assert.assertEquals(10, provider.getPendingCount() + provider.getWorkingCount());
+        final MapTile visible = new MapTile(layer.getCacheKey(), 10, 0, 0);
+        layer.getMapTile(visible, true);
+
+        // the motion ended or was interrupted, only the visible tile is still wanted
+        layer.cancelPrefetch();
+        Assert.assertEquals(1, provider.getPendingCount());
+        Assert.assertTrue(provider.isTileWanted(visible));
+        Assert.assertFalse(provider.isTileWanted(new MapTile(layer.getCacheKey(), 10, 102, 102)));
+
+        // no budget, no prefetching
+        layer.setPrefetchBudget(0);
+        layer.prefetch(10, 200, 200, 204, 204);
+        Assert.assertEquals(1, provider.getPendingCount());
+        gate.countDown();
+        layer.detach();
+    }
+
+    public void testSharedTileExecutor() throws Exception {
+        final SharedTileExecutor executor = SharedTileExecutor.getInstance();
+        // one executor for every layer of every map
+        Assert.assertSame(executor, SharedTileExecutor.getInstance());
+        Assert.assertEquals(8, executor.getThreadCount());
+        Assert.assertTrue(executor.getActiveCount() <= executor.getThreadCount());
+        Log.i("MainActivityTest", executor.toString());
+    }
+
+    public void testSharedTileExecutorWeights() throws Exception {
+        final SharedTileExecutor executor = new SharedTileExecutor(1);
+        final List<String> loads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch gate = new CountDownLatch(1);
+        final FakeTileProvider light = new FakeTileProvider(executor, "light", 1, loads, gate);
+        final FakeTileProvider heavy = new FakeTileProvider(executor, "heavy", 1, loads, gate);
+        heavy.setWeight(2);
+        // the first tile holds the only thread until both queues are full
+        light.request(30);
+        heavy.request(30);
+        gate.countDown();
+        waitFor(loads, 60);
+
+        int heavyLoads = 0;
+        for (int i = 1; i <= 30; i++) {
+            heavyLoads += "heavy".equals(loads.get(i)) ? 1 : 0;
+        }
+        // twice the tiles while both have tiles pending
+        Assert.assertTrue("heavy loaded " + heavyLoads, heavyLoads >= 18 && heavyLoads <= 22);
+        light.detach();
+        heavy.detach();
+    }
+
+    public void testSharedTileExecutorLimits() throws Exception {
+        final SharedTileExecutor executor = new SharedTileExecutor(4);
+        final List<String> loads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch gate = new CountDownLatch(1);
+        final FakeTileProvider provider = new FakeTileProvider(executor, "limited", 2, loads, gate);
+        provider.request(6);
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getActiveCount(provider) < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        // the other threads stay idle rather than exceed the limit of the provider
+        Assert.assertEquals(2, executor.getActiveCount(provider));
+        Assert.assertEquals(2, executor.getActiveCount());
+        Assert.assertEquals(1, executor.getProviderCount());
+        gate.countDown();
+        waitFor(loads, 6);
+        Assert.assertEquals(2, provider.mMostLoading.get());
+
+        // dropped once idle, so that it isn't kept alive
+        while (executor.getProviderCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, executor.getProviderCount());
+        Assert.assertEquals(0, executor.getActiveCount());
+        provider.detach();
+    }
+
+    public void testDownloaderStages() throws Exception {
+        final MapTileCache cache = new MapTileCache(getActivity());
+        final StubWebTileLayer layer = new StubWebTileLayer("stages-test", null);
+        final MapTileDownloader downloader =
+                new MapTileDownloader(layer, cache, null, createMapView());
+        final MapTile tile = new MapTile(layer.getCacheKey(), 3, 1, 2);
+        cache.removeTile(tile);
+
+        final RecordingCallback callback = request(downloader, tile);
+        Assert.assertTrue(callback.await());
+        Assert.assertNotNull(callback.mDrawable);
+        // downloaded on a tile thread, decoded on the decode stage, written behind it
+        Assert.assertTrue(layer.mThreads.get(0).startsWith("tileworker"));
+        Assert.assertTrue(callback.mThread.startsWith("decoder"));
+        Assert.assertTrue(cache.containsTileInDiskCache(tile));
+        TileDiskWriter.getInstance().drain();
+        Assert.assertTrue(cache.containsTileInDiskCache(tile));
+
+        // decoded from the caches without a download the next time
+        cache.removeTileFromMemory(tile);
+        final RecordingCallback again = request(downloader, tile);
+        Assert.assertTrue(again.await());
+        Assert.assertNotNull(again.mDrawable);
+        Assert.assertEquals(1, layer.mUrls.size());
+        cache.removeTile(tile);
+
+        // the disk is read on the tile thread, the decode stage only gets the bytes, and the
+        // metadata is left to the revalidator
+        final RecordingDiskCache diskCache = new RecordingDiskCache();
+        cache.setDiskCache(diskCache);
+        try {
+            diskCache.put(tile, MapTileCache.compress(Bitmap.createBitmap(256, 256,
+                    Bitmap.Config.ARGB_8888)), null);
+            final RecordingCallback fromDisk = request(downloader, tile);
+            Assert.assertTrue(fromDisk.await());
+            Assert.assertNotNull(fromDisk.mDrawable);
+            Assert.assertTrue(fromDisk.mThread.startsWith("decoder"));
+            Assert.assertEquals(1, layer.mUrls.size());
+            Thread.sleep(200);
+            for (String thread : diskCache.mReadThreads) {
+                Assert.assertFalse(thread, thread.startsWith("decoder"));
+            }
+            Assert.assertTrue(diskCache.mReadThreads.get(0).startsWith("tileworker"));
+        } finally {
+            downloader.detach();
+            cache.removeTile(tile);
+            cache.setDiskCache(null);
+        }
+    }
+
+    public void testStageExecutorBackPressure() throws Exception {
+        final StageExecutor stage = new StageExecutor("stage-test", 1, 2, Thread.NORM_PRIORITY);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    gate.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                ran.incrementAndGet();
+            }
+        };
+        // one running, two queued
+        for (int i = 0; i < 3; i++) {
+            stage.execute(task);
+        }
+        final Thread feeder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stage.execute(task);
+            }
+        });
+        feeder.start();
+        Thread.sleep(100);
+        // the stage feeding a full one waits for room instead of piling up work
+        Assert.assertTrue(feeder.isAlive());
+        Assert.assertEquals(2, stage.getQueueDepth());
+        gate.countDown();
+        feeder.join(5000);
+        Assert.assertFalse(feeder.isAlive());
+
+        stage.shutdown();
+        Assert.assertTrue(stage.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertEquals(4, ran.get());
+        try {
+            stage.execute(task);
+            Assert.fail("a stage that is shut down takes no work");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    public void testDownloaderAfterDetach() throws Exception {
+        final MapTileCache cache = new MapTileCache(getActivity());
+        final CountDownLatch gate = new CountDownLatch(1);
+        final StubWebTileLayer layer = new StubWebTileLayer("detach-test", gate);
+        final MapTileDownloader downloader =
+                new MapTileDownloader(layer, cache, null, createMapView());
+        final MapTile tile = new MapTile(layer.getCacheKey(), 3, 1, 2);
+        cache.removeTile(tile);
+
+        final RecordingCallback callback = request(downloader, tile);
+        Assert.assertTrue(layer.mStarted.await(5, TimeUnit.SECONDS));
+        downloader.detach();
+        gate.countDown();
+        // the tile loading is dropped, neither decoded nor cached
+        Assert.assertTrue(callback.await());
+        Assert.assertTrue(callback.mCancelled);
+        Assert.assertNull(callback.mDrawable);
+        Assert.assertFalse(cache.containsTileInDiskCache(tile));
+        Assert.assertEquals(0, downloader.getWorkingCount());
+        Assert.assertEquals(0, downloader.getPendingCount());
+    }
+
+    public void testTileDiskWriter() throws Exception {
+        final TileDiskWriter writer = TileDiskWriter.getInstance();
+        Assert.assertSame(writer, TileDiskWriter.getInstance());
+        final MapTileCache cache = new MapTileCache(getActivity());
+        final MapTile tile = new MapTile("diskwriter-test", 1, 2, 3);
+        final byte[] data = new byte[] {1, 2, 3};
+        // never blocks, and the tile is found whether or not it reached the disk yet
+        writer.put(cache, tile, data, null);
+        Assert.assertTrue(cache.containsTileInDiskCache(tile));
+        writer.drain();
+        Assert.assertNull(writer.getPending(tile.getKey()));
+        cache.removeTile(tile);
+        Assert.assertFalse(writer.contains(tile.getKey()));
+
+        // new metadata of a tile waiting to be written keeps its image, and neither write lands
+        // over the other
+        writer.put(cache, tile, data, new TileMetadata("\"v1\"", null, 1, null));
+        writer.putMetadata(cache, tile, new TileMetadata("\"v2\"", null, Long.MAX_VALUE, null));
+        Assert.assertTrue(cache.containsTileInDiskCache(tile));
+        writer.drain();
+        Assert.assertTrue(cache.containsTileInDiskCache(tile));
+        Assert.assertEquals("\"v2\"", cache.getTileMetadata(tile).getETag());
+        cache.removeTile(tile);
+
+        // drains racing the writer thread write every tile once, and all of them
+        final int written = writer.getWriteCount();
+        final MapTile[] tiles = new MapTile[64];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new MapTile("diskwriter-test", 6, i, 0);
+            writer.put(cache, tiles[i], data, null);
+        }
+        final Thread[] drains = new Thread[3];
+        for (int i = 0; i < drains.length; i++) {
+            drains[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writer.drain();
+                }
+            });
+            drains[i].start();
+        }
+        for (Thread drain : drains) {
+            drain.join(5000);
+            Assert.assertFalse(drain.isAlive());
+        }
+        Assert.assertEquals(0, writer.getPendingCount());
+        Assert.assertEquals(written + tiles.length, writer.getWriteCount());
+        for (MapTile each : tiles) {
+            Assert.assertTrue(cache.containsTileInDiskCache(each));
+            cache.removeTile(each);
+        }
+        Log.i("MainActivityTest", writer.toString());
+    }
+
+    public void testNetworkStackRequestsInParallel() throws Exception {
+        final NetworkStack networkStack = NetworkStack.getInstance();
+        final CountDownLatch started = new CountDownLatch(2);
+        final Callable<Boolean> request = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                started.countDown();
+                // only returns if the other request runs at the same time
+                return started.await(5, TimeUnit.SECONDS);
+            }
+        };
+        final Future<Boolean> first = networkStack.submit(request);
+        final Future<Boolean> second = networkStack.submit(request);
+        Assert.assertTrue(first.get());
+        Assert.assertTrue(second.get());
+    }
+
+    public void testNetworkStackPoolsConnections() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final AtomicInteger accepted = new AtomicInteger();
+        final Thread serving = serveKeepAlive(server, 3, "tile!", accepted);
+        final NetworkStack networkStack = new NetworkStack(4, 60000, 2, 5000, 5000);
+        for (int i = 0; i < 3; i++) {
+            final HttpURLConnection connection = networkStack.open(
+                    new URL("http://127.0.0.1:" + server.getLocalPort() + "/" + i), null, null);
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), "ISO-8859-1"));
+            Assert.assertEquals("tile!", reader.readLine());
+            // fully read, the connection goes back to the pool
+            Assert.assertNull(reader.readLine());
+            reader.close();
+        }
+        serving.join(5000);
+
+        // the three requests went over a single connection
+        Assert.assertEquals(1, accepted.get());
+        Assert.assertEquals(3, networkStack.getRequestCount());
+        Assert.assertEquals(15, networkStack.getBytesReceived());
+        networkStack.resetCounters();
+        Assert.assertEquals(0, networkStack.getRequestCount());
+        Assert.assertEquals(0, networkStack.getBytesReceived());
+        server.close();
+    }
+
+    public void testNetworkStackHostLimit() throws Exception {
+        final NetworkStack networkStack = new NetworkStack(4, 60000, 2, 5000, 5000);
+        final URL tiles = new URL("http://a.tiles.example.com/1/2/3.png");
+        final URL other = new URL("http://b.tiles.example.com/1/2/3.png");
+        networkStack.acquireHost(tiles);
+        networkStack.acquireHost(tiles);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    networkStack.acquireHost(tiles);
+                    acquired.countDown();
+                } catch (IOException e) {
+                    Log.w("MainActivityTest", "Interrupted waiting for a host", e);
+                }
+            }
+        });
+        waiter.start();
+
+        // a third request to the host waits, requests to other hosts don't
+        Assert.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        networkStack.acquireHost(other);
+        networkStack.releaseHost(other);
+        networkStack.releaseHost(tiles);
+        Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        networkStack.releaseHost(tiles);
+        networkStack.releaseHost(tiles);
+
+        // a waiting request gives up when its thread is interrupted
+        networkStack.acquireHost(tiles);
+        networkStack.acquireHost(tiles);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final Thread cancelled = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    networkStack.acquireHost(tiles);
+                } catch (IOException e) {
+                    interrupted.set(Thread.currentThread().isInterrupted());
+                }
+            }
+        });
+        cancelled.start();
+        cancelled.interrupt();
+        cancelled.join(5000);
+        Assert.assertTrue(interrupted.get());
+        networkStack.releaseHost(tiles);
+        networkStack.releaseHost(tiles);
+    }
+
+    public void testMapTileRequestCancellation() throws Exception {
+        final MapTileRequestState state =
+                new MapTileRequestState(new MapTile(1, 2, 3), null, null);
+        final AtomicBoolean aborted = new AtomicBoolean();
+        final Runnable abort = new Runnable() {
+            @Override
+            public void run() {
+                aborted.set(true);
+            }
+        };
+        state.addCancelListener(abort);
+        Assert.assertFalse(state.isCancelled());
+        state.cancel();
+        Assert.assertTrue(state.isCancelled());
+        Assert.assertTrue(aborted.get());
+
+        // a listener added too late runs right away
+        aborted.set(false);
+        state.addCancelListener(abort);
+        Assert.assertTrue(aborted.get());
+    }
+
+    public void testHostCircuitBreaker() throws Exception {
+        final HostCircuitBreaker breaker = new HostCircuitBreaker(2, 50, 1000);
+        final URL url = new URL("http://tiles.example.com/1/2/3.png");
+        final AtomicBoolean recovered = new AtomicBoolean();
+        breaker.addHostListener(new HostCircuitBreaker.HostListener() {
+            @Override
+            public void onHostUnavailable(final String host, final long retryInMs) {
+            }
+
+            @Override
+            public void onHostRecovered(final String host) {
+                recovered.set(true);
+            }
+        });
+
+        Assert.assertTrue(breaker.allowRequest(url));
+        breaker.reportFailure(url);
+        Assert.assertTrue(breaker.allowRequest(url));
+        Assert.assertEquals(0, breaker.getRetryIn());
+        breaker.reportFailure(url);
+        // open, with a backoff of 50ms and up to a quarter more
+        Assert.assertFalse(breaker.allowRequest(url));
+        Assert.assertFalse(breaker.isAvailable(url.getHost()));
+        final long retryIn = breaker.getRetryIn();
+        Assert.assertTrue(retryIn >= 0 && retryIn <= 63);
+        // a host that is up doesn't wait for the one that is down
+        Assert.assertEquals(0, breaker.getRetryIn("other.example.com"));
+        final long hostRetryIn = breaker.getRetryIn(url.getHost());
+        Assert.assertTrue(hostRetryIn >= 0 && hostRetryIn <= retryIn);
+
+        // half open once the backoff is over, a single probe goes through
+        Thread.sleep(100);
+        Assert.assertEquals(0, breaker.getRetryIn());
+        Assert.assertTrue(breaker.allowRequest(url));
+        Assert.assertFalse(breaker.allowRequest(url));
+        // until the probe tells, tiles wait a backoff
+        Assert.assertEquals(50, breaker.getRetryIn());
+        Assert.assertEquals(50, breaker.getRetryIn(url.getHost()));
+        breaker.reportSuccess(url);
+        Assert.assertEquals(0, breaker.getRetryIn());
+        Assert.assertTrue(recovered.get());
+        Assert.assertEquals(1, breaker.getRecoveryCount());
+        Assert.assertTrue(breaker.allowRequest(url));
+    }
+
+    public void testMBTilesConnectionPool() throws Exception {
+        final SQLiteDatabase db = createMBTiles("pool-test", 2, null);
+        db.execSQL("CREATE TABLE metadata (name TEXT, value TEXT)");
+        db.execSQL("INSERT INTO metadata VALUES ('name', 'pool-test')");
+        final MBTilesFileArchive archive = new MBTilesFileArchive(db, 3);
+        Assert.assertEquals("pool-test", archive.getName());
+        final LongHashMap<byte[]> range = new LongHashMap<byte[]>();
+        Assert.assertEquals(4, archive.getTiles(2, 1, 1, 2, 2, range));
+        Assert.assertEquals("2/1", new String(range.get(TileKey.pack(0, 2, 2, 1))));
+
+        // concurrent readers share at most the pool's connections
+        final AtomicInteger errors = new AtomicInteger();
+        readConcurrently(archive, errors);
+        Assert.assertEquals(0, errors.get());
+        Assert.assertTrue(archive.getConnectionCount() >= 1);
+        Assert.assertTrue(archive.getConnectionCount() <= 3);
+
+        archive.close();
+        Assert.assertNull(archive.getTileData(2, 1, 1));
+        db.close();
+    }
+
+    public void testMBTilesConnectionFailure() throws Exception {
+        final SQLiteDatabase db = createMBTiles("failure-test", 2, null);
+        final MBTilesFileArchive archive = new MBTilesFileArchive(db, 3);
+        // without the metadata table the read fails, and isn't taken for an empty table
+        Assert.assertNull(archive.getName());
+        db.execSQL("CREATE TABLE metadata (name TEXT, value TEXT)");
+        db.execSQL("INSERT INTO metadata VALUES ('name', 'failure-test')");
+        Assert.assertEquals("failure-test", archive.getName());
+
+        // no more connections can be opened, the readers share the first one
+        Assert.assertTrue(new File(db.getPath()).delete());
+        final AtomicInteger errors = new AtomicInteger();
+        readConcurrently(archive, errors);
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(1, archive.getConnectionCount());
+        archive.close();
+        db.close();
+    }
+
+    public void testMBTilesBatch() throws Exception {
+        final Bitmap bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLUE);
+        final SQLiteDatabase db = createMBTiles("batch-test", 2, MapTileCache.compress(bitmap));
+        bitmap.recycle();
+        final MBTilesLayer layer = new MBTilesLayer(db);
+        final MapTileCache cache = new MapTileCache(getActivity());
+        final MapTileDownloader downloader =
+                new MapTileDownloader(layer, cache, null, createMapView());
+        final TileViewport viewport = new TileViewport();
+        viewport.set(2, 0, 0, 3, 3);
+        downloader.setViewport(viewport);
+
+        Assert.assertNotNull(layer.getDrawableFromTile(downloader,
+                new MapTile(layer.getCacheKey(), 2, 0, 0), false));
+        // the first tile read the whole viewport, the others come from that batch
+        db.delete("tiles", null, null);
+        final AtomicInteger missing = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[3];
+        for (int i = 0; i < threads.length; i++) {
+            final int row = i + 1;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int x = 0; x < 4; x++) {
+                        if (layer.getDrawableFromTile(downloader,
+                                new MapTile(layer.getCacheKey(), 2, x, row), false) == null) {
+                            missing.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        Assert.assertEquals(0, missing.get());
+        // each tile of the batch is handed out once
+        Assert.assertNull(layer.getDrawableFromTile(downloader,
+                new MapTile(layer.getCacheKey(), 2, 1, 1), false));
+        downloader.detach();
+        layer.detach();
+        db.close();
+    }
+
+    public void testTileMetadata() throws Exception {
+        final TileMetadata metadata = new TileMetadata("\"v1\"", "Thu, 01 Jan 1970 00:00:10 GMT",
+                1000, "image/jpeg");
+        Assert.assertTrue(metadata.hasValidators());
+        Assert.assertFalse(metadata.isExpired(999));
+        Assert.assertTrue(metadata.isExpired(1000));
+
+        // encoded for the disk cache and back, empty fields are read as null
+        final TileMetadata decoded = TileMetadata.decode(metadata.encode());
+        Assert.assertEquals("\"v1\"", decoded.getETag());
+        Assert.assertEquals("Thu, 01 Jan 1970 00:00:10 GMT", decoded.getLastModified());
+        Assert.assertEquals(1000, decoded.getExpires());
+        Assert.assertEquals("image/jpeg", decoded.getContentType());
+        final TileMetadata bare = TileMetadata.decode(
+                new TileMetadata(null, null, 5, null).encode());
+        Assert.assertNull(bare.getETag());
+        Assert.assertNull(bare.getContentType());
+        Assert.assertFalse(bare.hasValidators());
+        Assert.assertNull(TileMetadata.decode(null));
+        Assert.assertNull(TileMetadata.decode(""));
+        Assert.assertNull(TileMetadata.decode("1\na\nb\n5\nc"));
+        Assert.assertNull(TileMetadata.decode("2\na\nb\nsoon\nc"));
+
+        // a composite can't be revalidated and expires with its first layer
+        metadata.merge(new TileMetadata("\"v2\"", null, 500, "image/png"));
+        Assert.assertFalse(metadata.hasValidators());
+        Assert.assertEquals(500, metadata.getExpires());
+        Assert.assertEquals(TileMetadata.CONTENT_TYPE_PNG, metadata.getContentType());
+    }
+
+    public void testTileMetadataFromResponse() throws Exception {
+        final long now = 1000000000L;
+        final FakeConnection response = new FakeConnection();
+        response.mHeaders.put("etag", "\"v1\"");
+        response.mHeaders.put("content-type", "image/png");
+        response.mHeaders.put("cache-control", "public, max-age=60");
+        TileMetadata metadata = TileMetadata.fromConnection(response, now);
+        Assert.assertEquals("\"v1\"", metadata.getETag());
+        Assert.assertEquals("image/png", metadata.getContentType());
+        Assert.assertEquals(now + 60000, metadata.getExpires());
+
+        response.mHeaders.put("cache-control", "no-cache");
+        Assert.assertTrue(TileMetadata.fromConnection(response, now).isExpired(now));
+
+        // Expires is taken relative to the Date of the server
+        response.mHeaders.remove("cache-control");
+        response.mHeaders.put("date", "Thu, 01 Jan 1970 00:00:40 GMT");
+        response.mHeaders.put("expires", "Thu, 01 Jan 1970 00:01:40 GMT");
+        Assert.assertEquals(now + 60000, TileMetadata.fromConnection(response, now).getExpires());
+
+        // then a tenth of the age of the tile, up to the default, then the default
+        response.mHeaders.remove("date");
+        response.mHeaders.remove("expires");
+        response.mHeaders.put("last-modified", "Thu, 01 Jan 1970 00:00:10 GMT");
+        Assert.assertEquals(now + Math.min((now - 10000) / 10,
+                        TileLayerConstants.TILE_DEFAULT_MAX_AGE_MS),
+                TileMetadata.fromConnection(response, now).getExpires());
+        response.mHeaders.put("last-modified", "Mon, 12 Jan 1970 13:30:00 GMT");
+        Assert.assertEquals(now + (now - 999000000L) / 10,
+                TileMetadata.fromConnection(response, now).getExpires());
+        response.mHeaders.remove("last-modified");
+        Assert.assertEquals(now + TileLayerConstants.TILE_DEFAULT_MAX_AGE_MS,
+                TileMetadata.fromConnection(response, now).getExpires());
+
+        // a 304 replaces the validators it sends and keeps the others
+        metadata = new TileMetadata("\"v1\"", "Thu, 01 Jan 1970 00:00:10 GMT", 0, null);
+        final FakeConnection notModified = new FakeConnection();
+        notModified.mHeaders.put("etag", "\"v2\"");
+        notModified.mHeaders.put("cache-control", "max-age=30");
+        metadata.refresh(notModified, now);
+        Assert.assertEquals("\"v2\"", metadata.getETag());
+        Assert.assertEquals("Thu, 01 Jan 1970 00:00:10 GMT", metadata.getLastModified());
+        Assert.assertEquals(now + 30000, metadata.getExpires());
+    }
+
+    public void testTileRevalidationNotModified() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final List<String> request = Collections.synchronizedList(new ArrayList<String>());
+        final Thread serving = serve(server, "HTTP/1.1 304 Not Modified\r\n"
+                + "ETag: \"v2\"\r\nCache-Control: max-age=60\r\n", request);
+        final WebSourceTileLayer layer = new WebSourceTileLayer("revalidate-test",
+                "http://127.0.0.1:" + server.getLocalPort() + "/{z}/{x}/{y}.png");
+        final MapTileCache cache = new MapTileCache(getActivity());
+        final MapTileDownloader downloader =
+                new MapTileDownloader(layer, cache, null, createMapView());
+        final MapTile tile = new MapTile(layer.getCacheKey(), 3, 1, 2);
+        final TileMetadata stale = new TileMetadata("\"v1\"", null, 1, "image/png");
+        cache.putTileDataInDiskCache(tile, new byte[] {1, 2, 3}, stale);
+
+        // nothing new to decode, the cached tile stays and is fresh again
+        Assert.assertNull(layer.revalidateTile(downloader, tile, false, stale));
+        serving.join(5000);
+        Assert.assertTrue(request.contains("If-None-Match: \"v1\""));
+        Assert.assertFalse(stale.isExpired(System.currentTimeMillis()));
+        // readable while it waits for the writer, and once it is written
+        Assert.assertEquals("\"v2\"", cache.getTileMetadata(tile).getETag());
+        TileDiskWriter.getInstance().drain();
+        final TileMetadata stored = cache.getTileMetadata(tile);
+        Assert.assertEquals("\"v2\"", stored.getETag());
+        Assert.assertFalse(stored.isExpired(System.currentTimeMillis()));
+        Assert.assertTrue(cache.containsTileInDiskCache(tile));
+
+        downloader.detach();
+        cache.removeTile(tile);
+        server.close();
+    }
+
+    public void testTileCachedAsDownloaded() throws Exception {
+        final Bitmap bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLUE);
+        final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 80, jpeg);
+        bitmap.recycle();
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final List<String> request = Collections.synchronizedList(new ArrayList<String>());
+        final Thread serving = serve(server, "HTTP/1.1 200 OK\r\nContent-Type: image/jpeg\r\n"
+                + "ETag: \"v2\"\r\nCache-Control: max-age=60\r\n", jpeg.toByteArray(), request);
+        final WebSourceTileLayer layer = new WebSourceTileLayer("jpeg-test",
+                "http://127.0.0.1:" + server.getLocalPort() + "/{z}/{x}/{y}.jpg");
+        final MapTileCache cache = new MapTileCache(getActivity());
+        final RecordingDiskCache diskCache = new RecordingDiskCache();
+        cache.setDiskCache(diskCache);
+        final MapTileDownloader downloader =
+                new MapTileDownloader(layer, cache, null, createMapView());
+        final MapTile tile = new MapTile(layer.getCacheKey(), 3, 1, 2);
+        try {
+            final TileMetadata stale = new TileMetadata("\"v1\"", null, 1, "image/jpeg");
+            final WebSourceTileLayer.Download download =
+                    layer.revalidateTile(downloader, tile, false, stale);
+            serving.join(5000);
+            // nothing is decoded or cached until the decode stage gets to it
+            Assert.assertTrue(Arrays.equals(jpeg.toByteArray(), download.getImages().get(0)));
+            Assert.assertFalse(diskCache.mData.containsKey(tile));
+            Assert.assertNotNull(layer.decodeTile(downloader, tile, download));
+            TileDiskWriter.getInstance().drain();
+
+            // the response is cached as it was sent, not re-compressed as a PNG
+            Assert.assertTrue(Arrays.equals(jpeg.toByteArray(), diskCache.mData.get(tile)));
+            final TileMetadata stored = cache.getTileMetadata(tile);
+            Assert.assertEquals("image/jpeg", stored.getContentType());
+            Assert.assertEquals("\"v2\"", stored.getETag());
+        } finally {
+            downloader.detach();
+            cache.removeTile(tile);
+            cache.setDiskCache(null);
+            server.close();
+        }
+    }
+
+    public void testCompositeTileDownload() throws Exception {
+        final CompositeStubLayer layer = new CompositeStubLayer("composite-test");
+        final MapTileCache cache = new MapTileCache(getActivity());
+        final MapTileDownloader downloader =
+                new MapTileDownloader(layer, cache, null, createMapView());
+        final MapTile tile = new MapTile(layer.getCacheKey(), 3, 1, 2);
+        final NegativeTileCache.Reason[] failure = new NegativeTileCache.Reason[1];
+
+        // fetched at once, composited in the order of the URLs whatever order they arrive in
+        layer.mDelays.put("a", 200L);
+        WebSourceTileLayer.Download download = layer.downloadTile(downloader, tile, false,
+                failure);
+        Assert.assertNotNull(download);
+        Assert.assertEquals("abc", join(download.getImages()));
+
+        // the first failure fails the tile straight away and cancels the images in flight
+        layer.mUrls.clear();
+        layer.mDelays.put("a", 5000L);
+        layer.mDelays.put("b", 100L);
+        layer.mFailures.put("b", NegativeTileCache.Reason.SERVER_ERROR);
+        final long start = System.currentTimeMillis();
+        Assert.assertNull(layer.downloadTile(downloader, tile, false, failure));
+        Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+        Assert.assertEquals(NegativeTileCache.Reason.SERVER_ERROR, failure[0]);
+        waitFor(layer.mInterrupted, 1);
+        Assert.assertEquals("a", layer.mInterrupted.get(0));
+
+        // the image that arrived before the failure is kept, the others are requested again
+        layer.mUrls.clear();
+        layer.mDelays.clear();
+        layer.mFailures.clear();
+        failure[0] = null;
+        download = layer.downloadTile(downloader, tile, false, failure);
+        Assert.assertNotNull(download);
+        Assert.assertNull(failure[0]);
+        Assert.assertEquals("abc", join(download.getImages()));
+        Assert.assertEquals(2, layer.mUrls.size());
+        for (String url : layer.mUrls) {
+            Assert.assertFalse(url.endsWith("c"));
+        }
+
+        // the images in flight see the tile was given up on, and are kept if they arrive anyway
+        layer.mUrls.clear();
+        layer.mDelays.put("a", 500L);
+        layer.mUninterruptible.put("a", Boolean.TRUE);
+        layer.mDelays.put("b", 100L);
+        layer.mFailures.put("b", NegativeTileCache.Reason.SERVER_ERROR);
+        Assert.assertNull(layer.downloadTile(downloader, tile, false, failure));
+        waitFor(layer.mCancelled, 1);
+        Assert.assertEquals("a", layer.mCancelled.get(0));
+        // cached once the image is handed back
+        Thread.sleep(200);
+        layer.mUrls.clear();
+        layer.mDelays.clear();
+        layer.mFailures.clear();
+        layer.mUninterruptible.clear();
+        failure[0] = null;
+        download = layer.downloadTile(downloader, tile, false, failure);
+        Assert.assertEquals("abc", join(download.getImages()));
+        Assert.assertEquals(1, layer.mUrls.size());
+        Assert.assertTrue(layer.mUrls.get(0).endsWith("b"));
+
+        // an interrupted download is cancelled rather than failed
+        layer.mUrls.clear();
+        layer.mDelays.put("a", 5000L);
+        final NegativeTileCache.Reason[] interruptedFailure = new NegativeTileCache.Reason[1];
+        final AtomicBoolean gaveUp = new AtomicBoolean();
+        final Thread downloading = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                gaveUp.set(layer.downloadTile(downloader, tile, false, interruptedFailure)
+                        == null);
+            }
+        });
+        downloading.start();
+        waitFor(layer.mUrls, 3);
+        downloading.interrupt();
+        downloading.join(5000);
+        Assert.assertTrue(gaveUp.get());
+        Assert.assertNull(interruptedFailure[0]);
+        downloader.detach();
+    }
+
+    public void testCompositeScaledTile() throws Exception {
+        final StubWebTileLayer layer = new StubWebTileLayer("composite-scaled-test", null);
+        // scaled decodes never reuse a bitmap of the pool
+        layer.setDecodePolicy(new TileDecodePolicy(false, 200));
+        final MapTileCache cache = new MapTileCache(getActivity());
+        final MapTileDownloader downloader =
+                new MapTileDownloader(layer, cache, null, createMapView());
+        final MapTile tile = new MapTile(layer.getCacheKey(), 3, 1, 2);
+        final Bitmap bottom = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        bottom.eraseColor(Color.RED);
+        final Bitmap top = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        top.eraseColor(Color.TRANSPARENT);
+        fill(top, 0, 0, Color.BLUE);
+        final WebSourceTileLayer.Download download = new WebSourceTileLayer.Download();
+        download.getImages().add(MapTileCache.compress(bottom));
+        download.getImages().add(MapTileCache.compress(top));
+        bottom.recycle();
+        top.recycle();
+
+        final CacheableBitmapDrawable drawable = layer.decodeTile(downloader, tile, download);
+        Assert.assertNotNull(drawable);
+        final Bitmap result = drawable.getBitmap();
+        Assert.assertEquals(200, result.getWidth());
+        Assert.assertEquals(Color.BLUE, result.getPixel(10, 10));
+        Assert.assertEquals(Color.RED, result.getPixel(190, 190));
+        downloader.detach();
+        cache.removeTile(tile);
+    }
+
+    public void testPendingTileOrder() throws Exception {
+        final List<String> loads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch gate = new CountDownLatch(1);
+        final FakeTileProvider provider = new FakeTileProvider(new SharedTileExecutor(1),
+                "order-test", 1, 100, loads, gate);
+        // the only thread waits on the first tile, the others stay pending
+        request(provider, new MapTile("order-test", 10, 100, 100));
+        provider.awaitWorking();
+
+        // without a viewport the eldest request goes first, a repeated one is the newest
+        for (int x = 0; x < 3; x++) {
+            request(provider, new MapTile("order-test", 10, x, 0));
+        }
+        request(provider, new MapTile("order-test", 10, 0, 0));
+        List<MapTile> order = provider.popAllPending();
+        Assert.assertEquals(3, order.size());
+        Assert.assertEquals(1, order.get(0).getX());
+        Assert.assertEquals(2, order.get(1).getX());
+        Assert.assertEquals(0, order.get(2).getX());
+
+        // center-out within the viewport, ties in the order they were requested
+        final TileViewport viewport = new TileViewport();
+        viewport.set(10, 0, 0, 4, 4);
+        provider.setViewport(viewport);
+        final ArrayList<MapTile> requested = new ArrayList<MapTile>();
+        for (int i = 0; i < 25; i++) {
+            requested.add(new MapTile("order-test", 10, i % 5, i / 5));
+        }
+        Collections.shuffle(requested, new Random(42));
+        for (MapTile tile : requested) {
+            request(provider, tile);
+        }
+        order = provider.popAllPending();
+        Assert.assertEquals(25, order.size());
+        Assert.assertEquals(2, order.get(0).getX());
+        Assert.assertEquals(2, order.get(0).getY());
+        for (int i = 1; i < order.size(); i++) {
+            final long previous = viewport.priorityOf(order.get(i - 1));
+            final long priority = viewport.priorityOf(order.get(i));
+            Assert.assertTrue(previous <= priority);
+            if (previous == priority) {
+                Assert.assertTrue(requested.indexOf(order.get(i - 1))
+                        < requested.indexOf(order.get(i)));
+            }
+        }
+
+        // a full queue drops the eldest of the furthest requests
+        final FakeTileProvider full = new FakeTileProvider(new SharedTileExecutor(1),
+                "full-test", 1, 4, loads, gate);
+        full.setViewport(viewport);
+        request(full, new MapTile("full-test", 10, 2, 2));
+        full.awaitWorking();
+        final RecordingCallback corner = request(full, new MapTile("full-test", 10, 0, 0));
+        request(full, new MapTile("full-test", 10, 2, 1));
+        request(full, new MapTile("full-test", 10, 1, 2));
+        final RecordingCallback opposite = request(full, new MapTile("full-test", 10, 4, 4));
+        request(full, new MapTile("full-test", 10, 3, 2));
+        Assert.assertTrue(corner.mCancelled);
+        Assert.assertFalse(opposite.mCancelled);
+        request(full, new MapTile("full-test", 10, 2, 3));
+        Assert.assertTrue(opposite.mCancelled);
+        order = full.popAllPending();
+        Assert.assertEquals(4, order.size());
+        Assert.assertEquals(1, order.get(0).getY());
+        Assert.assertEquals(1, order.get(1).getX());
+        Assert.assertEquals(3, order.get(2).getX());
+        Assert.assertEquals(3, order.get(3).getY());
+
+        gate.countDown();
+        provider.detach();
+        full.detach();
+    }
+
+    public void testTilesOverlayFallback() throws Exception {
+        final MapTileCache cache = new MapTileCache(getActivity());
+        final List<String> loads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch gate = new CountDownLatch(1);
+        final StubWebTileLayer source = new StubWebTileLayer("fallback-test", null);
+        // requested tiles never arrive, the fallbacks are all there is to draw
+        final FakeTileProvider provider = new FakeTileProvider(new SharedTileExecutor(1),
+                "fallback-test", 1, loads, gate);
+        final MapTileLayerArray layer = new MapTileLayerArray(getActivity(), source, null,
+                new MapTileModuleLayerBase[] {provider});
+        final TilesOverlay overlay = new TilesOverlay(layer);
+        final String key = layer.getCacheKey();
+        final MapTile parent = new MapTile(key, 1, 0, 0);
+        final MapTile topLeftChild = new MapTile(key, 3, 2, 2);
+        final MapTile bottomRightChild = new MapTile(key, 3, 3, 3);
+        final Bitmap quadrants = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        fill(quadrants, 0, 0, Color.RED);
+        fill(quadrants, 128, 0, Color.GREEN);
+        fill(quadrants, 0, 128, Color.BLUE);
+        fill(quadrants, 128, 128, Color.YELLOW);
+        cache.putTileInMemoryCache(parent, quadrants);
+
+        // 2/1/1 is missing, it is drawn as the bottom right quarter of its parent
+        final int size = Projection.getTileSize();
+        Bitmap drawn = drawTile(overlay, size);
+        Assert.assertEquals(Color.YELLOW, drawn.getPixel(size / 2, size / 2));
+        Assert.assertEquals(Color.YELLOW, drawn.getPixel(size / 4, size / 4));
+
+        // children that are in memory are drawn over it
+        final Bitmap red = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        red.eraseColor(Color.RED);
+        final Bitmap blue = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        blue.eraseColor(Color.BLUE);
+        cache.putTileInMemoryCache(topLeftChild, red);
+        cache.putTileInMemoryCache(bottomRightChild, blue);
+        drawn.recycle();
+        drawn = drawTile(overlay, size);
+        Assert.assertEquals(Color.RED, drawn.getPixel(size / 4, size / 4));
+        Assert.assertEquals(Color.BLUE, drawn.getPixel(size * 3 / 4, size * 3 / 4));
+        Assert.assertEquals(Color.YELLOW, drawn.getPixel(size * 3 / 4, size / 4));
+
+        // without ancestors only the children are left
+        overlay.setFallbackZoomLevels(-1);
+        Assert.assertEquals(0, overlay.getFallbackZoomLevels());
+        drawn.recycle();
+        drawn = drawTile(overlay, size);
+        Assert.assertEquals(Color.RED, drawn.getPixel(size / 4, size / 4));
+        Assert.assertEquals(Color.TRANSPARENT, drawn.getPixel(size * 3 / 4, size / 4));
+        drawn.recycle();
+
+        gate.countDown();
+        overlay.onDetach(null);
+        cache.removeTile(parent);
+        cache.removeTile(topLeftChild);
+        cache.removeTile(bottomRightChild);
     }
 
     public void testProjection() throws Exception {
@@ -90,4 +1555,641 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         Assert.assertEquals(512, Projection.mapSize(1f));
         Assert.assertEquals(256, Projection.getTileSize());
     }
+
+    private static void waitFor(final List<String> loads, final int count) throws Exception {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (loads.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, loads.size());
+    }
+
+    /**
+     * Create an MBTiles file holding every tile of a zoom level.
+     *
+     * @param image the image of every tile, or null for each tile to hold its "x/y"
+     * @return a writable connection to it
+     */
+    private SQLiteDatabase createMBTiles(final String name, final int zoom, final byte[] image) {
+        final File file = getActivity().getDatabasePath(name + ".mbtiles");
+        file.getParentFile().mkdirs();
+        file.delete();
+        final SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        db.execSQL("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER,"
+                + " tile_row INTEGER, tile_data BLOB)");
+        final int size = 1 << zoom;
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                final ContentValues values = new ContentValues();
+                values.put("zoom_level", zoom);
+                values.put("tile_column", x);
+                // MBTiles rows count from the bottom
+                values.put("tile_row", size - 1 - y);
+                values.put("tile_data", image != null ? image : (x + "/" + y).getBytes());
+                db.insert("tiles", null, values);
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Read every tile of an archive created at zoom level 2 from several threads at once.
+     *
+     * @param errors counts the tiles that weren't read right
+     */
+    private static void readConcurrently(final MBTilesFileArchive archive,
+            final AtomicInteger errors) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[6];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int n = 0; n < 20; n++) {
+                        final int x = n % 4;
+                        final int y = (n / 4) % 4;
+                        final byte[] data = archive.getTileData(2, x, y);
+                        if (data == null || !new String(data).equals(x + "/" + y)) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+    }
+
+    /**
+     * Answer one request on a server socket with a response that has no body.
+     *
+     * @param status the status line and the headers of the response, each ending with CRLF
+     * @param request receives the lines of the request
+     */
+    private static Thread serve(final ServerSocket server, final String status,
+            final List<String> request) {
+        return serve(server, status, new byte[0], request);
+    }
+
+    /**
+     * Answer one request on a server socket.
+     *
+     * @param status the status line and the headers of the response, each ending with CRLF
+     * @param body the body of the response
+     * @param request receives the lines of the request
+     */
+    private static Thread serve(final ServerSocket server, final String status,
+            final byte[] body, final List<String> request) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Socket socket = server.accept();
+                    final BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+                    String line;
+                    while ((line = reader.readLine()) != null && line.length() > 0) {
+                        request.add(line);
+                    }
+                    final OutputStream out = socket.getOutputStream();
+                    out.write((status + "Content-Length: " + body.length
+                            + "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+                    out.write(body);
+                    out.flush();
+                    socket.close();
+                } catch (IOException e) {
+                    Log.w("MainActivityTest", "Error serving a request", e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Answer count requests on a single keep-alive connection of a server socket, each with the
+     * same body.
+     *
+     * @param accepted counts the connections accepted
+     */
+    private static Thread serveKeepAlive(final ServerSocket server, final int count,
+            final String body, final AtomicInteger accepted) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Socket socket = server.accept();
+                    accepted.incrementAndGet();
+                    final BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+                    final OutputStream out = socket.getOutputStream();
+                    for (int i = 0; i < count; i++) {
+                        String line;
+                        while ((line = reader.readLine()) != null && line.length() > 0) {
+                            // the request has no body
+                        }
+                        out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n"
+                                + "Content-Length: " + body.length() + "\r\n\r\n" + body)
+                                .getBytes("ISO-8859-1"));
+                        out.flush();
+                    }
+                    // a second connection would mean the first one wasn't reused
+                    server.setSoTimeout(500);
+                    try {
+                        server.accept().close();
+                        accepted.incrementAndGet();
+                    } catch (IOException e) {
+                        // none came
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    Log.w("MainActivityTest", "Error serving a request", e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Fill a 128 pixel square of a bitmap.
+     */
+    private static void fill(final Bitmap bitmap, final int left, final int top,
+            final int color) {
+        for (int y = top; y < top + 128; y++) {
+            for (int x = left; x < left + 128; x++) {
+                bitmap.setPixel(x, y, color);
+            }
+        }
+    }
+
+    /**
+     * Draw tile 2/1/1 with an overlay.
+     *
+     * @return the tile as it was drawn
+     */
+    private static Bitmap drawTile(final TilesOverlay overlay, final int size) {
+        final Bitmap result = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(result);
+        // the tile is the second one across and down the world
+        canvas.translate(-size, -size);
+        final Rect viewPort = new Rect(size, size, size * 2, size * 2);
+        overlay.drawTiles(canvas, 2, size, viewPort, viewPort);
+        return result;
+    }
+
+    /**
+     * A disk tier that keeps tiles in memory.
+     */
+    private static class RecordingDiskCache implements TileDiskCache {
+        final ConcurrentHashMap<MapTile, byte[]> mData = new ConcurrentHashMap<MapTile, byte[]>();
+        final ConcurrentHashMap<MapTile, String> mMetadata =
+                new ConcurrentHashMap<MapTile, String>();
+        // the threads the images and the metadata were read on
+        final List<String> mReadThreads = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public boolean contains(final MapTile tile) {
+            return mData.containsKey(tile);
+        }
+
+        @Override
+        public ByteBuffer get(final MapTile tile) {
+            mReadThreads.add(Thread.currentThread().getName());
+            final byte[] data = mData.get(tile);
+            return data != null ? ByteBuffer.wrap(data) : null;
+        }
+
+        @Override
+        public String getMetadata(final MapTile tile) {
+            mReadThreads.add(Thread.currentThread().getName());
+            return mMetadata.get(tile);
+        }
+
+        @Override
+        public void put(final MapTile tile, final byte[] data, final String metadata) {
+            mData.put(tile, data);
+            if (metadata != null) {
+                mMetadata.put(tile, metadata);
+            } else {
+                mMetadata.remove(tile);
+            }
+        }
+
+        @Override
+        public boolean putMetadata(final MapTile tile, final String metadata) {
+            if (!mData.containsKey(tile)) {
+                return false;
+            }
+            mMetadata.put(tile, metadata);
+            return true;
+        }
+
+        @Override
+        public void remove(final MapTile tile) {
+            mData.remove(tile);
+            mMetadata.remove(tile);
+        }
+
+        @Override
+        public void clear() {
+            mData.clear();
+            mMetadata.clear();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A response that was never requested, made of headers only.
+     */
+    private static class FakeConnection extends HttpURLConnection {
+        // keyed by lower case names
+        final HashMap<String, String> mHeaders = new HashMap<String, String>();
+
+        FakeConnection() {
+            super(null);
+        }
+
+        @Override
+        public String getHeaderField(final String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+
+    private static String join(final List<byte[]> images) {
+        final StringBuilder result = new StringBuilder();
+        for (byte[] image : images) {
+            result.append(new String(image));
+        }
+        return result.toString();
+    }
+
+    /**
+     * A stub layer composited from three URLs, ending in a, b and c, whose images are those
+     * letters. Each URL can be delayed or made to fail, and records if it was interrupted.
+     */
+    private static class CompositeStubLayer extends StubWebTileLayer {
+        final ConcurrentHashMap<String, Long> mDelays = new ConcurrentHashMap<String, Long>();
+        final ConcurrentHashMap<String, NegativeTileCache.Reason> mFailures =
+                new ConcurrentHashMap<String, NegativeTileCache.Reason>();
+        final List<String> mInterrupted = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> mCancelled = Collections.synchronizedList(new ArrayList<String>());
+        // images that take their delay whatever happens, like a read that ignores interrupts
+        final ConcurrentHashMap<String, Boolean> mUninterruptible =
+                new ConcurrentHashMap<String, Boolean>();
+
+        CompositeStubLayer(final String id) {
+            super(id, null);
+        }
+
+        @Override
+        public String[] getTileURLs(final MapTile aTile, final boolean hdpi) {
+            final String url = getTileURL(aTile, hdpi);
+            return new String[] {url + "?a", url + "?b", url + "?c"};
+        }
+
+        @Override
+        public byte[] getDataFromURL(final String url, final TileMetadata[] metadata,
+                final NegativeTileCache.Reason[] failure, final MapTileRequestState request) {
+            mUrls.add(url);
+            final String name = url.substring(url.length() - 1);
+            final Long delay = mDelays.get(name);
+            if (delay != null && mUninterruptible.containsKey(name)) {
+                final long end = System.currentTimeMillis() + delay;
+                while (System.currentTimeMillis() < end) {
+                    try {
+                        Thread.sleep(Math.max(end - System.currentTimeMillis(), 1));
+                    } catch (InterruptedException e) {
+                        mInterrupted.add(name);
+                    }
+                }
+            } else if (delay != null) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    mInterrupted.add(name);
+                    return null;
+                }
+            }
+            if (request != null && request.isCancelled()) {
+                mCancelled.add(name);
+            }
+            final NegativeTileCache.Reason reason = mFailures.get(name);
+            if (reason != null) {
+                failure[0] = reason;
+                return null;
+            }
+            return name.getBytes();
+        }
+    }
+
+    /**
+     * A provider that loads no image, and records the order its tiles were loaded in. Loads
+     * wait for a gate to open.
+     */
+    private static class FakeTileProvider extends MapTileModuleLayerBase {
+        final String mName;
+        final List<String> mLoads;
+        final CountDownLatch mGate;
+        final AtomicInteger mLoading = new AtomicInteger();
+        final AtomicInteger mMostLoading = new AtomicInteger();
+
+        private final TileLoader mLoader = new TileLoader() {
+            @Override
+            protected Drawable loadTile(final MapTileRequestState pState) {
+                final int loading = mLoading.incrementAndGet();
+                int most;
+                while ((most = mMostLoading.get()) < loading
+                        && !mMostLoading.compareAndSet(most, loading)) {
+                    // raced with another thread
+                }
+                try {
+                    mGate.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                mLoads.add(mName);
+                mLoading.decrementAndGet();
+                return null;
+            }
+        };
+
+        FakeTileProvider(final SharedTileExecutor executor, final String name,
+                final int threads, final List<String> loads, final CountDownLatch gate) {
+            this(executor, name, threads, 100, loads, gate);
+        }
+
+        FakeTileProvider(final SharedTileExecutor executor, final String name,
+                final int threads, final int pendingQueueSize, final List<String> loads,
+                final CountDownLatch gate) {
+            super(executor, threads, pendingQueueSize);
+            mName = name;
+            mLoads = loads;
+            mGate = gate;
+        }
+
+        /**
+         * Wait for a thread to take a tile.
+         */
+        void awaitWorking() throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (getWorkingCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, getWorkingCount());
+        }
+
+        /**
+         * @return the pending tiles, in the order they would have been loaded
+         */
+        List<MapTile> popAllPending() {
+            final List<MapTile> result = new ArrayList<MapTile>();
+            synchronized (mQueueLockObject) {
+                MapTileRequestState state;
+                while ((state = popFirstPending()) != null) {
+                    result.add(state.getMapTile());
+                }
+            }
+            return result;
+        }
+
+        void request(final int count) {
+            for (int i = 0; i < count; i++) {
+                loadMapTileAsync(new MapTileRequestState(new MapTile(mName, 10, i, 0),
+                        new MapTileModuleLayerBase[] {this}, new RecordingCallback()));
+            }
+        }
+
+        @Override
+        protected String getName() {
+            return mName;
+        }
+
+        @Override
+        protected String getThreadGroupName() {
+            return mName;
+        }
+
+        @Override
+        protected Runnable getTileLoader() {
+            return mLoader;
+        }
+
+        @Override
+        public boolean getUsesDataConnection() {
+            return false;
+        }
+
+        @Override
+        public float getMinimumZoomLevel() {
+            return 0;
+        }
+
+        @Override
+        public float getMaximumZoomLevel() {
+            return 22;
+        }
+
+        @Override
+        public BoundingBox getBoundingBox() {
+            return null;
+        }
+
+        @Override
+        public LatLng getCenterCoordinate() {
+            return null;
+        }
+
+        @Override
+        public float getCenterZoom() {
+            return 0;
+        }
+
+        @Override
+        public int getTileSizePixels() {
+            return 256;
+        }
+
+        @Override
+        public void setTileSource(final ITileLayer tileSource) {
+        }
+
+        @Override
+        public ITileLayer getTileSource() {
+            return null;
+        }
+
+        @Override
+        public String getCacheKey() {
+            return mName;
+        }
+    }
+
+    /**
+     * Draw a tile of a stack until its composite has a color.
+     *
+     * @return the color of the composite in the end
+     */
+    private static int awaitComposite(final MapTileLayerStack stack, final MapTile tile,
+            final int color) throws InterruptedException {
+        int result = Color.TRANSPARENT;
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (result != color && System.currentTimeMillis() < deadline) {
+            stack.getMapTile(tile, true);
+            final CacheableBitmapDrawable composite = stack.getMapTileFromMemory(tile);
+            if (composite != null && composite.isBitmapValid()) {
+                result = composite.getBitmap().getPixel(0, 0);
+            }
+            if (result != color) {
+                Thread.sleep(20);
+            }
+        }
+        return result;
+    }
+
+    private static RecordingCallback request(final MapTileModuleLayerBase provider,
+            final MapTile tile) {
+        final RecordingCallback callback = new RecordingCallback();
+        provider.loadMapTileAsync(new MapTileRequestState(tile,
+                new MapTileModuleLayerBase[] {provider}, callback));
+        return callback;
+    }
+
+    private MapView createMapView() {
+        final MapView[] mapView = new MapView[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mapView[0] = new MapView(getActivity());
+            }
+        });
+        return mapView[0];
+    }
+
+    /**
+     * Hears how a tile request ended, and on which thread.
+     */
+    private static class RecordingCallback implements IMapTileProviderCallback {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        volatile Drawable mDrawable;
+        volatile boolean mCancelled;
+        volatile boolean mFailed;
+        volatile String mThread;
+
+        boolean await() throws InterruptedException {
+            return mDone.await(5, TimeUnit.SECONDS);
+        }
+
+        private void done() {
+            mThread = Thread.currentThread().getName();
+            mDone.countDown();
+        }
+
+        @Override
+        public void mapTileRequestCompleted(final MapTileRequestState aState,
+                final Drawable aDrawable) {
+            mDrawable = aDrawable;
+            done();
+        }
+
+        @Override
+        public void mapTileRequestFailed(final MapTileRequestState aState) {
+            mFailed = true;
+            done();
+        }
+
+        @Override
+        public void mapTileRequestCancelled(final MapTileRequestState aState) {
+            mCancelled = true;
+            done();
+        }
+
+        @Override
+        public void mapTileRequestExpiredTile(final MapTileRequestState aState,
+                final CacheableBitmapDrawable aDrawable) {
+            mDrawable = aDrawable;
+            done();
+        }
+
+        @Override
+        public boolean useDataConnection() {
+            return true;
+        }
+    }
+
+    /**
+     * A web layer that serves a plain tile for every URL without going to the network, and
+     * records the URLs and the threads they were requested on.
+     */
+    private static class StubWebTileLayer extends WebSourceTileLayer {
+        final List<String> mUrls = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> mThreads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        private final CountDownLatch mGate;
+        private volatile byte[] mImage;
+        // sent with every image
+        volatile TileMetadata mMetadata;
+
+        /**
+         * @param gate if not null, requests wait for it to open
+         */
+        StubWebTileLayer(final String id, final CountDownLatch gate) {
+            super(id, "http://" + id + ".example.com/{z}/{x}/{y}.png");
+            mGate = gate;
+            setColor(Color.GREEN);
+        }
+
+        /**
+         * Serve tiles of another color from now on.
+         */
+        void setColor(final int color) {
+            final Bitmap bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+            bitmap.eraseColor(color);
+            mImage = MapTileCache.compress(bitmap);
+            bitmap.recycle();
+        }
+
+        @Override
+        public byte[] getDataFromURL(final String url, final TileMetadata[] metadata,
+                final NegativeTileCache.Reason[] failure, final MapTileRequestState request) {
+            mUrls.add(url);
+            mThreads.add(Thread.currentThread().getName());
+            mStarted.countDown();
+            if (mGate != null) {
+                try {
+                    mGate.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (metadata != null) {
+                metadata[0] = mMetadata;
+            }
+            return request != null && request.isCancelled() ? null : mImage;
+        }
+    }
 }